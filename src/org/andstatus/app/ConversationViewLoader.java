@@ -40,6 +40,7 @@ import org.andstatus.app.context.MyPreferences;
 import org.andstatus.app.data.AvatarDrawable;
 import org.andstatus.app.data.DbUtils;
 import org.andstatus.app.data.MyDatabase.Avatar;
+import org.andstatus.app.data.MsgDisplayFields;
 import org.andstatus.app.data.MyProvider;
 import org.andstatus.app.data.MyDatabase.Msg;
 import org.andstatus.app.data.MyDatabase.MsgOfUser;
@@ -57,8 +58,10 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class ConversationViewLoader {
@@ -71,6 +74,7 @@ public class ConversationViewLoader {
             Msg.SENDER_ID,
             Msg.BODY,
             Msg.VIA,
+            Msg.VIA_DISPLAY,
             User.IN_REPLY_TO_NAME,
             Msg.IN_REPLY_TO_MSG_ID,
             User.RECIPIENT_NAME,
@@ -93,7 +97,8 @@ public class ConversationViewLoader {
         return oMsgs;
     }
 
-    List<Long> idsOfTheMessagesToFind = new ArrayList<Long>();
+    /** Messages of the conversation, which were found already, including not loaded ones */
+    private final Map<Long, ConversationOneMessage> idToMsg = new HashMap<Long, ConversationOneMessage>();
 
     public ConversationViewLoader(Context contextIn, MyAccount maIn, long selectedMessageIdIn, MessageContextMenu contextMenuIn) {
         context = contextIn;
@@ -103,126 +108,177 @@ public class ConversationViewLoader {
     }
     
     public void load() {
-        idsOfTheMessagesToFind.clear();
+        idToMsg.clear();
         oMsgs.clear();
-        findPreviousMessagesRecursively(new ConversationOneMessage(selectedMessageId, 0));
+        findConversation();
         Collections.sort(oMsgs, replyLevelComparator);
         enumerateMessages();
         Collections.sort(oMsgs);
     }
 
-    private void findPreviousMessagesRecursively(ConversationOneMessage oMsg) {
-        long msgId = oMsg.id;
-        if (checkAndAddMessageToFind(msgId)) {
+    /**
+     * The graph of replies is traversed breadth-first: messages of each step are loaded in one query,
+     * replies to all of them are found in another one. Then the next step goes: parents and replies found.
+     * Names of all rebloggers are resolved in one query at the end.
+     * (We cannot use a recursive "WITH" query: it's not supported by SQLite of older Android versions)
+     */
+    private void findConversation() {
+        Map<Long, Set<Long>> rebloggers = new HashMap<Long, Set<Long>>();
+        Map<Long, ConversationOneMessage> step = new HashMap<Long, ConversationOneMessage>();
+        addToStep(new ConversationOneMessage(selectedMessageId, 0), step);
+        while (!step.isEmpty()) {
+            MyLog.v(this, "findConversation; messages: " + step.keySet());
+            loadMessages(step, rebloggers);
+            Map<Long, ConversationOneMessage> nextStep = new HashMap<Long, ConversationOneMessage>();
+            Map<Long, List<Long>> replies = MyProvider.getReplyIds(step.keySet());
+            for (ConversationOneMessage oMsg : step.values()) {
+                List<Long> replyIds = replies.get(oMsg.id);
+                if (replyIds != null) {
+                    oMsg.nReplies = replyIds.size();
+                    for (long replyId : replyIds) {
+                        addToStep(new ConversationOneMessage(replyId, oMsg.replyLevel + 1), nextStep);
+                    }
+                }
+                findPreviousMessage(oMsg, nextStep);
+            }
+            step = nextStep;
+        }
+        setRebloggers(rebloggers);
+    }
+
+    private void addToStep(ConversationOneMessage oMsg, Map<Long, ConversationOneMessage> step) {
+        if (oMsg.id == 0) {
             return;
         }
-        findRepliesRecursively(oMsg);
-        MyLog.v(this, "findPreviousMessages " + msgId);
-        Uri uri = MyProvider.getTimelineMsgUri(ma.getUserId(), TimelineTypeEnum.HOME, true, msgId);
+        if (idToMsg.containsKey(oMsg.id)) {
+            MyLog.v(this, "findConversation cycled on the msgId=" + oMsg.id);
+            return;
+        }
+        idToMsg.put(oMsg.id, oMsg);
+        step.put(oMsg.id, oMsg);
+    }
+
+    /**
+     * There may be several rows for a message: one for each linked user
+     * @param rebloggers IDs of all known senders of the messages except for their Authors are added here.
+     *    These "senders" reblogged the message
+     */
+    private void loadMessages(Map<Long, ConversationOneMessage> step, Map<Long, Set<Long>> rebloggers) {
+        Uri uri = MyProvider.getTimelineUri(ma.getUserId(), TimelineTypeEnum.HOME, true);
+        String selection = MyProvider.MSG_TABLE_ALIAS + "." + Msg._ID + " IN (" + DbUtils.idsToString(step.keySet()) + ")";
+        Set<Long> loaded = new HashSet<Long>();
         Cursor cursor = null;
         try {
-            if (msgId != 0) {
-                cursor = context.getContentResolver().query(uri, PROJECTION, null, null, null);
-            }
-            if (cursor != null) {
-                if (!findPreviousMessage3(oMsg, msgId, cursor)) {
-                    findPreviousMessage4(oMsg, msgId);
+            cursor = context.getContentResolver().query(uri, PROJECTION, selection, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                ConversationOneMessage oMsg = step.get(cursor.getLong(cursor.getColumnIndex(Msg._ID)));
+                if (oMsg == null) {
+                    continue;
+                }
+                if (loaded.add(oMsg.id)) {
+                    loadMessage(oMsg, cursor);
+                    oMsgs.add(oMsg);
                 }
+                loadLinkedUser(oMsg, cursor, rebloggers);
             }
         } finally {
             DbUtils.closeSilently(cursor);
         }
     }
 
-    private boolean findPreviousMessage3(ConversationOneMessage oMsg, long msgId, Cursor cursor) {
-        boolean skip = false;
-        if (cursor.moveToFirst()) {
-            /**
-             * IDs of all known senders of this message except for the Author
-             * These "senders" reblogged the message
-             */
-            Set<Long> rebloggers = new HashSet<Long>();
-            int ind=0;
-            do {
-                long senderId = cursor.getLong(cursor.getColumnIndex(Msg.SENDER_ID));
-                long authorId = cursor.getLong(cursor.getColumnIndex(Msg.AUTHOR_ID));
-                long linkedUserId = cursor.getLong(cursor.getColumnIndex(User.LINKED_USER_ID));
+    /**
+     * Values, which are the same for all rows of the message
+     */
+    private void loadMessage(ConversationOneMessage oMsg, Cursor cursor) {
+        oMsg.inReplyToMsgId = cursor.getLong(cursor.getColumnIndex(Msg.IN_REPLY_TO_MSG_ID));
+        oMsg.createdDate = cursor.getLong(cursor.getColumnIndex(Msg.CREATED_DATE));
+        oMsg.author = cursor.getString(cursor.getColumnIndex(User.AUTHOR_NAME));
+        oMsg.body = cursor.getString(cursor.getColumnIndex(Msg.BODY));
+        oMsg.via = cursor.getString(cursor.getColumnIndex(Msg.VIA_DISPLAY));
+        if (oMsg.via == null) {
+            oMsg.via = MsgDisplayFields.viaToDisplay(cursor.getString(cursor.getColumnIndex(Msg.VIA)));
+        }
+        if (MyPreferences.showAvatars()) {
+            long authorId = cursor.getLong(cursor.getColumnIndex(Msg.AUTHOR_ID));
+            oMsg.avatarDrawable = new AvatarDrawable(authorId, cursor.getString(cursor.getColumnIndex(Avatar.FILE_NAME)));
+        }
+        int colIndex = cursor.getColumnIndex(User.IN_REPLY_TO_NAME);
+        if (colIndex > -1) {
+            oMsg.inReplyToName = cursor.getString(colIndex);
+            if (TextUtils.isEmpty(oMsg.inReplyToName)) {
+                oMsg.inReplyToName = "";
+            }
+        }
+        colIndex = cursor.getColumnIndex(User.RECIPIENT_NAME);
+        if (colIndex > -1) {
+            oMsg.recipientName = cursor.getString(colIndex);
+            if (TextUtils.isEmpty(oMsg.recipientName)) {
+                oMsg.recipientName = "";
+            }
+        }
+    }
 
-                if (ind == 0) {
-                    // This is the same for all retrieved rows
-                    oMsg.inReplyToMsgId = cursor.getLong(cursor.getColumnIndex(Msg.IN_REPLY_TO_MSG_ID));
-                    oMsg.createdDate = cursor.getLong(cursor.getColumnIndex(Msg.CREATED_DATE));
-                    oMsg.author = cursor.getString(cursor.getColumnIndex(User.AUTHOR_NAME));
-                    oMsg.body = cursor.getString(cursor.getColumnIndex(Msg.BODY));
-                    String via = cursor.getString(cursor.getColumnIndex(Msg.VIA));
-                    if (!TextUtils.isEmpty(via)) {
-                        oMsg.via = Html.fromHtml(via).toString().trim();
-                    }
-                    if (MyPreferences.showAvatars()) {
-                        oMsg.avatarDrawable = new AvatarDrawable(authorId, cursor.getString(cursor.getColumnIndex(Avatar.FILE_NAME)));
-                    }
-                    int colIndex = cursor.getColumnIndex(User.IN_REPLY_TO_NAME);
-                    if (colIndex > -1) {
-                        oMsg.inReplyToName = cursor.getString(colIndex);
-                        if (TextUtils.isEmpty(oMsg.inReplyToName)) {
-                            oMsg.inReplyToName = "";
-                        }
-                    }
-                    colIndex = cursor.getColumnIndex(User.RECIPIENT_NAME);
-                    if (colIndex > -1) {
-                        oMsg.recipientName = cursor.getString(colIndex);
-                        if (TextUtils.isEmpty(oMsg.recipientName)) {
-                            oMsg.recipientName = "";
-                        }
-                    }
-                }
+    private void loadLinkedUser(ConversationOneMessage oMsg, Cursor cursor, Map<Long, Set<Long>> rebloggers) {
+        long senderId = cursor.getLong(cursor.getColumnIndex(Msg.SENDER_ID));
+        long authorId = cursor.getLong(cursor.getColumnIndex(Msg.AUTHOR_ID));
+        long linkedUserId = cursor.getLong(cursor.getColumnIndex(User.LINKED_USER_ID));
+        if (senderId != authorId) {
+            addReblogger(rebloggers, oMsg.id, senderId);
+        }
+        if (linkedUserId != 0) {
+            if (oMsg.linkedUserId == 0) {
+                oMsg.linkedUserId = linkedUserId;
+            }
+            if (cursor.getInt(cursor.getColumnIndex(MsgOfUser.REBLOGGED)) == 1
+                    && linkedUserId != authorId) {
+                addReblogger(rebloggers, oMsg.id, linkedUserId);
+            }
+            if (cursor.getInt(cursor.getColumnIndex(MsgOfUser.FAVORITED)) == 1) {
+                oMsg.favorited = true;
+            }
+        }
+    }
 
-                if (senderId != authorId) {
-                    rebloggers.add(senderId);
-                }
-                if (linkedUserId != 0) {
-                    if (oMsg.linkedUserId == 0) {
-                        oMsg.linkedUserId = linkedUserId;
-                    }
-                    if (cursor.getInt(cursor.getColumnIndex(MsgOfUser.REBLOGGED)) == 1
-                            && linkedUserId != authorId) {
-                        rebloggers.add(linkedUserId);
-                    }
-                    if (cursor.getInt(cursor.getColumnIndex(MsgOfUser.FAVORITED)) == 1) {
-                        oMsg.favorited = true;
-                    }
-                }
-                
-                ind++;
-            } while (cursor.moveToNext());
+    private static void addReblogger(Map<Long, Set<Long>> rebloggers, long msgId, long rebloggerId) {
+        Set<Long> ids = rebloggers.get(msgId);
+        if (ids == null) {
+            ids = new HashSet<Long>();
+            rebloggers.put(msgId, ids);
+        }
+        ids.add(rebloggerId);
+    }
 
-            for (long rebloggerId : rebloggers) {
+    private void setRebloggers(Map<Long, Set<Long>> rebloggers) {
+        Set<Long> userIds = new HashSet<Long>();
+        for (Set<Long> ids : rebloggers.values()) {
+            userIds.addAll(ids);
+        }
+        Map<Long, String> names = MyProvider.userIdsToNames(userIds);
+        for (Map.Entry<Long, Set<Long>> entry : rebloggers.entrySet()) {
+            ConversationOneMessage oMsg = idToMsg.get(entry.getKey());
+            for (long rebloggerId : entry.getValue()) {
                 if (!TextUtils.isEmpty(oMsg.rebloggersString)) {
                     oMsg.rebloggersString += ", ";
                 }
-                oMsg.rebloggersString += MyProvider.userIdToName(rebloggerId);
-            }
-            if (oMsgs.contains(oMsg)) {
-                MyLog.v(this, "Message " + msgId + " is in the list already");
-            } else {
-                oMsgs.add(oMsg);
-                skip = false;
+                String name = names.get(rebloggerId);
+                oMsg.rebloggersString += name == null ? "" : name;
             }
         }
-        cursor.close();
-        return skip;
     }
 
-    private void findPreviousMessage4(ConversationOneMessage oMsg, long msgId) {
+    /**
+     * The parent of the message goes to the next step
+     */
+    private void findPreviousMessage(ConversationOneMessage oMsg, Map<Long, ConversationOneMessage> nextStep) {
         if (oMsg.createdDate == 0) {
-            MyLog.v(this, "Message " + msgId + " should be retrieved from the Internet");
+            MyLog.v(this, "Message " + oMsg.id + " should be retrieved from the Internet");
             MyServiceManager.sendCommand(new CommandData(CommandEnum.GET_STATUS, ma
-                    .getAccountName(), msgId));
+                    .getAccountName(), oMsg.id));
         } else {
             if (oMsg.inReplyToMsgId != 0) {
-                findPreviousMessagesRecursively(new ConversationOneMessage(oMsg.inReplyToMsgId, oMsg.replyLevel-1));
+                addToStep(new ConversationOneMessage(oMsg.inReplyToMsgId, oMsg.replyLevel-1), nextStep);
             } else if (!SharedPreferencesUtil.isEmpty(oMsg.inReplyToName)) {
-                MyLog.v(this, "Message " + msgId + " has reply to name ("
+                MyLog.v(this, "Message " + oMsg.id + " has reply to name ("
                         + oMsg.inReplyToName
                         + ") but no reply to message id");
                 // Don't try to retrieve this message again. It
@@ -237,25 +293,6 @@ public class ConversationViewLoader {
         }
     }
 
-    private boolean checkAndAddMessageToFind(long msgId) {
-        if (idsOfTheMessagesToFind.contains(msgId)) {
-            MyLog.v(this, "findMessages cycled on the msgId=" + msgId);
-            return true;
-        }
-        idsOfTheMessagesToFind.add(msgId);
-        return false;
-    }
-
-    public void findRepliesRecursively(ConversationOneMessage oMsg) {
-        MyLog.v(this, "findReplies " + oMsg.id);
-        List<Long> replies = MyProvider.getReplyIds(oMsg.id);
-        oMsg.nReplies = replies.size();
-        for (long replyId : replies) {
-            ConversationOneMessage oMsgReply = new ConversationOneMessage(replyId, oMsg.replyLevel + 1);
-            findPreviousMessagesRecursively(oMsgReply);
-        }
-    }
-
     private static class ReplyLevelComparator implements Comparator<ConversationOneMessage>, Serializable {
         private static final long serialVersionUID = 1L;
 
@@ -280,15 +317,24 @@ public class ConversationViewLoader {
     private static class OrderCounters {
         int list = -1;
         int history = 1;
+        /** Replies to each message, in the reverse order of the list */
+        final Map<Long, List<ConversationOneMessage>> replies = new HashMap<Long, List<ConversationOneMessage>>();
+        final Set<Long> enumerated = new HashSet<Long>();
     }
     
     private void enumerateMessages() {
-        idsOfTheMessagesToFind.clear();
-        for (ConversationOneMessage oMsg : oMsgs) {
+        OrderCounters order = new OrderCounters();
+        for (int ind = oMsgs.size()-1; ind >= 0; ind--) {
+            ConversationOneMessage oMsg = oMsgs.get(ind);
             oMsg.listOrder = 0;
             oMsg.historyOrder = 0;
+            List<ConversationOneMessage> replies = order.replies.get(oMsg.inReplyToMsgId);
+            if (replies == null) {
+                replies = new ArrayList<ConversationOneMessage>();
+                order.replies.put(oMsg.inReplyToMsgId, replies);
+            }
+            replies.add(oMsg);
         }
-        OrderCounters order = new OrderCounters();
         for (int ind = oMsgs.size()-1; ind >= 0; ind--) {
             ConversationOneMessage oMsg = oMsgs.get(ind);
             if (oMsg.listOrder < 0 ) {
@@ -299,7 +345,7 @@ public class ConversationViewLoader {
     }
 
     private void enumerateBranch(ConversationOneMessage oMsg, OrderCounters order, int indent) {
-        if (checkAndAddMessageToFind(oMsg.id)) {
+        if (!order.enumerated.add(oMsg.id)) {
             return;
         }
         oMsg.historyOrder = order.history++;
@@ -309,12 +355,12 @@ public class ConversationViewLoader {
                 && indent < MAX_INDENT_LEVEL) {
             indent++;
         }
-        for (int ind = oMsgs.size() - 1; ind >= 0; ind--) {
-           ConversationOneMessage reply = oMsgs.get(ind);
-           if (reply.inReplyToMsgId == oMsg.id) {
-               reply.nParentReplies = oMsg.nReplies;
-               enumerateBranch(reply, order, indent);
-           }
+        List<ConversationOneMessage> replies = order.replies.get(oMsg.id);
+        if (replies != null) {
+            for (ConversationOneMessage reply : replies) {
+                reply.nParentReplies = oMsg.nReplies;
+                enumerateBranch(reply, order, indent);
+            }
         }
     }
     
@@ -387,7 +433,7 @@ public class ConversationViewLoader {
                 layoutParams.addRule(RelativeLayout.RIGHT_OF, viewToTheLeftId);
             }
             avatarView.setLayoutParams(layoutParams);
-            avatarView.setImageDrawable(oMsg.avatarDrawable.getDrawable());
+            oMsg.avatarDrawable.showIn(avatarView);
             indentPixels += size;
             ((ViewGroup) messageIndented.getParent()).addView(avatarView);
         }
@@ -34,6 +34,7 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.SearchRecentSuggestions;
 import android.text.TextUtils;
+import android.text.format.DateFormat;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -71,6 +72,7 @@ import org.andstatus.app.data.TimelineViewBinder;
 import org.andstatus.app.net.Connection.ApiRoutineEnum;
 import org.andstatus.app.service.CommandData;
 import org.andstatus.app.service.CommandEnum;
+import org.andstatus.app.service.CommandResult;
 import org.andstatus.app.service.MyService;
 import org.andstatus.app.service.MyServiceListener;
 import org.andstatus.app.service.MyServiceManager;
@@ -82,6 +84,7 @@ import org.andstatus.app.util.InstanceId;
 import org.andstatus.app.util.MyLog;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -109,6 +112,11 @@ public class TimelineActivity extends ListActivity implements MyServiceListener,
      * are being loaded in a case User scrolls down to the end of list.
      */
     private static final int PAGE_SIZE = 100;
+    /**
+     * The next page is being loaded, when this number of rows (or less) 
+     * remains below the visible part of the list
+     */
+    private static final int ROWS_LEFT_TO_LOAD_NEXT_PAGE = 20;
 
     /**
      * Is saved position restored (or some default positions set)?
@@ -835,7 +843,7 @@ public class TimelineActivity extends ListActivity implements MyServiceListener,
         if (!noMoreItems && positionRestored && !isLoading()) {
             // Idea from http://stackoverflow.com/questions/1080811/android-endless-list
             boolean loadMore = (visibleItemCount > 0) && (firstVisibleItem > 0)
-                    && (firstVisibleItem + visibleItemCount >= totalItemCount);
+                    && (firstVisibleItem + visibleItemCount >= totalItemCount - ROWS_LEFT_TO_LOAD_NEXT_PAGE);
             if (loadMore) {
                 MyLog.d(this, "Start Loading more items, rows=" + totalItemCount);
                 saveListPosition();
@@ -1104,11 +1112,13 @@ public class TimelineActivity extends ListActivity implements MyServiceListener,
     }
     
     private void prepareQueryForeground(TimelineListParameters params) {
-        params.contentUri = MyProvider.getTimelineSearchUri(currentMyAccountUserId, timelineType,
-                params.timelineCombined, params.searchQuery);
+        // Messages of the Home, Mentions, Favorites and Direct timelines are selected by the MyProvider
+        params.timelineUri = MyProvider.getTimelineMembersUri(MyProvider.getTimelineSearchUri(
+                currentMyAccountUserId, timelineType, params.timelineCombined, params.searchQuery));
+        params.contentUri = params.timelineUri;
         Intent intent = getIntent();
-        if (!params.contentUri.equals(intent.getData())) {
-            intent.setData(params.contentUri);
+        if (!params.timelineUri.equals(intent.getData())) {
+            intent.setData(params.timelineUri);
         }
 
         if (params.sa.nArgs == 0) {
@@ -1118,37 +1128,7 @@ public class TimelineActivity extends ListActivity implements MyServiceListener,
             /* TODO: Other conditions... */
             params.sa.clear();
 
-            // TODO: Move these selections to the {@link MyProvider} ?!
             switch (timelineType) {
-                case HOME:
-                    // In the Home of the combined timeline we see ALL loaded
-                    // messages, even those that we downloaded
-                    // not as Home timeline of any Account
-                    if (!isTimelineCombined()) {
-                        params.sa.addSelection(MyDatabase.MsgOfUser.SUBSCRIBED + " = ?", new String[] {
-                                "1"
-                        });
-                    }
-                    break;
-                case MENTIONS:
-                    params.sa.addSelection(MyDatabase.MsgOfUser.MENTIONED + " = ?", new String[] {
-                            "1"
-                    });
-                    /*
-                     * We already figured this out and set {@link MyDatabase.MsgOfUser.MENTIONED}:
-                     * sa.addSelection(MyDatabase.Msg.BODY + " LIKE ?" ...
-                     */
-                    break;
-                case FAVORITES:
-                    params.sa.addSelection(MyDatabase.MsgOfUser.FAVORITED + " = ?", new String[] {
-                            "1"
-                    });
-                    break;
-                case DIRECT:
-                    params.sa.addSelection(MyDatabase.MsgOfUser.DIRECTED + " = ?", new String[] {
-                            "1"
-                    });
-                    break;
                 case USER:
                     AccountUserIds userIds = new AccountUserIds(isTimelineCombined(), getSelectedUserId());
                     // Reblogs are included also
@@ -1179,8 +1159,26 @@ public class TimelineActivity extends ListActivity implements MyServiceListener,
             if (rowsLimit < PAGE_SIZE) {
                 rowsLimit = PAGE_SIZE;
             }
-            params.sortOrder += " LIMIT 0," + rowsLimit;
+            prepareTimelinePage(params, rowsLimit);
+        }
+    }
+
+    /**
+     * Load only the next page, if we have previous pages loaded already. 
+     * Otherwise load first rowsLimit messages
+     */
+    private void prepareTimelinePage(TimelineListParameters params, int rowsLimit) {
+        if (params.incrementallyLoadingPages && mCursor instanceof TimelinePagesCursor) {
+            TimelinePagesCursor pages = (TimelinePagesCursor) mCursor;
+            long lastMsgId = pages.getLastMsgId();
+            if (lastMsgId != 0) {
+                params.previousPages = pages;
+                params.contentUri = MyProvider.getTimelinePageUri(params.timelineUri,
+                        pages.getLastSentDate(), lastMsgId, PAGE_SIZE);
+                return;
+            }
         }
+        params.contentUri = MyProvider.getTimelinePageUri(params.timelineUri, 0, 0, rowsLimit);
     }
    
     /** 
@@ -1191,11 +1189,13 @@ public class TimelineActivity extends ListActivity implements MyServiceListener,
         columnNames.add(Msg._ID);
         columnNames.add(User.AUTHOR_NAME);
         columnNames.add(Msg.BODY);
+        columnNames.add(Msg.BODY_DISPLAY);
         columnNames.add(Msg.IN_REPLY_TO_MSG_ID);
         columnNames.add(User.IN_REPLY_TO_NAME);
         columnNames.add(User.RECIPIENT_NAME);
         columnNames.add(MsgOfUser.FAVORITED);
         columnNames.add(Msg.CREATED_DATE);
+        columnNames.add(Msg.SENT_DATE);
         columnNames.add(User.LINKED_USER_ID);
         if (MyPreferences.showAvatars()) {
             columnNames.add(Msg.AUTHOR_ID);
@@ -1231,11 +1231,12 @@ public class TimelineActivity extends ListActivity implements MyServiceListener,
     private void changeListContent(TimelineListParameters params, Cursor cursor) {
         if (!params.cancelled && cursor != null && !isFinishing) {
             MyLog.v(this, "On changing Cursor");
+            int prevCount = getListAdapter().getCount();
             ((CursorAdapter) getListAdapter()).changeCursor(cursor);
             mCursor = cursor;
             // This check will prevent continuous loading...
             noMoreItems = params.incrementallyLoadingPages &&
-                    cursor.getCount() <= getListAdapter().getCount();
+                    cursor.getCount() <= prevCount;
             restoreListPosition();
         }
     }
@@ -1369,7 +1370,7 @@ public class TimelineActivity extends ListActivity implements MyServiceListener,
         List<Integer> viewIds = new ArrayList<Integer>();
         columnNames.add(MyDatabase.User.AUTHOR_NAME);
         viewIds.add(R.id.message_author);
-        columnNames.add(MyDatabase.Msg.BODY);
+        columnNames.add(MyDatabase.Msg.BODY_DISPLAY);
         viewIds.add(R.id.message_body);
         columnNames.add(MyDatabase.Msg.CREATED_DATE);
         viewIds.add(R.id.message_details);
@@ -1415,11 +1416,13 @@ public class TimelineActivity extends ListActivity implements MyServiceListener,
                 if (isLoading()) {
                     setLoading(false);
                 }
+                if (commandData.getResult().getHourlyLimit() > 0 && commandData.getResult().getRemainingHits() == 0) {
+                    showRateLimitStatus(commandData.getResult());
+                }
                 break;
             case RATE_LIMIT_STATUS:
                 if (commandData.getResult().getHourlyLimit() > 0) {
-                    updateActionBar(commandData.getResult().getRemainingHits() + "/"
-                            + commandData.getResult().getHourlyLimit());
+                    showRateLimitStatus(commandData.getResult());
                 }
                 break;
             default:
@@ -1427,6 +1430,18 @@ public class TimelineActivity extends ListActivity implements MyServiceListener,
         }
     }
     
+    /**
+     * When the quota is exhausted, the user sees, when the next requests will be sent
+     */
+    private void showRateLimitStatus(CommandResult result) {
+        String text = result.getRemainingHits() + "/" + result.getHourlyLimit();
+        if (result.getRemainingHits() == 0 && result.getRateLimitResetTime() > System.currentTimeMillis()) {
+            text += ", " + getString(R.string.rate_limit_next_window,
+                    DateFormat.getTimeFormat(this).format(new Date(result.getRateLimitResetTime())));
+        }
+        updateActionBar(text);
+    }
+
     @Override
     public Activity getActivity() {
         return this;
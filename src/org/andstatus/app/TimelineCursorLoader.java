@@ -17,6 +17,7 @@
 package org.andstatus.app;
 
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.AsyncTask.Status;
 import android.text.TextUtils;
@@ -26,6 +27,7 @@ import net.jcip.annotations.GuardedBy;
 import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.data.DbUtils;
 import org.andstatus.app.data.LatestTimelineItem;
+import org.andstatus.app.data.MsgChangeFeed;
 import org.andstatus.app.data.MyDatabase;
 import org.andstatus.app.data.MyProvider;
 import org.andstatus.app.data.MyDatabase.User;
@@ -36,10 +38,20 @@ import org.andstatus.app.service.MyServiceReceiver;
 import org.andstatus.app.support.android.v11.app.MyLoader;
 import org.andstatus.app.util.InstanceId;
 import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.SelectionAndArgs;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Simplified implementation inspired by {@link android.content.Loader}
  * available in API >= 11
+ * <p>
+ * Messages, stored after the timeline was loaded, are learned from the {@link MsgChangeFeed}:
+ * only these messages are queried, and they are put on top of the loaded rows.
+ * The whole timeline is reloaded, if the feed says so (e.g. after old messages were pruned),
+ * or if the changed messages are not newer than the loaded ones.
  * 
  * @author yvolk@yurivolkov.com
  */
@@ -102,6 +114,14 @@ public class TimelineCursorLoader extends MyLoader<Cursor> implements MyServiceL
         final String method = "restartLoader";
         boolean ended = false;
         if (MyLog.isLoggable(this, MyLog.VERBOSE)) MyLog.v(this, method +  ", status:" + getAsyncLoaderStatus());
+        if (mCursor != null && params.previousPages != null) {
+            // The page was appended already. Appending it again would duplicate it,
+            // so let's reload all pages at once
+            params.previousPages = null;
+            params.contentUri = MyProvider.getTimelinePageUri(params.timelineUri, 0, 0, params.rowsLimit);
+        }
+        params.changedMsgIds = null;
+        params.changesSeenSeq = MsgChangeFeed.getInstance().getLastSeq();
         synchronized (asyncLoaderLock) {
             if (cancelAsyncTask(method)) {
                 try {
@@ -177,6 +197,107 @@ public class TimelineCursorLoader extends MyLoader<Cursor> implements MyServiceL
         return true;
     }
     
+    /**
+     * Loads messages, changed after the last load, if they may be shown in this timeline
+     */
+    private void loadChanges(String reason) {
+        final String method = "loadChanges";
+        if (!isStarted()) {
+            onContentChanged();
+            return;
+        }
+        List<MsgChangeFeed.Change> changes = MsgChangeFeed.getInstance().getChangesSince(params.changesSeenSeq);
+        if (changes == null || !(mCursor instanceof TimelinePagesCursor)) {
+            reloadAll(method + "; " + reason);
+            return;
+        }
+        Set<Long> msgIds = new HashSet<Long>();
+        long lastSeq = params.changesSeenSeq;
+        for (MsgChangeFeed.Change change : changes) {
+            if (change.isVisibleTo(params.myAccountUserId, params.timelineCombined)) {
+                msgIds.addAll(change.getMsgIds());
+            }
+            lastSeq = change.getSeq();
+        }
+        if (msgIds.isEmpty()) {
+            params.changesSeenSeq = lastSeq;
+            return;
+        }
+        boolean started = false;
+        synchronized (asyncLoaderLock) {
+            if (asyncLoader == null) {
+                if (MyLog.isLoggable(this, MyLog.VERBOSE)) {
+                    MyLog.v(this, method + "; " + msgIds.size() + " messages; " + reason);
+                }
+                params.changesSeenSeq = lastSeq;
+                params.changedMsgIds = msgIds;
+                try {
+                    asyncLoader = new AsyncLoader();
+                    asyncLoader.execute(params);
+                    started = true;
+                } catch (Exception e) {
+                    MyLog.e(this, method, e);
+                    asyncLoader = null;
+                    params.changedMsgIds = null;
+                }
+            }
+        }
+        if (!started) {
+            // The running task may have missed the changes
+            reloadAll(method + "; " + reason);
+        }
+    }
+
+    /**
+     * Puts the changed messages on top of the loaded rows. This is done in the UI thread
+     */
+    private void changesLoaded(Cursor changes) {
+        final String method = "changesLoaded";
+        params.changedMsgIds = null;
+        synchronized (asyncLoaderLock) {
+            asyncLoader = null;
+        }
+        if (params.cancelled || changes == null) {
+            DbUtils.closeSilently(changes);
+            onContentChanged();
+        } else if (changes.getCount() == 0) {
+            DbUtils.closeSilently(changes);
+        } else if (mCursor instanceof TimelinePagesCursor
+                && areNewerThan(changes, ((TimelinePagesCursor) mCursor).getFirstSentDate())) {
+            Cursor pages = ((TimelinePagesCursor) mCursor).prepend(changes);
+            if (pages == null) {
+                reloadAll(method + "; couldn't prepend");
+            } else {
+                asyncLoaderEnded(pages);
+            }
+        } else {
+            // E.g. a message, which is shown already, was updated
+            DbUtils.closeSilently(changes);
+            reloadAll(method + "; not newer");
+        }
+    }
+
+    /**
+     * @return true if all messages of the cursor were sent after the date
+     */
+    private static boolean areNewerThan(Cursor cursor, long sentDate) {
+        // The cursor is sorted by the sent date, the oldest message is the last
+        return cursor.moveToLast()
+                && cursor.getLong(cursor.getColumnIndex(MyDatabase.Msg.SENT_DATE)) > sentDate;
+    }
+
+    private void reloadAll(String reason) {
+        if (MyLog.isLoggable(this, MyLog.VERBOSE)) {
+            MyLog.v(this, "reloadAll; " + reason);
+        }
+        if (isStarted()) {
+            params.reQuery = true;
+            restartLoader();
+        } else {
+            onContentChanged();
+        }
+    }
+
     private final static long MIN_LIST_REQUERY_MILLISECONDS = 3000;
     private long previousRequeryTime = 0;
     @Override
@@ -212,8 +333,11 @@ public class TimelineCursorLoader extends MyLoader<Cursor> implements MyServiceL
         protected Cursor doInBackground(TimelineListParameters... params) {
             this.params = params[0];
             markStart();
+            if (this.params.changedMsgIds != null) {
+                return queryChanges();
+            }
             prepareQueryInBackground();
-            Cursor cursor = queryDatabase();
+            Cursor cursor = queryDatabase(this.params.contentUri, this.params.sa);
             checkIfReloadIsNeeded(cursor);
             return cursor;
         }
@@ -242,25 +366,33 @@ public class TimelineCursorLoader extends MyLoader<Cursor> implements MyServiceL
             }
         }
 
-        private Cursor queryDatabase() {
+        /**
+         * The changed messages, which belong to the timeline
+         */
+        private Cursor queryChanges() {
+            SelectionAndArgs sa = new SelectionAndArgs();
+            sa.addSelection(params.sa.selection, params.sa.selectionArgs);
+            sa.addSelection(MyProvider.MSG_TABLE_ALIAS + "." + MyDatabase.Msg._ID 
+                    + " IN (" + DbUtils.idsToString(params.changedMsgIds) + ")", null);
+            return queryDatabase(params.timelineUri, sa);
+        }
+
+        /**
+         * Readers don't wait for the writer, so there is no need to retry, see {@link MyDatabase}
+         */
+        private Cursor queryDatabase(Uri uri, SelectionAndArgs sa) {
             Cursor cursor = null;
-            for (int attempt = 0; attempt < 3 && !isCancelled(); attempt++) {
-                try {
-                    cursor = MyContextHolder.get().context().getContentResolver()
-                            .query(params.contentUri, params.projection, params.sa.selection,
-                                    params.sa.selectionArgs, params.sortOrder);
-                    break;
-                } catch (IllegalStateException e) {
-                    MyLog.d(this, "Attempt " + attempt + " to prepare cursor", e);
-                    DbUtils.closeSilently(cursor);
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException e2) {
-                        MyLog.d(this, "Attempt " + attempt + " to prepare cursor was interrupted",
-                                e2);
-                        break;
-                    }
-                }
+            if (isCancelled()) {
+                return cursor;
+            }
+            try {
+                cursor = MyContextHolder.get().context().getContentResolver()
+                        .query(uri, params.projection, sa.selection,
+                                sa.selectionArgs, params.sortOrder);
+            } catch (IllegalStateException e) {
+                MyLog.d(this, "Failed to prepare cursor", e);
+                DbUtils.closeSilently(cursor);
+                cursor = null;
             }
             return cursor;
         }
@@ -300,7 +432,24 @@ public class TimelineCursorLoader extends MyLoader<Cursor> implements MyServiceL
 
         private void singleEnd(Cursor result) {
             logExecutionStats(result);
-            TimelineCursorLoader.this.asyncLoaderEnded(result);
+            if (params.changedMsgIds != null) {
+                TimelineCursorLoader.this.changesLoaded(result);
+            } else {
+                TimelineCursorLoader.this.asyncLoaderEnded(toPages(result));
+            }
+        }
+
+        /**
+         * Appends the page loaded to the previous pages. This is done in the UI thread 
+         */
+        private Cursor toPages(Cursor result) {
+            if (result == null || params.cancelled) {
+                return result;
+            } else if (params.previousPages == null) {
+                return new TimelinePagesCursor(result);
+            } else {
+                return params.previousPages.append(result);
+            }
         }
         
         private void logExecutionStats(Cursor cursor) {
@@ -331,22 +480,15 @@ public class TimelineCursorLoader extends MyLoader<Cursor> implements MyServiceL
             case FETCH_TIMELINE:
             case GET_STATUS:
             case SEARCH_MESSAGE:
-                if (commandData.getResult().getDownloadedCount() > 0) {
-                    if (MyLog.isLoggable(this, MyLog.VERBOSE)) {
-                        MyLog.v(this, method + ": Content changed, downloaded " + commandData.getResult().getDownloadedCount());
-                    }
-                    onContentChanged();
-                }
+                // Even if nothing was downloaded, old messages might be pruned
+                loadChanges("downloaded " + commandData.getResult().getDownloadedCount());
                 break;
             case CREATE_FAVORITE:
             case DESTROY_FAVORITE:
             case REBLOG:
             case UPDATE_STATUS:
                 if (!commandData.getResult().hasError()) {
-                    if (MyLog.isLoggable(this, MyLog.VERBOSE)) {
-                        MyLog.v(this, method + ": Content changed, command " + commandData.getCommand());
-                    }
-                    onContentChanged();
+                    loadChanges("command " + commandData.getCommand());
                 }
                 break;
             default:
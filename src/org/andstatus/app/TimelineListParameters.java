@@ -25,6 +25,7 @@ import org.andstatus.app.support.android.v11.app.MyLoaderManager;
 import org.andstatus.app.util.SelectionAndArgs;
 
 import java.util.Arrays;
+import java.util.Set;
 
 class TimelineListParameters {
     MyLoaderManager.LoaderCallbacks<Cursor> loaderCallbacks = null;
@@ -38,13 +39,33 @@ class TimelineListParameters {
     
     String[] projection;
     String searchQuery = "";
+    /**
+     * The timeline URI without paging
+     */
+    Uri timelineUri = null;
+    /**
+     * The URI to query, e.g. URI of the next page of the {@link #timelineUri}
+     */
     Uri contentUri = null;
+    /**
+     * Pages loaded before. If not null, the page loaded is appended to them
+     */
+    TimelinePagesCursor previousPages = null;
     boolean incrementallyLoadingPages = false;
     int rowsLimit = 0;
     long lastItemId = 0;
     volatile SelectionAndArgs sa = new SelectionAndArgs();
     String sortOrder = MyDatabase.Msg.DEFAULT_SORT_ORDER;
 
+    /**
+     * The last change of the {@link org.andstatus.app.data.MsgChangeFeed}, which the loaded rows include
+     */
+    long changesSeenSeq = 0;
+    /**
+     * If not null, only these messages are loaded and are prepended to the previously loaded rows
+     */
+    Set<Long> changedMsgIds = null;
+
     // Execution state / data:
     volatile long startTime = 0;
     volatile boolean cancelled = false;;
@@ -56,8 +77,12 @@ class TimelineListParameters {
                 + loadOneMorePage + ", reQuery=" + reQuery + ", timelineType=" + timelineType
                 + ", timelineCombined=" + timelineCombined + ", myAccountUserId=" + myAccountUserId
                 + ", selectedUserId=" + selectedUserId + ", projection="
-                + Arrays.toString(projection) + ", searchQuery=" + searchQuery + ", contentUri="
-                + contentUri + ", incrementallyLoadingPages=" + incrementallyLoadingPages
+                + Arrays.toString(projection) + ", searchQuery=" + searchQuery + ", timelineUri="
+                + timelineUri + ", contentUri=" + contentUri 
+                + ", appendingPage=" + (previousPages != null)
+                + ", incrementallyLoadingPages=" + incrementallyLoadingPages
+                + ", changesSeenSeq=" + changesSeenSeq
+                + (changedMsgIds == null ? "" : ", changedMessages=" + changedMsgIds.size())
                 + ", rowsLimit=" + rowsLimit + ", lastItemId=" + lastItemId + ", sa=" + sa
                 + ", sortOrder=" + sortOrder + ", startTime=" + startTime + ", cancelled="
                 + cancelled + ", timelineToReload=" + timelineToReload + "]";
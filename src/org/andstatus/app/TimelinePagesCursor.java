@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app;
+
+import android.database.Cursor;
+import android.database.MergeCursor;
+
+import org.andstatus.app.data.DbUtils;
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.util.MyLog;
+
+/**
+ * Pages of a timeline, loaded one after another (see {@link org.andstatus.app.data.MyProvider#getTimelinePageUri}),
+ * shown as one list.
+ * New messages may be prepended as a page on top of the list.
+ * When a page is appended or prepended, the pages are handed over to the new object,
+ * so closing this object (e.g. by the {@link android.widget.CursorAdapter#changeCursor(Cursor)})
+ * doesn't close them.
+ * Should be used in the UI thread only.
+ * @author yvolk@yurivolkov.com
+ */
+class TimelinePagesCursor extends MergeCursor {
+    private final Cursor[] pages;
+    private boolean pagesHandedOver = false;
+
+    TimelinePagesCursor(Cursor page) {
+        this(new Cursor[] {page});
+    }
+
+    private TimelinePagesCursor(Cursor[] pages) {
+        super(pages);
+        this.pages = pages;
+    }
+
+    /**
+     * @return New object, containing previous pages and the page. 
+     *   Or null, if this object is closed or its pages were handed over already
+     */
+    TimelinePagesCursor append(Cursor page) {
+        return addPage(page, false);
+    }
+
+    /**
+     * @return New object, containing the page on top of previous pages.
+     *   Or null, if this object is closed or its pages were handed over already
+     */
+    TimelinePagesCursor prepend(Cursor page) {
+        return addPage(page, true);
+    }
+
+    private TimelinePagesCursor addPage(Cursor page, boolean onTop) {
+        if (pagesHandedOver || isClosed()) {
+            DbUtils.closeSilently(page);
+            return null;
+        }
+        Cursor[] pages2;
+        if (page == null || page.getCount() == 0) {
+            DbUtils.closeSilently(page);
+            pages2 = pages;
+        } else {
+            pages2 = new Cursor[pages.length + 1];
+            System.arraycopy(pages, 0, pages2, onTop ? 1 : 0, pages.length);
+            pages2[onTop ? 0 : pages.length] = page;
+        }
+        pagesHandedOver = true;
+        return new TimelinePagesCursor(pages2);
+    }
+
+    /**
+     * @return {@link Msg#SENT_DATE} of the first (the latest) message loaded, 0 if none
+     */
+    long getFirstSentDate() {
+        long value = 0;
+        if (!pagesHandedOver && !isClosed() && moveToFirst()) {
+            value = getLongValue(Msg.SENT_DATE);
+        }
+        return value;
+    }
+
+    /**
+     * @return {@link Msg#SENT_DATE} of the last message loaded, 0 if unknown
+     */
+    long getLastSentDate() {
+        return getLastLong(Msg.SENT_DATE);
+    }
+
+    /**
+     * @return _id of the last message loaded, 0 if none
+     */
+    long getLastMsgId() {
+        return getLastLong(Msg._ID);
+    }
+
+    private long getLastLong(String columnName) {
+        long value = 0;
+        if (!pagesHandedOver && !isClosed() && moveToLast()) {
+            value = getLongValue(columnName);
+        }
+        return value;
+    }
+
+    private long getLongValue(String columnName) {
+        long value = 0;
+        int columnIndex = getColumnIndex(columnName);
+        if (columnIndex >= 0) {
+            value = getLong(columnIndex);
+        } else {
+            MyLog.d(this, "No column '" + columnName + "' in the timeline");
+        }
+        return value;
+    }
+
+    @Override
+    public void close() {
+        if (!pagesHandedOver) {
+            super.close();
+        }
+    }
+}
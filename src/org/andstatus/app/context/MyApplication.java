@@ -16,6 +16,7 @@
 
 package org.andstatus.app.context;
 
+import org.andstatus.app.data.AvatarCache;
 import org.andstatus.app.util.MyLog;
 
 import android.app.Application;
@@ -38,6 +39,13 @@ public class MyApplication extends Application {
         MyContextHolder.storeContextIfNotPresent(this, this);
     }
 
+    @Override
+    public void onLowMemory() {
+        MyLog.v(this, "onLowMemory");
+        AvatarCache.getInstance().clear();
+        super.onLowMemory();
+    }
+
     @Override
     public File getDatabasePath(String name) {
         return MyPreferences.getDatabasePath(name, null);
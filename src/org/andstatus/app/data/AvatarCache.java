@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.widget.ImageView;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.R;
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.service.CommandData;
+import org.andstatus.app.service.CommandEnum;
+import org.andstatus.app.service.MyServiceManager;
+import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.MyMetrics;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Size-bounded LRU cache of avatar bitmaps, keyed by "(userId, fileName)".
+ * Bitmaps are decoded in a background thread, downsampled to {@link AvatarDrawable#AVATAR_SIZE_DIP},
+ * and shown in the {@link ImageView}s that are still waiting for them.
+ * Requests to download an absent avatar are coalesced: one {@link CommandEnum#FETCH_AVATAR}
+ * per user during {@link #FETCH_REQUEST_PERIOD_MILLIS}.
+ * We don't use android.util.LruCache as it's available since API 12 only.
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class AvatarCache {
+    private static final String TAG = AvatarCache.class.getSimpleName();
+
+    /** Upper limit of the cache size; the cache takes not more than 1/16 of the application's memory */
+    static final int MAX_SIZE_BYTES = 4 * 1024 * 1024;
+    static final long FETCH_REQUEST_PERIOD_MILLIS = 10 * 60 * 1000L;
+
+    private static final AvatarCache INSTANCE = new AvatarCache(
+            (int) Math.min(MAX_SIZE_BYTES, Runtime.getRuntime().maxMemory() / 16));
+
+    private final int maxSizeBytes;
+    @GuardedBy("this")
+    private final LinkedHashMap<String, Bitmap> bitmaps = new LinkedHashMap<String, Bitmap>(32, 0.75f, true);
+    @GuardedBy("this")
+    private int sizeBytes = 0;
+    /** Keys being decoded and the views waiting for them */
+    @GuardedBy("this")
+    private final Map<String, List<WeakReference<ImageView>>> decoding = new HashMap<String, List<WeakReference<ImageView>>>();
+    /** userId -> time when the avatar download was requested */
+    @GuardedBy("this")
+    private final Map<Long, Long> fetchRequested = new HashMap<Long, Long>();
+
+    @GuardedBy("this")
+    private long hits = 0;
+    @GuardedBy("this")
+    private long misses = 0;
+    @GuardedBy("this")
+    private long decodes = 0;
+    @GuardedBy("this")
+    private long decodeMillis = 0;
+
+    private static final MyMetrics.Counter HITS = MyMetrics.counter("avatar.cache.hits");
+    private static final MyMetrics.Counter MISSES = MyMetrics.counter("avatar.cache.misses");
+    private static final MyMetrics.Gauge HIT_RATIO_PERCENT = MyMetrics.gauge("avatar.cache.hit_ratio_percent");
+    private static final MyMetrics.Histogram DECODE_MS = MyMetrics.histogram("avatar.decode.ms");
+
+    private volatile ExecutorService decoder = null;
+    private volatile Handler uiHandler = null;
+
+    public static AvatarCache getInstance() {
+        return INSTANCE;
+    }
+
+    AvatarCache(int maxSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Shows the avatar in the view: at once, if its bitmap is in the cache,
+     * or after the bitmap is decoded in the background. The default avatar is shown meanwhile.
+     * Should be called in the UI thread.
+     */
+    void show(AvatarDrawable avatar, ImageView view) {
+        String key = avatar.getKey();
+        view.setTag(R.id.avatar_image, key);
+        Bitmap bitmap = get(key);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        view.setImageDrawable(AvatarDrawable.getDefaultAvatar());
+        if (avatar.exists()) {
+            decodeInBackground(avatar, view);
+        } else {
+            requestFetch(avatar.getUserId());
+        }
+    }
+
+    synchronized Bitmap get(String key) {
+        Bitmap bitmap = bitmaps.get(key);
+        if (bitmap == null) {
+            misses++;
+            MISSES.increment();
+        } else {
+            hits++;
+            HITS.increment();
+        }
+        HIT_RATIO_PERCENT.set(hits * 100 / (hits + misses));
+        return bitmap;
+    }
+
+    synchronized void put(String key, Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        Bitmap previous = bitmaps.put(key, bitmap);
+        if (previous != null) {
+            sizeBytes -= sizeOf(previous);
+        }
+        sizeBytes += sizeOf(bitmap);
+        Iterator<Map.Entry<String, Bitmap>> iterator = bitmaps.entrySet().iterator();
+        while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+            Map.Entry<String, Bitmap> eldest = iterator.next();
+            if (eldest.getValue() == bitmap) {
+                // Keep at least the newest bitmap
+                break;
+            }
+            sizeBytes -= sizeOf(eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * The download is requested not more often than once in {@link #FETCH_REQUEST_PERIOD_MILLIS} for a user
+     */
+    void requestFetch(long userId) {
+        if (userId == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Long requestedAt = fetchRequested.get(userId);
+            if (requestedAt != null && now - requestedAt < FETCH_REQUEST_PERIOD_MILLIS) {
+                return;
+            }
+            fetchRequested.put(userId, now);
+        }
+        MyServiceManager.sendCommand(new CommandData(CommandEnum.FETCH_AVATAR, null, userId));
+    }
+
+    private void decodeInBackground(final AvatarDrawable avatar, ImageView view) {
+        final String key = avatar.getKey();
+        synchronized (this) {
+            List<WeakReference<ImageView>> views = decoding.get(key);
+            if (views != null) {
+                views.add(new WeakReference<ImageView>(view));
+                return;
+            }
+            views = new ArrayList<WeakReference<ImageView>>();
+            views.add(new WeakReference<ImageView>(view));
+            decoding.put(key, views);
+        }
+        getDecoder().execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                try {
+                    bitmap = decode(avatar.getFile());
+                    put(key, bitmap);
+                } catch (Exception e) {
+                    MyLog.e(TAG, "Decoding " + key, e);
+                }
+                onDecoded(key, bitmap);
+            }
+        });
+    }
+
+    private void onDecoded(final String key, final Bitmap bitmap) {
+        final List<WeakReference<ImageView>> views;
+        synchronized (this) {
+            views = decoding.remove(key);
+        }
+        if (bitmap == null || views == null) {
+            return;
+        }
+        getUiHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                for (WeakReference<ImageView> reference : views) {
+                    ImageView view = reference.get();
+                    // The view may have been reused for another row
+                    if (view != null && key.equals(view.getTag(R.id.avatar_image))) {
+                        view.setImageBitmap(bitmap);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes the file, downsampled to the size of the avatar on the screen
+     * @return null if the file couldn't be decoded
+     */
+    Bitmap decode(File file) {
+        long startedAt = System.currentTimeMillis();
+        String path = file.getAbsolutePath();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, getAvatarSizePixels());
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        long millis = System.currentTimeMillis() - startedAt;
+        synchronized (this) {
+            decodes++;
+            decodeMillis += millis;
+        }
+        DECODE_MS.record(millis);
+        if (bitmap == null) {
+            MyLog.d(TAG, "Couldn't decode " + path);
+        } else if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
+            MyLog.v(TAG, "Decoded " + file.getName() + ", sample=" + options.inSampleSize + ", " + millis + "ms");
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return The largest power of 2, so that the downsampled image is not smaller than the requested size
+     */
+    static int calculateInSampleSize(int width, int height, int sizePixels) {
+        int inSampleSize = 1;
+        if (sizePixels > 0) {
+            while (width / (inSampleSize * 2) >= sizePixels && height / (inSampleSize * 2) >= sizePixels) {
+                inSampleSize *= 2;
+            }
+        }
+        return inSampleSize;
+    }
+
+    private static int getAvatarSizePixels() {
+        Context context = MyContextHolder.get().context();
+        if (context == null) {
+            return 0;
+        }
+        return Math.round(AvatarDrawable.AVATAR_SIZE_DIP * context.getResources().getDisplayMetrics().density);
+    }
+
+    private ExecutorService getDecoder() {
+        if (decoder == null) {
+            synchronized (this) {
+                if (decoder == null) {
+                    decoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            Thread thread = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, TAG);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+        return decoder;
+    }
+
+    private Handler getUiHandler() {
+        if (uiHandler == null) {
+            uiHandler = new Handler(Looper.getMainLooper());
+        }
+        return uiHandler;
+    }
+
+    /**
+     * Forgets cached bitmaps and download requests: when memory is low,
+     * see {@link org.andstatus.app.context.MyApplication#onLowMemory()}, or after avatars were deleted
+     */
+    public synchronized void clear() {
+        bitmaps.clear();
+        sizeBytes = 0;
+        fetchRequested.clear();
+    }
+
+    /**
+     * Forgets the download request, so the avatar may be requested again
+     */
+    public synchronized void onFetched(long userId) {
+        fetchRequested.remove(userId);
+    }
+
+    synchronized int size() {
+        return bitmaps.size();
+    }
+
+    synchronized int getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getDecodes() {
+        return decodes;
+    }
+
+    public synchronized long getDecodeMillis() {
+        return decodeMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "{bitmaps:" + bitmaps.size()
+                + ", bytes:" + sizeBytes + "/" + maxSizeBytes
+                + ", hits:" + hits
+                + ", misses:" + misses
+                + ", decodes:" + decodes
+                + (decodes > 0 ? ", avgDecodeMs:" + (decodeMillis / decodes) : "")
+                + "}";
+    }
+}
@@ -19,13 +19,11 @@ package org.andstatus.app.data;
 import android.content.Context;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
+import android.widget.ImageView;
 
 import org.andstatus.app.R;
 import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.context.MyPreferences;
-import org.andstatus.app.service.CommandData;
-import org.andstatus.app.service.CommandEnum;
-import org.andstatus.app.service.MyServiceManager;
 import org.andstatus.app.util.MyLog;
 
 import java.io.File;
@@ -56,14 +54,28 @@ public class AvatarDrawable {
         return avatar;
     }
 
-    public Drawable getDrawable() {
-        if (exists()) {
-            return Drawable.createFromPath(file.getAbsolutePath());
-        }
-        MyServiceManager.sendCommand(new CommandData(CommandEnum.FETCH_AVATAR, null, userId));
+    static Drawable getDefaultAvatar() {
         return defaultAvatar;
     }
 
+    /**
+     * Shows the avatar without blocking the UI thread, see {@link AvatarCache#show(AvatarDrawable, ImageView)}
+     */
+    public void showIn(ImageView view) {
+        AvatarCache.getInstance().show(this, view);
+    }
+
+    /**
+     * @return Key of the avatar bitmap in the {@link AvatarCache}
+     */
+    String getKey() {
+        return Long.toString(userId) + "/" + fileName;
+    }
+
+    long getUserId() {
+        return userId;
+    }
+
     public boolean exists() {
         return file != null && file.exists() && file.isFile();
     }
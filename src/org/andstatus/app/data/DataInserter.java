@@ -17,6 +17,7 @@
 package org.andstatus.app.data;
 
 import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.text.TextUtils;
 
@@ -25,14 +26,19 @@ import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.data.MyDatabase.Msg;
 import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.net.MbMessage;
+import org.andstatus.app.net.MbTimelineItem;
 import org.andstatus.app.net.MbUser;
 import org.andstatus.app.service.CommandData;
 import org.andstatus.app.service.CommandExecutionContext;
 import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.MyMetrics;
 import org.andstatus.app.util.SharedPreferencesUtil;
 import org.andstatus.app.util.TriState;
 
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Stores ("inserts" -  adds or updates) messages and users
@@ -42,7 +48,17 @@ import java.util.Date;
  */
 public class DataInserter {
     private static final String TAG = DataInserter.class.getSimpleName();
+    private static final MyMetrics.Counter ROWS_STORED = MyMetrics.counter("data.inserter.rows");
+    private static final MyMetrics.Histogram PAGE_MS = MyMetrics.histogram("data.inserter.page.ms");
+    /** Rate of the latest stored page */
+    private static final MyMetrics.Gauge ROWS_PER_SECOND = MyMetrics.gauge("data.inserter.rows_per_second");
     private CommandExecutionContext execContext;
+    /** Messages, stored since the last publication to the {@link MsgChangeFeed} */
+    private final Set<Long> changedMsgIds = new HashSet<Long>();
+    /** Changes of the page are published after its transaction is committed, and dropped, if it is rolled back */
+    private boolean storingPage = false;
+    /** Items of the page, which failed to be stored. Any failure rolls back the whole page */
+    private int failedItems = 0;
 
     public DataInserter(MyAccount ma) {
         this(new CommandExecutionContext(CommandData.getEmpty(), ma));
@@ -55,6 +71,84 @@ public class DataInserter {
     public long insertOrUpdateMsg(MbMessage message, LatestUserMessages lum) {
         return insertOrUpdateMsgBySender(message, lum, 0);
     }
+
+    /**
+     * Stores the whole downloaded page of the timeline in one database transaction,
+     * so we have one commit (and one journal sync) per page instead of one per row.
+     * {@link MyProvider} is called on the same thread and uses the same database object,
+     * so its inserts and updates join this transaction.
+     * <p>
+     * A failure to store any item (which may have already rolled back a nested transaction of {@link MyProvider})
+     * rolls back the whole page. Then nothing of the page is added to the "lum", and a soft error is set,
+     * so the caller doesn't advance the timeline position and the page is downloaded again later.
+     * @return number of items (messages and users) stored, 0 if the page was rolled back
+     */
+    public int insertOrUpdateTimelineItems(List<MbTimelineItem> items, LatestUserMessages lum) {
+        final String method = "insertOrUpdateTimelineItems";
+        int count = 0;
+        if (items == null || items.isEmpty()) {
+            return count;
+        }
+        long startTime = System.currentTimeMillis();
+        SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
+        LatestUserMessages pageLum = new LatestUserMessages();
+        boolean committed = false;
+        storingPage = true;
+        failedItems = 0;
+        db.beginTransaction();
+        try {
+            for (MbTimelineItem item : items) {
+                switch (item.getType()) {
+                    case MESSAGE:
+                        if (insertOrUpdateMsg(item.mbMessage, pageLum) != 0) {
+                            count++;
+                        }
+                        break;
+                    case USER:
+                        if (insertOrUpdateUser(item.mbUser, pageLum) != 0) {
+                            count++;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (failedItems == 0) {
+                db.setTransactionSuccessful();
+                committed = true;
+            }
+        } finally {
+            db.endTransaction();
+            storingPage = false;
+            if (committed) {
+                for (UserMsg um : pageLum.getUserMessages()) {
+                    lum.onNewUserMsg(um);
+                }
+                publishChanges();
+            } else {
+                changedMsgIds.clear();
+                // Ids of rolled back rows may be reused by other rows
+                OidToIdCache oidToIdCache = MyContextHolder.get().getDatabase().getOidToIdCache();
+                oidToIdCache.invalidate(OidEnum.MSG_OID);
+                oidToIdCache.invalidate(OidEnum.USER_OID);
+            }
+        }
+        if (!committed) {
+            MyLog.w(TAG, method + "; " + failedItems + " of " + items.size()
+                    + " items failed, the page was rolled back");
+            execContext.getResult().setSoftErrorIfNotOk(false);
+            count = 0;
+        }
+        long millis = System.currentTimeMillis() - startTime;
+        ROWS_STORED.add(count);
+        PAGE_MS.record(millis);
+        ROWS_PER_SECOND.set(count * 1000L / Math.max(millis, 1));
+        if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
+            MyLog.v(TAG, method + "; stored " + count + " of " + items.size() + " items in "
+                    + millis + " ms");
+        }
+        return count;
+    }
     
     private long insertOrUpdateMsgBySender(MbMessage message, LatestUserMessages lum, long senderIdIn) {
         final String funcName = "Inserting/updating msg";
@@ -237,8 +331,7 @@ public class DataInserter {
 
                 if (message.inReplyToMessage != null) {
                     // Type of the timeline is ALL meaning that message does not belong to this timeline
-                    DataInserter di = new DataInserter(execContext);
-                    inReplyToMessageId = di.insertOrUpdateMsg(message.inReplyToMessage, lum);
+                    inReplyToMessageId = insertOrUpdateMsg(message.inReplyToMessage, lum);
                     if (message.inReplyToMessage.sender != null) {
                         inReplyToUserId = MyProvider.oidToId(OidEnum.USER_OID, message.originId, message.inReplyToMessage.sender.oid);
                     } else if (inReplyToMessageId != 0) {
@@ -276,6 +369,7 @@ public class DataInserter {
                         }
                   values.put(MyDatabase.MsgOfUser.MENTIONED, 1);
                 }
+                MsgDisplayFields.putTo(values);
                 
                 if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
                     MyLog.v(TAG, ((rowId==0) ? "insertMsg" : "updateMsg") 
@@ -290,9 +384,18 @@ public class DataInserter {
                     // There was no such row so add the new one
                     msgUri = execContext.getContext().getContentResolver().insert(MyProvider.getTimelineUri(execContext.getMyAccount().getUserId(), execContext.getTimelineType(), false), values);
                     rowId = MyProvider.uriToMessageId(msgUri);
+                    if (rowId == 0) {
+                        failedItems++;
+                    }
                 } else {
                     execContext.getContext().getContentResolver().update(msgUri, values, null, null);
                 }
+                if (rowId != 0) {
+                    changedMsgIds.add(rowId);
+                    if (!storingPage) {
+                        publishChanges();
+                    }
+                }
                 
                 if (senderId != 0) {
                     // Remember all messages that we added or updated
@@ -307,6 +410,7 @@ public class DataInserter {
             }
         } catch (Exception e) {
             MyLog.e(this, funcName, e);
+            failedItems++;
         }
 
         return rowId;
@@ -401,6 +505,9 @@ public class DataInserter {
                 
                 userUri = execContext.getContext().getContentResolver().insert(userUri, values);
                 userId = MyProvider.uriToUserId(userUri);
+                if (userId == 0) {
+                    failedItems++;
+                }
             } else if (values.size() > 0) {
                 execContext.getContext().getContentResolver().update(userUri, values, null, null);
             }
@@ -411,6 +518,7 @@ public class DataInserter {
             
         } catch (Exception e) {
             MyLog.e(this, "insertUser exception", e);
+            failedItems++;
         }
         MyLog.v(this, "insertUser, userId=" + userId + "; oid=" + userOid);
         return userId;
@@ -420,7 +528,12 @@ public class DataInserter {
         LatestUserMessages lum = new LatestUserMessages();
         long rowId = insertOrUpdateMsg(message, lum);
         lum.save();
-        execContext.getContext().getContentResolver().notifyChange(MyProvider.TIMELINE_URI, null);
         return rowId;
     }
+
+    private void publishChanges() {
+        MsgChangeFeed.getInstance().onMessagesChanged(execContext.getMyAccount().getUserId(),
+                execContext.getTimelineType(), changedMsgIds);
+        changedMsgIds.clear();
+    }
 }
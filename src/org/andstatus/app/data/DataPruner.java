@@ -20,22 +20,43 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
 
+import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.context.MyPreferences;
+import org.andstatus.app.data.MyDatabase.Avatar;
 import org.andstatus.app.data.MyDatabase.FollowingUser;
 import org.andstatus.app.data.MyDatabase.Msg;
 import org.andstatus.app.data.MyDatabase.MsgOfUser;
+import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.data.MyDatabase.User;
 import org.andstatus.app.util.MyLog;
-import org.andstatus.app.util.SelectionAndArgs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Clean database from outdated information
- * currently only old Messages are being deleted 
+ * Clean database from outdated information:
+ * old Messages and then rows, which are left without their Messages or Users.
+ * <p>
+ * Rows are deleted in chunks of {@link #CHUNK_SIZE}, each chunk in its own (short) transaction,
+ * so the database is not locked for long and other threads may use it between the chunks.
  */
 public class DataPruner {
+    static final int CHUNK_SIZE = 500;
+    /**
+     * Pause between chunks to let other threads (e.g. the UI) access the database
+     */
+    private static final long PAUSE_BETWEEN_CHUNKS_MILLIS = 50;
+
     private ContentResolver mContentResolver;
     private int mDeleted = 0;
+    private int mDeletedMsgOfUser = 0;
+    private int mDeletedAvatars = 0;
+    private int mChunks = 0;
+    private boolean mInterrupted = false;
     
     public DataPruner(Context context) {
         mContentResolver = context.getContentResolver();
@@ -50,8 +71,13 @@ public class DataPruner {
      */
     public boolean prune() {
         boolean ok = true;
+        final long startTime = System.currentTimeMillis();
        
         mDeleted = 0;
+        mDeletedMsgOfUser = 0;
+        mDeletedAvatars = 0;
+        mChunks = 0;
+        mInterrupted = false;
         int nDeletedTime = 0;
         // We're using global preferences here
         SharedPreferences sp = MyPreferences
@@ -71,6 +97,7 @@ public class DataPruner {
                 + " userf." + User._ID + "=" + FollowingUser.TABLE_NAME + "." + FollowingUser.FOLLOWING_USER_ID
                 + " AND " + FollowingUser.TABLE_NAME + "." + FollowingUser.USER_FOLLOWED + "=1"
                 + ")";
+        String sqlMayBeDeleted = sqlNotFavoritedMessage + " AND " + sqlNotLatestMessageByFollowedUser;
         
         int maxDays = Integer.parseInt(sp.getString(MyPreferences.KEY_HISTORY_TIME, "3"));
         long sinceTimestamp = 0;
@@ -79,21 +106,16 @@ public class DataPruner {
         int nToDeleteSize = 0;
         int nDeletedSize = 0;
         int maxSize = Integer.parseInt(sp.getString(MyPreferences.KEY_HISTORY_SIZE, "2000"));
-        long sinceTimestampSize = 0;
         Cursor cursor = null;
         try {
+            SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
             if (maxDays > 0) {
                 sinceTimestamp = System.currentTimeMillis() - maxDays * (1000L * 60 * 60 * 24);
-                SelectionAndArgs sa = new SelectionAndArgs();
-                sa.addSelection(Msg.TABLE_NAME + "." + MyDatabase.Msg.INS_DATE + " <  ?", new String[] {
-                    String.valueOf(sinceTimestamp)
-                });
-                sa.selection += " AND " + sqlNotFavoritedMessage;
-                sa.selection += " AND " + sqlNotLatestMessageByFollowedUser;
-                nDeletedTime = mContentResolver.delete(MyProvider.MSG_CONTENT_URI, sa.selection, sa.selectionArgs);
+                nDeletedTime = deleteMessages(db, Msg.TABLE_NAME + "." + Msg.INS_DATE + " < " + sinceTimestamp
+                        + " AND " + sqlMayBeDeleted, Integer.MAX_VALUE);
             }
 
-            if (maxSize > 0) {
+            if (maxSize > 0 && !mInterrupted) {
                 nDeletedSize = 0;
                 cursor = mContentResolver.query(MyProvider.MSG_CONTENT_COUNT_URI, null, null, null, null);
                 if (cursor.moveToFirst()) {
@@ -103,47 +125,219 @@ public class DataPruner {
                 }
                 cursor.close();
                 if (nToDeleteSize > 0) {
-                    // Find INS_DATE of the most recent tweet to delete
-                    cursor = mContentResolver.query(MyProvider.MSG_CONTENT_URI, new String[] {
-                            MyDatabase.Msg.INS_DATE
-                    }, null, null, MyDatabase.Msg.INS_DATE + " ASC LIMIT 0," + nToDeleteSize);
-                    if (cursor.moveToLast()) {
-                        sinceTimestampSize = cursor.getLong(0);
-                    }
-                    cursor.close();
-                    if (sinceTimestampSize > 0) {
-                        SelectionAndArgs sa = new SelectionAndArgs();
-                        sa.addSelection(Msg.TABLE_NAME + "." + MyDatabase.Msg.INS_DATE + " <=  ?", new String[] {
-                            String.valueOf(sinceTimestampSize)
-                        });
-                        sa.selection += " AND " + sqlNotFavoritedMessage;
-                        sa.selection += " AND " + sqlNotLatestMessageByFollowedUser;
-                        nDeletedSize = mContentResolver.delete(MyProvider.MSG_CONTENT_URI, sa.selection,
-                                sa.selectionArgs);
-                    }
+                    // The oldest messages are deleted first, see the ORDER BY of the chunk
+                    nDeletedSize = deleteMessages(db, sqlMayBeDeleted, nToDeleteSize);
+                }
+            }
+            if (!mInterrupted) {
+                deleteOrphanedMsgOfUser(db);
+            }
+            if (!mInterrupted) {
+                deleteOrphanedAvatars(db);
+                if (mDeletedAvatars > 0) {
+                    AvatarCache.getInstance().clear();
                 }
             }
         } catch (Exception e) {
             MyLog.e(this, "pruneOldRecords failed", e);
+            ok = false;
         } finally {
             DbUtils.closeSilently(cursor);
         }
         mDeleted = nDeletedTime + nDeletedSize;
+        if (mDeleted > 0) {
+            mContentResolver.notifyChange(MyProvider.TIMELINE_URI, null);
+            MsgChangeFeed.getInstance().onReloadNeeded("pruned " + mDeleted + " messages");
+        }
         if (MyLog.isLoggable(this, MyLog.VERBOSE)) {
             MyLog.v(this,
                     "pruneOldRecords; History time=" + maxDays + " days; deleted " + nDeletedTime
                             + " , since " + sinceTimestamp + ", now=" + System.currentTimeMillis());
             MyLog.v(this, "pruneOldRecords; History size=" + maxSize + " messages; deleted "
-                    + nDeletedSize + " of " + nTweets + " messages, since " + sinceTimestampSize);
+                    + nDeletedSize + " of " + nTweets + " messages");
         }
-        
+        MyLog.d(this, "pruneOldRecords " + (mInterrupted ? "interrupted" : (ok ? "ended" : "failed")) 
+                + "; deleted " + mDeleted + " messages, "
+                + mDeletedMsgOfUser + " msgofuser rows, " + mDeletedAvatars + " avatars in "
+                + mChunks + " chunks, " + (System.currentTimeMillis() - startTime) + " ms");
         return ok;
     }
 
+    /**
+     * Delete the oldest Messages, which satisfy the condition, and their {@link MsgOfUser} rows
+     * @param where Condition on the {@link Msg} table
+     * @return number of Messages deleted
+     */
+    private int deleteMessages(SQLiteDatabase db, String where, int maxToDelete) {
+        String sqlSelect = "SELECT " + BaseColumns._ID + " FROM " + Msg.TABLE_NAME
+                + " WHERE " + where
+                + " ORDER BY " + Msg.INS_DATE + " ASC";
+        int deleted = 0;
+        while (deleted < maxToDelete) {
+            List<Long> ids = selectChunk(db, sqlSelect, Math.min(CHUNK_SIZE, maxToDelete - deleted));
+            if (ids.isEmpty()) {
+                break;
+            }
+            String inIds = " IN (" + DbUtils.idsToString(ids) + ")";
+            int deletedChunk = 0;
+            db.beginTransaction();
+            try {
+                // The condition is checked again as something might change since the select 
+                deletedChunk = db.delete(Msg.TABLE_NAME, BaseColumns._ID + inIds + " AND " + where, null);
+                int deletedMsgOfUser = db.delete(MsgOfUser.TABLE_NAME, MsgOfUser.MSG_ID + inIds
+                        + " AND NOT EXISTS (SELECT * FROM " + Msg.TABLE_NAME + " WHERE "
+                        + Msg.TABLE_NAME + "." + BaseColumns._ID + "=" + MsgOfUser.TABLE_NAME + "." + MsgOfUser.MSG_ID
+                        + ")", null);
+                MsgSearchIndex.deleteOrphaned(db, inIds);
+                TimelineTable.deleteOrphaned(db, inIds);
+                db.setTransactionSuccessful();
+                mDeletedMsgOfUser += deletedMsgOfUser;
+            } finally {
+                db.endTransaction();
+            }
+            if (deletedChunk > 0) {
+                // Inserters run between chunks, so they shouldn't find the deleted messages in the cache
+                MyContextHolder.get().getDatabase().getOidToIdCache().invalidate(OidEnum.MSG_OID);
+            }
+            deleted += deletedChunk;
+            if (!chunkEnded("messages", deletedChunk, deleted) || ids.size() < CHUNK_SIZE) {
+                break;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Rows, which were left after deletion of their Messages
+     */
+    private void deleteOrphanedMsgOfUser(SQLiteDatabase db) {
+        String sqlSelect = "SELECT rowid FROM " + MsgOfUser.TABLE_NAME
+                + " WHERE NOT EXISTS (SELECT * FROM " + Msg.TABLE_NAME + " WHERE "
+                + Msg.TABLE_NAME + "." + BaseColumns._ID + "=" + MsgOfUser.TABLE_NAME + "." + MsgOfUser.MSG_ID
+                + ")";
+        while (true) {
+            List<Long> rowIds = selectChunk(db, sqlSelect, CHUNK_SIZE);
+            if (rowIds.isEmpty()) {
+                break;
+            }
+            int deletedChunk = db.delete(MsgOfUser.TABLE_NAME, "rowid IN (" + DbUtils.idsToString(rowIds) + ")", null);
+            mDeletedMsgOfUser += deletedChunk;
+            if (!chunkEnded("orphaned msgofuser rows", deletedChunk, mDeletedMsgOfUser) 
+                    || rowIds.size() < CHUNK_SIZE) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Avatars of Users, which don't exist any more. Avatar files are deleted also
+     */
+    private void deleteOrphanedAvatars(SQLiteDatabase db) {
+        String sql = "SELECT " + BaseColumns._ID + ", " + Avatar.USER_ID + ", " + Avatar.FILE_NAME 
+                + " FROM " + Avatar.TABLE_NAME
+                + " WHERE NOT EXISTS (SELECT * FROM " + User.TABLE_NAME + " WHERE "
+                + User.TABLE_NAME + "." + BaseColumns._ID + "=" + Avatar.TABLE_NAME + "." + Avatar.USER_ID
+                + ") LIMIT " + CHUNK_SIZE;
+        while (true) {
+            List<Long> rowIds = new ArrayList<Long>();
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery(sql, null);
+                while (cursor.moveToNext()) {
+                    rowIds.add(cursor.getLong(0));
+                    File file = new AvatarDrawable(cursor.getLong(1), cursor.getString(2)).getFile();
+                    if (file != null && file.exists() && !file.delete()) {
+                        MyLog.d(this, "Couldn't delete file " + file.toString());
+                    }
+                }
+            } finally {
+                DbUtils.closeSilently(cursor);
+            }
+            if (rowIds.isEmpty()) {
+                break;
+            }
+            int deletedChunk = db.delete(Avatar.TABLE_NAME, BaseColumns._ID + " IN (" + DbUtils.idsToString(rowIds) + ")", null);
+            mDeletedAvatars += deletedChunk;
+            if (!chunkEnded("orphaned avatars", deletedChunk, mDeletedAvatars) 
+                    || rowIds.size() < CHUNK_SIZE) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * The select is done outside of a transaction, so it doesn't lock the database for writing
+     */
+    private List<Long> selectChunk(SQLiteDatabase db, String sqlSelect, int limit) {
+        List<Long> ids = new ArrayList<Long>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sqlSelect + " LIMIT " + limit, null);
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        return ids;
+    }
+
+    /**
+     * Log progress and let other threads access the database
+     * @return false if we should stop: nothing was deleted or the thread was interrupted
+     */
+    private boolean chunkEnded(String what, int deletedChunk, int deletedTotal) {
+        mChunks++;
+        if (MyLog.isLoggable(this, MyLog.VERBOSE)) {
+            MyLog.v(this, "Chunk " + mChunks + ": deleted " + deletedChunk + " " + what 
+                    + ", total " + deletedTotal);
+        }
+        if (deletedChunk == 0) {
+            return false;
+        }
+        try {
+            Thread.sleep(PAUSE_BETWEEN_CHUNKS_MILLIS);
+        } catch (InterruptedException e) {
+            MyLog.d(this, "Interrupted after chunk " + mChunks, e);
+            mInterrupted = true;
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
     /**
      * @return number of Messages deleted
      */
     public int getDeleted() {
         return mDeleted;
     }
+
+    /**
+     * @return number of {@link MsgOfUser} rows deleted, including the orphaned ones
+     */
+    public int getDeletedMsgOfUser() {
+        return mDeletedMsgOfUser;
+    }
+
+    /**
+     * @return number of orphaned Avatars deleted
+     */
+    public int getDeletedAvatars() {
+        return mDeletedAvatars;
+    }
+
+    /**
+     * @return number of chunks deleted, each chunk in a separate transaction
+     */
+    public int getChunks() {
+        return mChunks;
+    }
+
+    /**
+     * @return true if pruning was stopped before all old data were deleted
+     */
+    public boolean isInterrupted() {
+        return mInterrupted;
+    }
 }
@@ -34,33 +34,27 @@ import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.channels.FileChannel;
+import java.util.Collection;
 
 public final class DbUtils {
-    private static final int MS_BETWEEN_RETRIES = 500;
     private static final String TAG = DbUtils.class.getSimpleName();
     
     private DbUtils() {
     }
 
     /**
-     * @return rowId
+     * Writes are serialised by the database object, so they don't need retries,
+     * see {@link MyDatabase}
+     * @return rowId, -1 in a case of an error
      */
-    public static long addRowWithRetry(String tableName, ContentValues values, int nRetries) {
-        String method = "addRowWithRetry";
+    public static long addRow(String tableName, ContentValues values) {
+        String method = "addRow";
         long rowId = -1;
-        for (int pass = 0; pass < nRetries; pass++) {
-            try {
-                rowId = MyContextHolder.get().getDatabase().getReadableDatabase()
-                        .insert(tableName, null, values);
-                if (rowId != -1) {
-                    break;
-                }
-                MyLog.v(method, " Error inserting row, pass=" + pass);
-            } catch (SQLiteException e) {
-                MyLog.i(method, " Database is locked, pass=" + pass, e);
-                rowId = -1;
-            }
-            waitBetweenRetries(method);
+        try {
+            rowId = MyContextHolder.get().getDatabase().getWritableDatabase()
+                    .insert(tableName, null, values);
+        } catch (SQLiteException e) {
+            MyLog.e(method, "Table " + tableName, e);
         }
         if (rowId == -1) {
             MyLog.e(method, "Failed to insert row into " + tableName + "; values=" + values.toString(), null);
@@ -71,18 +65,14 @@ public final class DbUtils {
     /**
      * @return Number of rows updated
      */
-    public static int updateRowWithRetry(String tableName, long rowId, ContentValues values, int nRetries) {
-        String method = "updateRowWithRetry";
+    public static int updateRow(String tableName, long rowId, ContentValues values) {
+        String method = "updateRow";
         int rowsUpdated = 0;
-        for (int pass=0; pass<nRetries; pass++) {
-            try {
-                rowsUpdated = MyContextHolder.get().getDatabase().getReadableDatabase()
-                        .update(tableName, values, BaseColumns._ID + "=" + Long.toString(rowId), null);
-                break;
-            } catch (SQLiteException e) {
-                MyLog.i(method, " Database is locked, pass=" + pass, e);
-            }
-            waitBetweenRetries(method);
+        try {
+            rowsUpdated = MyContextHolder.get().getDatabase().getWritableDatabase()
+                    .update(tableName, values, BaseColumns._ID + "=" + Long.toString(rowId), null);
+        } catch (SQLiteException e) {
+            MyLog.e(method, "Table " + tableName, e);
         }
         if (rowsUpdated != 1) {
             MyLog.e(method, " Failed to update rowId=" + rowId + " updated " + rowsUpdated + " rows", null);
@@ -90,12 +80,18 @@ public final class DbUtils {
         return rowsUpdated;
     }
 
-    private static void waitBetweenRetries(String method) {
-        try {
-            Thread.sleep(Math.round((Math.random() + 1) * MS_BETWEEN_RETRIES));
-        } catch (InterruptedException e2) {
-            MyLog.e(method, e2);
+    /**
+     * @return Comma separated IDs for the SQL "IN (...)" condition
+     */
+    public static String idsToString(Collection<Long> ids) {
+        StringBuilder sb = new StringBuilder();
+        for (Long id : ids) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(id);
         }
+        return sb.toString();
     }
 
     // Couldn't use "Closeable" as a Type due to incompatibility with API <= 10
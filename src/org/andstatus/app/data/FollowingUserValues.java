@@ -72,20 +72,10 @@ public class FollowingUserValues {
             // Don't change anything as there is no information
             return;
         }
-        for (int pass=0; pass<5; pass++) {
-            try {
-                tryToUpdate(db, followed);
-                break;
-       // This is since API 11, see http://developer.android.com/reference/android/database/sqlite/SQLiteDatabaseLockedException.html
-       //     } catch (SQLiteDatabaseLockedException e) {
-            } catch (SQLiteException e) {
-                MyLog.i(this, "update, Database is locked, pass=" + pass, e);
-                try {
-                    Thread.sleep(Math.round((Math.random() + 1) * 200));
-                } catch (InterruptedException e2) {
-                    MyLog.e(this, e2);
-                }
-            }
+        try {
+            tryToUpdate(db, followed);
+        } catch (SQLiteException e) {
+            MyLog.e(this, "update, userId=" + userId + ", followingUserId=" + followingUserId, e);
         }
     }
 
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.util.MyLog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Log of recent changes of messages: which messages were inserted or updated,
+ * for which account and timeline type. Each change has a sequence number, so a reader remembers
+ * the last change it has seen and asks only for newer changes
+ * instead of reloading the whole timeline.
+ * <p>
+ * When a change can't be described by message ids (e.g. messages were deleted),
+ * or a reader is so late that the changes it needs were dropped from the log already,
+ * the reader is told to reload everything.
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class MsgChangeFeed {
+    private static final String TAG = MsgChangeFeed.class.getSimpleName();
+
+    /** Older changes are dropped from the log */
+    static final int MAX_CHANGES = 50;
+
+    private static final MsgChangeFeed INSTANCE = new MsgChangeFeed();
+
+    @GuardedBy("this")
+    private final LinkedList<Change> changes = new LinkedList<Change>();
+    @GuardedBy("this")
+    private long lastSeq = 0;
+    /** Readers, who have seen changes up to a smaller sequence number, have to reload everything */
+    @GuardedBy("this")
+    private long reloadSeq = 0;
+
+    public static final class Change {
+        private final long seq;
+        private final long accountUserId;
+        private final TimelineTypeEnum timelineType;
+        private final Set<Long> msgIds;
+
+        Change(long seq, long accountUserId, TimelineTypeEnum timelineType, Set<Long> msgIds) {
+            this.seq = seq;
+            this.accountUserId = accountUserId;
+            this.timelineType = timelineType;
+            this.msgIds = msgIds;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public long getAccountUserId() {
+            return accountUserId;
+        }
+
+        public TimelineTypeEnum getTimelineType() {
+            return timelineType;
+        }
+
+        /**
+         * @return Ids of the inserted or updated messages, see {@link MyDatabase.Msg#MSG_ID}
+         */
+        public Set<Long> getMsgIds() {
+            return msgIds;
+        }
+
+        /**
+         * @param timelineCombined The timeline shows messages of all accounts
+         */
+        public boolean isVisibleTo(long accountUserId, boolean timelineCombined) {
+            return timelineCombined || this.accountUserId == 0 || this.accountUserId == accountUserId;
+        }
+
+        @Override
+        public String toString() {
+            return "Change{seq:" + seq + ", accountUserId:" + accountUserId + ", timeline:" + timelineType
+                    + ", messages:" + msgIds.size() + "}";
+        }
+    }
+
+    public static MsgChangeFeed getInstance() {
+        return INSTANCE;
+    }
+
+    MsgChangeFeed() {
+    }
+
+    /**
+     * Should be called after the transaction, which stored the messages, is committed
+     * @return Sequence number of the change
+     */
+    public synchronized long onMessagesChanged(long accountUserId, TimelineTypeEnum timelineType,
+            Collection<Long> msgIds) {
+        if (msgIds == null || msgIds.isEmpty()) {
+            return lastSeq;
+        }
+        lastSeq++;
+        changes.add(new Change(lastSeq, accountUserId, timelineType,
+                Collections.unmodifiableSet(new HashSet<Long>(msgIds))));
+        while (changes.size() > MAX_CHANGES) {
+            reloadSeq = changes.removeFirst().getSeq();
+        }
+        return lastSeq;
+    }
+
+    /**
+     * All readers have to reload everything, e.g. after messages were deleted
+     * @return Sequence number of the change
+     */
+    public synchronized long onReloadNeeded(String reason) {
+        lastSeq++;
+        reloadSeq = lastSeq;
+        changes.clear();
+        MyLog.v(TAG, "Reload needed: " + reason + ", seq:" + lastSeq);
+        return lastSeq;
+    }
+
+    /**
+     * @return Sequence number of the latest change. A reader, who has just loaded everything,
+     *  has seen the changes up to this number
+     */
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * @param seq The last change, the reader has seen
+     * @return Newer changes in the order of their sequence numbers, may be empty.
+     *  null if the reader has to reload everything
+     */
+    public synchronized List<Change> getChangesSince(long seq) {
+        if (seq < reloadSeq) {
+            return null;
+        }
+        List<Change> newer = new ArrayList<Change>();
+        for (Change change : changes) {
+            if (change.getSeq() > seq) {
+                newer.add(change);
+            }
+        }
+        return newer;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "{lastSeq:" + lastSeq + ", reloadSeq:" + reloadSeq + ", changes:" + changes.size() + "}";
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.text.Html;
+import android.text.TextUtils;
+
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.net.MbMessage;
+import org.andstatus.app.util.MyLog;
+
+/**
+ * Texts of a message, as they are shown in a timeline: {@link Msg#BODY_DISPLAY} and {@link Msg#VIA_DISPLAY}.
+ * They are computed once, when the message is stored, so a timeline row is bound without HTML parsing.
+ * Rows, stored by older versions of the application, are filled in by {@link #backfill()}.
+ * @author yvolk@yurivolkov.com
+ */
+public final class MsgDisplayFields {
+    private static final String TAG = MsgDisplayFields.class.getSimpleName();
+
+    /** The backfill is done once per process, new rows have their display fields already */
+    private static volatile boolean backfilled = false;
+
+    private MsgDisplayFields() {
+    }
+
+    /**
+     * @return Plain text of the message body. The body of Origins, which don't allow HTML,
+     * has been stripped of HTML already, see {@link MbMessage#setBody(String)}, so it is not parsed again
+     */
+    public static String bodyToDisplay(String body) {
+        if (TextUtils.isEmpty(body)) {
+            return "";
+        } else if (MbMessage.hasHtmlMarkup(body) || body.indexOf('&') >= 0) {
+            return Html.fromHtml(body).toString().trim();
+        } else {
+            return body.trim();
+        }
+    }
+
+    /**
+     * @return Plain text of the client's name. "via" often is a link to the client's site
+     */
+    public static String viaToDisplay(String via) {
+        if (TextUtils.isEmpty(via)) {
+            return "";
+        }
+        return Html.fromHtml(via).toString().trim();
+    }
+
+    static void putTo(ContentValues values) {
+        if (values.containsKey(Msg.BODY)) {
+            values.put(Msg.BODY_DISPLAY, bodyToDisplay(values.getAsString(Msg.BODY)));
+        }
+        if (values.containsKey(Msg.VIA)) {
+            values.put(Msg.VIA_DISPLAY, viaToDisplay(values.getAsString(Msg.VIA)));
+        }
+    }
+
+    /**
+     * Fills in display fields of the messages, which don't have them yet.
+     * Does nothing, if this was done already since the application started
+     * @return number of messages updated
+     */
+    public static int backfill() {
+        if (backfilled) {
+            return 0;
+        }
+        int updated = 0;
+        try {
+            updated = backfill(MyContextHolder.get().getDatabase().getWritableDatabase());
+            backfilled = !Thread.currentThread().isInterrupted();
+        } catch (Exception e) {
+            MyLog.e(TAG, "Backfill failed", e);
+        }
+        return updated;
+    }
+
+    /**
+     * Rows are updated in chunks, each chunk in its own transaction, like in the {@link DataPruner}.
+     * Chunks are selected in the order of _id, starting after the last row of the previous chunk,
+     * so the rows, filled already, are not scanned again
+     */
+    static int backfill(SQLiteDatabase db) {
+        int updated = 0;
+        long[] lastId = new long[] {0};
+        while (true) {
+            int updatedChunk = backfillChunk(db, lastId);
+            updated += updatedChunk;
+            if (updatedChunk < DataPruner.CHUNK_SIZE || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+        if (updated > 0) {
+            MyLog.d(TAG, "Backfilled " + updated + " messages");
+        }
+        return updated;
+    }
+
+    /**
+     * @param lastId in: _id, after which the chunk starts; out: _id of the last row of the chunk
+     */
+    private static int backfillChunk(SQLiteDatabase db, long[] lastId) {
+        String[] ids = new String[DataPruner.CHUNK_SIZE];
+        ContentValues[] chunk = new ContentValues[DataPruner.CHUNK_SIZE];
+        int size = 0;
+        Cursor cursor = null;
+        try {
+            // The select is done outside of a transaction, so it doesn't lock the database for writing
+            cursor = db.rawQuery("SELECT " + BaseColumns._ID + ", " + Msg.BODY + ", " + Msg.VIA
+                    + " FROM " + Msg.TABLE_NAME
+                    + " WHERE " + BaseColumns._ID + ">?"
+                    + " AND " + Msg.BODY_DISPLAY + " IS NULL"
+                    + " ORDER BY " + BaseColumns._ID
+                    + " LIMIT " + DataPruner.CHUNK_SIZE, new String[] {Long.toString(lastId[0])});
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put(Msg.BODY_DISPLAY, bodyToDisplay(cursor.getString(1)));
+                values.put(Msg.VIA_DISPLAY, viaToDisplay(cursor.getString(2)));
+                lastId[0] = cursor.getLong(0);
+                ids[size] = Long.toString(lastId[0]);
+                chunk[size++] = values;
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        if (size == 0) {
+            return 0;
+        }
+        db.beginTransaction();
+        try {
+            for (int ind = 0; ind < size; ind++) {
+                db.update(Msg.TABLE_NAME, chunk[ind], BaseColumns._ID + "=?", new String[] {ids[ind]});
+                MsgSearchIndex.update(db, Long.parseLong(ids[ind]));
+                TimelineTable.onBodyDisplayed(db, Long.parseLong(ids[ind]), chunk[ind].getAsString(Msg.BODY_DISPLAY));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.data.MyDatabase.User;
+
+import java.util.Collection;
+
+/**
+ * Full-text index of messages for the timeline search: an FTS3 virtual table,
+ * its "docid" is the {@link Msg#_ID}. Indexed are the text of the message
+ * and the username and real name of its author.
+ * <p>
+ * FTS3 (not FTS4) is used, because FTS4 is not available before Android 3.0.
+ * Its "simple" tokenizer folds case of ASCII letters only, like the "LIKE" operator, which was used before.
+ * @author yvolk@yurivolkov.com
+ */
+final class MsgSearchIndex {
+    static final String TABLE_NAME = "msg_fts";
+    static final String BODY = "fts_body";
+    static final String AUTHOR = "fts_author";
+    static final String DOCID = "docid";
+
+    private MsgSearchIndex() {
+    }
+
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts3 (" 
+                + BODY + ", " 
+                + AUTHOR 
+                + ")");
+    }
+
+    /**
+     * (Re)indexes the message. Should be called after the message row is stored
+     */
+    static void update(SQLiteDatabase db, long msgId) {
+        reindex(db, Msg.TABLE_NAME + "." + BaseColumns._ID + "=" + msgId);
+    }
+
+    static void update(SQLiteDatabase db, Collection<Long> msgIds) {
+        if (!msgIds.isEmpty()) {
+            reindex(db, Msg.TABLE_NAME + "." + BaseColumns._ID + " IN (" + DbUtils.idsToString(msgIds) + ")");
+        }
+    }
+
+    /**
+     * (Re)indexes messages of the author, e.g. after the username or the real name of the author was changed
+     */
+    static void onAuthorChanged(SQLiteDatabase db, long userId) {
+        reindex(db, Msg.TABLE_NAME + "." + Msg.AUTHOR_ID + "=" + userId);
+    }
+
+    /**
+     * @return true if the values of the {@link Msg} row change the indexed text
+     */
+    static boolean isIndexed(ContentValues values) {
+        return values.containsKey(Msg.BODY) || values.containsKey(Msg.BODY_DISPLAY)
+                || values.containsKey(Msg.AUTHOR_ID);
+    }
+
+    /**
+     * @param msgCondition Condition on the {@link Msg} table
+     */
+    private static void reindex(SQLiteDatabase db, String msgCondition) {
+        db.execSQL("DELETE FROM " + TABLE_NAME + " WHERE " + DOCID + " IN (SELECT " + BaseColumns._ID
+                + " FROM " + Msg.TABLE_NAME + " WHERE " + msgCondition + ")");
+        db.execSQL("INSERT INTO " + TABLE_NAME + " (" + DOCID + ", " + BODY + ", " + AUTHOR + ")"
+                + " SELECT " + Msg.TABLE_NAME + "." + BaseColumns._ID + ", "
+                + "COALESCE(" + Msg.BODY_DISPLAY + ", " + Msg.BODY + ", ''), "
+                + "COALESCE(u." + User.USERNAME + ", '') || ' ' || COALESCE(u." + User.REAL_NAME + ", '')"
+                + " FROM " + Msg.TABLE_NAME
+                + " LEFT JOIN " + User.TABLE_NAME + " AS u"
+                + " ON " + Msg.TABLE_NAME + "." + Msg.AUTHOR_ID + "=u." + BaseColumns._ID
+                + " WHERE " + msgCondition);
+    }
+
+    /**
+     * Removes the messages, which don't exist any more, from the index
+     * @param inIds e.g. " IN (1,2,3)"
+     */
+    static int deleteOrphaned(SQLiteDatabase db, String inIds) {
+        return db.delete(TABLE_NAME, DOCID + inIds
+                + " AND NOT EXISTS (SELECT * FROM " + Msg.TABLE_NAME + " WHERE "
+                + Msg.TABLE_NAME + "." + BaseColumns._ID + "=" + TABLE_NAME + "." + DOCID + ")", null);
+    }
+
+    /**
+     * Condition on the {@link Msg#_ID} column for messages, which match the query,
+     * see {@link #toMatchQuery(String)} for its single argument
+     */
+    static String sqlMatches(String msgIdColumn) {
+        return msgIdColumn + " IN (SELECT " + DOCID + " FROM " + TABLE_NAME
+                + " WHERE " + TABLE_NAME + " MATCH ?)";
+    }
+
+    /**
+     * Each word of the search query becomes a prefix term, all of them should match: "and st" -> "and* st*".
+     * Characters, which are not letters or digits, separate words, like the FTS "simple" tokenizer does,
+     * so the user cannot (accidentally) use the FTS query syntax.
+     * @return empty string if there are no words in the query
+     */
+    static String toMatchQuery(String searchQuery) {
+        StringBuilder sb = new StringBuilder();
+        boolean inWord = false;
+        if (searchQuery != null) {
+            for (int ind = 0; ind < searchQuery.length(); ind++) {
+                char c = searchQuery.charAt(ind);
+                if (Character.isLetterOrDigit(c)) {
+                    if (!inWord && sb.length() > 0) {
+                        sb.append(' ');
+                    }
+                    // The tokenizer folds ASCII only, lowercase words are never operators ("OR")
+                    sb.append(c >= 'A' && c <= 'Z' ? (char) (c - 'A' + 'a') : c);
+                    inWord = true;
+                } else if (inWord) {
+                    sb.append('*');
+                    inWord = false;
+                }
+            }
+        }
+        if (inWord) {
+            sb.append('*');
+        }
+        return sb.toString();
+    }
+}
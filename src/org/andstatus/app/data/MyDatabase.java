@@ -25,6 +25,7 @@ import org.andstatus.app.util.MyLog;
 import java.util.Locale;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
@@ -32,6 +33,14 @@ import android.provider.BaseColumns;
 /**
  * Database definitions and helper class.
  * Used mainly by {@link MyProvider}
+ * <p>
+ * Concurrency policy: the whole application uses the one database object of this helper,
+ * see {@link org.andstatus.app.context.MyContext#getDatabase()}, so writes are serialised
+ * by {@link SQLiteDatabase} itself and never fail with "database is locked".
+ * Since API 11 the database is in the write-ahead logging (WAL) mode, so readers (e.g. the UI)
+ * don't wait for the writer (the service) and see the last committed data.
+ * The log is checkpointed, when the service has nothing to do, see {@link #checkpoint()}.
+ * Before API 11 readers wait for the writer's transaction to end.
  */
 public final class MyDatabase extends SQLiteOpenHelper  {
     
@@ -40,6 +49,13 @@ public final class MyDatabase extends SQLiteOpenHelper  {
      * This is used to check (and upgrade if necessary) 
      * existing database after application update.
      * 
+     * v.22 Messages without the sent date get 0 instead of NULL, so timeline pages reach them
+     * v.21 Timeline table added, Home, Mentions, Favorites and Direct timelines are materialised there
+     * v.20 Full-text search index of messages added
+     * v.19 Message table extended with texts, precomputed for display (body and via without HTML)
+     * v.18 Avatar table extended with validators of the downloaded files (ETag, Last-Modified)
+     * v.17 Command table added, commands of the service queues are persisted there
+     * v.16 Indexes added for timelines, replies, followers and for pruning old messages
      * v.15 2014-02-16 yvolk. Public timeline added
      * v.14 2013-12-15 yvolk. Origin table added
      * v.13 2013-12-06 yvolk. Avatar table added
@@ -52,7 +68,7 @@ public final class MyDatabase extends SQLiteOpenHelper  {
      *      All messages are in the same table. 
      *      Allows to have multiple User Accounts in different Originating systems (twitter.com etc. ) 
      */
-    public static final int DATABASE_VERSION = 15;
+    public static final int DATABASE_VERSION = 22;
     public static final String DATABASE_NAME = "andstatus.sqlite";
 
     /**
@@ -114,6 +130,15 @@ public final class MyDatabase extends SQLiteOpenHelper  {
          * (This is "source" field in tweets)
          */
         public static final String VIA = "via";
+        /**
+         * {@link #BODY} as it is shown in a timeline: plain text, without HTML markup.
+         * Computed when the row is stored, see {@link MsgDisplayFields}. NULL if not computed yet
+         */
+        public static final String BODY_DISPLAY = "body_display";
+        /**
+         * {@link #VIA} as it is shown: plain text, without HTML markup
+         */
+        public static final String VIA_DISPLAY = "via_display";
         /**
          * If not null: Link to the Msg._ID in this table
          */
@@ -388,6 +413,11 @@ public final class MyDatabase extends SQLiteOpenHelper  {
          * Date and time there was last attempt to load avatar. The attempt may be successfull or not.
          */
         public static final String LOADED_DATE = "avatar_loaded_date";
+        /**
+         * "ETag" and "Last-Modified" headers of the response, used to check if the avatar was changed
+         */
+        public static final String ETAG = "avatar_etag";
+        public static final String LAST_MODIFIED = "avatar_last_modified";
         
         /*
          * Derived columns (they are not stored in this table but are result of joins)
@@ -413,6 +443,38 @@ public final class MyDatabase extends SQLiteOpenHelper  {
         public static final String TEXT_LIMIT = "text_limit";
         public static final String SHORT_URL_LENGTH = "short_url_length";
     }
+
+    /**
+     * Commands of the {@link org.andstatus.app.service.MyService} queues.
+     * A row is inserted when a command is queued and updated when the command is moved
+     * to another queue or executed, so the queues survive a crash of the application
+     */
+    public static final class Command implements BaseColumns {
+        public static final String TABLE_NAME = Command.class.getSimpleName().toLowerCase(Locale.US);
+        private Command() {
+        }
+        /**
+         * Queue of the command, see org.andstatus.app.service.CommandQueue.QueueType
+         */
+        public static final String QUEUE_TYPE = "queue_type";
+        /**
+         * See {@link org.andstatus.app.service.CommandEnum#save()}
+         */
+        public static final String COMMAND_CODE = "command_code";
+        public static final String CREATED_DATE = "command_created_date";
+        public static final String ACCOUNT_NAME = "account_name";
+        public static final String TIMELINE_TYPE = "timeline_type";
+        public static final String ITEM_ID = "item_id";
+        /**
+         * Parameters of the {@link org.andstatus.app.service.CommandEnum#UPDATE_STATUS} command
+         */
+        public static final String BODY = "body";
+        public static final String IN_REPLY_TO_ID = "in_reply_to_id";
+        public static final String RECIPIENT_ID = "recipient_id";
+        
+        public static final String EXECUTION_COUNT = "execution_count";
+        public static final String RETRIES_LEFT = "retries_left";
+    }
     
     /**
      * ids in originating system
@@ -430,10 +492,68 @@ public final class MyDatabase extends SQLiteOpenHelper  {
     }
     
     
+    private final OidToIdCache oidToIdCache = new OidToIdCache();
+    private final SqlStatementPool statementPool = new SqlStatementPool();
+    private volatile boolean writeAheadLogging = false;
+
     public MyDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    /**
+     * The cache is bound to this object, so it is dropped together with the database
+     */
+    OidToIdCache getOidToIdCache() {
+        return oidToIdCache;
+    }
+
+    SqlStatementPool getStatementPool() {
+        return statementPool;
+    }
+
+    @Override
+    public synchronized void close() {
+        statementPool.closeAll();
+        super.close();
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (android.os.Build.VERSION.SDK_INT >= 11 && !db.isReadOnly()) {
+            writeAheadLogging = db.enableWriteAheadLogging();
+            MyLog.v(this, "Write-ahead logging " + (writeAheadLogging ? "enabled" : "is not available"));
+        }
+    }
+
+    boolean isWriteAheadLogging() {
+        return writeAheadLogging;
+    }
+
+    /**
+     * Copies committed transactions from the write-ahead log to the database file
+     * without waiting for readers and writers, so the log doesn't grow.
+     * Does nothing, if the database is not in the WAL mode
+     */
+    public void checkpoint() {
+        final String method = "checkpoint";
+        if (!writeAheadLogging) {
+            return;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+            if (cursor.moveToFirst() && MyLog.isLoggable(this, MyLog.VERBOSE)) {
+                MyLog.v(this, method + "; busy:" + cursor.getInt(0) + ", log frames:" + cursor.getInt(1)
+                        + ", checkpointed:" + cursor.getInt(2));
+            }
+        } catch (Exception e) {
+            MyLog.d(this, method, e);
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+    }
+
     private ThreadLocal<Boolean> onUpgradeTriggered = new ThreadLocal<Boolean>();
     public MyContextState checkState() {
         MyContextState state = MyContextState.ERROR;
@@ -477,6 +597,8 @@ public final class MyDatabase extends SQLiteOpenHelper  {
                 + Msg.RECIPIENT_ID + " INTEGER," 
                 + Msg.BODY + " TEXT," 
                 + Msg.VIA + " TEXT," 
+                + Msg.BODY_DISPLAY + " TEXT," 
+                + Msg.VIA_DISPLAY + " TEXT," 
                 + Msg.URL + " TEXT," 
                 + Msg.IN_REPLY_TO_MSG_ID + " INTEGER," 
                 + Msg.IN_REPLY_TO_USER_ID + " INTEGER," 
@@ -490,6 +612,29 @@ public final class MyDatabase extends SQLiteOpenHelper  {
                 + Msg.ORIGIN_ID + ", "
                 + Msg.MSG_OID
                 + ")");
+
+        db.execSQL("CREATE INDEX idx_msg_sent_date ON " + Msg.TABLE_NAME + " (" 
+                + Msg.SENT_DATE
+                + ")");
+
+        db.execSQL("CREATE INDEX idx_msg_ins_date ON " + Msg.TABLE_NAME + " (" 
+                + Msg.INS_DATE
+                + ")");
+
+        MsgSearchIndex.create(db);
+        TimelineTable.create(db);
+
+        db.execSQL("CREATE INDEX idx_msg_in_reply_to ON " + Msg.TABLE_NAME + " (" 
+                + Msg.IN_REPLY_TO_MSG_ID
+                + ")");
+
+        db.execSQL("CREATE INDEX idx_msg_sender ON " + Msg.TABLE_NAME + " (" 
+                + Msg.SENDER_ID
+                + ")");
+
+        db.execSQL("CREATE INDEX idx_msg_author ON " + Msg.TABLE_NAME + " (" 
+                + Msg.AUTHOR_ID
+                + ")");
         
         db.execSQL("CREATE TABLE " + MsgOfUser.TABLE_NAME + " (" 
                 + MsgOfUser.USER_ID + " INTEGER NOT NULL," 
@@ -503,6 +648,10 @@ public final class MyDatabase extends SQLiteOpenHelper  {
                 + MsgOfUser.DIRECTED + " BOOLEAN DEFAULT 0 NOT NULL," 
                 + " CONSTRAINT pk_msgofuser PRIMARY KEY (" + MsgOfUser.USER_ID + " ASC, " + MsgOfUser.MSG_ID + " ASC)"
                 + ")");
+
+        db.execSQL("CREATE INDEX idx_msgofuser_msg ON " + MsgOfUser.TABLE_NAME + " (" 
+                + MsgOfUser.MSG_ID
+                + ")");
         
         db.execSQL("CREATE TABLE " + User.TABLE_NAME + " (" 
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," 
@@ -548,6 +697,10 @@ public final class MyDatabase extends SQLiteOpenHelper  {
                 + " CONSTRAINT pk_followinguser PRIMARY KEY (" + FollowingUser.USER_ID + " ASC, " + FollowingUser.FOLLOWING_USER_ID + " ASC)"
                 + ")");
 
+        db.execSQL("CREATE INDEX idx_followinguser_following ON " + FollowingUser.TABLE_NAME + " (" 
+                + FollowingUser.FOLLOWING_USER_ID
+                + ")");
+
         db.execSQL("CREATE TABLE " + Avatar.TABLE_NAME + " (" 
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," 
                 + Avatar.USER_ID + " INTEGER NOT NULL," 
@@ -555,7 +708,9 @@ public final class MyDatabase extends SQLiteOpenHelper  {
                 + Avatar.URL + " TEXT NOT NULL," 
                 + Avatar.FILE_NAME + " TEXT," 
                 + Avatar.STATUS + " INTEGER NOT NULL DEFAULT 0," 
-                + Avatar.LOADED_DATE + " INTEGER"
+                + Avatar.LOADED_DATE + " INTEGER,"
+                + Avatar.ETAG + " TEXT,"
+                + Avatar.LAST_MODIFIED + " TEXT"
                 + ")");
 
         db.execSQL("CREATE INDEX idx_avatar_user ON " + Avatar.TABLE_NAME + " (" 
@@ -598,7 +753,25 @@ public final class MyDatabase extends SQLiteOpenHelper  {
         for (String value : values) {
             db.execSQL(sqlIns.replace("%s", value));
         }
-        
+
+        db.execSQL("CREATE TABLE " + Command.TABLE_NAME + " (" 
+                + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," 
+                + Command.QUEUE_TYPE + " TEXT NOT NULL," 
+                + Command.COMMAND_CODE + " TEXT NOT NULL," 
+                + Command.CREATED_DATE + " INTEGER NOT NULL," 
+                + Command.ACCOUNT_NAME + " TEXT," 
+                + Command.TIMELINE_TYPE + " TEXT," 
+                + Command.ITEM_ID + " INTEGER," 
+                + Command.BODY + " TEXT," 
+                + Command.IN_REPLY_TO_ID + " INTEGER," 
+                + Command.RECIPIENT_ID + " INTEGER," 
+                + Command.EXECUTION_COUNT + " INTEGER NOT NULL DEFAULT 0," 
+                + Command.RETRIES_LEFT + " INTEGER NOT NULL DEFAULT 0" 
+                + ")");
+
+        db.execSQL("CREATE INDEX idx_command_queue ON " + Command.TABLE_NAME + " (" 
+                + Command.QUEUE_TYPE
+                + ")");
     }
 
     /**
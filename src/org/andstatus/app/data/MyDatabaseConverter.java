@@ -104,6 +104,27 @@ class MyDatabaseConverter {
         if (currentVersion == 14) {
             currentVersion = convert14to15(db, currentVersion);
         }
+        if (currentVersion == 15) {
+            currentVersion = convert15to16(db, currentVersion);
+        }
+        if (currentVersion == 16) {
+            currentVersion = convert16to17(db, currentVersion);
+        }
+        if (currentVersion == 17) {
+            currentVersion = convert17to18(db, currentVersion);
+        }
+        if (currentVersion == 18) {
+            currentVersion = convert18to19(db, currentVersion);
+        }
+        if (currentVersion == 19) {
+            currentVersion = convert19to20(db, currentVersion);
+        }
+        if (currentVersion == 20) {
+            currentVersion = convert20to21(db, currentVersion);
+        }
+        if (currentVersion == 21) {
+            currentVersion = convert21to22(db, currentVersion);
+        }
         if ( currentVersion == newVersion) {
             MyLog.i(this, "Successfully upgraded database from version " + oldVersion + " to version "
                     + newVersion + ".");
@@ -262,4 +283,233 @@ class MyDatabaseConverter {
         }
         return ok ? versionTo : oldVersion;
     }
+
+    private int convert15to16(SQLiteDatabase db, int oldVersion) {
+        final int versionTo = 16;
+        boolean ok = false;
+        String sql = "";
+        try {
+            MyLog.i(this, "Database upgrading step from version " + oldVersion + " to version " + versionTo );
+            
+            String[] indexes = {
+                    "idx_msg_sent_date ON msg (msg_sent_date)",
+                    "idx_msg_ins_date ON msg (msg_ins_date)",
+                    "idx_msg_in_reply_to ON msg (in_reply_to_msg_id)",
+                    "idx_msg_sender ON msg (sender_id)",
+                    "idx_msg_author ON msg (author_id)",
+                    "idx_msgofuser_msg ON msgofuser (msg_id)",
+                    "idx_followinguser_following ON followinguser (following_user_id)"
+            };
+            for (String index : indexes) {
+                sql = "CREATE INDEX IF NOT EXISTS " + index;
+                db.execSQL(sql);
+            }
+            
+            ok = true;
+        } catch (Exception e) {
+            MyLog.e(this, e);
+        }
+        if (ok) {
+            MyLog.i(this, "Database upgrading step successfully upgraded database from " + oldVersion + " to version " + versionTo);
+        } else {
+            MyLog.e(this, "Database upgrading step failed to upgrade database from " + oldVersion 
+                    + " to version " + versionTo
+                    + " SQL='" + sql +"'");
+        }
+        return ok ? versionTo : oldVersion;
+    }
+
+    private int convert16to17(SQLiteDatabase db, int oldVersion) {
+        final int versionTo = 17;
+        boolean ok = false;
+        String sql = "";
+        try {
+            MyLog.i(this, "Database upgrading step from version " + oldVersion + " to version " + versionTo );
+            
+            sql = "CREATE TABLE command (" 
+                    + "_id INTEGER PRIMARY KEY AUTOINCREMENT," 
+                    + "queue_type TEXT NOT NULL," 
+                    + "command_code TEXT NOT NULL," 
+                    + "command_created_date INTEGER NOT NULL," 
+                    + "account_name TEXT," 
+                    + "timeline_type TEXT," 
+                    + "item_id INTEGER," 
+                    + "body TEXT," 
+                    + "in_reply_to_id INTEGER," 
+                    + "recipient_id INTEGER," 
+                    + "execution_count INTEGER NOT NULL DEFAULT 0," 
+                    + "retries_left INTEGER NOT NULL DEFAULT 0" 
+                    + ")";
+            db.execSQL(sql);
+            sql = "CREATE INDEX idx_command_queue ON command (queue_type)";
+            db.execSQL(sql);
+            
+            ok = true;
+        } catch (Exception e) {
+            MyLog.e(this, e);
+        }
+        if (ok) {
+            MyLog.i(this, "Database upgrading step successfully upgraded database from " + oldVersion + " to version " + versionTo);
+        } else {
+            MyLog.e(this, "Database upgrading step failed to upgrade database from " + oldVersion 
+                    + " to version " + versionTo
+                    + " SQL='" + sql +"'");
+        }
+        return ok ? versionTo : oldVersion;
+    }
+
+    private int convert17to18(SQLiteDatabase db, int oldVersion) {
+        final int versionTo = 18;
+        boolean ok = false;
+        String sql = "";
+        try {
+            MyLog.i(this, "Database upgrading step from version " + oldVersion + " to version " + versionTo );
+            
+            sql = "ALTER TABLE avatar ADD COLUMN avatar_etag TEXT";
+            db.execSQL(sql);
+            sql = "ALTER TABLE avatar ADD COLUMN avatar_last_modified TEXT";
+            db.execSQL(sql);
+            
+            ok = true;
+        } catch (Exception e) {
+            MyLog.e(this, e);
+        }
+        if (ok) {
+            MyLog.i(this, "Database upgrading step successfully upgraded database from " + oldVersion + " to version " + versionTo);
+        } else {
+            MyLog.e(this, "Database upgrading step failed to upgrade database from " + oldVersion 
+                    + " to version " + versionTo
+                    + " SQL='" + sql +"'");
+        }
+        return ok ? versionTo : oldVersion;
+    }
+
+    private int convert18to19(SQLiteDatabase db, int oldVersion) {
+        final int versionTo = 19;
+        boolean ok = false;
+        String sql = "";
+        try {
+            MyLog.i(this, "Database upgrading step from version " + oldVersion + " to version " + versionTo );
+            
+            sql = "ALTER TABLE msg ADD COLUMN body_display TEXT";
+            db.execSQL(sql);
+            sql = "ALTER TABLE msg ADD COLUMN via_display TEXT";
+            db.execSQL(sql);
+            // Values for existing rows are computed later, see MsgDisplayFields.backfill()
+            
+            ok = true;
+        } catch (Exception e) {
+            MyLog.e(this, e);
+        }
+        if (ok) {
+            MyLog.i(this, "Database upgrading step successfully upgraded database from " + oldVersion + " to version " + versionTo);
+        } else {
+            MyLog.e(this, "Database upgrading step failed to upgrade database from " + oldVersion 
+                    + " to version " + versionTo
+                    + " SQL='" + sql +"'");
+        }
+        return ok ? versionTo : oldVersion;
+    }
+
+    private int convert19to20(SQLiteDatabase db, int oldVersion) {
+        final int versionTo = 20;
+        boolean ok = false;
+        String sql = "";
+        try {
+            MyLog.i(this, "Database upgrading step from version " + oldVersion + " to version " + versionTo );
+            
+            sql = "CREATE VIRTUAL TABLE msg_fts USING fts3 (fts_body, fts_author)";
+            db.execSQL(sql);
+            sql = "INSERT INTO msg_fts (docid, fts_body, fts_author)"
+                    + " SELECT msg._id, COALESCE(body_display, body, ''),"
+                    + " COALESCE(u.username, '') || ' ' || COALESCE(u.real_name, '')"
+                    + " FROM msg LEFT JOIN user AS u ON msg.author_id=u._id";
+            db.execSQL(sql);
+            
+            ok = true;
+        } catch (Exception e) {
+            MyLog.e(this, e);
+        }
+        if (ok) {
+            MyLog.i(this, "Database upgrading step successfully upgraded database from " + oldVersion + " to version " + versionTo);
+        } else {
+            MyLog.e(this, "Database upgrading step failed to upgrade database from " + oldVersion 
+                    + " to version " + versionTo
+                    + " SQL='" + sql +"'");
+        }
+        return ok ? versionTo : oldVersion;
+    }
+
+    private int convert20to21(SQLiteDatabase db, int oldVersion) {
+        final int versionTo = 21;
+        boolean ok = false;
+        String sql = "";
+        try {
+            MyLog.i(this, "Database upgrading step from version " + oldVersion + " to version " + versionTo );
+            
+            sql = "CREATE TABLE timeline (account_user_id INTEGER NOT NULL, timeline_type TEXT NOT NULL,"
+                    + " msg_sent_date INTEGER, _id INTEGER NOT NULL, author_id INTEGER, author_name TEXT,"
+                    + " body_display TEXT, body TEXT, in_reply_to_msg_id INTEGER, in_reply_to_name TEXT,"
+                    + " recipient_name TEXT, favorited BOOLEAN, msg_created_date INTEGER,"
+                    + " PRIMARY KEY (account_user_id, timeline_type, msg_sent_date, _id))";
+            db.execSQL(sql);
+            sql = "CREATE INDEX idx_timeline_msg ON timeline (_id)";
+            db.execSQL(sql);
+            String[] flags = {"subscribed", "mentioned", "favorited", "directed"};
+            String[] timelineTypes = {"home", "mentions", "favorites", "direct"};
+            for (int ind = 0; ind < flags.length; ind++) {
+                sql = "INSERT INTO timeline (account_user_id, timeline_type, msg_sent_date, _id, author_id,"
+                        + " author_name, body_display, body, in_reply_to_msg_id, in_reply_to_name,"
+                        + " recipient_name, favorited, msg_created_date)"
+                        + " SELECT mou.user_id, '" + timelineTypes[ind] + "', msg.msg_sent_date, msg._id,"
+                        + " msg.author_id, author.username, msg.body_display,"
+                        + " CASE WHEN msg.body_display IS NULL THEN msg.body END, msg.in_reply_to_msg_id,"
+                        + " prevauthor.username, recipient.username, mou.favorited, msg.msg_created_date"
+                        + " FROM msg INNER JOIN msgofuser AS mou ON mou.msg_id=msg._id"
+                        + " LEFT JOIN user AS author ON author._id=msg.author_id"
+                        + " LEFT JOIN user AS prevauthor ON prevauthor._id=msg.in_reply_to_user_id"
+                        + " LEFT JOIN user AS recipient ON recipient._id=msg.recipient_id"
+                        + " WHERE mou." + flags[ind] + "=1";
+                db.execSQL(sql);
+            }
+            
+            ok = true;
+        } catch (Exception e) {
+            MyLog.e(this, e);
+        }
+        if (ok) {
+            MyLog.i(this, "Database upgrading step successfully upgraded database from " + oldVersion + " to version " + versionTo);
+        } else {
+            MyLog.e(this, "Database upgrading step failed to upgrade database from " + oldVersion 
+                    + " to version " + versionTo
+                    + " SQL='" + sql +"'");
+        }
+        return ok ? versionTo : oldVersion;
+    }
+
+    private int convert21to22(SQLiteDatabase db, int oldVersion) {
+        final int versionTo = 22;
+        boolean ok = false;
+        String sql = "";
+        try {
+            MyLog.i(this, "Database upgrading step from version " + oldVersion + " to version " + versionTo );
+            
+            sql = "UPDATE msg SET msg_sent_date=0 WHERE msg_sent_date IS NULL";
+            db.execSQL(sql);
+            sql = "UPDATE timeline SET msg_sent_date=0 WHERE msg_sent_date IS NULL";
+            db.execSQL(sql);
+            
+            ok = true;
+        } catch (Exception e) {
+            MyLog.e(this, e);
+        }
+        if (ok) {
+            MyLog.i(this, "Database upgrading step successfully upgraded database from " + oldVersion + " to version " + versionTo);
+        } else {
+            MyLog.e(this, "Database upgrading step failed to upgrade database from " + oldVersion 
+                    + " to version " + versionTo
+                    + " SQL='" + sql +"'");
+        }
+        return ok ? versionTo : oldVersion;
+    }
 }
@@ -23,6 +23,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -35,7 +36,6 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteQueryBuilder;
-import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
@@ -54,6 +54,8 @@ import org.andstatus.app.service.CommandData;
 import org.andstatus.app.service.CommandEnum;
 import org.andstatus.app.service.MyServiceManager;
 import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.MyMetrics;
+import org.andstatus.app.util.SelectionAndArgs;
 import org.andstatus.app.util.SharedPreferencesUtil;
 
 /**
@@ -86,6 +88,8 @@ public class MyProvider extends ContentProvider {
         MSG_PROJECTION_MAP.put(User.SENDER_NAME, User.SENDER_NAME);
         MSG_PROJECTION_MAP.put(Msg.BODY, Msg.BODY);
         MSG_PROJECTION_MAP.put(Msg.VIA, Msg.VIA);
+        MSG_PROJECTION_MAP.put(Msg.BODY_DISPLAY, Msg.BODY_DISPLAY);
+        MSG_PROJECTION_MAP.put(Msg.VIA_DISPLAY, Msg.VIA_DISPLAY);
         MSG_PROJECTION_MAP.put(Msg.URL, Msg.URL);
         MSG_PROJECTION_MAP.put(Msg.IN_REPLY_TO_MSG_ID, Msg.IN_REPLY_TO_MSG_ID);
         MSG_PROJECTION_MAP.put(User.IN_REPLY_TO_NAME, User.IN_REPLY_TO_NAME);
@@ -154,6 +158,25 @@ public class MyProvider extends ContentProvider {
      * We add this path segment after the {@link #TIMELINE_URI} to form search URI 
      */
     public static final String SEARCH_SEGMENT = "search";
+    /**
+     * Query parameters of a Timeline URI, which limit it to one page, 
+     * see {@link #getTimelinePageUri(Uri, long, long, int)}
+     */
+    private static final String PAGE_OLDER_THAN_DATE = "older_than_date";
+    private static final String PAGE_OLDER_THAN_ID = "older_than_id";
+    private static final String PAGE_SIZE = "page_size";
+    /**
+     * Query parameter of a Timeline URI: only messages, which belong to the timeline of the account(s),
+     * see {@link #getTimelineMembersUri(Uri)}
+     */
+    private static final String MEMBERS_ONLY = "members_only";
+    /**
+     * Pages of a timeline are ordered by this key. The "_id" makes the order unique.
+     * The sent date is never NULL (see {@link #sentDateNotNull(ContentValues)}), so the keyset condition
+     * of a page reaches all messages
+     */
+    public static final String TIMELINE_PAGE_SORT_ORDER = MSG_TABLE_ALIAS + "." + Msg.SENT_DATE + " DESC, " 
+            + MSG_TABLE_ALIAS + "." + BaseColumns._ID + " DESC";
 
     private static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
     static {
@@ -315,6 +338,14 @@ public class MyProvider extends ContentProvider {
                     String descSuffix = "; args=" + Arrays.toString(selectionArgs);
                     sqlDesc = selectionG + descSuffix;
                     count = db.delete(MsgOfUser.TABLE_NAME, selectionG, selectionArgs);
+                    sqlDesc = MsgSearchIndex.TABLE_NAME + descSuffix;
+                    db.delete(MsgSearchIndex.TABLE_NAME, MsgSearchIndex.DOCID + " IN (SELECT " + BaseColumns._ID
+                            + " FROM " + Msg.TABLE_NAME
+                            + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection) + ")", selectionArgs);
+                    sqlDesc = TimelineTable.TABLE_NAME + descSuffix;
+                    db.delete(TimelineTable.TABLE_NAME, BaseColumns._ID + " IN (SELECT " + BaseColumns._ID
+                            + " FROM " + Msg.TABLE_NAME
+                            + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection) + ")", selectionArgs);
                     // Now delete messages themselves
                     sqlDesc = selection + descSuffix;
                     count = db.delete(Msg.TABLE_NAME, selection, selectionArgs);
@@ -336,12 +367,17 @@ public class MyProvider extends ContentProvider {
                     db.endTransaction();
                 }
                 if (count > 0) {
+                    MyContextHolder.get().getDatabase().getOidToIdCache().invalidate(OidEnum.MSG_OID);
                     getContext().getContentResolver().notifyChange(MyProvider.TIMELINE_URI, null);
+                    MsgChangeFeed.getInstance().onReloadNeeded("deleted " + count + " messages");
                 }
                 break;
 
             case USERS:
                 count = db.delete(User.TABLE_NAME, selection, selectionArgs);
+                if (count > 0) {
+                    MyContextHolder.get().getDatabase().getOidToIdCache().invalidate(OidEnum.USER_OID);
+                }
                 break;
 
             case USER:
@@ -350,6 +386,9 @@ public class MyProvider extends ContentProvider {
                 count = db.delete(User.TABLE_NAME, BaseColumns._ID + "=" + userId
                         + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""),
                         selectionArgs);
+                if (count > 0) {
+                    MyContextHolder.get().getDatabase().getOidToIdCache().invalidate(OidEnum.USER_OID);
+                }
                 break;
 
             default:
@@ -408,7 +447,16 @@ public class MyProvider extends ContentProvider {
                     if (!values.containsKey(Msg.VIA)) {
                         values.put(Msg.VIA, "");
                     }
+                    if (!values.containsKey(Msg.BODY_DISPLAY)) {
+                        values.put(Msg.BODY_DISPLAY, MsgDisplayFields.bodyToDisplay(values.getAsString(Msg.BODY)));
+                    }
+                    if (!values.containsKey(Msg.VIA_DISPLAY)) {
+                        values.put(Msg.VIA_DISPLAY, MsgDisplayFields.viaToDisplay(values.getAsString(Msg.VIA)));
+                    }
                     values.put(Msg.INS_DATE, now);
+                    if (values.get(Msg.SENT_DATE) == null) {
+                        values.put(Msg.SENT_DATE, 0L);
+                    }
                     
                     msgOfUserValues = MsgOfUserValues.valueOf(accountUserId, values);
                     break;
@@ -428,15 +476,29 @@ public class MyProvider extends ContentProvider {
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
 
-            rowId = db.insert(table, null, values);
-            if (rowId == -1) {
-                throw new SQLException("Failed to insert row into " + uri);
-            } else if ( User.TABLE_NAME.equals(table)) {
+            // The message, its MsgOfUser row and its rows in the TimelineTable are stored together
+            db.beginTransaction();
+            try {
+                rowId = db.insert(table, null, values);
+                if (rowId == -1) {
+                    throw new SQLException("Failed to insert row into " + uri);
+                }
+                msgOfUserValues.setMsgId(rowId);
+                msgOfUserValues.insert(db);
+                if (Msg.TABLE_NAME.equals(table)) {
+                    TimelineTable.update(db, rowId);
+                    MsgSearchIndex.update(db, rowId);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if ( User.TABLE_NAME.equals(table)) {
+                putOidToCache(OidEnum.USER_OID, values, User.ORIGIN_ID, User.USER_OID, rowId);
                 loadAvatar(rowId, values);
+            } else if ( Msg.TABLE_NAME.equals(table)) {
+                putOidToCache(OidEnum.MSG_OID, values, Msg.ORIGIN_ID, Msg.MSG_OID, rowId);
             }
-            
-            msgOfUserValues.setMsgId(rowId);
-            msgOfUserValues.insert(db);
 
             if (followingUserValues != null) {
                 followingUserValues.followingUserId =  rowId;
@@ -467,6 +529,13 @@ public class MyProvider extends ContentProvider {
         return ContentUris.withAppendedId(MyProvider.ORIGIN_CONTENT_URI, rowId);
     }
 
+    private static void putOidToCache(OidEnum oidEnum, ContentValues values, String originIdKey, String oidKey, long rowId) {
+        Long originId = values.getAsLong(originIdKey);
+        if (originId != null) {
+            MyContextHolder.get().getDatabase().getOidToIdCache().put(oidEnum, originId, values.getAsString(oidKey), rowId);
+        }
+    }
+
     private void loadAvatar(long rowId, ContentValues values) {
         if (MyPreferences.showAvatars() && values.containsKey(User.AVATAR_URL)) {
             MyServiceManager.sendCommand(new CommandData(CommandEnum.FETCH_AVATAR, null, rowId));
@@ -526,22 +595,82 @@ public class MyProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
+        SelectionAndArgs sa = new SelectionAndArgs();
+        sa.addSelection(selection, selectionArgs);
+        String sql = buildSql(uri, projection, sa, sortOrder);
+
+        Cursor c = null;
+        if (MyContextHolder.get().isReady()) {
+            // Get the database and run the query
+            SQLiteDatabase db = MyContextHolder.get().getDatabase().getReadableDatabase();
+            boolean logQuery = MyLog.isLoggable(TAG, MyLog.VERBOSE);
+            try {
+                long startTime = System.currentTimeMillis();
+                // Here we substitute ?-s in selection with values from selectionArgs
+                c = db.rawQuery(sql, sa.selectionArgs);
+                // The query is executed, when its cursor is filled for the first time.
+                // The ContentResolver does this anyway, so we only do it a bit earlier to measure the time
+                c.getCount();
+                MyMetrics.histogram("db.query." + MatchedUri.fromInt(URI_MATCHER.match(uri)).name().toLowerCase(Locale.US)
+                        + ".ms").recordSince(startTime);
+            } catch (Exception e) {
+                logQuery = true;
+                MyLog.e(this, "Database query failed", e);
+            }
+
+            if (logQuery) {
+                String msg = "query, SQL=\"" + sql + "\"";
+                if (sa.nArgs > 0) {
+                    msg += "; selectionArgs=" + Arrays.toString(sa.selectionArgs);
+                }
+                MyLog.v(TAG, msg);
+                msg = "uri=" + uri + "; projection=" + Arrays.toString(projection)
+                        + "; selection=" + selection + "; sortOrder=" + sortOrder;
+                MyLog.v(TAG, msg);
+            }
+        }
+
+        if (c != null) {
+            c.setNotificationUri(getContext().getContentResolver(), uri);
+        }
+        return c;
+    }
+
+    /**
+     * Builds SQL of the {@link #query(Uri, String[], String, String[], String)}
+     * without executing it, so the same SQL may be examined e.g. with "EXPLAIN QUERY PLAN"
+     * @param sa Selection and its arguments. Arguments are amended for some Uris (e.g. for the search)
+     * @return SQL to be executed with sa.selectionArgs
+     */
+    static String buildSql(Uri uri, String[] projection, SelectionAndArgs sa, String sortOrder) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        boolean built = false;
         String sql = "";
 
         MatchedUri matchedUri = MatchedUri.fromInt(URI_MATCHER.match(uri));
+        String timelineFlag = uriToTimelineFlag(uri);
         switch (matchedUri) {
             case TIMELINE:
+                if (timelineFlag != null
+                        && TimelineTable.hasTimeline(uriToTimelineType(uri), uriToIsCombined(uri), projection)) {
+                    // The flag is implied by the table
+                    qb.setTables(TimelineTable.tables(projection));
+                    qb.setProjectionMap(TimelineTable.PROJECTION_MAP);
+                    qb.appendWhere(TimelineTable.sqlTimelineOf(
+                            new AccountUserIds(uriToIsCombined(uri), uriToAccountUserId(uri)), uriToTimelineType(uri)));
+                    break;
+                }
                 qb.setDistinct(true);
                 qb.setTables(tablesForTimeline(uri, projection));
                 qb.setProjectionMap(MSG_PROJECTION_MAP);
+                if (timelineFlag != null) {
+                    sa.addSelection(timelineFlag + " = 1", null);
+                }
                 break;
 
             case MSG_COUNT:
                 sql = "SELECT count(*) FROM " + Msg.TABLE_NAME + " AS " + MSG_TABLE_ALIAS;
-                if (selection != null && selection.length() > 0) {
-                    sql += " WHERE " + selection;
+                if (!TextUtils.isEmpty(sa.selection)) {
+                    sql += " WHERE " + sa.selection;
                 }
                 break;
 
@@ -554,6 +683,9 @@ public class MyProvider extends ContentProvider {
             case TIMELINE_SEARCH:
                 qb.setTables(tablesForTimeline(uri, projection));
                 qb.setProjectionMap(MSG_PROJECTION_MAP);
+                if (timelineFlag != null) {
+                    sa.addSelection(timelineFlag + " = 1", null);
+                }
                 String s1 = uri.getLastPathSegment();
                 if (s1 != null) {
                     // These two lines don't work:
@@ -568,17 +700,25 @@ public class MyProvider extends ContentProvider {
                     // Msg.BODY + " LIKE ?");
 
                     // 2. This works also, but yvolk likes it more :-)
+                    String selection = sa.selection;
                     if (selection != null && selection.length() > 0) {
                         selection = " AND (" + selection + ")";
                     } else {
                         selection = "";
                     }
-                    /// TODO: Search in MyDatabase.User.USERNAME also
-                    selection = "(" + User.AUTHOR_NAME + " LIKE ?  OR " + Msg.BODY
-                            + " LIKE ?)" + selection;
-
-                    selectionArgs = addBeforeArray(selectionArgs, "%" + s1 + "%");
-                    selectionArgs = addBeforeArray(selectionArgs, "%" + s1 + "%");
+                    // The full-text index covers the body, username and real name of the author
+                    String matchQuery = MsgSearchIndex.toMatchQuery(s1);
+                    if (matchQuery.length() > 0) {
+                        sa.selection = MsgSearchIndex.sqlMatches(MSG_TABLE_ALIAS + "." + BaseColumns._ID) + selection;
+                        sa.selectionArgs = addBeforeArray(sa.selectionArgs, matchQuery);
+                    } else {
+                        // No words in the query, e.g. punctuation only
+                        sa.selection = "(" + User.AUTHOR_NAME + " LIKE ?  OR " + Msg.BODY
+                                + " LIKE ?)" + selection;
+                        sa.selectionArgs = addBeforeArray(sa.selectionArgs, "%" + s1 + "%");
+                        sa.selectionArgs = addBeforeArray(sa.selectionArgs, "%" + s1 + "%");
+                    }
+                    sa.nArgs = sa.selectionArgs.length;
                 }
                 break;
 
@@ -603,9 +743,26 @@ public class MyProvider extends ContentProvider {
                         + matchedUri);
         }
 
+        String limit = null;
+        int pageSize = uriToPageSize(uri);
+        if (pageSize > 0) {
+            limit = Integer.toString(pageSize);
+            long olderThanMsgId = uriToLongQueryParameter(uri, PAGE_OLDER_THAN_ID);
+            if (olderThanMsgId != 0) {
+                String olderThanSentDate = Long.toString(uriToLongQueryParameter(uri, PAGE_OLDER_THAN_DATE));
+                // This form of the condition allows to use the index on the sent date 
+                sa.addSelection(MSG_TABLE_ALIAS + "." + Msg.SENT_DATE + " <= ?"
+                        + " AND (" + MSG_TABLE_ALIAS + "." + Msg.SENT_DATE + " < ?"
+                        + " OR " + MSG_TABLE_ALIAS + "." + BaseColumns._ID + " < ?)", 
+                        new String[] {olderThanSentDate, olderThanSentDate, Long.toString(olderThanMsgId)});
+            }
+        }
+
         // If no sort order is specified use the default
         String orderBy;
-        if (TextUtils.isEmpty(sortOrder)) {
+        if (pageSize > 0) {
+            orderBy = TIMELINE_PAGE_SORT_ORDER;
+        } else if (TextUtils.isEmpty(sortOrder)) {
             switch (matchedUri) {
                 case TIMELINE:
                 case TIMELINE_MSG_ID:
@@ -629,49 +786,17 @@ public class MyProvider extends ContentProvider {
             orderBy = sortOrder;
         }
 
-        Cursor c = null;
-        if (MyContextHolder.get().isReady()) {
-            // Get the database and run the query
-            SQLiteDatabase db = MyContextHolder.get().getDatabase().getReadableDatabase();
-            boolean logQuery = MyLog.isLoggable(TAG, MyLog.VERBOSE);
-            try {
-                if (sql.length() == 0) {
-                    /* We don't use selectionArgs here, they will be actually used (substitute ?-s in selection)
-                     * when the query is executed. 
-                     * See <a href="http://stackoverflow.com/questions/2481322/sqlitequerybuilder-buildquery-not-using-selectargs">SQLiteQueryBuilder.buildQuery not using selectArgs?</a> 
-                     * and here: <a href="http://code.google.com/p/android/issues/detail?id=4467">SQLiteQueryBuilder.buildQuery ignores selectionArgs</a>
-                     */
-                    sql = qb.buildQuery(projection, selection, selectionArgs, null, null, orderBy, null);
-                    // TODO: We cannot use this method in API 10...
-                    // sql = qb.buildQuery(projection, selection, null, null, orderBy, null);
-                    built = true;
-                }
-                // Here we substitute ?-s in selection with values from selectionArgs
-                c = db.rawQuery(sql, selectionArgs);
-            } catch (Exception e) {
-                logQuery = true;
-                MyLog.e(this, "Database query failed", e);
-            }
-
-            if (logQuery) {
-                String msg = "query, SQL=\"" + sql + "\"";
-                if (selectionArgs != null && selectionArgs.length > 0) {
-                    msg += "; selectionArgs=" + Arrays.toString(selectionArgs);
-                }
-                MyLog.v(TAG, msg);
-                if (built) {
-                    msg = "uri=" + uri + "; projection=" + Arrays.toString(projection)
-                    + "; selection=" + selection + "; sortOrder=" + sortOrder
-                    + "; qb.getTables=" + qb.getTables() + "; orderBy=" + orderBy;
-                    MyLog.v(TAG, msg);
-                }
-            }
-        }
-
-        if (c != null) {
-            c.setNotificationUri(getContext().getContentResolver(), uri);
+        if (sql.length() == 0) {
+            /* We don't use selectionArgs here, they will be actually used (substitute ?-s in selection)
+             * when the query is executed. 
+             * See <a href="http://stackoverflow.com/questions/2481322/sqlitequerybuilder-buildquery-not-using-selectargs">SQLiteQueryBuilder.buildQuery not using selectArgs?</a> 
+             * and here: <a href="http://code.google.com/p/android/issues/detail?id=4467">SQLiteQueryBuilder.buildQuery ignores selectionArgs</a>
+             */
+            sql = qb.buildQuery(projection, sa.selection, sa.selectionArgs, null, null, orderBy, limit);
+            // TODO: We cannot use this method in API 10...
+            // sql = qb.buildQuery(projection, selection, null, null, orderBy, null);
         }
-        return c;
+        return sql;
     }
 
     /**
@@ -741,6 +866,7 @@ public class MyProvider extends ContentProvider {
 
         if (columns.contains(MyDatabase.MsgOfUser.FAVORITED)
                 || (columns.contains(MyDatabase.User.LINKED_USER_ID) && !linkedUserDefined)
+                || uriToTimelineFlag(uri) != null
                 ) {
             String tbl = "(SELECT *" 
                     + (linkedUserDefined ? "" : ", " + MyDatabase.MsgOfUser.USER_ID + " AS " 
@@ -864,32 +990,90 @@ public class MyProvider extends ContentProvider {
         MatchedUri matchedUri = MatchedUri.fromInt(URI_MATCHER.match(uri));
         switch (matchedUri) {
             case MSG:
-                count = db.update(Msg.TABLE_NAME, values, selection, selectionArgs);
+                sentDateNotNull(values);
+                db.beginTransaction();
+                try {
+                    List<Long> msgIds = selectIds(db, Msg.TABLE_NAME, selection, selectionArgs);
+                    count = db.update(Msg.TABLE_NAME, values, selection, selectionArgs);
+                    TimelineTable.update(db, msgIds);
+                    if (MsgSearchIndex.isIndexed(values)) {
+                        MsgSearchIndex.update(db, msgIds);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
             case TIMELINE_MSG_ID:
                 accountUserId = uriToAccountUserId(uri);
                 long rowId = uriToMessageId(uri);
+                sentDateNotNull(values);
                 MsgOfUserValues msgOfUserValues = MsgOfUserValues.valueOf(accountUserId, values);
                 msgOfUserValues.setMsgId(rowId);
-                if (values.size() > 0) {
-                    count = db.update(Msg.TABLE_NAME, values, BaseColumns._ID + "=" + rowId
-                            + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""),
-                            selectionArgs);
+                db.beginTransaction();
+                try {
+                    if (values.size() > 0) {
+                        count = db.update(Msg.TABLE_NAME, values, BaseColumns._ID + "=" + rowId
+                                + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""),
+                                selectionArgs);
+                    }
+                    count += msgOfUserValues.update(db);
+                    TimelineTable.update(db, rowId);
+                    if (MsgSearchIndex.isIndexed(values)) {
+                        MsgSearchIndex.update(db, rowId);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
                 }
-                count += msgOfUserValues.update(db);
                 break;
 
             case USERS:
-                count = db.update(User.TABLE_NAME, values, selection, selectionArgs);
+                if (values.containsKey(User.USERNAME) || values.containsKey(User.REAL_NAME)) {
+                    db.beginTransaction();
+                    try {
+                        List<Long> userIds = selectIds(db, User.TABLE_NAME, selection, selectionArgs);
+                        count = db.update(User.TABLE_NAME, values, selection, selectionArgs);
+                        for (long userId : userIds) {
+                            if (values.containsKey(User.USERNAME)) {
+                                TimelineTable.onUserNameChanged(db, userId);
+                            }
+                            MsgSearchIndex.onAuthorChanged(db, userId);
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } else {
+                    count = db.update(User.TABLE_NAME, values, selection, selectionArgs);
+                }
                 break;
             case USER:
                 accountUserId = uriToAccountUserId(uri);
                 long selectedUserId = uriToUserId(uri);
                 FollowingUserValues followingUserValues = FollowingUserValues.valueOf(accountUserId, selectedUserId, values);
-                count = db.update(User.TABLE_NAME, values, BaseColumns._ID + "=" + selectedUserId
-                        + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""),
-                        selectionArgs);
+                boolean userNameChanged = values.containsKey(User.USERNAME)
+                        && !TextUtils.equals(values.getAsString(User.USERNAME),
+                                userIdToStringColumnValue(User.USERNAME, selectedUserId));
+                boolean realNameChanged = values.containsKey(User.REAL_NAME)
+                        && !TextUtils.equals(values.getAsString(User.REAL_NAME),
+                                userIdToStringColumnValue(User.REAL_NAME, selectedUserId));
+                db.beginTransaction();
+                try {
+                    count = db.update(User.TABLE_NAME, values, BaseColumns._ID + "=" + selectedUserId
+                            + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""),
+                            selectionArgs);
+                    if (count > 0 && userNameChanged) {
+                        TimelineTable.onUserNameChanged(db, selectedUserId);
+                    }
+                    if (count > 0 && (userNameChanged || realNameChanged)) {
+                        MsgSearchIndex.onAuthorChanged(db, selectedUserId);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 followingUserValues.update(db);
                 loadAvatar(selectedUserId, values);
                 break;
@@ -901,6 +1085,33 @@ public class MyProvider extends ContentProvider {
 
         return count;
     }
+
+    /**
+     * Messages without the sent date are stored with 0, so they are sorted last,
+     * as NULLs were, and remain reachable by the keyset condition of a timeline page
+     */
+    private static void sentDateNotNull(ContentValues values) {
+        if (values != null && values.containsKey(Msg.SENT_DATE) && values.get(Msg.SENT_DATE) == null) {
+            values.put(Msg.SENT_DATE, 0L);
+        }
+    }
+
+    /**
+     * Ids of the rows, which match the selection, e.g. before the rows are updated
+     */
+    private static List<Long> selectIds(SQLiteDatabase db, String table, String selection, String[] selectionArgs) {
+        List<Long> ids = new ArrayList<Long>();
+        Cursor cursor = null;
+        try {
+            cursor = db.query(table, new String[] {BaseColumns._ID}, selection, selectionArgs, null, null, null);
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        return ids;
+    }
     
     /**
      * Lookup the System's (AndStatus) id from the Originated system's id
@@ -914,41 +1125,40 @@ public class MyProvider extends ContentProvider {
     public static long oidToId(MyDatabase.OidEnum oidEnum, long originId, String oid) {
         long id = 0;
         String sql = "";
+        // The same value, as is stored in the database and in the cache
+        String unquotedOid = unquote(oid);
 
-        SQLiteStatement prog = null;
+        MyDatabase myDb = MyContextHolder.get().getDatabase();
+        if (myDb != null) {
+            id = myDb.getOidToIdCache().get(oidEnum, originId, unquotedOid);
+            if (id != 0) {
+                return id;
+            }
+        }
         try {
             switch (oidEnum) {
                 case MSG_OID:
                     sql = "SELECT " + BaseColumns._ID + " FROM " + Msg.TABLE_NAME
-                            + " WHERE " + Msg.ORIGIN_ID + "=" + originId + " AND " + Msg.MSG_OID
-                            + "=" + quoteIfNotQuoted(oid);
+                            + " WHERE " + Msg.ORIGIN_ID + "=? AND " + Msg.MSG_OID + "=?";
                     break;
 
                 case USER_OID:
                     sql = "SELECT " + BaseColumns._ID + " FROM " + User.TABLE_NAME
-                            + " WHERE " + User.ORIGIN_ID + "=" + originId + " AND " + User.USER_OID
-                            + "=" + quoteIfNotQuoted(oid);
+                            + " WHERE " + User.ORIGIN_ID + "=? AND " + User.USER_OID + "=?";
                     break;
 
                 default:
                     throw new IllegalArgumentException("oidToId; Unknown oidEnum \"" + oidEnum);
             }
-            SQLiteDatabase db = MyContextHolder.get().getDatabase().getReadableDatabase();
-            prog = db.compileStatement(sql);
-            id = prog.simpleQueryForLong();
-            if (id == 1 || id == 388) {
-                if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
-                    MyLog.v(TAG, "oidToId: sql='" + sql +"'");
-                }
-            }
+            SQLiteDatabase db = myDb.getReadableDatabase();
+            id = myDb.getStatementPool().simpleQueryForLong(db, sql, originId, unquotedOid);
+            myDb.getOidToIdCache().put(oidEnum, originId, unquotedOid, id);
         } catch (SQLiteDoneException e) {
             MyLog.ignored(TAG, e);
             id = 0;
         } catch (Exception e) {
             MyLog.e(TAG, "oidToId: sql='" + sql +"'", e);
             id = 0;
-        } finally {
-            DbUtils.closeSilently(prog);
         }
         if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
             MyLog.v(TAG, "oidToId:" + originId + "+" + oid + " -> " + id + " oidEnum=" + oidEnum );
@@ -956,6 +1166,23 @@ public class MyProvider extends ContentProvider {
         return id;
     }
     
+    /**
+     * The same value as {@link #quoteIfNotQuoted(String)} gives, but not quoted,
+     * so it may be bound as a parameter of a statement
+     * @return empty string for empty/null strings
+     */
+    static String unquote(String original) {
+        if (TextUtils.isEmpty(original)) {
+            return "";
+        }
+        String unquoted = original.trim();
+        if (unquoted.length() > 1 && unquoted.charAt(0) == '\'' 
+                && unquoted.charAt(unquoted.length() - 1) == '\'') {
+            unquoted = unquoted.substring(1, unquoted.length() - 1);
+        }
+        return unquoted;
+    }
+    
     /**
      * @return two single quotes for empty/null strings (Use single quotes!)
      */
@@ -1011,7 +1238,6 @@ public class MyProvider extends ContentProvider {
     public static String idToOid(SQLiteDatabase db, OidEnum oe, long entityId, long rebloggerUserId) {
         String method = "idToOid";
         String oid = "";
-        SQLiteStatement prog = null;
         String sql = "";
 
         if (entityId > 0) {
@@ -1019,13 +1245,14 @@ public class MyProvider extends ContentProvider {
                 switch (oe) {
                     case MSG_OID:
                         sql = "SELECT " + MyDatabase.Msg.MSG_OID + " FROM "
-                                + Msg.TABLE_NAME + " WHERE " + BaseColumns._ID + "=" + entityId;
+                                + Msg.TABLE_NAME + " WHERE " + BaseColumns._ID + "=?";
+                        oid = statementPool().simpleQueryForString(db, sql, entityId);
                         break;
 
                     case USER_OID:
                         sql = "SELECT " + MyDatabase.User.USER_OID + " FROM "
-                                + User.TABLE_NAME + " WHERE " + BaseColumns._ID + "="
-                                + entityId;
+                                + User.TABLE_NAME + " WHERE " + BaseColumns._ID + "=?";
+                        oid = statementPool().simpleQueryForString(db, sql, entityId);
                         break;
 
                     case REBLOG_OID:
@@ -1034,15 +1261,14 @@ public class MyProvider extends ContentProvider {
                         }
                         sql = "SELECT " + MyDatabase.MsgOfUser.REBLOG_OID + " FROM "
                                 + MsgOfUser.TABLE_NAME + " WHERE " 
-                                + MsgOfUser.MSG_ID + "=" + entityId + " AND "
-                                + MsgOfUser.USER_ID + "=" + rebloggerUserId;
+                                + MsgOfUser.MSG_ID + "=? AND "
+                                + MsgOfUser.USER_ID + "=?";
+                        oid = statementPool().simpleQueryForString(db, sql, entityId, rebloggerUserId);
                         break;
 
                     default:
                         throw new IllegalArgumentException(method + "; Unknown parameter: " + oe);
                 }
-                prog = db.compileStatement(sql);
-                oid = prog.simpleQueryForString();
                 
                 if (TextUtils.isEmpty(oid) && oe == OidEnum.REBLOG_OID) {
                     // This not reblogged message
@@ -1055,8 +1281,6 @@ public class MyProvider extends ContentProvider {
             } catch (Exception e) {
                 MyLog.e(TAG, method, e);
                 oid = "";
-            } finally {
-                DbUtils.closeSilently(prog);
             }
             if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
                 MyLog.v(TAG, method + ": " + oe + " + " + entityId + " -> " + oid);
@@ -1068,7 +1292,6 @@ public class MyProvider extends ContentProvider {
     public static String msgIdToUsername(String msgUserColumnName, long messageId) {
         String userName = "";
         if (messageId != 0) {
-            SQLiteStatement prog = null;
             String sql = "";
             try {
                 if (msgUserColumnName.contentEquals(MyDatabase.Msg.SENDER_ID) ||
@@ -1078,21 +1301,18 @@ public class MyProvider extends ContentProvider {
                     sql = "SELECT " + MyDatabase.User.USERNAME + " FROM " + User.TABLE_NAME
                             + " INNER JOIN " + Msg.TABLE_NAME + " ON "
                             + Msg.TABLE_NAME + "." + msgUserColumnName + "=" + User.TABLE_NAME + "." + BaseColumns._ID
-                            + " WHERE " + Msg.TABLE_NAME + "." + BaseColumns._ID + "=" + messageId;
+                            + " WHERE " + Msg.TABLE_NAME + "." + BaseColumns._ID + "=?";
                 } else {
                     throw new IllegalArgumentException("msgIdToUsername; Unknown name \"" + msgUserColumnName);
                 }
                 SQLiteDatabase db = MyContextHolder.get().getDatabase().getReadableDatabase();
-                prog = db.compileStatement(sql);
-                userName = prog.simpleQueryForString();
+                userName = statementPool().simpleQueryForString(db, sql, messageId);
             } catch (SQLiteDoneException e) {
                 MyLog.ignored(TAG, e);
                 userName = "";
             } catch (Exception e) {
                 MyLog.e(TAG, "msgIdToUsername", e);
                 userName = "";
-            } finally {
-                DbUtils.closeSilently(prog);
             }
             if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
                 MyLog.v(TAG, "msgIdTo" + msgUserColumnName + ": " + messageId + " -> " + userName );
@@ -1105,22 +1325,18 @@ public class MyProvider extends ContentProvider {
     public static String userIdToName(long userId) {
         String userName = "";
         if (userId != 0) {
-            SQLiteStatement prog = null;
             String sql = "";
             try {
                 sql = "SELECT " + MyDatabase.User.USERNAME + " FROM " + User.TABLE_NAME
-                        + " WHERE " + User.TABLE_NAME + "." + BaseColumns._ID + "=" + userId;
+                        + " WHERE " + User.TABLE_NAME + "." + BaseColumns._ID + "=?";
                 SQLiteDatabase db = MyContextHolder.get().getDatabase().getReadableDatabase();
-                prog = db.compileStatement(sql);
-                userName = prog.simpleQueryForString();
+                userName = statementPool().simpleQueryForString(db, sql, userId);
             } catch (SQLiteDoneException e) {
                 MyLog.ignored(TAG, e);
                 userName = "";
             } catch (Exception e) {
                 MyLog.e(TAG, "userIdToName", e);
                 userName = "";
-            } finally {
-                DbUtils.closeSilently(prog);
             }
             if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
                 MyLog.v(TAG, "userIdToName: " + userId + " -> " + userName );
@@ -1139,12 +1355,16 @@ public class MyProvider extends ContentProvider {
         return idToLongColumnValue(User.TABLE_NAME, columnName, systemId);
     }
 
+    /**
+     * Convenience method to get long column value from the 'tableName' table
+     * using the pooled statement, see {@link SqlStatementPool}
+     * @return 0 in case not found or error or systemId==0
+     */
     private static long idToLongColumnValue(String tableName, String columnName, long systemId) {
         if (systemId == 0) {
             return 0;
-        } else {
-            return conditionToLongColumnValue(tableName, columnName, "t._id=" + systemId);
         }
+        return conditionToLongColumnValue(tableName, columnName, "t._id=?", systemId);
     }
 
 
@@ -1153,36 +1373,36 @@ public class MyProvider extends ContentProvider {
      * @param tableName e.g. {@link Msg#TABLE_NAME} 
      * @param columnName without table name
      * @param condition WHERE part of SQL statement
+     * @param args values of the "?" parameters of the condition. If there are any, the statement is pooled,
+     *  see {@link SqlStatementPool}, otherwise the condition is arbitrary SQL, and the statement is compiled per call
      * @return 0 in case not found or error or systemId==0
      */
-    static long conditionToLongColumnValue(String tableName, String columnName, String condition) {
+    static long conditionToLongColumnValue(String tableName, String columnName, String condition, Object... args) {
         final String method = "conditionToLongColumnValue";
         long columnValue = 0;
         if (TextUtils.isEmpty(tableName) || TextUtils.isEmpty(columnName)) {
             throw new IllegalArgumentException(method + " tableName or columnName are empty");
         } else if (!TextUtils.isEmpty(condition)) {
-            SQLiteStatement prog = null;
             String sql = "";
             try {
                 sql = "SELECT t." + columnName
                         + " FROM " + tableName + " AS t"
                         + " WHERE " + condition;
                 SQLiteDatabase db = MyContextHolder.get().getDatabase().getReadableDatabase();
-                prog = db.compileStatement(sql);
-                columnValue = prog.simpleQueryForLong();
+                SqlStatementPool pool = args.length > 0 ? statementPool() : SqlStatementPool.NOT_POOLED;
+                columnValue = pool.simpleQueryForLong(db, sql, args);
             } catch (SQLiteDoneException e) {
                 MyLog.ignored(TAG, e);
                 columnValue = 0;
             } catch (Exception e) {
                 MyLog.e(TAG, method + " table='" + tableName 
                         + "', column='" + columnName + "'"
-                        + " where '" + condition + "'", e);
+                        + " where '" + condition + "'; args=" + Arrays.toString(args), e);
                 return 0;
-            } finally {
-                DbUtils.closeSilently(prog);
             }
             if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
-                MyLog.v(TAG, method + " table=" + tableName + ", column=" + columnName + " where '" + condition + "' -> " + columnValue );
+                MyLog.v(TAG, method + " table=" + tableName + ", column=" + columnName + " where '" + condition
+                        + "'; args=" + Arrays.toString(args) + " -> " + columnValue );
             }
         }
         return columnValue;
@@ -1209,15 +1429,13 @@ public class MyProvider extends ContentProvider {
         if (TextUtils.isEmpty(tableName) || TextUtils.isEmpty(columnName)) {
             throw new IllegalArgumentException(method + " tableName or columnName are empty");
         } else if (systemId != 0) {
-            SQLiteStatement prog = null;
             String sql = "";
             try {
                 sql = "SELECT t." + columnName
                         + " FROM " + tableName + " AS t"
-                        + " WHERE t._id=" + systemId;
+                        + " WHERE t._id=?";
                 SQLiteDatabase db = MyContextHolder.get().getDatabase().getReadableDatabase();
-                prog = db.compileStatement(sql);
-                columnValue = prog.simpleQueryForString();
+                columnValue = statementPool().simpleQueryForString(db, sql, systemId);
             } catch (SQLiteDoneException e) {
                 MyLog.ignored(TAG, e);
                 columnValue = "";
@@ -1225,8 +1443,6 @@ public class MyProvider extends ContentProvider {
                 MyLog.e(TAG, method + " table='" + tableName 
                         + "', column='" + columnName + "'", e);
                 return "";
-            } finally {
-                DbUtils.closeSilently(prog);
             }
             if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
                 MyLog.v(TAG, method + " table=" + tableName + ", column=" + columnName + ", id=" + systemId + " -> " + columnValue );
@@ -1278,22 +1494,17 @@ public class MyProvider extends ContentProvider {
     
     public static long userNameToId(SQLiteDatabase db, long originId, String userName) {
         long id = 0;
-        SQLiteStatement prog = null;
         String sql = "";
         try {
             sql = "SELECT " + BaseColumns._ID + " FROM " + User.TABLE_NAME
-                    + " WHERE " + User.ORIGIN_ID + "=" + originId + " AND " + User.USERNAME + "='"
-                    + userName + "'";
-            prog = db.compileStatement(sql);
-            id = prog.simpleQueryForLong();
+                    + " WHERE " + User.ORIGIN_ID + "=? AND " + User.USERNAME + "=?";
+            id = statementPool().simpleQueryForLong(db, sql, originId, userName);
         } catch (SQLiteDoneException e) {
             MyLog.ignored(TAG, e);
             id = 0;
         } catch (Exception e) {
             MyLog.e(TAG, "userNameToId", e);
             id = 0;
-        } finally {
-            DbUtils.closeSilently(prog);
         }
         if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
             MyLog.v(TAG, "userNameToId:" + originId + "+" + userName + " -> " + id);
@@ -1301,6 +1512,17 @@ public class MyProvider extends ContentProvider {
         return id;
     }
     
+    /**
+     * @return Statements pool of the current database
+     */
+    private static SqlStatementPool statementPool() {
+        MyDatabase myDb = MyContextHolder.get().getDatabase();
+        if (myDb == null) {
+            return SqlStatementPool.NOT_POOLED;
+        }
+        return myDb.getStatementPool();
+    }
+
     public static Uri getTimelineSearchUri(long accountUserId, TimelineTypeEnum timelineType, boolean isCombined, String queryString) {
         Uri uri = getTimelineUri(accountUserId, timelineType, isCombined);
         if (!TextUtils.isEmpty(queryString)) {
@@ -1310,6 +1532,79 @@ public class MyProvider extends ContentProvider {
         return uri;
     }
 
+    /**
+     * URI of one page of the timeline: at most pageSize messages, which are older than
+     * the message with the given sent date and id. The page is ordered by {@link #TIMELINE_PAGE_SORT_ORDER},
+     * so the next page may be loaded without reloading (and even without counting) the previous ones.
+     * @param timelineUri e.g. built by {@link #getTimelineSearchUri(long, TimelineTypeEnum, boolean, String)}
+     * @param olderThanMsgId 0 for the first (the latest) page
+     */
+    public static Uri getTimelinePageUri(Uri timelineUri, long olderThanSentDate, long olderThanMsgId, int pageSize) {
+        Uri.Builder builder = timelineUri.buildUpon();
+        if (olderThanMsgId != 0) {
+            builder.appendQueryParameter(PAGE_OLDER_THAN_DATE, Long.toString(olderThanSentDate));
+            builder.appendQueryParameter(PAGE_OLDER_THAN_ID, Long.toString(olderThanMsgId));
+        }
+        builder.appendQueryParameter(PAGE_SIZE, Integer.toString(pageSize));
+        return builder.build();
+    }
+
+    /**
+     * The timeline URI, limited to messages, which belong to the timeline of the account(s):
+     * e.g. the Home timeline of an account consists of the messages, the account is subscribed to.
+     * Such timelines are read from the {@link TimelineTable}, if it has all the requested columns
+     */
+    public static Uri getTimelineMembersUri(Uri timelineUri) {
+        return timelineUri.buildUpon().appendQueryParameter(MEMBERS_ONLY, "1").build();
+    }
+
+    /**
+     * @return The flag of the {@link MsgOfUser} table, which selects members of the timeline,
+     *  null if the URI is not limited to members or the timeline is not defined by a flag
+     */
+    private static String uriToTimelineFlag(Uri uri) {
+        switch (MatchedUri.fromInt(URI_MATCHER.match(uri))) {
+            case TIMELINE:
+            case TIMELINE_SEARCH:
+                if (uriToLongQueryParameter(uri, MEMBERS_ONLY) != 0) {
+                    return TimelineTable.flagOf(uriToTimelineType(uri), uriToIsCombined(uri));
+                }
+                break;
+            default:
+                break;
+        }
+        return null;
+    }
+
+    /**
+     * @return 0 if the URI is not of a timeline page
+     */
+    public static int uriToPageSize(Uri uri) {
+        int pageSize = 0;
+        switch (MatchedUri.fromInt(URI_MATCHER.match(uri))) {
+            case TIMELINE:
+            case TIMELINE_SEARCH:
+                pageSize = (int) uriToLongQueryParameter(uri, PAGE_SIZE);
+                break;
+            default:
+                break;
+        }
+        return pageSize;
+    }
+
+    private static long uriToLongQueryParameter(Uri uri, String key) {
+        long value = 0;
+        try {
+            String str = uri.getQueryParameter(key);
+            if (!TextUtils.isEmpty(str)) {
+                value = Long.parseLong(str);
+            }
+        } catch (Exception e) {
+            MyLog.v(TAG, e);
+        }
+        return value;
+    }
+
     /**
      * Uri for the message in the account's timeline
      */
@@ -1488,4 +1783,62 @@ public class MyProvider extends ContentProvider {
         }
         return replies;
     }
+
+    /**
+     * Replies to all the messages in one query, newest replies are the first
+     * @return Message ID to IDs of its replies. Messages without replies are absent
+     */
+    public static Map<Long, List<Long>> getReplyIds(Collection<Long> msgIds) {
+        Map<Long, List<Long>> replies = new HashMap<Long, List<Long>>();
+        if (msgIds.isEmpty()) {
+            return replies;
+        }
+        String sql = "SELECT " + Msg._ID + ", " + Msg.IN_REPLY_TO_MSG_ID
+                + " FROM " + Msg.TABLE_NAME 
+                + " WHERE " + Msg.IN_REPLY_TO_MSG_ID + " IN (" + DbUtils.idsToString(msgIds) + ")"
+                + " ORDER BY " + Msg.CREATED_DATE + " DESC";
+        
+        SQLiteDatabase db = MyContextHolder.get().getDatabase().getReadableDatabase();
+        Cursor c = null;
+        try {
+            c = db.rawQuery(sql, null);
+            while (c.moveToNext()) {
+                List<Long> repliesTo = replies.get(c.getLong(1));
+                if (repliesTo == null) {
+                    repliesTo = new ArrayList<Long>();
+                    replies.put(c.getLong(1), repliesTo);
+                }
+                repliesTo.add(c.getLong(0));
+            }
+        } finally {
+            DbUtils.closeSilently(c);
+        }
+        return replies;
+    }
+
+    /**
+     * Names of several users in one query
+     * @return User ID to the name. Unknown users are absent
+     */
+    public static Map<Long, String> userIdsToNames(Collection<Long> userIds) {
+        Map<Long, String> names = new HashMap<Long, String>();
+        if (userIds.isEmpty()) {
+            return names;
+        }
+        String sql = "SELECT " + BaseColumns._ID + ", " + User.USERNAME
+                + " FROM " + User.TABLE_NAME
+                + " WHERE " + BaseColumns._ID + " IN (" + DbUtils.idsToString(userIds) + ")";
+        
+        SQLiteDatabase db = MyContextHolder.get().getDatabase().getReadableDatabase();
+        Cursor c = null;
+        try {
+            c = db.rawQuery(sql, null);
+            while (c.moveToNext()) {
+                names.put(c.getLong(0), c.getString(1));
+            }
+        } finally {
+            DbUtils.closeSilently(c);
+        }
+        return names;
+    }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.text.TextUtils;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.data.MyDatabase.OidEnum;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, per origin LRU cache of "(originId, oid) -> _id" lookups
+ * for Messages ({@link OidEnum#MSG_OID}) and Users ({@link OidEnum#USER_OID}).
+ * The cache is filled on lookups and on inserts and lives as long as the {@link MyDatabase} object.
+ * Oids are keys as they are stored in the database, i.e. unquoted. We don't cache "not found" results.
+ * Entries may be added inside a transaction, so they are invalidated, when the transaction is rolled back,
+ * see {@link DataInserter#insertOrUpdateTimelineItems(java.util.List, LatestUserMessages)}
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+final class OidToIdCache {
+    static final int MAX_ENTRIES_PER_ORIGIN = 1000;
+
+    private final int maxEntries;
+    private final Map<Long, Map<String, Long>> msgIds = new HashMap<Long, Map<String, Long>>();
+    private final Map<Long, Map<String, Long>> userIds = new HashMap<Long, Map<String, Long>>();
+    private long hits = 0;
+    private long misses = 0;
+
+    OidToIdCache() {
+        this(MAX_ENTRIES_PER_ORIGIN);
+    }
+
+    OidToIdCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return 0 if not found in the cache
+     */
+    synchronized long get(OidEnum oidEnum, long originId, String oid) {
+        Map<String, Long> ids = getOriginMap(oidEnum, originId, false);
+        Long id = null;
+        if (ids != null && !TextUtils.isEmpty(oid)) {
+            id = ids.get(oid);
+        }
+        if (id == null) {
+            misses++;
+            return 0;
+        }
+        hits++;
+        return id;
+    }
+
+    synchronized void put(OidEnum oidEnum, long originId, String oid, long id) {
+        if (originId == 0 || id == 0 || TextUtils.isEmpty(oid)) {
+            return;
+        }
+        Map<String, Long> ids = getOriginMap(oidEnum, originId, true);
+        if (ids != null) {
+            ids.put(oid, id);
+        }
+    }
+
+    /**
+     * We don't know which rows were deleted, so forget everything of this kind
+     */
+    synchronized void invalidate(OidEnum oidEnum) {
+        Map<Long, Map<String, Long>> map = getMap(oidEnum);
+        if (map != null) {
+            map.clear();
+        }
+    }
+
+    synchronized void clear() {
+        msgIds.clear();
+        userIds.clear();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized int size(OidEnum oidEnum) {
+        int size = 0;
+        Map<Long, Map<String, Long>> map = getMap(oidEnum);
+        if (map != null) {
+            for (Map<String, Long> ids : map.values()) {
+                size += ids.size();
+            }
+        }
+        return size;
+    }
+
+    private Map<Long, Map<String, Long>> getMap(OidEnum oidEnum) {
+        switch (oidEnum) {
+            case MSG_OID:
+                return msgIds;
+            case USER_OID:
+                return userIds;
+            default:
+                return null;
+        }
+    }
+
+    private Map<String, Long> getOriginMap(OidEnum oidEnum, long originId, boolean create) {
+        Map<Long, Map<String, Long>> map = getMap(oidEnum);
+        if (map == null) {
+            return null;
+        }
+        Map<String, Long> ids = map.get(originId);
+        if (ids == null && create) {
+            ids = new LruMap(maxEntries);
+            map.put(originId, ids);
+        }
+        return ids;
+    }
+
+    private static class LruMap extends LinkedHashMap<String, Long> {
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+
+        LruMap(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.util.MyLog;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of reusable compiled statements for scalar lookups (e.g. one column of one row by its _id).
+ * The SQL text of such a statement depends only on the table and the column
+ * (all values are bound as parameters), so it is compiled once per database
+ * and then reset and rebound on each call.
+ * <p>
+ * A statement is not thread safe, so it is locked for the time of binding and executing.
+ * If a pooled statement was closed meanwhile, the query is done with a new statement.
+ * Statements are compiled for one {@link SQLiteDatabase} object only,
+ * for other databases (e.g. during upgrade) a statement is compiled and closed on each call.
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+final class SqlStatementPool {
+    private static final String TAG = SqlStatementPool.class.getSimpleName();
+    /**
+     * Compiles and closes a statement on each call, used when there is no {@link MyDatabase} object
+     */
+    static final SqlStatementPool NOT_POOLED = new SqlStatementPool(false);
+
+    private final boolean pooling;
+    private final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+    private SQLiteDatabase pooledDb = null;
+
+    SqlStatementPool() {
+        this(true);
+    }
+
+    private SqlStatementPool(boolean pooling) {
+        this.pooling = pooling;
+    }
+
+    /**
+     * @throws SQLiteDoneException if the query returned no rows
+     */
+    long simpleQueryForLong(SQLiteDatabase db, String sql, Object... args) {
+        SQLiteStatement statement = getPooled(db, sql);
+        if (statement != null) {
+            try {
+                synchronized (statement) {
+                    bind(statement, args);
+                    return statement.simpleQueryForLong();
+                }
+            } catch (IllegalStateException e) {
+                onPooledFailed(sql, e);
+            }
+        }
+        statement = db.compileStatement(sql);
+        try {
+            bind(statement, args);
+            return statement.simpleQueryForLong();
+        } finally {
+            DbUtils.closeSilently(statement);
+        }
+    }
+
+    /**
+     * @throws SQLiteDoneException if the query returned no rows
+     */
+    String simpleQueryForString(SQLiteDatabase db, String sql, Object... args) {
+        SQLiteStatement statement = getPooled(db, sql);
+        if (statement != null) {
+            try {
+                synchronized (statement) {
+                    bind(statement, args);
+                    return statement.simpleQueryForString();
+                }
+            } catch (IllegalStateException e) {
+                onPooledFailed(sql, e);
+            }
+        }
+        statement = db.compileStatement(sql);
+        try {
+            bind(statement, args);
+            return statement.simpleQueryForString();
+        } finally {
+            DbUtils.closeSilently(statement);
+        }
+    }
+
+    /**
+     * @return null if statements for this database are not pooled
+     */
+    private synchronized SQLiteStatement getPooled(SQLiteDatabase db, String sql) {
+        if (!pooling) {
+            return null;
+        }
+        if (pooledDb != db) {
+            if (pooledDb == null || !pooledDb.isOpen()) {
+                closeAll();
+                pooledDb = db;
+            } else {
+                return null;
+            }
+        }
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+            if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
+                MyLog.v(TAG, "Compiled statement " + statements.size() + ": '" + sql + "'");
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * The pooled statement may be closed by {@link #closeAll()} in another thread after we got it.
+     * The query is repeated with a new statement then, because a failed lookup would be taken for "not found"
+     */
+    private static void onPooledFailed(String sql, IllegalStateException e) {
+        MyLog.d(TAG, "Pooled statement failed, compiling it again: '" + sql + "'", e);
+    }
+
+    private static void bind(SQLiteStatement statement, Object... args) {
+        statement.clearBindings();
+        for (int ind = 0; ind < args.length; ind++) {
+            Object arg = args[ind];
+            if (arg == null) {
+                statement.bindNull(ind + 1);
+            } else if (arg instanceof Long || arg instanceof Integer) {
+                statement.bindLong(ind + 1, ((Number) arg).longValue());
+            } else {
+                statement.bindString(ind + 1, arg.toString());
+            }
+        }
+    }
+
+    synchronized int size() {
+        return statements.size();
+    }
+
+    /**
+     * Should be called before the database is closed
+     */
+    synchronized void closeAll() {
+        for (SQLiteStatement statement : statements.values()) {
+            synchronized (statement) {
+                DbUtils.closeSilently(statement);
+            }
+        }
+        statements.clear();
+        pooledDb = null;
+    }
+}
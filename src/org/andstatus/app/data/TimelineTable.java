@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+
+import org.andstatus.app.data.MyDatabase.Avatar;
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.data.MyDatabase.MsgOfUser;
+import org.andstatus.app.data.MyDatabase.User;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Timelines of accounts, which are defined by flags of the {@link MsgOfUser} table
+ * (Home, Mentions, Favorites and Direct messages), materialised in one table:
+ * a row per account, timeline and message, with the columns, which the timeline list shows.
+ * The primary key is ({@link #ACCOUNT_USER_ID}, {@link #TIMELINE_TYPE}, {@link Msg#SENT_DATE}, {@link Msg#_ID}),
+ * so a page of a timeline is read by one range scan of the key, without joins of the {@link Msg},
+ * {@link MsgOfUser} and {@link User} tables.
+ * <p>
+ * The {@link Msg#_ID} column holds the id of the message, and the table is queried as {@link MyProvider#MSG_TABLE_ALIAS},
+ * so selections and sort orders for the {@link Msg} table apply to it.
+ * Avatars are not materialised: they are loaded later than messages, so they are joined, when the table is read.
+ * <p>
+ * Rows of a message are rebuilt in the same transaction, where the message and its {@link MsgOfUser} row are stored,
+ * see {@link MyProvider#insert(android.net.Uri, android.content.ContentValues)}
+ * and {@link MyProvider#update(android.net.Uri, android.content.ContentValues, String, String[])}
+ * @author yvolk@yurivolkov.com
+ */
+final class TimelineTable {
+    static final String TABLE_NAME = "timeline";
+    static final String ACCOUNT_USER_ID = "account_user_id";
+    static final String TIMELINE_TYPE = "timeline_type";
+
+    /** Flags of the {@link MsgOfUser} table, which define the materialised timelines */
+    private static final TimelineTypeEnum[] TIMELINE_TYPES = {TimelineTypeEnum.HOME, TimelineTypeEnum.MENTIONS,
+            TimelineTypeEnum.FAVORITES, TimelineTypeEnum.DIRECT};
+    private static final String[] FLAGS = {MsgOfUser.SUBSCRIBED, MsgOfUser.MENTIONED,
+            MsgOfUser.FAVORITED, MsgOfUser.DIRECTED};
+
+    /** Columns of the timeline list, see {@link org.andstatus.app.TimelineActivity} */
+    static final Map<String, String> PROJECTION_MAP = new HashMap<String, String>();
+    static {
+        String alias = MyProvider.MSG_TABLE_ALIAS + ".";
+        PROJECTION_MAP.put(BaseColumns._ID, alias + BaseColumns._ID + " AS " + BaseColumns._ID);
+        PROJECTION_MAP.put(Msg.AUTHOR_ID, alias + Msg.AUTHOR_ID + " AS " + Msg.AUTHOR_ID);
+        PROJECTION_MAP.put(User.AUTHOR_NAME, alias + User.AUTHOR_NAME + " AS " + User.AUTHOR_NAME);
+        PROJECTION_MAP.put(Msg.BODY, alias + Msg.BODY + " AS " + Msg.BODY);
+        PROJECTION_MAP.put(Msg.BODY_DISPLAY, alias + Msg.BODY_DISPLAY + " AS " + Msg.BODY_DISPLAY);
+        PROJECTION_MAP.put(Msg.IN_REPLY_TO_MSG_ID, alias + Msg.IN_REPLY_TO_MSG_ID + " AS " + Msg.IN_REPLY_TO_MSG_ID);
+        PROJECTION_MAP.put(User.IN_REPLY_TO_NAME, alias + User.IN_REPLY_TO_NAME + " AS " + User.IN_REPLY_TO_NAME);
+        PROJECTION_MAP.put(User.RECIPIENT_NAME, alias + User.RECIPIENT_NAME + " AS " + User.RECIPIENT_NAME);
+        PROJECTION_MAP.put(MsgOfUser.FAVORITED, alias + MsgOfUser.FAVORITED + " AS " + MsgOfUser.FAVORITED);
+        PROJECTION_MAP.put(Msg.CREATED_DATE, alias + Msg.CREATED_DATE + " AS " + Msg.CREATED_DATE);
+        PROJECTION_MAP.put(Msg.SENT_DATE, alias + Msg.SENT_DATE + " AS " + Msg.SENT_DATE);
+        PROJECTION_MAP.put(User.LINKED_USER_ID, alias + ACCOUNT_USER_ID + " AS " + User.LINKED_USER_ID);
+        PROJECTION_MAP.put(Avatar.FILE_NAME, "av." + Avatar.FILE_NAME + " AS " + Avatar.FILE_NAME);
+    }
+
+    private TimelineTable() {
+    }
+
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + ACCOUNT_USER_ID + " INTEGER NOT NULL,"
+                + TIMELINE_TYPE + " TEXT NOT NULL,"
+                + Msg.SENT_DATE + " INTEGER,"
+                + BaseColumns._ID + " INTEGER NOT NULL,"
+                + Msg.AUTHOR_ID + " INTEGER,"
+                + User.AUTHOR_NAME + " TEXT,"
+                + Msg.BODY_DISPLAY + " TEXT,"
+                + Msg.BODY + " TEXT,"
+                + Msg.IN_REPLY_TO_MSG_ID + " INTEGER,"
+                + User.IN_REPLY_TO_NAME + " TEXT,"
+                + User.RECIPIENT_NAME + " TEXT,"
+                + MsgOfUser.FAVORITED + " BOOLEAN,"
+                + Msg.CREATED_DATE + " INTEGER,"
+                + "PRIMARY KEY (" + ACCOUNT_USER_ID + ", " + TIMELINE_TYPE + ", " + Msg.SENT_DATE + ", "
+                + BaseColumns._ID + ")"
+                + ")");
+        db.execSQL("CREATE INDEX idx_timeline_msg ON " + TABLE_NAME + " (" + BaseColumns._ID + ")");
+    }
+
+    /**
+     * Rebuilds rows of the message. Should be called after the message and its {@link MsgOfUser} rows are stored
+     */
+    static void update(SQLiteDatabase db, long msgId) {
+        update(db, Arrays.asList(msgId));
+    }
+
+    static void update(SQLiteDatabase db, Collection<Long> msgIds) {
+        if (msgIds.isEmpty()) {
+            return;
+        }
+        String inIds = " IN (" + DbUtils.idsToString(msgIds) + ")";
+        db.delete(TABLE_NAME, BaseColumns._ID + inIds, null);
+        insertRows(db, " AND " + Msg.TABLE_NAME + "." + BaseColumns._ID + inIds);
+    }
+
+    private static void insertRows(SQLiteDatabase db, String msgCondition) {
+        for (int ind = 0; ind < TIMELINE_TYPES.length; ind++) {
+            db.execSQL("INSERT INTO " + TABLE_NAME + " ("
+                    + ACCOUNT_USER_ID + ", " + TIMELINE_TYPE + ", " + Msg.SENT_DATE + ", " + BaseColumns._ID + ", "
+                    + Msg.AUTHOR_ID + ", " + User.AUTHOR_NAME + ", " + Msg.BODY_DISPLAY + ", " + Msg.BODY + ", "
+                    + Msg.IN_REPLY_TO_MSG_ID + ", " + User.IN_REPLY_TO_NAME + ", " + User.RECIPIENT_NAME + ", "
+                    + MsgOfUser.FAVORITED + ", " + Msg.CREATED_DATE + ")"
+                    + " SELECT mou." + MsgOfUser.USER_ID + ", '" + TIMELINE_TYPES[ind].save() + "', "
+                    + Msg.TABLE_NAME + "." + Msg.SENT_DATE + ", "
+                    + Msg.TABLE_NAME + "." + BaseColumns._ID + ", "
+                    + Msg.TABLE_NAME + "." + Msg.AUTHOR_ID + ", "
+                    + "author." + User.USERNAME + ", "
+                    + Msg.TABLE_NAME + "." + Msg.BODY_DISPLAY + ", "
+                    // The body is needed only until its display text is calculated
+                    + "CASE WHEN " + Msg.TABLE_NAME + "." + Msg.BODY_DISPLAY + " IS NULL"
+                    + " THEN " + Msg.TABLE_NAME + "." + Msg.BODY + " END, "
+                    + Msg.TABLE_NAME + "." + Msg.IN_REPLY_TO_MSG_ID + ", "
+                    + "prevauthor." + User.USERNAME + ", "
+                    + "recipient." + User.USERNAME + ", "
+                    + "mou." + MsgOfUser.FAVORITED + ", "
+                    + Msg.TABLE_NAME + "." + Msg.CREATED_DATE
+                    + " FROM " + Msg.TABLE_NAME
+                    + " INNER JOIN " + MsgOfUser.TABLE_NAME + " AS mou"
+                    + " ON mou." + MsgOfUser.MSG_ID + "=" + Msg.TABLE_NAME + "." + BaseColumns._ID
+                    + " LEFT JOIN " + User.TABLE_NAME + " AS author"
+                    + " ON author." + BaseColumns._ID + "=" + Msg.TABLE_NAME + "." + Msg.AUTHOR_ID
+                    + " LEFT JOIN " + User.TABLE_NAME + " AS prevauthor"
+                    + " ON prevauthor." + BaseColumns._ID + "=" + Msg.TABLE_NAME + "." + Msg.IN_REPLY_TO_USER_ID
+                    + " LEFT JOIN " + User.TABLE_NAME + " AS recipient"
+                    + " ON recipient." + BaseColumns._ID + "=" + Msg.TABLE_NAME + "." + Msg.RECIPIENT_ID
+                    + " WHERE mou." + FLAGS[ind] + "=1" + msgCondition);
+        }
+    }
+
+    /**
+     * Updates names of the user in the rows, e.g. after the username was changed
+     */
+    static void onUserNameChanged(SQLiteDatabase db, long userId) {
+        String sqlUserName = "(SELECT " + User.USERNAME + " FROM " + User.TABLE_NAME
+                + " WHERE " + BaseColumns._ID + "=" + userId + ")";
+        String sqlMsgIds = " IN (SELECT " + BaseColumns._ID + " FROM " + Msg.TABLE_NAME + " WHERE ";
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + User.AUTHOR_NAME + "=" + sqlUserName
+                + " WHERE " + Msg.AUTHOR_ID + "=" + userId);
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + User.IN_REPLY_TO_NAME + "=" + sqlUserName
+                + " WHERE " + BaseColumns._ID + sqlMsgIds + Msg.IN_REPLY_TO_USER_ID + "=" + userId + ")");
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + User.RECIPIENT_NAME + "=" + sqlUserName
+                + " WHERE " + BaseColumns._ID + sqlMsgIds + Msg.RECIPIENT_ID + "=" + userId + ")");
+    }
+
+    /**
+     * The display text of the message body was calculated, so the body itself is not needed any more,
+     * see {@link MsgDisplayFields}
+     */
+    static void onBodyDisplayed(SQLiteDatabase db, long msgId, String bodyDisplay) {
+        ContentValues values = new ContentValues();
+        values.put(Msg.BODY_DISPLAY, bodyDisplay);
+        values.putNull(Msg.BODY);
+        db.update(TABLE_NAME, values, BaseColumns._ID + "=" + msgId, null);
+    }
+
+    /**
+     * Removes rows of the messages, which don't exist any more
+     * @param inIds e.g. " IN (1,2,3)"
+     */
+    static int deleteOrphaned(SQLiteDatabase db, String inIds) {
+        return db.delete(TABLE_NAME, BaseColumns._ID + inIds
+                + " AND NOT EXISTS (SELECT * FROM " + Msg.TABLE_NAME + " WHERE "
+                + Msg.TABLE_NAME + "." + BaseColumns._ID + "=" + TABLE_NAME + "." + BaseColumns._ID + ")", null);
+    }
+
+    /**
+     * @return The flag of the {@link MsgOfUser} table, which defines the timeline, or null,
+     *  if the timeline is not defined by a flag (e.g. the combined Home timeline shows all messages)
+     */
+    static String flagOf(TimelineTypeEnum timelineType, boolean isCombined) {
+        if (timelineType == TimelineTypeEnum.HOME && isCombined) {
+            return null;
+        }
+        for (int ind = 0; ind < TIMELINE_TYPES.length; ind++) {
+            if (TIMELINE_TYPES[ind] == timelineType) {
+                return FLAGS[ind];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the table has the timeline and all the columns
+     */
+    static boolean hasTimeline(TimelineTypeEnum timelineType, boolean isCombined, String[] projection) {
+        if (projection == null || flagOf(timelineType, isCombined) == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (!PROJECTION_MAP.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return String for {@link android.database.sqlite.SQLiteQueryBuilder#setTables(String)}
+     */
+    static String tables(String[] projection) {
+        String tables = TABLE_NAME + " AS " + MyProvider.MSG_TABLE_ALIAS;
+        if (Arrays.asList(projection).contains(Avatar.FILE_NAME)) {
+            tables += " LEFT OUTER JOIN (SELECT " + Avatar.USER_ID + ", " + Avatar.STATUS + ", " + Avatar.FILE_NAME
+                    + " FROM " + Avatar.TABLE_NAME + ") AS av"
+                    + " ON av." + Avatar.USER_ID + "=" + MyProvider.MSG_TABLE_ALIAS + "." + Msg.AUTHOR_ID
+                    + " AND av." + Avatar.STATUS + "=" + AvatarStatus.LOADED.save();
+        }
+        return tables;
+    }
+
+    /**
+     * Condition, which selects the timeline of the accounts
+     */
+    static String sqlTimelineOf(AccountUserIds userIds, TimelineTypeEnum timelineType) {
+        return MyProvider.MSG_TABLE_ALIAS + "." + ACCOUNT_USER_ID + userIds.getSqlUserIds()
+                + " AND " + MyProvider.MSG_TABLE_ALIAS + "." + TIMELINE_TYPE + "='" + timelineType.save() + "'";
+    }
+}
@@ -88,11 +88,23 @@ public class TimelineViewBinder implements ViewBinder {
         }
     }
 
+    /**
+     * The column is {@link Msg#BODY_DISPLAY}, which is ready to be shown.
+     * The {@link Msg#BODY} is parsed only for rows, which were not backfilled yet
+     */
     private void setMessageBody(Cursor cursor, int columnIndex, TextView view) {
         if (columnIndex > -1) {
             String body = cursor.getString(columnIndex);
             if (body != null) {
-                view.setText(Html.fromHtml(body));
+                view.setText(body);
+            } else {
+                int columnIndex2 = cursor.getColumnIndex(Msg.BODY);
+                if (columnIndex2 > -1) {
+                    body = cursor.getString(columnIndex2);
+                    if (body != null) {
+                        view.setText(Html.fromHtml(body));
+                    }
+                }
             }
         }
     }
@@ -134,8 +146,7 @@ public class TimelineViewBinder implements ViewBinder {
         if (columnIndex > -1) {
             fileName = cursor.getString(columnIndex);
         }
-        AvatarDrawable avatarDrawable = new AvatarDrawable(authorId, fileName);
-        view.setImageDrawable(avatarDrawable.getDrawable());
+        new AvatarDrawable(authorId, fileName).showIn(view);
     }
     
     private void setFavorited(Cursor cursor, ImageView view) {
@@ -25,12 +25,12 @@ import org.andstatus.app.net.Connection;
 import org.andstatus.app.net.ConnectionException.StatusCode;
 import org.andstatus.app.net.MbTimelineItem.ItemType;
 import org.andstatus.app.origin.OriginConnectionData;
+import org.andstatus.app.util.DateParser;
 import org.andstatus.app.util.MyLog;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Date;
 import java.util.List;
 
 /**
@@ -76,6 +76,7 @@ public abstract class Connection {
         GET_FRIENDS, // List of users
         GET_FRIENDS_IDS, // List of Users' IDs
         GET_USER,
+        GET_USERS, // List of users by their IDs
         POST_DIRECT_MESSAGE,
         POST_REBLOG,
         REGISTER_CLIENT,
@@ -146,7 +147,7 @@ public abstract class Connection {
     protected abstract String getApiPath1(ApiRoutineEnum routine);
 
     /**
-     * Full path of the API. Logged
+     * Full path of the API. Logged, and the request is measured, see {@link HttpMetrics}
      * @return URL or throws a ConnectionException in case the API routine is not supported
      */
     protected final String getApiPath(ApiRoutineEnum routine) throws ConnectionException {
@@ -160,6 +161,7 @@ public abstract class Connection {
             if (MyLog.isLoggable(null, MyLog.VERBOSE )) {
                 MyLog.v(this.getClass().getSimpleName(), "API '" + routine + "' Path=" + path);  
             }
+            HttpMetrics.onRequestStarted(routine);
         }
         return path;
     }
@@ -183,6 +185,18 @@ public abstract class Connection {
      */
     public abstract MbRateLimitStatus rateLimitStatus() throws ConnectionException;
 
+    /**
+     * Quota of the routine, as reported in headers of the latest response to it, so no request is sent.
+     * @return Empty status if the quota is unknown
+     */
+    public MbRateLimitStatus getRateLimitStatus(ApiRoutineEnum routine) {
+        String path = getApiPath1(routine);
+        if (http == null || TextUtils.isEmpty(path)) {
+            return new MbRateLimitStatus();
+        }
+        return http.getRateLimitStatus(path);
+    }
+
     /**
      * Do we need password to be set?
      * By default password is not needed and is ignored
@@ -257,6 +271,14 @@ public abstract class Connection {
         throw ConnectionException.fromStatusCodeAndHost(StatusCode.UNSUPPORTED_API, "(any host)", "getIdsOfUsersFollowedBy for userOid=" + userId);
     }
     
+    /**
+     * Returns users, specified by their IDs, in as few requests as the API allows.
+     * Users, that were not found, are not returned.
+     */
+    public List<MbUser> getUsers(List<String> userIds) throws ConnectionException {
+        throw ConnectionException.fromStatusCodeAndHost(StatusCode.UNSUPPORTED_API, "(any host)", "getUsers for " + userIds.size() + " users");
+    }
+    
     /**
      * Returns a single status, specified by the id parameter below.
      * The status's author will be returned inline.
@@ -423,17 +445,13 @@ public abstract class Connection {
     }
     
     /**
-     * Currently seems like most universal solution
+     * Twitter-style and RFC 822 dates, see {@link DateParser#parseRfc822(String)}
      * @return Unix time. Returns 0 in a case of an error
      */
     public long parseDate(String stringDate) {
-        long unixDate = 0;
-        if(stringDate != null) {
-            try {
-                unixDate = Date.parse(stringDate);
-            } catch (IllegalArgumentException e) {
-                MyLog.e(this, "Failed to parse the date: '" + stringDate +"'", e);
-            }
+        long unixDate = DateParser.parseRfc822(stringDate);
+        if (unixDate == 0 && stringDate != null) {
+            MyLog.e(this, "Failed to parse the date: '" + stringDate +"'");
         }
         return unixDate;
     }
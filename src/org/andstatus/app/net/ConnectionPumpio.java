@@ -21,18 +21,16 @@ import android.text.TextUtils;
 
 import org.andstatus.app.net.ConnectionException.StatusCode;
 import org.andstatus.app.origin.OriginConnectionData;
+import org.andstatus.app.util.DateParser;
 import org.andstatus.app.util.MyLog;
 import org.andstatus.app.util.TriState;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 
 /**
  * Implementation of pump.io API: <a href="https://github.com/e14n/pump.io/blob/master/API.md">https://github.com/e14n/pump.io/blob/master/API.md</a>  
@@ -124,27 +122,15 @@ public class ConnectionPumpio extends Connection {
         return user;
     }
     
-    private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.GERMANY);
     /**
-     * Simple solution based on:
-     * http://stackoverflow.com/questions/2201925/converting-iso8601-compliant-string-to-java-util-date
+     * ISO 8601 dates, see {@link DateParser#parseIso8601(String)}
      * @return Unix time. Returns 0 in a case of an error
      */
     @Override
     public long parseDate(String stringDate) {
-        long unixDate = 0;
-        if(stringDate != null) {
-            String datePrepared;        
-            if (stringDate.lastIndexOf('Z') == stringDate.length()-1) {
-                datePrepared = stringDate.substring(0, stringDate.length()-1) + "+0000";
-            } else {
-                datePrepared = stringDate.replaceAll("\\+0([0-9]){1}\\:00", "+0$100");
-            }
-            try {
-                unixDate = dateFormat.parse(datePrepared).getTime();
-            } catch (ParseException e) {
-                MyLog.e(this, "Failed to parse the date: '" + stringDate +"'", e);
-            }
+        long unixDate = DateParser.parseIso8601(stringDate);
+        if (unixDate == 0 && stringDate != null) {
+            MyLog.e(this, "Failed to parse the date: '" + stringDate +"'");
         }
         return unixDate;
     }
@@ -319,20 +305,16 @@ public class ConnectionPumpio extends Connection {
             builder.appendQueryParameter("count",String.valueOf(fixedDownloadLimitForApiRoutine(limit, apiRoutine)));
         }
         String url = builder.build().toString();
-        JSONArray jArr = conu.httpConnection.getRequestAsArray(url);
-        List<MbTimelineItem> timeline = new ArrayList<MbTimelineItem>();
-        if (jArr != null) {
-            // Read the activities in chronological order
-            for (int index = jArr.length() - 1; index >= 0; index--) {
-                try {
-                    JSONObject jso = jArr.getJSONObject(index);
-                    MbTimelineItem item = timelineItemFromJson(jso);
-                    timeline.add(item);
-                } catch (JSONException e) {
-                    throw ConnectionException.loggedJsonException(this, e, null, "Parsing timeline");
-                }
+        final List<MbTimelineItem> timeline = new ArrayList<MbTimelineItem>();
+        // Activities are parsed as the response arrives, without keeping the whole response in memory
+        conu.httpConnection.getRequestArrayItems(url, new JsonArrayReader.ItemHandler() {
+            @Override
+            public void onItem(JSONObject jso) throws ConnectionException {
+                timeline.add(timelineItemFromJson(jso));
             }
-        }
+        });
+        // Read the activities in chronological order
+        Collections.reverse(timeline);
         MyLog.d(TAG, "getTimeline '" + url + "' " + timeline.size() + " messages");
         return timeline;
     }
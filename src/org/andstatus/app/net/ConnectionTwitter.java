@@ -27,6 +27,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -35,6 +36,8 @@ import java.util.List;
  */
 public abstract class ConnectionTwitter extends Connection {
     private static final String TAG = ConnectionTwitter.class.getSimpleName();
+    /** Maximum number of users in one "users/lookup" request */
+    static final int USERS_LOOKUP_LIMIT = 100;
 
     /**
      * URL of the API. Not logged
@@ -196,8 +199,23 @@ public abstract class ConnectionTwitter extends Connection {
         if (!TextUtils.isEmpty(userId)) {
             builder.appendQueryParameter("user_id", userId);
         }
-        JSONArray jArr = http.getRequestAsArray(builder.build().toString());
-        return jArrToTimeline(jArr, apiRoutine, url);
+        return getTimelineItems(builder.build().toString(), apiRoutine, url);
+    }
+
+    /**
+     * Timeline items are parsed as the response arrives, without keeping the whole response in memory
+     */
+    List<MbTimelineItem> getTimelineItems(String path, ApiRoutineEnum apiRoutine, String url) throws ConnectionException {
+        final List<MbTimelineItem> timeline = new ArrayList<MbTimelineItem>();
+        http.getRequestArrayItems(path, new JsonArrayReader.ItemHandler() {
+            @Override
+            public void onItem(JSONObject jso) throws ConnectionException {
+                timeline.add(timelineItemFromJson(jso));
+            }
+        });
+        // Read the activities in chronological order
+        Collections.reverse(timeline);
+        return onTimelineRead(timeline, apiRoutine, url);
     }
 
     private MbTimelineItem timelineItemFromJson(JSONObject jso) throws ConnectionException {
@@ -371,8 +389,7 @@ public abstract class ConnectionTwitter extends Connection {
         if (!TextUtils.isEmpty(searchQuery)) {
             builder.appendQueryParameter("q", searchQuery);
         }
-        JSONArray jArr = http.getRequestAsArray(builder.build().toString());
-        return jArrToTimeline(jArr, apiRoutine, url);
+        return getTimelineItems(builder.build().toString(), apiRoutine, url);
     }
     
     List<MbTimelineItem> jArrToTimeline(JSONArray jArr, ApiRoutineEnum apiRoutine, String url) throws ConnectionException {
@@ -389,6 +406,10 @@ public abstract class ConnectionTwitter extends Connection {
                 }
             }
         }
+        return onTimelineRead(timeline, apiRoutine, url);
+    }
+
+    private List<MbTimelineItem> onTimelineRead(List<MbTimelineItem> timeline, ApiRoutineEnum apiRoutine, String url) {
         if (apiRoutine.isMsgPublic()) {
             setMessagesPublic(timeline);
         }
@@ -409,6 +430,32 @@ public abstract class ConnectionTwitter extends Connection {
         return userFromJson(jso);
     }
     
+    /**
+     * Up to {@link #USERS_LOOKUP_LIMIT} users per request
+     * @see <a
+     *      href="https://dev.twitter.com/docs/api/1.1/get/users/lookup">GET users/lookup</a>
+     */
+    @Override
+    public List<MbUser> getUsers(List<String> userIds) throws ConnectionException {
+        String method = "getUsers";
+        List<MbUser> users = new ArrayList<MbUser>();
+        for (int from = 0; from < userIds.size(); from += USERS_LOOKUP_LIMIT) {
+            List<String> chunk = userIds.subList(from, Math.min(userIds.size(), from + USERS_LOOKUP_LIMIT));
+            Uri sUri = Uri.parse(getApiPath(ApiRoutineEnum.GET_USERS));
+            Uri.Builder builder = sUri.buildUpon();
+            builder.appendQueryParameter("user_id", TextUtils.join(",", chunk));
+            JSONArray jArr = http.getRequestAsArray(builder.build().toString());
+            try {
+                for (int index = 0; jArr != null && index < jArr.length(); index++) {
+                    users.add(userFromJson(jArr.getJSONObject(index)));
+                }
+            } catch (JSONException e) {
+                throw ConnectionException.loggedJsonException(this, e, jArr, method);
+            }
+        }
+        return users;
+    }
+    
     @Override
     public MbMessage postDirectMessage(String message, String userId) throws ConnectionException {
         JSONObject formParams = new JSONObject();
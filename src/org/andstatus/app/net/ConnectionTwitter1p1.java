@@ -50,6 +50,10 @@ public class ConnectionTwitter1p1 extends ConnectionTwitter {
             case DESTROY_FAVORITE:
                 url = "favorites/destroy" + EXTENSION;
                 break;
+            case GET_USERS:
+                // https://dev.twitter.com/docs/api/1.1/get/users/lookup
+                url = "users/lookup" + EXTENSION;
+                break;
             case SEARCH_MESSAGES:
                 // https://dev.twitter.com/docs/api/1.1/get/search/tweets
                 url = "search/tweets" + EXTENSION;
@@ -24,5 +24,6 @@ import org.json.JSONTokener;
 public interface HttpApacheRequest {
     JSONObject postRequest(HttpPost postMethod) throws ConnectionException;
     JSONTokener getRequest(HttpGet get) throws ConnectionException;
+    int getRequestArrayItems(HttpGet get, JsonArrayReader.ItemHandler handler) throws ConnectionException;
     String pathToUrl(String path);
 }
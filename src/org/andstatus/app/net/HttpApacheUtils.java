@@ -18,31 +18,25 @@ package org.andstatus.app.net;
 
 import android.text.TextUtils;
 
+import org.andstatus.app.data.DbUtils;
 import org.andstatus.app.util.MyLog;
-import org.apache.http.HttpVersion;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -89,6 +83,29 @@ class HttpApacheUtils {
         return jsa;
     }
     
+    final int getRequestArrayItems(String path, JsonArrayReader.ItemHandler handler) throws ConnectionException {
+        return request.getRequestArrayItems(new HttpGet(request.pathToUrl(path)), handler);
+    }
+
+    /**
+     * Parses the array of the response as it arrives and releases the connection
+     * @return Number of items read
+     */
+    static int readArrayItems(Object objTag, HttpEntity entity, JsonArrayReader.ItemHandler handler) throws ConnectionException {
+        String method = "readArrayItems";
+        InputStream in = null;
+        try {
+            in = entity.getContent();
+            return JsonArrayReader.fromStream(in, null).read(handler);
+        } catch (JSONException e) {
+            throw ConnectionException.loggedJsonException(objTag, e, null, method);
+        } catch (IOException e) {
+            throw new ConnectionException(method, e);
+        } finally {
+            DbUtils.closeSilently(in);
+        }
+    }
+
     final JSONObject getRequestAsObject(HttpGet get) throws ConnectionException {
         String method = "getRequestAsObject";
         JSONObject jso = null;
@@ -142,31 +159,57 @@ class HttpApacheUtils {
         return formParams;
     }
     
-    static HttpClient getHttpClient() {
-        SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-        
-        SSLSocketFactory socketFactory = SSLSocketFactory.getSocketFactory();
-        // This is done to get rid of the "javax.net.ssl.SSLException: hostname in certificate didn't match" error
-        // See e.g. http://stackoverflow.com/questions/8839541/hostname-in-certificate-didnt-match
-        socketFactory.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);        
-        schemeRegistry.register(new Scheme("https", socketFactory, 443));
+    /**
+     * Makes the request conditional, if a response to it is cached, see {@link HttpResponseCache}
+     * @return The cached response or null
+     */
+    static HttpResponseCache.Entry setValidators(HttpConnectionData data, HttpGet get) {
+        HttpResponseCache.Entry cached = HttpResponseCache.getInstance().get(data, get.getURI().toString());
+        if (cached != null) {
+            if (!TextUtils.isEmpty(cached.getETag())) {
+                get.setHeader(HttpResponseCache.IF_NONE_MATCH, cached.getETag());
+            }
+            if (!TextUtils.isEmpty(cached.getLastModified())) {
+                get.setHeader(HttpResponseCache.IF_MODIFIED_SINCE, cached.getLastModified());
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Caches the successful response, if it has validators
+     * @return Tokener of the response
+     */
+    static JSONTokener onResponse(HttpConnectionData data, HttpGet get, HttpResponse response, String body) {
+        return HttpResponseCache.getInstance().put(data, get.getURI().toString(),
+                getHeaderValue(response, HttpResponseCache.ETAG),
+                getHeaderValue(response, HttpResponseCache.LAST_MODIFIED), body).newTokener();
+    }
 
-        HttpParams params = getHttpParams();        
-        ClientConnectionManager clientConnectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
-        return new DefaultHttpClient(clientConnectionManager, params);
+    /**
+     * The server confirmed that the cached response is still valid
+     * @return Tokener of the cached response
+     */
+    static JSONTokener onNotModified(HttpResponseCache.Entry cached, HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            // Releases the connection
+            entity.consumeContent();
+        }
+        HttpResponseCache.getInstance().onNotModified(cached);
+        return cached.newTokener();
     }
 
-    private static HttpParams getHttpParams() {
-        HttpParams params = new BasicHttpParams();
-        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
-        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+    private static String getHeaderValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
 
-        HttpProtocolParams.setUseExpectContinue(params, false);
-        HttpConnectionParams.setSoTimeout(params, 30000);
-        HttpConnectionParams.setSocketBufferSize(params, 2*8192);
-        return params;
+    /**
+     * @return Long-lived client, shared by all connections to the Origin, see {@link HttpClientPool}
+     */
+    static HttpClient getHttpClient(HttpConnectionData data) {
+        return HttpClientPool.getInstance().getHttpClient(data.originId);
     }
     
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.util.MyLog;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived {@link DefaultHttpClient}s, one per Origin, so connections to the same host
+ * are kept alive and reused by subsequent requests instead of opening a new TCP (and TLS) connection
+ * for each request.
+ * A client is shared by all accounts of the Origin, so cookies are ignored:
+ * otherwise a session cookie of one account would be sent with requests of another account.
+ * Idle connections are evicted lazily, when a client is requested.
+ * All clients are shut down by {@link #shutdownAll()} (when {@link org.andstatus.app.service.MyService} stops),
+ * new clients are created on the next request.
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class HttpClientPool {
+    private static final String TAG = HttpClientPool.class.getSimpleName();
+
+    /**
+     * Connections, which the application opens to one host at a time: requests of the pooled clients
+     * and avatar downloads (see org.andstatus.app.service.AvatarFetchPool) together
+     */
+    public static final int MAX_CONNECTIONS_PER_HOST = 6;
+    /** The part of {@link #MAX_CONNECTIONS_PER_HOST}, which is left for avatar downloads */
+    public static final int MAX_AVATAR_CONNECTIONS_PER_HOST = 2;
+    static final int MAX_CONNECTIONS_PER_ROUTE = MAX_CONNECTIONS_PER_HOST - MAX_AVATAR_CONNECTIONS_PER_HOST;
+    /** Two Origins may be synced at full speed */
+    static final int MAX_CONNECTIONS_TOTAL = 2 * MAX_CONNECTIONS_PER_ROUTE;
+    /** Used when a server doesn't tell us how long to keep a connection alive */
+    static final long KEEP_ALIVE_MILLIS = 30000;
+    static final long IDLE_CONNECTION_TIMEOUT_MILLIS = 60000;
+    private static final long IDLE_CHECK_PERIOD_MILLIS = 30000;
+
+    private static final HttpClientPool INSTANCE = new HttpClientPool(MAX_CONNECTIONS_PER_ROUTE, MAX_CONNECTIONS_TOTAL);
+
+    private final int maxConnectionsPerRoute;
+    private final int maxConnectionsTotal;
+    private final Map<Long, DefaultHttpClient> clients = new HashMap<Long, DefaultHttpClient>();
+    private long idleCheckedAt = 0;
+
+    HttpClientPool(int maxConnectionsPerRoute, int maxConnectionsTotal) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
+    static HttpClientPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Shuts down connections of all clients of the application
+     */
+    public static void shutdownAll() {
+        INSTANCE.shutdown();
+    }
+
+    /**
+     * @return The client, shared by all connections to this Origin
+     */
+    synchronized DefaultHttpClient getHttpClient(long originId) {
+        closeIdleConnections();
+        DefaultHttpClient client = clients.get(originId);
+        if (client == null) {
+            client = newHttpClient();
+            clients.put(originId, client);
+            MyLog.v(TAG, "New client for originId=" + originId + ", " + clients.size() + " clients in the pool");
+        }
+        return client;
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - idleCheckedAt < IDLE_CHECK_PERIOD_MILLIS) {
+            return;
+        }
+        idleCheckedAt = now;
+        for (DefaultHttpClient client : clients.values()) {
+            ClientConnectionManager manager = client.getConnectionManager();
+            manager.closeExpiredConnections();
+            manager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized int size() {
+        return clients.size();
+    }
+
+    synchronized void shutdown() {
+        for (DefaultHttpClient client : clients.values()) {
+            try {
+                client.getConnectionManager().shutdown();
+            } catch (Exception e) {
+                MyLog.d(TAG, "Shutting down a client", e);
+            }
+        }
+        if (!clients.isEmpty()) {
+            MyLog.v(TAG, clients.size() + " clients shut down");
+        }
+        clients.clear();
+        idleCheckedAt = 0;
+    }
+
+    private DefaultHttpClient newHttpClient() {
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+
+        SSLSocketFactory socketFactory = SSLSocketFactory.getSocketFactory();
+        // This is done to get rid of the "javax.net.ssl.SSLException: hostname in certificate didn't match" error
+        // See e.g. http://stackoverflow.com/questions/8839541/hostname-in-certificate-didnt-match
+        socketFactory.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        schemeRegistry.register(new Scheme("https", socketFactory, 443));
+
+        HttpParams params = getHttpParams();
+        ClientConnectionManager clientConnectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+        DefaultHttpClient client = new DefaultHttpClient(clientConnectionManager, params);
+        client.setKeepAliveStrategy(new KeepAliveStrategy());
+        HttpCompression.addTo(client);
+        return client;
+    }
+
+    private HttpParams getHttpParams() {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+        HttpProtocolParams.setUseExpectContinue(params, false);
+        HttpConnectionParams.setSoTimeout(params, 30000);
+        HttpConnectionParams.setSocketBufferSize(params, 2*8192);
+        HttpClientParams.setCookiePolicy(params, CookiePolicy.IGNORE_COOKIES);
+
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+        ConnManagerParams.setMaxTotalConnections(params, maxConnectionsTotal);
+        return params;
+    }
+
+    /**
+     * Respects the "Keep-Alive" header of a response,
+     * uses {@link HttpClientPool#KEEP_ALIVE_MILLIS} if the header is absent
+     */
+    private static class KeepAliveStrategy extends DefaultConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = super.getKeepAliveDuration(response, context);
+            if (duration < 0) {
+                duration = KEEP_ALIVE_MILLIS;
+            }
+            return duration;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.util.MyLog;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed ("gzip" or "deflate") transfer of responses: the encodings are advertised in requests,
+ * and compressed responses are decompressed as they are being read.
+ * <p>
+ * Bytes of each response are counted twice: as transferred and as uncompressed.
+ * The counts are logged for each request, when its response is read to the end or closed,
+ * and are accumulated in totals, see {@link #getStats()}.
+ * We set the "Accept-Encoding" header explicitly, so {@link HttpURLConnection} (since API 9)
+ * doesn't decompress the response itself, and the same code works for all connection implementations.
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+final class HttpCompression {
+    private static final String TAG = HttpCompression.class.getSimpleName();
+
+    static final String ACCEPT_ENCODING = "Accept-Encoding";
+    static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    @GuardedBy("HttpCompression.class")
+    private static long responses = 0;
+    @GuardedBy("HttpCompression.class")
+    private static long compressedResponses = 0;
+    @GuardedBy("HttpCompression.class")
+    private static long transferredBytes = 0;
+    @GuardedBy("HttpCompression.class")
+    private static long uncompressedBytes = 0;
+
+    private HttpCompression() {
+    }
+
+    /**
+     * All requests of the client advertise compressed encodings, and all responses are decompressed and counted
+     */
+    static void addTo(DefaultHttpClient client) {
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+                if (!request.containsHeader(ACCEPT_ENCODING)) {
+                    request.addHeader(ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+                }
+            }
+        });
+        client.addResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+                HttpEntity entity = response.getEntity();
+                if (entity != null) {
+                    response.setEntity(new DecompressingEntity(entity, describe(context)));
+                }
+            }
+        });
+    }
+
+    private static String describe(HttpContext context) {
+        Object request = context.getAttribute(ExecutionContext.HTTP_REQUEST);
+        if (request instanceof HttpRequest) {
+            return ((HttpRequest) request).getRequestLine().getUri();
+        }
+        return "";
+    }
+
+    /**
+     * Decompresses the content of the wrapped entity, if it's compressed
+     */
+    private static class DecompressingEntity extends HttpEntityWrapper {
+        private final String description;
+
+        DecompressingEntity(HttpEntity wrapped, String description) {
+            super(wrapped);
+            this.description = description;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            Header header = wrappedEntity.getContentEncoding();
+            return decompress(wrappedEntity.getContent(), header == null ? null : header.getValue(), description);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            try {
+                byte[] buffer = new byte[4096];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            // The content is decompressed already
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            Header header = wrappedEntity.getContentEncoding();
+            return header == null ? wrappedEntity.getContentLength() : -1;
+        }
+    }
+
+    /**
+     * Should be called before the connection is connected
+     */
+    static void acceptCompressed(URLConnection conn) {
+        conn.setRequestProperty(ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+    }
+
+    /**
+     * @return The decompressed response
+     */
+    static InputStream getInputStream(HttpURLConnection conn) throws IOException {
+        return decompress(conn.getInputStream(), conn.getContentEncoding(), conn.getURL().toExternalForm());
+    }
+
+    /**
+     * @return The decompressed error response or null, if there is no error response
+     */
+    static InputStream getErrorStream(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getErrorStream();
+        if (in == null) {
+            return null;
+        }
+        return decompress(in, conn.getContentEncoding(), conn.getURL().toExternalForm());
+    }
+
+    /**
+     * @param contentEncoding Value of the "Content-Encoding" header, may be null
+     * @param description Of the request, for the log
+     * @return The stream of the uncompressed content, which counts bytes of the response
+     */
+    static InputStream decompress(InputStream in, String contentEncoding, String description) throws IOException {
+        CountingInputStream transferred = new CountingInputStream(in);
+        InputStream uncompressed;
+        boolean compressed = true;
+        if (GZIP.equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+            uncompressed = new GZIPInputStream(transferred);
+        } else if (DEFLATE.equalsIgnoreCase(contentEncoding)) {
+            uncompressed = inflate(transferred);
+        } else {
+            compressed = false;
+            uncompressed = transferred;
+        }
+        return new ResponseInputStream(uncompressed, transferred, compressed, description);
+    }
+
+    /**
+     * "deflate" is zlib-wrapped by the specification, but some servers send the raw deflate stream
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int count = pushback.read(header);
+        if (count == 1) {
+            int second = pushback.read();
+            if (second >= 0) {
+                header[1] = (byte) second;
+                count = 2;
+            }
+        }
+        if (count > 0) {
+            pushback.unread(header, 0, count);
+        }
+        boolean zlib = count == 2 && (header[0] & 0x0F) == 8
+                && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+        return zlib ? new InflaterInputStream(pushback) : new RawInflaterInputStream(pushback);
+    }
+
+    /**
+     * The {@link Inflater} with the "nowrap" option needs an extra "dummy" byte at the end of its input,
+     * so we supply it, when the response ends
+     */
+    private static class RawInflaterInputStream extends InflaterInputStream {
+        private boolean dummyByteSupplied = false;
+
+        RawInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true));
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (dummyByteSupplied) {
+                throw new EOFException("Unexpected end of the deflate stream");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len < 0) {
+                buf[0] = 0;
+                len = 1;
+                dummyByteSupplied = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c >= 0) {
+                count++;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            if (skipped > 0) {
+                count += skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Counts uncompressed bytes and reports counts of the response once:
+     * at the end of the stream or when it's closed
+     */
+    private static class ResponseInputStream extends CountingInputStream {
+        private final CountingInputStream transferred;
+        private final boolean compressed;
+        private final String description;
+        private boolean reported = false;
+
+        ResponseInputStream(InputStream uncompressed, CountingInputStream transferred, boolean compressed,
+                String description) {
+            super(uncompressed);
+            this.transferred = transferred;
+            this.compressed = compressed;
+            this.description = description;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c < 0) {
+                report();
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read < 0) {
+                report();
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            report();
+            super.close();
+        }
+
+        private void report() {
+            if (reported) {
+                return;
+            }
+            reported = true;
+            onResponseRead(compressed, transferred.getCount(), getCount());
+            HttpMetrics.onResponseRead(transferred.getCount());
+            if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
+                MyLog.v(TAG, (compressed ? "Compressed " : "") + transferred.getCount() + " bytes"
+                        + (compressed ? ", uncompressed " + getCount() : "") + "; " + description);
+            }
+        }
+    }
+
+    private static synchronized void onResponseRead(boolean compressed, long transferred, long uncompressed) {
+        responses++;
+        if (compressed) {
+            compressedResponses++;
+        }
+        transferredBytes += transferred;
+        uncompressedBytes += uncompressed;
+    }
+
+    static synchronized long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    static synchronized long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * @return Totals of all responses, read since the application started
+     */
+    static synchronized String getStats() {
+        return TAG + "{responses:" + responses
+                + ", compressed:" + compressedResponses
+                + ", transferredBytes:" + transferredBytes
+                + ", uncompressedBytes:" + uncompressedBytes
+                + "}";
+    }
+}
@@ -20,6 +20,7 @@ import android.net.Uri;
 
 import org.andstatus.app.account.AccountDataWriter;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 public abstract class HttpConnection {
@@ -55,10 +56,42 @@ public abstract class HttpConnection {
     
     protected abstract JSONObject postRequest(String path) throws ConnectionException;
 
+    /**
+     * @return Quota of the path, known from previous responses, see {@link RateLimitTracker}
+     */
+    MbRateLimitStatus getRateLimitStatus(String path) {
+        if (data == null) {
+            return new MbRateLimitStatus();
+        }
+        return RateLimitTracker.getInstance().get(data, pathToUrl(path));
+    }
+
     protected abstract JSONObject getRequest(String path) throws ConnectionException;
     
     protected abstract JSONArray getRequestAsArray(String path) throws ConnectionException;
 
+    /**
+     * Hands over objects of the array, returned by the server, one by one.
+     * This implementation reads the whole array first,
+     * subclasses may parse the response as it arrives, see {@link JsonArrayReader}
+     * @return Number of objects read
+     */
+    protected int getRequestArrayItems(String path, JsonArrayReader.ItemHandler handler) throws ConnectionException {
+        JSONArray jArr = getRequestAsArray(path);
+        int count = 0;
+        if (jArr != null) {
+            for (int index = 0; index < jArr.length(); index++) {
+                try {
+                    handler.onItem(jArr.getJSONObject(index));
+                } catch (JSONException e) {
+                    throw ConnectionException.loggedJsonException(this, e, null, "Parsing array item " + index);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
     public abstract void clearAuthInformation();
 
     public void clearClientKeys() {
@@ -25,6 +25,7 @@ import org.andstatus.app.data.DbUtils;
 import org.andstatus.app.util.MyLog;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
@@ -64,17 +65,20 @@ public class HttpConnectionBasic extends HttpConnection implements HttpApacheReq
         String result = "?";
         JSONObject jObj = null;
         int statusCode = 0;
+        boolean responseRead = false;
         try {
-            HttpClient client = HttpApacheUtils.getHttpClient();
+            HttpClient client = HttpApacheUtils.getHttpClient(data);
             postMethod.setHeader("User-Agent", HttpConnection.USER_AGENT);
             if (getCredentialsPresent()) {
                 postMethod.addHeader("Authorization", "Basic " + getCredentials());
             }
-            client.getParams().setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, DEFAULT_POST_REQUEST_TIMEOUT);
-            client.getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT, DEFAULT_POST_REQUEST_TIMEOUT);
+            // The client is shared, so timeouts are set for this request only
+            postMethod.getParams().setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, DEFAULT_POST_REQUEST_TIMEOUT);
+            postMethod.getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT, DEFAULT_POST_REQUEST_TIMEOUT);
             HttpResponse httpResponse = client.execute(postMethod);
             statusCode = httpResponse.getStatusLine().getStatusCode();
             result = retrieveInputStream(httpResponse.getEntity());
+            responseRead = true;
             jObj = new JSONObject(result);
             if (jObj != null) {
                 String error = jObj.optString("error");
@@ -90,7 +94,10 @@ public class HttpConnectionBasic extends HttpConnection implements HttpApacheReq
             MyLog.e(this, method, e);
             throw new ConnectionException(e);
         } finally {
-            postMethod.abort();
+            if (!responseRead) {
+                // Otherwise the connection is already released and may be reused
+                postMethod.abort();
+            }
         }
         parseStatusCode(statusCode);
         return jObj;
@@ -107,6 +114,11 @@ public class HttpConnectionBasic extends HttpConnection implements HttpApacheReq
         HttpGet get = new HttpGet(pathToUrl(path));
         return new HttpApacheUtils(this).getRequestAsArray(get);
     }
+
+    @Override
+    protected final int getRequestArrayItems(String path, JsonArrayReader.ItemHandler handler) throws ConnectionException {
+        return new HttpApacheUtils(this).getRequestArrayItems(path, handler);
+    }
     
     /**
      * Execute a GET request against the Twitter REST API.
@@ -121,22 +133,33 @@ public class HttpConnectionBasic extends HttpConnection implements HttpApacheReq
         String response = null;
         boolean ok = false;
         int statusCode = 0;
-        HttpClient client = HttpApacheUtils.getHttpClient();
         try {
-            getMethod.setHeader("User-Agent", HttpConnection.USER_AGENT);
-            getMethod.addHeader("Authorization", "Basic " + getCredentials());
-            client.getParams().setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, DEFAULT_GET_REQUEST_TIMEOUT);
-            client.getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT, DEFAULT_GET_REQUEST_TIMEOUT);
-            HttpResponse httpResponse = client.execute(getMethod);
+            HttpResponseCache.Entry cached = HttpApacheUtils.setValidators(data, getMethod);
+            HttpResponse httpResponse = executeGet(getMethod);
             statusCode = httpResponse.getStatusLine().getStatusCode();
-            response = retrieveInputStream(httpResponse.getEntity());
-            jso = new JSONTokener(response);
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                jso = HttpApacheUtils.onNotModified(cached, httpResponse);
+            } else {
+                if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                    throw new ConnectionException("Not modified, but no cached response for " + getMethod.getURI());
+                }
+                response = retrieveInputStream(httpResponse.getEntity());
+                if (statusCode == HttpStatus.SC_OK) {
+                    jso = HttpApacheUtils.onResponse(data, getMethod, httpResponse, response);
+                } else {
+                    jso = new JSONTokener(response);
+                }
+            }
             ok = true;
+        } catch (ConnectionException e) {
+            throw e;
         } catch (Exception e) {
             MyLog.e(this, "getRequest", e);
             throw new ConnectionException(e);
         } finally {
-            getMethod.abort();
+            if (!ok) {
+                getMethod.abort();
+            }
         }
         parseStatusCode(statusCode);
         if (!ok) {
@@ -145,6 +168,46 @@ public class HttpConnectionBasic extends HttpConnection implements HttpApacheReq
         return jso;
     }
 
+    @Override
+    public int getRequestArrayItems(HttpGet getMethod, JsonArrayReader.ItemHandler handler) throws ConnectionException {
+        int count = 0;
+        boolean ok = false;
+        int statusCode = 0;
+        try {
+            HttpResponse httpResponse = executeGet(getMethod);
+            statusCode = httpResponse.getStatusLine().getStatusCode();
+            if (statusCode == 200) {
+                count = HttpApacheUtils.readArrayItems(this, httpResponse.getEntity(), handler);
+            } else {
+                retrieveInputStream(httpResponse.getEntity());
+            }
+            ok = true;
+        } catch (ConnectionException e) {
+            throw e;
+        } catch (Exception e) {
+            MyLog.e(this, "getRequestArrayItems", e);
+            throw new ConnectionException(e);
+        } finally {
+            if (!ok) {
+                getMethod.abort();
+            }
+        }
+        parseStatusCode(statusCode);
+        return count;
+    }
+
+    private HttpResponse executeGet(HttpGet getMethod) throws IOException {
+        HttpClient client = HttpApacheUtils.getHttpClient(data);
+        getMethod.setHeader("User-Agent", HttpConnection.USER_AGENT);
+        getMethod.addHeader("Authorization", "Basic " + getCredentials());
+        // The client is shared, so timeouts are set for this request only
+        getMethod.getParams().setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, DEFAULT_GET_REQUEST_TIMEOUT);
+        getMethod.getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT, DEFAULT_GET_REQUEST_TIMEOUT);
+        HttpResponse response = client.execute(getMethod);
+        RateLimitTracker.getInstance().onResponse(data, getMethod.getURI().toString(), response);
+        return response;
+    }
+
     @Override
     public boolean getCredentialsPresent() {
         return !TextUtils.isEmpty(data.accountUsername) 
@@ -244,7 +307,6 @@ public class HttpConnectionBasic extends HttpConnection implements HttpApacheReq
     private void parseStatusCode(int code) throws ConnectionException {
         switch (code) {
         case 200:
-        case 304:
             break;
         case 401:
             throw new ConnectionException(String.valueOf(code));
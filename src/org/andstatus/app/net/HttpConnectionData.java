@@ -22,6 +22,7 @@ import org.andstatus.app.origin.OriginType;
 import org.andstatus.app.util.MyLog;
 
 class HttpConnectionData implements Cloneable {
+    protected long originId;
     protected OriginType originType;
 
     protected boolean isSsl;
@@ -40,6 +41,7 @@ class HttpConnectionData implements Cloneable {
     
     static HttpConnectionData fromConnectionData(OriginConnectionData oConnectionData) {
         HttpConnectionData data = new HttpConnectionData();
+        data.originId = oConnectionData.getOriginId();
         data.originType = oConnectionData.getOriginType();
         data.isSsl = oConnectionData.isSsl();
         data.basicPath = oConnectionData.getBasicPath();
@@ -63,7 +65,7 @@ class HttpConnectionData implements Cloneable {
 
     @Override
     public String toString() {
-        return "HttpConnectionData {" + originType + ", isSsl:" + isSsl + ", basicPath:"
+        return "HttpConnectionData {originId:" + originId + ", " + originType + ", isSsl:" + isSsl + ", basicPath:"
                 + basicPath + ", oauthPath:" + oauthPath + ", accountUsername:" + accountUsername
                 + ", host:" + host + ", hostForUserToken:" + hostForUserToken + ", dataReader:"
                 + dataReader + ", oauthClientKeys:" + oauthClientKeys + "}";
@@ -23,11 +23,16 @@ import oauth.signpost.commonshttp.CommonsHttpOAuthProvider;
 
 import org.andstatus.app.net.Connection.ApiRoutineEnum;
 import org.andstatus.app.util.MyLog;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -36,13 +41,13 @@ import org.json.JSONTokener;
 public class HttpConnectionOAuthApache extends HttpConnectionOAuth implements HttpApacheRequest {
     private static final String NULL_JSON = "(null)";
     private static final String TAG = HttpConnectionOAuth.class.getSimpleName();
-    private HttpClient mClient;
 
-    @Override
-    protected void setConnectionData(HttpConnectionData connectionData) {
-        super.setConnectionData(connectionData);
-        mClient = HttpApacheUtils.getHttpClient();
-    }  
+    /**
+     * The client is not stored here, because pooled clients are shut down when the service stops
+     */
+    private HttpClient getHttpClient() {
+        return HttpApacheUtils.getHttpClient(data);
+    }
 
     @Override
     public OAuthProvider getProvider() {
@@ -50,7 +55,7 @@ public class HttpConnectionOAuthApache extends HttpConnectionOAuth implements Ht
         provider = new CommonsHttpOAuthProvider(getApiUrl(ApiRoutineEnum.OAUTH_REQUEST_TOKEN),
                 getApiUrl(ApiRoutineEnum.OAUTH_ACCESS_TOKEN), getApiUrl(ApiRoutineEnum.OAUTH_AUTHORIZE));
 
-        provider.setHttpClient(mClient);
+        provider.setHttpClient(getHttpClient());
         provider.setOAuth10a(true);
         return provider;
     }
@@ -67,21 +72,42 @@ public class HttpConnectionOAuthApache extends HttpConnectionOAuth implements Ht
         return new HttpApacheUtils(this).getRequestAsArray(get);
     }
 
+    @Override
+    protected final int getRequestArrayItems(String path, JsonArrayReader.ItemHandler handler) throws ConnectionException {
+        return new HttpApacheUtils(this).getRequestArrayItems(path, handler);
+    }
+
     @Override
     public JSONTokener getRequest(HttpGet get) throws ConnectionException {
         JSONTokener jso = null;
-        String response = null;
         boolean ok = false;
         try {
+            HttpResponseCache.Entry cached = HttpApacheUtils.setValidators(data, get);
             if (data.oauthClientKeys.areKeysPresent()) {
                 getConsumer().sign(get);
             }
-            response = mClient.execute(get, new BasicResponseHandler());
-            jso = new JSONTokener(response);
+            HttpResponse response = getHttpClient().execute(get);
+            RateLimitTracker.getInstance().onResponse(data, get.getURI().toString(), response);
+            StatusLine statusLine = response.getStatusLine();
+            if (statusLine.getStatusCode() == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                jso = HttpApacheUtils.onNotModified(cached, response);
+            } else {
+                if (statusLine.getStatusCode() >= 300) {
+                    // The same as in the BasicResponseHandler
+                    throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+                }
+                HttpEntity entity = response.getEntity();
+                String body = entity == null ? null : EntityUtils.toString(entity);
+                jso = HttpApacheUtils.onResponse(data, get, response, body);
+            }
             ok = true;
         } catch (Exception e) {
             MyLog.e(this, "Exception was caught, URL='" + get.getURI().toString() + "'", e);
             throw new ConnectionException(e);
+        } finally {
+            if (!ok) {
+                get.abort();
+            }
         }
         if (!ok) {
             jso = null;
@@ -89,6 +115,35 @@ public class HttpConnectionOAuthApache extends HttpConnectionOAuth implements Ht
         return jso;
     }
 
+    @Override
+    public int getRequestArrayItems(HttpGet get, JsonArrayReader.ItemHandler handler) throws ConnectionException {
+        boolean ok = false;
+        try {
+            if (data.oauthClientKeys.areKeysPresent()) {
+                getConsumer().sign(get);
+            }
+            HttpResponse response = getHttpClient().execute(get);
+            RateLimitTracker.getInstance().onResponse(data, get.getURI().toString(), response);
+            StatusLine statusLine = response.getStatusLine();
+            if (statusLine.getStatusCode() >= 300) {
+                // The same as in the BasicResponseHandler
+                throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+            }
+            int count = HttpApacheUtils.readArrayItems(this, response.getEntity(), handler);
+            ok = true;
+            return count;
+        } catch (ConnectionException e) {
+            throw e;
+        } catch (Exception e) {
+            MyLog.e(this, "Exception was caught, URL='" + get.getURI().toString() + "'", e);
+            throw new ConnectionException(e);
+        } finally {
+            if (!ok) {
+                get.abort();
+            }
+        }
+    }
+
     @Override
     public OAuthConsumer getConsumer() {
         OAuthConsumer consumer = new CommonsHttpOAuthConsumer(data.oauthClientKeys.getConsumerKey(),
@@ -119,7 +174,7 @@ public class HttpConnectionOAuthApache extends HttpConnectionOAuth implements Ht
                 // sign the request to authenticate
                 getConsumer().sign(post);
             }
-            response = mClient.execute(post, new BasicResponseHandler());
+            response = getHttpClient().execute(post, new BasicResponseHandler());
             jso = new JSONObject(response);
             ok = true;
         } catch (HttpResponseException e) {
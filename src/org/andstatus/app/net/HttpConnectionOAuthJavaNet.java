@@ -33,8 +33,10 @@ import org.andstatus.app.util.MyLog;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -61,6 +63,7 @@ public class HttpConnectionOAuthJavaNet extends HttpConnectionOAuth {
         try {
             URL endpoint = new URL(pathToUrl(path));
             HttpURLConnection conn = (HttpURLConnection) endpoint.openConnection();
+            HttpCompression.acceptCompressed(conn);
                     
             HashMap<String, String> params = new HashMap<String, String>();
             params.put("type", "client_associate");
@@ -77,11 +80,11 @@ public class HttpConnectionOAuthJavaNet extends HttpConnectionOAuth {
             writer.close();
             
             if(conn.getResponseCode() != 200) {
-                String msg = HttpJavaNetUtils.readAll(new InputStreamReader(conn.getErrorStream(), "UTF-8"));
+                String msg = HttpJavaNetUtils.readAll(new InputStreamReader(HttpCompression.getErrorStream(conn), "UTF-8"));
                 MyLog.e(this, "Server returned an error response: " + msg);
                 MyLog.e(this, "Server returned an error response: " + conn.getResponseMessage());
             } else {
-                String response = HttpJavaNetUtils.readAll(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+                String response = HttpJavaNetUtils.readAll(new InputStreamReader(HttpCompression.getInputStream(conn), "UTF-8"));
                 JSONObject jso = new JSONObject(response);
                 if (jso != null) {
                     consumerKey = jso.getString("client_id");
@@ -128,6 +131,7 @@ public class HttpConnectionOAuthJavaNet extends HttpConnectionOAuth {
             conn.setDoInput(true);
             conn.setRequestMethod("POST");
             conn.setRequestProperty("Content-Type", "application/json");
+            HttpCompression.acceptCompressed(conn);
             setAuthorization(conn, getConsumer(), false);
             
             if (jso != null) {
@@ -141,10 +145,10 @@ public class HttpConnectionOAuthJavaNet extends HttpConnectionOAuth {
             int responseCode = conn.getResponseCode();
             switch(responseCode) {
                 case 200:
-                    result = new JSONObject(HttpJavaNetUtils.readAll(conn.getInputStream()));
+                    result = new JSONObject(HttpJavaNetUtils.readAll(HttpCompression.getInputStream(conn)));
                     break;
                 default:
-                    String responseString = HttpJavaNetUtils.readAll(new InputStreamReader(conn.getErrorStream(), "UTF-8"));
+                    String responseString = HttpJavaNetUtils.readAll(new InputStreamReader(HttpCompression.getErrorStream(conn), "UTF-8"));
                     throw exceptionFromJsonErrorResponse(path, responseCode, responseString, StatusCode.UNKNOWN);
             }
         } catch (JSONException e) {
@@ -184,57 +188,32 @@ public class HttpConnectionOAuthJavaNet extends HttpConnectionOAuth {
         String responseString = "";
         JSONObject result = null;
         try {
-            OAuthConsumer consumer = getConsumer();
-            
-            URL url = new URL(pathToUrl(path));
-            HttpURLConnection conn;
-            boolean redirected = false;
-            boolean done=false;
-            do {
-                conn = (HttpURLConnection) url.openConnection();
-                conn.setInstanceFollowRedirects(false);
-                setAuthorization(conn, consumer, redirected);
-                conn.connect();
-                int responseCode = conn.getResponseCode();
-                StatusCode statusCode = StatusCode.fromResponseCode(responseCode);
-                switch(responseCode) {
-                    case 200:
-                        try {
-                            responseString = HttpJavaNetUtils.readAll(conn.getInputStream());
-                            result = new JSONObject(responseString);
-                            done = true;
-                        } catch (JSONException e) {
-                            throw ConnectionException.loggedJsonException(this, e, null,
-                                    "Error reading response from '"
-                                            + path + COMMA_STATUS
-                                            + responseCode + NON_JSON_RESPONSE + responseString
-                                            + "'");
-                        }
-                        break;
-                    case 301:
-                    case 302:
-                    case 303:
-                    case 307:
-                        url = new URL(conn.getHeaderField("Location").replace("%3F", "?"));
-                        MyLog.v(this, "Following redirect to " + url);
-                        redirected = true;
-                        if (MyLog.isLoggable(MyLog.APPTAG, MyLog.VERBOSE)) {
-                            StringBuilder message = new StringBuilder("Headers: ");
-                            for (int posn=0 ; ; posn++) {
-                                String fieldName = conn.getHeaderFieldKey(posn);
-                                if ( fieldName == null) {
-                                    MyLog.v(this, message.toString());
-                                    break;
-                                }
-                                message.append(fieldName +": " + conn.getHeaderField(fieldName) + "; ");
-                            }
-                        }
-                        break;                        
-                    default:
-                        responseString = HttpJavaNetUtils.readAll(new InputStreamReader(conn.getErrorStream(), "UTF-8"));
-                        throw exceptionFromJsonErrorResponse(path, responseCode, responseString, statusCode);
+            String url = pathToUrl(path);
+            HttpResponseCache.Entry cached = HttpResponseCache.getInstance().get(data, url);
+            HttpURLConnection conn = openGetConnection(path, cached);
+            try {
+                JSONTokener jst;
+                if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    HttpResponseCache.getInstance().onNotModified(cached);
+                    jst = cached.newTokener();
+                } else {
+                    responseString = HttpJavaNetUtils.readAll(HttpCompression.getInputStream(conn));
+                    jst = HttpResponseCache.getInstance().put(data, url,
+                            conn.getHeaderField(HttpResponseCache.ETAG),
+                            conn.getHeaderField(HttpResponseCache.LAST_MODIFIED), responseString).newTokener();
                 }
-            } while (!done);
+                Object value = jst.nextValue();
+                if (!JSONObject.class.isInstance(value)) {
+                    throw new JSONException("Not an object");
+                }
+                result = (JSONObject) value;
+            } catch (JSONException e) {
+                throw ConnectionException.loggedJsonException(this, e, null,
+                        "Error reading response from '"
+                                + path + COMMA_STATUS
+                                + conn.getResponseCode() + NON_JSON_RESPONSE + responseString
+                                + "'");
+            }
         } catch (ConnectionException e) {
             throw e;
         } catch(Exception e) {
@@ -243,6 +222,97 @@ public class HttpConnectionOAuthJavaNet extends HttpConnectionOAuth {
         return result;
     }
 
+    /**
+     * Parses the "items" array of the response as it arrives, see {@link JsonArrayReader}
+     */
+    @Override
+    protected int getRequestArrayItems(String path, JsonArrayReader.ItemHandler handler) throws ConnectionException {
+        if (TextUtils.isEmpty(path)) {
+            throw new IllegalArgumentException("path is empty");
+        }
+        InputStream in = null;
+        try {
+            HttpURLConnection conn = openGetConnection(path, null);
+            in = HttpCompression.getInputStream(conn);
+            return JsonArrayReader.fromStream(in, "items").read(handler);
+        } catch (JSONException e) {
+            throw ConnectionException.loggedJsonException(this, e, null, "Error reading array from '" + path + "'");
+        } catch (ConnectionException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new ConnectionException(ERROR_GETTING + path + "'", e);
+        } finally {
+            DbUtils.closeSilently(in);
+        }
+    }
+
+    /**
+     * Follows redirects
+     * @param cached If not null, the request is conditional, see {@link HttpResponseCache}
+     * @return Connection with the successful or "Not modified" response, ready to be read
+     */
+    private HttpURLConnection openGetConnection(String path, HttpResponseCache.Entry cached) throws IOException, ConnectionException,
+            OAuthMessageSignerException, OAuthExpectationFailedException, OAuthCommunicationException {
+        OAuthConsumer consumer = getConsumer();
+        URL url = new URL(pathToUrl(path));
+        HttpURLConnection conn;
+        boolean redirected = false;
+        boolean done=false;
+        do {
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setInstanceFollowRedirects(false);
+            HttpCompression.acceptCompressed(conn);
+            if (cached != null) {
+                if (!TextUtils.isEmpty(cached.getETag())) {
+                    conn.setRequestProperty(HttpResponseCache.IF_NONE_MATCH, cached.getETag());
+                }
+                if (!TextUtils.isEmpty(cached.getLastModified())) {
+                    conn.setRequestProperty(HttpResponseCache.IF_MODIFIED_SINCE, cached.getLastModified());
+                }
+            }
+            setAuthorization(conn, consumer, redirected);
+            conn.connect();
+            int responseCode = conn.getResponseCode();
+            RateLimitTracker.getInstance().onResponse(data, url.toExternalForm(), conn);
+            StatusCode statusCode = StatusCode.fromResponseCode(responseCode);
+            switch(responseCode) {
+                case 200:
+                    done = true;
+                    break;
+                case 304:
+                    if (cached == null) {
+                        throw new ConnectionException(statusCode, ERROR_GETTING + path + COMMA_STATUS + responseCode
+                                + ", no cached response");
+                    }
+                    done = true;
+                    break;
+                case 301:
+                case 302:
+                case 303:
+                case 307:
+                    url = new URL(conn.getHeaderField("Location").replace("%3F", "?"));
+                    MyLog.v(this, "Following redirect to " + url);
+                    redirected = true;
+                    if (MyLog.isLoggable(MyLog.APPTAG, MyLog.VERBOSE)) {
+                        StringBuilder message = new StringBuilder("Headers: ");
+                        for (int posn=0 ; ; posn++) {
+                            String fieldName = conn.getHeaderFieldKey(posn);
+                            if ( fieldName == null) {
+                                MyLog.v(this, message.toString());
+                                break;
+                            }
+                            message.append(fieldName +": " + conn.getHeaderField(fieldName) + "; ");
+                        }
+                    }
+                    break;                        
+                default:
+                    String responseString = HttpJavaNetUtils.readAll(new InputStreamReader(HttpCompression.getErrorStream(conn), "UTF-8"));
+                    throw exceptionFromJsonErrorResponse(path, responseCode, responseString, statusCode);
+            }
+        } while (!done);
+        return conn;
+    }
+
     public ConnectionException exceptionFromJsonErrorResponse(String path, int responseCode, String responseString,
             StatusCode statusCode) {
         ConnectionException ce = null;
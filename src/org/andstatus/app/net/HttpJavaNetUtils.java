@@ -65,10 +65,18 @@ public class HttpJavaNetUtils {
     }
 
     public static InputStream urlOpenStream(URL url) throws IOException {
+        URLConnection con = urlOpenConnection(url);
+        InputStream is = con.getInputStream();
+        return is;
+    }
+
+    /**
+     * @return Connection with timeouts set, not connected yet, so request headers may be added
+     */
+    public static URLConnection urlOpenConnection(URL url) throws IOException {
         URLConnection con = url.openConnection();
         con.setConnectTimeout(CONNECTION_TIMEOUT_MS);
         con.setReadTimeout(CONNECTION_TIMEOUT_MS);
-        InputStream is = con.getInputStream();
-        return is;
+        return con;
     }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.net.Connection.ApiRoutineEnum;
+import org.andstatus.app.util.MyMetrics;
+
+import java.util.Locale;
+
+/**
+ * Latency and transferred bytes of HTTP requests per {@link ApiRoutineEnum}, see {@link MyMetrics}.
+ * The routine is known, when the path of a request is built by {@link Connection#getApiPath(ApiRoutineEnum)},
+ * and the response is read later in the same thread, so the routine is passed from the one to the other
+ * in a thread-local variable. The latency is measured till the response is read to the end,
+ * see {@link HttpCompression}. Responses to the paths, which were built otherwise, are counted for "unknown" routine
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+final class HttpMetrics {
+    private static final String PREFIX = "http.";
+    private static final ThreadLocal<Request> REQUEST = new ThreadLocal<Request>();
+
+    private static class Request {
+        final ApiRoutineEnum routine;
+        final long startedAt;
+
+        Request(ApiRoutineEnum routine) {
+            this.routine = routine;
+            startedAt = System.currentTimeMillis();
+        }
+    }
+
+    private HttpMetrics() {
+    }
+
+    static void onRequestStarted(ApiRoutineEnum routine) {
+        REQUEST.set(new Request(routine));
+    }
+
+    /**
+     * @param transferredBytes 0 if the response has no body, e.g. for the "Not Modified" response
+     */
+    static void onResponseRead(long transferredBytes) {
+        Request request = REQUEST.get();
+        REQUEST.remove();
+        String name = PREFIX + (request == null ? "unknown" : request.routine.name().toLowerCase(Locale.US));
+        MyMetrics.counter(name + ".responses").increment();
+        MyMetrics.counter(name + ".bytes").add(transferredBytes);
+        if (request != null) {
+            MyMetrics.histogram(name + ".ms").recordSince(request.startedAt);
+        }
+    }
+}
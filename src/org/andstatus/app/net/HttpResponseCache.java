@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.data.DbUtils;
+import org.andstatus.app.util.MyLog;
+import org.json.JSONTokener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Responses to GET requests, which have validators ("ETag" and/or "Last-Modified" headers),
+ * keyed by the Origin, the account and the URL.
+ * The validators are sent with the next request to the same URL ("If-None-Match", "If-Modified-Since"),
+ * and if the server answers "304 Not Modified", the cached response is used, so only headers are transferred.
+ * <p>
+ * Responses are stored in files in the application's cache directory, not more than {@link #MAX_FILES} of them.
+ * Recently used responses are kept in memory, so an unchanged response is not read from its file again.
+ * Each caller parses the body with its own {@link JSONTokener}, so parsed values are not shared between requests.
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+final class HttpResponseCache {
+    private static final String TAG = HttpResponseCache.class.getSimpleName();
+
+    static final String ETAG = "ETag";
+    static final String LAST_MODIFIED = "Last-Modified";
+    static final String IF_NONE_MATCH = "If-None-Match";
+    static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    static final int MAX_FILES = 100;
+    /** Larger responses are not cached */
+    static final int MAX_BODY_LENGTH = 256 * 1024;
+    static final int MAX_ENTRIES_IN_MEMORY = 16;
+    private static final String DIRECTORY = "http";
+    private static final String FILE_SUFFIX = ".json";
+
+    private static final HttpResponseCache INSTANCE = new HttpResponseCache(null, MAX_FILES);
+
+    /** null means the cache directory of the application, which is known when the context is initialized */
+    private final File dirOverride;
+    private final int maxFiles;
+    @GuardedBy("this")
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(MAX_ENTRIES_IN_MEMORY, 0.75f, true);
+    @GuardedBy("this")
+    private long stored = 0;
+    @GuardedBy("this")
+    private long notModified = 0;
+
+    static final class Entry {
+        private final String key;
+        private final String eTag;
+        private final String lastModified;
+        private final String body;
+
+        Entry(String key, String eTag, String lastModified, String body) {
+            this.key = key;
+            this.eTag = eTag == null ? "" : eTag;
+            this.lastModified = lastModified == null ? "" : lastModified;
+            this.body = body == null ? "" : body;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        String getLastModified() {
+            return lastModified;
+        }
+
+        String getBody() {
+            return body;
+        }
+
+        boolean hasValidators() {
+            return !TextUtils.isEmpty(eTag) || !TextUtils.isEmpty(lastModified);
+        }
+
+        JSONTokener newTokener() {
+            return new JSONTokener(body);
+        }
+    }
+
+    static HttpResponseCache getInstance() {
+        return INSTANCE;
+    }
+
+    HttpResponseCache(File dirOverride, int maxFiles) {
+        this.dirOverride = dirOverride;
+        this.maxFiles = maxFiles;
+    }
+
+    static String keyOf(HttpConnectionData data, String url) {
+        return data.originId + ";" + data.accountUsername + ";" + url;
+    }
+
+    /**
+     * @return Cached response to the request or null
+     */
+    Entry get(HttpConnectionData data, String url) {
+        return get(keyOf(data, url));
+    }
+
+    synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = read(key);
+            if (entry != null) {
+                putToMemory(entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the response, if it has validators, replacing previously cached response to the same request
+     * @return The response as an Entry, even if it was not cached
+     */
+    Entry put(HttpConnectionData data, String url, String eTag, String lastModified, String body) {
+        return put(new Entry(keyOf(data, url), eTag, lastModified, body));
+    }
+
+    synchronized Entry put(Entry entry) {
+        if (!entry.hasValidators() || entry.getBody().length() > MAX_BODY_LENGTH) {
+            entries.remove(entry.key);
+            delete(entry.key);
+            return entry;
+        }
+        putToMemory(entry);
+        write(entry);
+        stored++;
+        return entry;
+    }
+
+    /**
+     * The server confirmed that the cached response is still valid
+     */
+    synchronized void onNotModified(Entry entry) {
+        notModified++;
+        HttpMetrics.onResponseRead(0);
+        File file = getFile(entry.key);
+        if (file != null && file.exists() && !file.setLastModified(System.currentTimeMillis())) {
+            MyLog.v(TAG, "Couldn't touch " + file.getName());
+        }
+        MyLog.v(TAG, "Not modified: " + entry.key);
+    }
+
+    private void putToMemory(Entry entry) {
+        entries.put(entry.key, entry);
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > MAX_ENTRIES_IN_MEMORY && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private Entry read(String key) {
+        File file = getFile(key);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String storedKey = reader.readLine();
+            if (!key.equals(storedKey)) {
+                // Different keys with the same hash code
+                return null;
+            }
+            String eTag = reader.readLine();
+            String lastModified = reader.readLine();
+            return new Entry(key, eTag, lastModified, HttpJavaNetUtils.readAll(reader));
+        } catch (IOException e) {
+            MyLog.e(TAG, "Reading " + file.getName(), e);
+            return null;
+        } finally {
+            DbUtils.closeSilently(reader);
+        }
+    }
+
+    private void write(Entry entry) {
+        File file = getFile(entry.key);
+        if (file == null) {
+            return;
+        }
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        Writer writer = null;
+        boolean ok = false;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+            writer.write(entry.key + "\n" + entry.eTag + "\n" + entry.lastModified + "\n");
+            writer.write(entry.body);
+            writer.close();
+            writer = null;
+            ok = tmpFile.renameTo(file);
+        } catch (IOException e) {
+            MyLog.e(TAG, "Writing " + file.getName(), e);
+        } finally {
+            DbUtils.closeSilently(writer);
+            if (!ok && tmpFile.exists() && !tmpFile.delete()) {
+                MyLog.v(TAG, "Couldn't delete " + tmpFile.getName());
+            }
+        }
+        if (ok) {
+            trim(file);
+        }
+    }
+
+    /**
+     * Deletes least recently used files, if there are more than {@link #maxFiles} of them
+     * @param written The file, which was just written, is kept
+     */
+    private void trim(File written) {
+        File[] files = written.getParentFile().listFiles();
+        if (files == null || files.length <= maxFiles) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return diff == 0 ? 0 : (diff < 0 ? -1 : 1);
+            }
+        });
+        int toDelete = files.length - maxFiles;
+        for (int ind = 0; ind < files.length && toDelete > 0; ind++) {
+            if (files[ind].equals(written)) {
+                continue;
+            }
+            toDelete--;
+            if (!files[ind].delete()) {
+                MyLog.v(TAG, "Couldn't delete " + files[ind].getName());
+            }
+        }
+    }
+
+    private void delete(String key) {
+        File file = getFile(key);
+        if (file != null && file.exists() && !file.delete()) {
+            MyLog.v(TAG, "Couldn't delete " + file.getName());
+        }
+    }
+
+    /**
+     * @return null if the cache directory is not available
+     */
+    private File getFile(String key) {
+        File dir = getDir();
+        if (dir == null) {
+            return null;
+        }
+        return new File(dir, Integer.toHexString(key.hashCode()) + FILE_SUFFIX);
+    }
+
+    private File getDir() {
+        File dir = dirOverride;
+        if (dir == null) {
+            Context context = MyContextHolder.get().context();
+            if (context == null || context.getCacheDir() == null) {
+                return null;
+            }
+            dir = new File(context.getCacheDir(), DIRECTORY);
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            MyLog.v(TAG, "Couldn't create " + dir.getAbsolutePath());
+            return null;
+        }
+        return dir;
+    }
+
+    /**
+     * Forgets all cached responses
+     */
+    synchronized void clear() {
+        entries.clear();
+        File dir = getDir();
+        File[] files = dir == null ? null : dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    MyLog.v(TAG, "Couldn't delete " + file.getName());
+                }
+            }
+        }
+    }
+
+    synchronized long getStored() {
+        return stored;
+    }
+
+    synchronized long getNotModified() {
+        return notModified;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "{inMemory:" + entries.size() + ", stored:" + stored + ", notModified:" + notModified + "}";
+    }
+}
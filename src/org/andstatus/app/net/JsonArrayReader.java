@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads a JSON array of objects from a stream one item at a time,
+ * so neither the whole response nor the whole {@link org.json.JSONArray} is kept in memory.
+ * Only the current item is parsed into a {@link JSONObject} and handed over to the {@link ItemHandler}.
+ * <p>
+ * The array is either the root value of the response or an array value of the root object:
+ * the value of the "arrayKey" or, if the key is null, the first array found.
+ * Values of other keys are skipped without parsing.
+ * We don't use android.util.JsonReader as it's available since API 11 only.
+ * @author yvolk@yurivolkov.com
+ */
+class JsonArrayReader {
+    private static final int NONE = -2;
+
+    interface ItemHandler {
+        void onItem(JSONObject item) throws ConnectionException;
+    }
+
+    private final Reader reader;
+    private final String arrayKey;
+    private int pushedBack = NONE;
+    private long position = 0;
+
+    static JsonArrayReader fromStream(InputStream in, String arrayKey) throws UnsupportedEncodingException {
+        return new JsonArrayReader(new BufferedReader(new InputStreamReader(in, "UTF-8")), arrayKey);
+    }
+
+    JsonArrayReader(Reader reader, String arrayKey) {
+        this.reader = reader;
+        this.arrayKey = arrayKey;
+    }
+
+    /**
+     * @return Number of items read
+     * @throws ConnectionException if there is no array in the response or an item is not an object
+     */
+    int read(ItemHandler handler) throws IOException, JSONException, ConnectionException {
+        if (!findArray()) {
+            throw new ConnectionException("No array was returned"
+                    + (arrayKey == null ? "" : ", key='" + arrayKey + "'"));
+        }
+        int count = 0;
+        int c = nextNonWhitespace();
+        if (c == ']') {
+            return count;
+        }
+        pushBack(c);
+        StringBuilder itemText = new StringBuilder();
+        while (true) {
+            itemText.setLength(0);
+            readValue(itemText);
+            Object item = new JSONTokener(itemText.toString()).nextValue();
+            if (!JSONObject.class.isInstance(item)) {
+                throw ConnectionException.hardConnectionException("Array item " + count + " is not an object: '"
+                        + itemText + "'", null);
+            }
+            handler.onItem((JSONObject) item);
+            count++;
+            c = nextNonWhitespace();
+            if (c == ']') {
+                break;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or ']'", c);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Positions the reader after the opening bracket of the array
+     * @return false if the array was not found
+     */
+    private boolean findArray() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        if (c == '[') {
+            return true;
+        }
+        if (c != '{') {
+            throw syntaxError("Expected an array or an object", c);
+        }
+        c = nextNonWhitespace();
+        if (c == '}') {
+            return false;
+        }
+        pushBack(c);
+        StringBuilder keyText = new StringBuilder();
+        while (true) {
+            keyText.setLength(0);
+            readValue(keyText);
+            Object key = new JSONTokener(keyText.toString()).nextValue();
+            c = nextNonWhitespace();
+            if (c != ':') {
+                throw syntaxError("Expected ':' after the key " + keyText, c);
+            }
+            c = nextNonWhitespace();
+            if (c == '[' && (arrayKey == null || arrayKey.equals(key))) {
+                return true;
+            }
+            pushBack(c);
+            readValue(null);
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return false;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or '}'", c);
+            }
+        }
+    }
+
+    /**
+     * Reads one complete JSON value: an object, an array, a string or a literal
+     * @param out Text of the value is appended here, if not null
+     */
+    private void readValue(StringBuilder out) throws IOException, JSONException {
+        int depth = 0;
+        boolean inString = false;
+        for (int c = nextNonWhitespace(); ; c = read()) {
+            if (c < 0) {
+                throw syntaxError("Unexpected end of input", c);
+            }
+            if (inString) {
+                append(out, c);
+                if (c == '\\') {
+                    int escaped = read();
+                    if (escaped < 0) {
+                        throw syntaxError("Unexpected end of input", escaped);
+                    }
+                    append(out, escaped);
+                } else if (c == '"') {
+                    inString = false;
+                    if (depth == 0) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            switch (c) {
+                case '"':
+                    inString = true;
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    if (depth == 0) {
+                        // End of a literal, followed by the end of its container
+                        pushBack(c);
+                        return;
+                    }
+                    depth--;
+                    append(out, c);
+                    if (depth == 0) {
+                        return;
+                    }
+                    continue;
+                case ',':
+                    if (depth == 0) {
+                        pushBack(c);
+                        return;
+                    }
+                    break;
+                default:
+                    if (depth == 0 && Character.isWhitespace(c)) {
+                        return;
+                    }
+                    break;
+            }
+            append(out, c);
+        }
+    }
+
+    private static void append(StringBuilder out, int c) {
+        if (out != null) {
+            out.append((char) c);
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c >= 0 && Character.isWhitespace(c));
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (pushedBack != NONE) {
+            int c = pushedBack;
+            pushedBack = NONE;
+            return c;
+        }
+        position++;
+        return reader.read();
+    }
+
+    private void pushBack(int c) {
+        pushedBack = c;
+    }
+
+    private JSONException syntaxError(String message, int c) {
+        return new JSONException(message + ", found " + (c < 0 ? "end of input" : "'" + (char) c + "'")
+                + " at character " + position);
+    }
+}
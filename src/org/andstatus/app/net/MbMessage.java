@@ -110,7 +110,7 @@ public class MbMessage {
 
     /** Very simple method  
      */
-    private static boolean hasHtmlMarkup(String text) {
+    public static boolean hasHtmlMarkup(String text) {
         boolean has = false;
         if (text != null){
             has = text.contains("<") && text.contains(">");
@@ -24,8 +24,16 @@ package org.andstatus.app.net;
 public class MbRateLimitStatus {
     public int remaining = 0;
     public int limit = 0;
+    /** When the quota will be restored, milliseconds since the epoch. 0 if unknown */
+    public long resetTime = 0;
     
     public boolean isEmpty() {
       return limit == 0 && remaining == 0;   
     }
+
+    @Override
+    public String toString() {
+        return "MbRateLimitStatus {remaining:" + remaining + ", limit:" + limit
+                + (resetTime == 0 ? "" : ", resetTime:" + resetTime) + "}";
+    }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.util.MyLog;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remaining quota of requests per account and API endpoint, as reported in headers of the latest response:
+ * "X-RateLimit-Limit", "X-RateLimit-Remaining", "X-RateLimit-Reset" (Twitter API 1.0, StatusNet)
+ * or "x-rate-limit-*" (Twitter API 1.1).
+ * The quota is known without a separate request, see {@link Connection#getRateLimitStatus(Connection.ApiRoutineEnum)}
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+final class RateLimitTracker {
+    private static final String TAG = RateLimitTracker.class.getSimpleName();
+
+    private static final String[] LIMIT_HEADERS = {"X-RateLimit-Limit", "X-Rate-Limit-Limit"};
+    private static final String[] REMAINING_HEADERS = {"X-RateLimit-Remaining", "X-Rate-Limit-Remaining"};
+    private static final String[] RESET_HEADERS = {"X-RateLimit-Reset", "X-Rate-Limit-Reset"};
+    /** Smaller "reset" values are seconds till the reset, larger are seconds since the epoch */
+    private static final long MAX_RESET_DELTA_SECONDS = 365L * 24 * 60 * 60;
+
+    private static final RateLimitTracker INSTANCE = new RateLimitTracker();
+
+    @GuardedBy("this")
+    private final Map<String, MbRateLimitStatus> statuses = new HashMap<String, MbRateLimitStatus>();
+
+    static RateLimitTracker getInstance() {
+        return INSTANCE;
+    }
+
+    RateLimitTracker() {
+    }
+
+    void onResponse(HttpConnectionData data, String url, HttpResponse response) {
+        update(data, url, getHeader(response, LIMIT_HEADERS), getHeader(response, REMAINING_HEADERS),
+                getHeader(response, RESET_HEADERS));
+    }
+
+    void onResponse(HttpConnectionData data, String url, HttpURLConnection conn) {
+        update(data, url, getHeader(conn, LIMIT_HEADERS), getHeader(conn, REMAINING_HEADERS),
+                getHeader(conn, RESET_HEADERS));
+    }
+
+    private static String getHeader(HttpResponse response, String[] names) {
+        for (String name : names) {
+            Header header = response.getFirstHeader(name);
+            if (header != null) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String getHeader(HttpURLConnection conn, String[] names) {
+        for (String name : names) {
+            String value = conn.getHeaderField(name);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Responses without the headers don't change the known quota
+     */
+    void update(HttpConnectionData data, String url, String limit, String remaining, String reset) {
+        if (TextUtils.isEmpty(limit) || TextUtils.isEmpty(remaining)) {
+            return;
+        }
+        MbRateLimitStatus status = new MbRateLimitStatus();
+        try {
+            status.limit = Integer.parseInt(limit.trim());
+            status.remaining = Integer.parseInt(remaining.trim());
+            if (!TextUtils.isEmpty(reset)) {
+                long seconds = Long.parseLong(reset.trim());
+                status.resetTime = seconds < MAX_RESET_DELTA_SECONDS
+                        ? System.currentTimeMillis() + seconds * 1000 : seconds * 1000;
+            }
+        } catch (NumberFormatException e) {
+            MyLog.v(TAG, "Couldn't parse rate limit headers of " + url + ": " + e.getMessage());
+            return;
+        }
+        String key = keyOf(data, url);
+        synchronized (this) {
+            statuses.put(key, status);
+        }
+        if (MyLog.isLoggable(TAG, MyLog.VERBOSE)) {
+            MyLog.v(TAG, key + " " + status);
+        }
+    }
+
+    /**
+     * @return Copy of the latest known quota, empty if unknown
+     */
+    synchronized MbRateLimitStatus get(HttpConnectionData data, String url) {
+        MbRateLimitStatus status = statuses.get(keyOf(data, url));
+        MbRateLimitStatus copy = new MbRateLimitStatus();
+        if (status != null) {
+            copy.limit = status.limit;
+            copy.remaining = status.remaining;
+            copy.resetTime = status.resetTime;
+        }
+        return copy;
+    }
+
+    /**
+     * Quotas are per endpoint, so query parameters are not a part of the key
+     */
+    private static String keyOf(HttpConnectionData data, String url) {
+        String path = Uri.parse(url).getPath();
+        return data.originId + ";" + data.accountUsername + ";" + (path == null ? url : path);
+    }
+
+    synchronized void clear() {
+        statuses.clear();
+    }
+}
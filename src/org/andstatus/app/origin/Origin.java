@@ -427,11 +427,10 @@ public class Origin {
             if (origin.id == 0) {
                 values.put(MyDatabase.Origin.ORIGIN_NAME, origin.name);
                 values.put(MyDatabase.Origin.ORIGIN_TYPE_ID, origin.originType.getId());
-                origin.id = DbUtils.addRowWithRetry(MyDatabase.Origin.TABLE_NAME, values, 3);
+                origin.id = DbUtils.addRow(MyDatabase.Origin.TABLE_NAME, values);
                 changed = origin.isPersistent();
             } else {
-                changed = (DbUtils.updateRowWithRetry(MyDatabase.Origin.TABLE_NAME, origin.id,
-                        values, 3) != 0);
+                changed = (DbUtils.updateRow(MyDatabase.Origin.TABLE_NAME, origin.id, values) != 0);
             }
             if (changed && MyContextHolder.get().isReady()) {
                 MyPreferences.onPreferencesChanged();
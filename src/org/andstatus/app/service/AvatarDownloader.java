@@ -3,10 +3,10 @@ package org.andstatus.app.service;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
 import android.text.TextUtils;
 
 import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.data.AvatarCache;
 import org.andstatus.app.data.AvatarDrawable;
 import org.andstatus.app.data.AvatarStatus;
 import org.andstatus.app.data.DbUtils;
@@ -18,28 +18,50 @@ import org.andstatus.app.util.MyLog;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Downloads the avatar of one user. The download ({@link #download()}) and saving to the database
+ * ({@link #saveToDatabase(SQLiteDatabase)}) are separate steps,
+ * so that {@link AvatarFetchPool} may download avatars concurrently and save them in batches.
+ */
 class AvatarDownloader {
+    /** A loaded avatar is checked for changes (with a conditional request) after this period */
+    static final long REVALIDATE_PERIOD_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+    private static final int BUFFER_LENGTH = 8 * 1024;
+
     private long userId;
     private long rowId = 0;
     private String fileNameStored = "";
-    private AvatarStatus status = AvatarStatus.UNKNOWN; 
+    private AvatarStatus status = AvatarStatus.UNKNOWN;
+    private long loadedDateStored = 0;
+    private String etagStored = "";
+    private String lastModifiedStored = "";
 
     private boolean hardError = false;
     private boolean softError = false;
     private URL url = null;
+    private boolean downloaded = false;
+    private boolean notModified = false;
     private long loadTimeNew = 0;
     private String fileNameNew = "";
+    private String etagNew = "";
+    private String lastModifiedNew = "";
+    private final List<String> fileNamesToDelete = new ArrayList<String>();
 
     boolean mockNetworkError = false;
-    
+
     AvatarDownloader(long userIdIn) {
         userId = userIdIn;
         loadStoredData();
@@ -63,10 +85,13 @@ class AvatarDownloader {
                 + " AND " + Avatar.URL + "=" + MyProvider.quoteIfNotQuoted(url.toExternalForm()) ;
         String sql = "SELECT " + Avatar.STATUS + ", "
                 + Avatar._ID + ", "
-                + Avatar.FILE_NAME
-                + " FROM " + Avatar.TABLE_NAME 
+                + Avatar.FILE_NAME + ", "
+                + Avatar.LOADED_DATE + ", "
+                + Avatar.ETAG + ", "
+                + Avatar.LAST_MODIFIED
+                + " FROM " + Avatar.TABLE_NAME
                 + " WHERE " + where;
-        
+
         SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
         Cursor cursor = null;
         try {
@@ -76,28 +101,23 @@ class AvatarDownloader {
                 status = AvatarStatus.load(cursor.getInt(0));
                 rowId = cursor.getLong(1);
                 fileNameStored = cursor.getString(2);
+                loadedDateStored = cursor.getLong(3);
+                etagStored = cursor.getString(4);
+                lastModifiedStored = cursor.getString(5);
             }
         } finally {
             DbUtils.closeSilently(cursor);
         }
-        if (AvatarStatus.LOADED.equals(status) 
+        if (AvatarStatus.LOADED.equals(status)
                 && !new AvatarDrawable(userId, fileNameStored).exists()) {
            status = AvatarStatus.ABSENT;
         }
     }
-    
+
     void load(CommandData commandData) {
-        if (!hardError) {
-            switch (status) {
-                case LOADED:
-                    break;
-                case HARD_ERROR:
-                    hardError = true;
-                    break;
-                default:
-                    loadUrl();
-                    break;
-            }
+        if (download()) {
+            saveToDatabase(MyContextHolder.get().getDatabase().getWritableDatabase());
+            onSaved();
         }
         if (hardError) {
             commandData.getResult().incrementParseExceptions();
@@ -107,34 +127,64 @@ class AvatarDownloader {
         }
     }
 
-    private void loadUrl() {
+    /**
+     * @return false if there is no need to download the avatar
+     */
+    boolean isDownloadNeeded() {
+        if (hardError) {
+            return false;
+        }
+        switch (status) {
+            case LOADED:
+                return System.currentTimeMillis() - loadedDateStored > REVALIDATE_PERIOD_MILLIS;
+            case HARD_ERROR:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Downloads the avatar file, if needed. The database is not changed here
+     * @return true if the result should be saved to the database
+     */
+    boolean download() {
+        if (AvatarStatus.HARD_ERROR.equals(status)) {
+            hardError = true;
+        }
+        if (!isDownloadNeeded()) {
+            return false;
+        }
         loadTimeNew =  System.currentTimeMillis();
         fileNameNew =  Long.toString(userId) + "_" + Long.toString(loadTimeNew);
         downloadAvatarFile();
-        saveToDatabase();
-        if (!isError()) {
-            removeOld();
-            MyLog.v(this, "Loaded avatar userId=" + userId);
-        }
+        return true;
     }
 
     private void downloadAvatarFile() {
         String method = "downloadAvatarFile";
         File fileTemp = new AvatarDrawable(userId, "temp_" + fileNameNew).getFile();
         try {
-            InputStream is = HttpJavaNetUtils.urlOpenStream(url);
+            URLConnection connection = HttpJavaNetUtils.urlOpenConnection(url);
+            if (AvatarStatus.LOADED.equals(status)) {
+                addValidators(connection);
+            }
+            if (connection instanceof HttpURLConnection
+                    && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                notModified = true;
+                MyLog.v(this, "Avatar not modified, userId=" + userId);
+                return;
+            }
+            InputStream is = connection.getInputStream();
             try {
-                byte[] buffer = new byte[1024];
-                int length;
-                OutputStream out = null;
-                out = new BufferedOutputStream(new FileOutputStream(fileTemp));
+                etagNew = connection.getHeaderField("ETag");
+                lastModifiedNew = connection.getHeaderField("Last-Modified");
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(fileTemp));
                 try {
                     if (mockNetworkError) {
                         throw new IOException(method + ", Mocked IO exception");
                     }
-                    while ((length = is.read(buffer))>0) {
-                        out.write(buffer, 0, length);
-                      }
+                    copy(is, out);
                 } finally {
                     DbUtils.closeSilently(out);
                 }
@@ -148,6 +198,27 @@ class AvatarDownloader {
             logError(method, e);
             softError = true;
         }
+        moveTempFile(method, fileTemp);
+    }
+
+    private void addValidators(URLConnection connection) {
+        if (!TextUtils.isEmpty(etagStored)) {
+            connection.setRequestProperty("If-None-Match", etagStored);
+        }
+        if (!TextUtils.isEmpty(lastModifiedStored)) {
+            connection.setRequestProperty("If-Modified-Since", lastModifiedStored);
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_LENGTH];
+        int length;
+        while ((length = in.read(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+    }
+
+    private void moveTempFile(String method, File fileTemp) {
         if (isError()) {
             deleteFileLogged(fileTemp);
         }
@@ -157,6 +228,51 @@ class AvatarDownloader {
             MyLog.v(this, method + ", Couldn't rename file " + fileTemp + " to " + fileNew);
             softError = true;
         }
+        downloaded = !isError();
+    }
+
+    /**
+     * @return true if a new avatar file was downloaded successfully
+     */
+    boolean isDownloaded() {
+        return downloaded;
+    }
+
+    /**
+     * Takes the avatar file, downloaded from the same URL for another user, instead of downloading it
+     */
+    void copyFrom(AvatarDownloader source) {
+        String method = "copyFrom";
+        loadTimeNew =  System.currentTimeMillis();
+        fileNameNew =  Long.toString(userId) + "_" + Long.toString(loadTimeNew);
+        etagNew = source.etagNew;
+        lastModifiedNew = source.lastModifiedNew;
+        File fileTemp = new AvatarDrawable(userId, "temp_" + fileNameNew).getFile();
+        try {
+            InputStream is = new FileInputStream(new AvatarDrawable(source.userId, source.fileNameNew).getFile());
+            try {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(fileTemp));
+                try {
+                    copy(is, out);
+                } finally {
+                    DbUtils.closeSilently(out);
+                }
+            } finally {
+                DbUtils.closeSilently(is);
+            }
+        } catch (IOException e) {
+            logError(method, e);
+            softError = true;
+        }
+        moveTempFile(method, fileTemp);
+    }
+
+    URL getUrl() {
+        return url;
+    }
+
+    long getUserId() {
+        return userId;
     }
 
     private void deleteFileLogged(File file) {
@@ -168,8 +284,12 @@ class AvatarDownloader {
             }
         }
     }
-    
-    private void saveToDatabase() {
+
+    /**
+     * Saves the result of the {@link #download()}. Should be followed by {@link #onSaved()},
+     * after the transaction (if any) is committed
+     */
+    void saveToDatabase(SQLiteDatabase db) {
         if (hardError) {
             status = AvatarStatus.HARD_ERROR;
         } else if (softError) {
@@ -179,11 +299,12 @@ class AvatarDownloader {
         }
         try {
             if (rowId == 0) {
-                addNew();
+                addNew(db);
             } else {
-                update();
+                update(db);
             }
-            if (!isError()) {
+            if (!isError() && !notModified) {
+                removeOld(db);
                 fileNameStored = fileNameNew;
             }
         } catch (Exception e) {
@@ -192,7 +313,7 @@ class AvatarDownloader {
         }
     }
 
-    private void addNew() {
+    private void addNew(SQLiteDatabase db) {
        ContentValues values = new ContentValues();
        values.put(Avatar.USER_ID, userId);
        values.put(Avatar.VALID_FROM, loadTimeNew);
@@ -200,87 +321,109 @@ class AvatarDownloader {
        values.put(Avatar.STATUS, status.save());
        values.put(Avatar.FILE_NAME, fileNameNew);
        values.put(Avatar.LOADED_DATE, loadTimeNew);
+       putValidators(values);
 
-       rowId = DbUtils.addRowWithRetry(Avatar.TABLE_NAME, values, 3);
+       rowId = db.insert(Avatar.TABLE_NAME, null, values);
        if (rowId == -1) {
+           rowId = 0;
            softError = true;
        }
     }
 
+    private void putValidators(ContentValues values) {
+        if (!isError()) {
+            values.put(Avatar.ETAG, etagNew);
+            values.put(Avatar.LAST_MODIFIED, lastModifiedNew);
+        }
+    }
+
     private boolean isError() {
         return softError || hardError;
     }
-    
-    private void update() {
+
+    private void update(SQLiteDatabase db) {
         ContentValues values = new ContentValues();
         values.put(Avatar.STATUS, status.save());
-        if (!isError()) {
+        if (!isError() && !notModified) {
             values.put(Avatar.FILE_NAME, fileNameNew);
+            putValidators(values);
         }
         values.put(Avatar.LOADED_DATE, loadTimeNew);
 
-        if (DbUtils.updateRowWithRetry(Avatar.TABLE_NAME, rowId, values, 3) != 1) {
+        if (db.update(Avatar.TABLE_NAME, values, Avatar._ID + "=" + rowId, null) != 1) {
             softError = true;
         }
-        if (!isError()) {
-            deleteAvatarByFileName(fileNameStored);
+        if (!isError() && !notModified) {
+            fileNamesToDelete.add(fileNameStored);
         }
     }
 
-    private void deleteAvatarByFileName(String fileNameToDelete) {
-        AvatarDrawable avatarDrawable = new AvatarDrawable(userId, fileNameToDelete);
-        if (avatarDrawable.exists()) {
-            deleteFileLogged(avatarDrawable.getFile());
-        }
-    }
-    
     private void logError(String message, Exception e) {
-        MyLog.e(this, message 
-                + "; userId=" + userId 
+        MyLog.e(this, message
+                + "; userId=" + userId
                 + "; url=" + (url == null ? "(null)" : url.toExternalForm()), e);
     }
-    
-    private void removeOld() {
-        String method = "removeOld";
-        int rowsDeleted = 0;
+
+    /**
+     * Deletes rows of other avatars of this user. Their files are deleted by {@link #onSaved()}
+     */
+    private void removeOld(SQLiteDatabase db) {
         String where = Avatar.USER_ID + "=" + userId
                 + " AND " + Avatar._ID + "<>" + Long.toString(rowId) ;
-        String sql = "SELECT " + Avatar._ID + ", "
-                + Avatar.FILE_NAME
-                + " FROM " + Avatar.TABLE_NAME 
-                + " WHERE " + where;
-        boolean done = false;
-        for (int pass=0; !done && pass<3; pass++) {
-            SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
-            Cursor cursor = null;
-            try {
-                cursor = db.rawQuery(sql, null);
-                while (cursor.moveToNext()) {
-                    long rowIdOld = cursor.getLong(0);
-                    deleteAvatarByFileName(cursor.getString(1));
-                    rowsDeleted += db.delete(Avatar.TABLE_NAME, Avatar._ID + "=" + Long.toString(rowIdOld), null);
-                }
-                done = true;
-            } catch (SQLiteException e) {
-                MyLog.i(this, method + ", Database is locked, pass=" + pass + "; sql='" + sql + "'", e);
-            } finally {
-                DbUtils.closeSilently(cursor);
-            }
-            if (!done) {
-                try {
-                    Thread.sleep(Math.round((Math.random() + 1) * 500));
-                } catch (InterruptedException e) {
-                    MyLog.e(this, e);
-                }
+        Cursor cursor = null;
+        try {
+            cursor = db.query(Avatar.TABLE_NAME, new String[] {Avatar.FILE_NAME}, where, null, null, null, null);
+            while (cursor.moveToNext()) {
+                fileNamesToDelete.add(cursor.getString(0));
             }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        int rowsDeleted = db.delete(Avatar.TABLE_NAME, where, null);
+        MyLog.v(this, "removeOld; deleted " + rowsDeleted + " old rows");
+    }
+
+    /**
+     * Deletes files, which are not referenced by the database any more
+     */
+    void onSaved() {
+        if (isError() && downloaded) {
+            // The new file is not referenced by the database
+            fileNamesToDelete.add(fileNameNew);
+        }
+        for (String fileName : fileNamesToDelete) {
+            deleteAvatarByFileName(fileName);
+        }
+        fileNamesToDelete.clear();
+        if (!isError()) {
+            AvatarCache.getInstance().onFetched(userId);
+            MyLog.v(this, "Loaded avatar userId=" + userId);
+        }
+    }
+
+    /**
+     * The transaction, in which the result was saved, was rolled back
+     */
+    void onSaveFailed() {
+        softError = true;
+        fileNamesToDelete.clear();
+        onSaved();
+    }
+
+    private void deleteAvatarByFileName(String fileNameToDelete) {
+        if (TextUtils.isEmpty(fileNameToDelete)) {
+            return;
+        }
+        AvatarDrawable avatarDrawable = new AvatarDrawable(userId, fileNameToDelete);
+        if (avatarDrawable.exists()) {
+            deleteFileLogged(avatarDrawable.getFile());
         }
-        MyLog.v(this, method + (done ? " succeeded" : " failed") + "; deleted " + rowsDeleted + " old rows");
     }
 
     protected String getFileName() {
         return fileNameStored;
     }
-    
+
     protected long getRowId() {
         return rowId;
     }
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.net.HttpClientPool;
+import org.andstatus.app.util.MyLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads avatars ({@link CommandEnum#FETCH_AVATAR}) in parallel, outside of the {@link MyService} queues,
+ * so timelines are not synced after hundreds of avatars.
+ * <ul>
+ * <li>Not more than {@link #MAX_THREADS} downloads at a time, {@link #MAX_CONNECTIONS_PER_HOST} per host.</li>
+ * <li>A request for a user, whose avatar is queued already, is ignored.
+ * An avatar URL, shared by several users, is downloaded once, other users get a copy of the file.</li>
+ * <li>Results are saved to the avatar table in batches, each batch in one transaction.</li>
+ * </ul>
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+final class AvatarFetchPool {
+    private static final String TAG = AvatarFetchPool.class.getSimpleName();
+
+    static final int MAX_THREADS = 4;
+    static final int MAX_CONNECTIONS_PER_HOST = HttpClientPool.MAX_AVATAR_CONNECTIONS_PER_HOST;
+    static final int BATCH_SIZE = 20;
+
+    private static final AvatarFetchPool INSTANCE = new AvatarFetchPool();
+
+    /** Threads are created on demand, their number is limited by {@link #workers} */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /** Users, whose avatars are queued, being downloaded or not saved yet */
+    @GuardedBy("this")
+    private final Set<Long> userIds = new HashSet<Long>();
+    @GuardedBy("this")
+    private final LinkedList<Task> pending = new LinkedList<Task>();
+    /** Tasks, waiting for a free connection to their host */
+    @GuardedBy("this")
+    private final Map<String, LinkedList<Task>> waitingForHost = new HashMap<String, LinkedList<Task>>();
+    @GuardedBy("this")
+    private final Map<String, Integer> connectionsPerHost = new HashMap<String, Integer>();
+    /** URLs being downloaded and the tasks of other users, waiting for the same URL */
+    @GuardedBy("this")
+    private final Map<String, List<Task>> urlsInProgress = new HashMap<String, List<Task>>();
+    @GuardedBy("this")
+    private final List<AvatarDownloader> toSave = new ArrayList<AvatarDownloader>();
+    @GuardedBy("this")
+    private int workers = 0;
+
+    /** For testing: is run by a worker, which found no more tasks */
+    volatile Runnable onWorkerExit = null;
+
+    private static class Task {
+        final long userId;
+        AvatarDownloader downloader = null;
+        String host = "";
+        String url = "";
+
+        Task(long userId) {
+            this.userId = userId;
+        }
+
+        void prepare() {
+            downloader = new AvatarDownloader(userId);
+            if (downloader.getUrl() != null) {
+                host = downloader.getUrl().getHost();
+                url = downloader.getUrl().toExternalForm();
+            }
+        }
+    }
+
+    static AvatarFetchPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues the download of the avatar of the user
+     * @return false if the avatar of this user is queued already
+     */
+    synchronized boolean fetch(long userId) {
+        if (userId == 0 || !userIds.add(userId)) {
+            return false;
+        }
+        pending.add(new Task(userId));
+        if (workers < MAX_THREADS && workers < pending.size()) {
+            workers++;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+        return true;
+    }
+
+    synchronized boolean isIdle() {
+        return userIds.isEmpty();
+    }
+
+    private void work() {
+        boolean exited = false;
+        try {
+            for (Task task = takeTask(); task != null; task = takeTask()) {
+                try {
+                    execute(task);
+                } catch (Exception e) {
+                    MyLog.e(TAG, "Fetching avatar of userId=" + task.userId, e);
+                    onFailed(task);
+                }
+                save(takeBatch(false));
+            }
+            exited = true;
+            Runnable runnable = onWorkerExit;
+            if (runnable != null) {
+                runnable.run();
+            }
+        } finally {
+            if (!exited) {
+                synchronized (this) {
+                    workers--;
+                }
+            }
+            save(takeBatch(true));
+        }
+    }
+
+    /**
+     * The worker, which gets null, is not counted any more, so {@link #fetch(long)}
+     * starts a new one for the next task
+     */
+    private synchronized Task takeTask() {
+        Task task = pending.poll();
+        if (task == null) {
+            workers--;
+        }
+        return task;
+    }
+
+    private void execute(Task task) {
+        if (task.downloader == null) {
+            task.prepare();
+        }
+        if (!task.downloader.isDownloadNeeded()) {
+            onDone(task, task.downloader.download());
+            return;
+        }
+        if (!admit(task)) {
+            return;
+        }
+        boolean downloaded = false;
+        try {
+            task.downloader.download();
+            downloaded = true;
+        } finally {
+            List<Task> followers = release(task);
+            if (downloaded) {
+                onDone(task, true);
+                for (Task follower : followers) {
+                    onFollowerReady(task, follower);
+                }
+            } else {
+                requeue(followers);
+            }
+        }
+    }
+
+    /**
+     * @return false if the task has to wait for another download of the same URL or for a connection
+     */
+    private synchronized boolean admit(Task task) {
+        List<Task> followers = urlsInProgress.get(task.url);
+        if (followers != null) {
+            followers.add(task);
+            return false;
+        }
+        int connections = getConnections(task.host);
+        if (connections >= MAX_CONNECTIONS_PER_HOST) {
+            LinkedList<Task> waiting = waitingForHost.get(task.host);
+            if (waiting == null) {
+                waiting = new LinkedList<Task>();
+                waitingForHost.put(task.host, waiting);
+            }
+            waiting.add(task);
+            return false;
+        }
+        connectionsPerHost.put(task.host, connections + 1);
+        urlsInProgress.put(task.url, new ArrayList<Task>());
+        return true;
+    }
+
+    private int getConnections(String host) {
+        Integer connections = connectionsPerHost.get(host);
+        return connections == null ? 0 : connections;
+    }
+
+    /**
+     * Frees the connection and lets the next task of the host go
+     * @return Tasks, which were waiting for the same URL
+     */
+    private synchronized List<Task> release(Task task) {
+        int connections = getConnections(task.host) - 1;
+        if (connections > 0) {
+            connectionsPerHost.put(task.host, connections);
+        } else {
+            connectionsPerHost.remove(task.host);
+        }
+        LinkedList<Task> waiting = waitingForHost.get(task.host);
+        if (waiting != null) {
+            pending.addFirst(waiting.poll());
+            if (waiting.isEmpty()) {
+                waitingForHost.remove(task.host);
+            }
+        }
+        List<Task> followers = urlsInProgress.remove(task.url);
+        return followers == null ? new ArrayList<Task>() : followers;
+    }
+
+    private void onFollowerReady(Task task, Task follower) {
+        if (task.downloader.isDownloaded()) {
+            follower.downloader.copyFrom(task.downloader);
+            onDone(follower, true);
+        } else {
+            // E.g. the avatar was not modified for that user, the follower should check it by itself
+            requeue(follower);
+        }
+    }
+
+    private synchronized void requeue(List<Task> tasks) {
+        for (Task task : tasks) {
+            pending.addFirst(task);
+        }
+    }
+
+    private synchronized void requeue(Task task) {
+        pending.addFirst(task);
+    }
+
+    private synchronized void onDone(Task task, boolean toBeSaved) {
+        if (toBeSaved) {
+            toSave.add(task.downloader);
+        } else {
+            userIds.remove(task.userId);
+        }
+    }
+
+    private synchronized void onFailed(Task task) {
+        userIds.remove(task.userId);
+    }
+
+    /**
+     * @param all take all downloaded results, if there are fewer than {@link #BATCH_SIZE} of them
+     */
+    private synchronized List<AvatarDownloader> takeBatch(boolean all) {
+        List<AvatarDownloader> batch = new ArrayList<AvatarDownloader>();
+        if (toSave.size() >= BATCH_SIZE || (all && !toSave.isEmpty())) {
+            batch.addAll(toSave);
+            toSave.clear();
+        }
+        return batch;
+    }
+
+    private void save(List<AvatarDownloader> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        boolean ok = false;
+        try {
+            SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (AvatarDownloader downloader : batch) {
+                    downloader.saveToDatabase(db);
+                }
+                db.setTransactionSuccessful();
+                ok = true;
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            MyLog.e(TAG, "Saving " + batch.size() + " avatars", e);
+        }
+        for (AvatarDownloader downloader : batch) {
+            if (ok) {
+                downloader.onSaved();
+            } else {
+                downloader.onSaveFailed();
+            }
+        }
+        synchronized (this) {
+            for (AvatarDownloader downloader : batch) {
+                userIds.remove(downloader.getUserId());
+            }
+        }
+        MyLog.v(TAG, "Saved " + batch.size() + " avatars" + (ok ? "" : ", failed"));
+    }
+}
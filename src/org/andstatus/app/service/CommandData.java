@@ -19,7 +19,9 @@ package org.andstatus.app.service;
 import android.app.SearchManager;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ContentValues;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.os.Bundle;
 import android.text.TextUtils;
 
@@ -28,6 +30,7 @@ import org.andstatus.app.account.MyAccount;
 import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.context.MyPreferences;
 import org.andstatus.app.data.MyDatabase;
+import org.andstatus.app.data.MyDatabase.Command;
 import org.andstatus.app.data.TimelineTypeEnum;
 import org.andstatus.app.util.MyLog;
 import org.andstatus.app.util.SharedPreferencesUtil;
@@ -69,6 +72,16 @@ public class CommandData implements Comparable<CommandData> {
 
     private int hashcode = 0;
 
+    /**
+     * _id of the row in the {@link MyDatabase.Command} table, 0 if the command was not persisted
+     */
+    private long commandId = 0;
+
+    /**
+     * When the command was added to the queue in this process, 0 if unknown. Is not persisted
+     */
+    private long queuedAt = 0;
+
     private CommandResult commandResult = new CommandResult();
     
     public CommandData(CommandEnum commandIn, String accountNameIn, TimelineTypeEnum timelineTypeIn, long itemIdIn) {
@@ -180,26 +193,71 @@ public class CommandData implements Comparable<CommandData> {
     }
     
     /**
-     * @return Number of items persisted
+     * Restore this from the {@link MyDatabase.Command} table
      */
-    static int saveQueue(Context context, Queue<CommandData> q, String prefsFileName) {
-        int count = 0;
-        // Delete any existing saved queue
-        SharedPreferencesUtil.delete(context, prefsFileName);
-        if (!q.isEmpty()) {
-            SharedPreferences sp = MyPreferences.getSharedPreferences(prefsFileName);
-            while (!q.isEmpty()) {
-                CommandData cd = q.poll();
-                cd.saveToSharedPreferences(sp, count);
-                MyLog.v(context, "Command saved: " + cd.toString());
-                count += 1;
-            }
-            MyLog.d(context, "Queue saved to " + prefsFileName  + ", " + count + " msgs");
+    static CommandData fromCursor(Cursor cursor) {
+        CommandData commandData = new CommandData(
+                CommandEnum.load(cursor.getString(cursor.getColumnIndex(Command.COMMAND_CODE))),
+                cursor.getString(cursor.getColumnIndex(Command.ACCOUNT_NAME)),
+                TimelineTypeEnum.load(cursor.getString(cursor.getColumnIndex(Command.TIMELINE_TYPE))),
+                cursor.getLong(cursor.getColumnIndex(Command.ITEM_ID)));
+        commandData.commandId = cursor.getLong(cursor.getColumnIndex(Command._ID));
+        switch (commandData.command) {
+            case UPDATE_STATUS:
+                commandData.bundle.putString(IntentExtra.EXTRA_STATUS.key,
+                        cursor.getString(cursor.getColumnIndex(Command.BODY)));
+                commandData.bundle.putLong(IntentExtra.EXTRA_INREPLYTOID.key,
+                        cursor.getLong(cursor.getColumnIndex(Command.IN_REPLY_TO_ID)));
+                commandData.bundle.putLong(IntentExtra.EXTRA_RECIPIENTID.key,
+                        cursor.getLong(cursor.getColumnIndex(Command.RECIPIENT_ID)));
+                break;
+            default:
+                break;
         }
-        return count;
+        commandData.getResult().loadFromCursor(cursor);
+        return commandData;
     }
-    
+
     /**
+     * Values of the row in the {@link MyDatabase.Command} table, except the queue type
+     */
+    ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(Command.COMMAND_CODE, command.save());
+        values.put(Command.ACCOUNT_NAME, getAccountName());
+        values.put(Command.TIMELINE_TYPE, timelineType.save());
+        values.put(Command.ITEM_ID, itemId);
+        switch (command) {
+            case UPDATE_STATUS:
+                values.put(Command.BODY, bundle.getString(IntentExtra.EXTRA_STATUS.key));
+                values.put(Command.IN_REPLY_TO_ID, bundle.getLong(IntentExtra.EXTRA_INREPLYTOID.key));
+                values.put(Command.RECIPIENT_ID, bundle.getLong(IntentExtra.EXTRA_RECIPIENTID.key));
+                break;
+            default:
+                break;
+        }
+        commandResult.toContentValues(values);
+        return values;
+    }
+
+    long getCommandId() {
+        return commandId;
+    }
+
+    void setCommandId(long commandId) {
+        this.commandId = commandId;
+    }
+
+    long getQueuedAt() {
+        return queuedAt;
+    }
+
+    void setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+
+    /**
+     * Used to move queues, saved by older versions, to the {@link MyDatabase.Command} table
      * @return Number of items loaded
      */
     static int loadQueue(Context context, Queue<CommandData> q, String prefsFileName) {
@@ -321,42 +379,6 @@ public class CommandData implements Comparable<CommandData> {
         return hashCode() == cd.hashCode();
     }
 
-    /**
-     * Persist the object to the SharedPreferences 
-     * We're not storing all types of commands here because not all commands
-     *   go to the queue.
-     * SharedPreferences should not contain any previous versions of the same entries 
-     * (we don't store default values!)
-     * @param sp
-     * @param index Index of the preference's name to be used
-     */
-    private void saveToSharedPreferences(SharedPreferences sp, int index) {
-        String si = Integer.toString(index);
-
-        android.content.SharedPreferences.Editor ed = sp.edit();
-        ed.putString(IntentExtra.EXTRA_MSGTYPE.key + si, command.save());
-        if (!TextUtils.isEmpty(getAccountName())) {
-            ed.putString(IntentExtra.EXTRA_ACCOUNT_NAME.key + si, getAccountName());
-        }
-        if (timelineType != TimelineTypeEnum.UNKNOWN) {
-            ed.putString(IntentExtra.EXTRA_TIMELINE_TYPE.key + si, timelineType.save());
-        }
-        if (itemId != 0) {
-            ed.putLong(IntentExtra.EXTRA_ITEMID.key + si, itemId);
-        }
-        switch (command) {
-            case UPDATE_STATUS:
-                ed.putString(IntentExtra.EXTRA_STATUS.key + si, bundle.getString(IntentExtra.EXTRA_STATUS.key));
-                ed.putLong(IntentExtra.EXTRA_INREPLYTOID.key + si, bundle.getLong(IntentExtra.EXTRA_INREPLYTOID.key));
-                ed.putLong(IntentExtra.EXTRA_RECIPIENTID.key + si, bundle.getLong(IntentExtra.EXTRA_RECIPIENTID.key));
-                break;
-            default:
-                break;
-        }
-        commandResult.saveToSharedPreferences(ed, index);
-        ed.commit();
-    }
-
     private String getAccountName() {
         return accountName;
     }
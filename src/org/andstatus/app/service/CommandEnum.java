@@ -83,6 +83,11 @@ public enum CommandEnum {
      * Broadcast back state of {@link MyService}
      */
     BROADCAST_SERVICE_STATE("broadcast-service-state"),
+
+    /**
+     * Write a snapshot of performance metrics to a file, see {@link org.andstatus.app.util.MyMetrics}
+     */
+    DUMP_METRICS("dump-metrics"),
     
     /**
      * Save SharePreverence. We try to use it because sometimes Android
@@ -15,6 +15,11 @@ public class CommandExecutionContext {
      * The Timeline (if any) is of this User 
      */
     private long timelineUserId = 0;
+    /**
+     * The command is executed for this account as a step of {@link CommandExecutorAllAccounts},
+     * possibly in parallel with other accounts
+     */
+    private boolean stepOfAllAccounts = false;
 
     private Context context;
     
@@ -28,6 +33,21 @@ public class CommandExecutionContext {
         context = MyContextHolder.get().context();
     }
 
+    /**
+     * @return New context for the same command and the account, so it may be executed in another thread
+     */
+    CommandExecutionContext forAccount(MyAccount ma) {
+        CommandExecutionContext execContext = new CommandExecutionContext(commandData, ma);
+        execContext.timelineType = timelineType;
+        execContext.timelineUserId = timelineUserId;
+        execContext.stepOfAllAccounts = true;
+        return execContext;
+    }
+
+    boolean isStepOfAllAccounts() {
+        return stepOfAllAccounts;
+    }
+
     public MyAccount getMyAccount() {
         return ma;
     }
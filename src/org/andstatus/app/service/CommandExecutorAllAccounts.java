@@ -16,25 +16,115 @@
 
 package org.andstatus.app.service;
 
+import android.os.Process;
+
 import org.andstatus.app.account.MyAccount;
 import org.andstatus.app.account.MyAccount.CredentialsVerificationStatus;
 import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.util.MyLog;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Execute command for each account
+ * Execute command for each account.
+ * Accounts of different origins are executed in parallel, in not more than {@link #MAX_THREADS} threads,
+ * accounts of the same origin are executed one after another, so one slow origin doesn't block others.
+ * Database writes are still serialised: all threads write through the one shared
+ * {@link android.database.sqlite.SQLiteDatabase} object, which locks it for each transaction.
  * @author yvolk@yurivolkov.com
  */
 public class CommandExecutorAllAccounts extends CommandExecutorStrategy {
+    static final int MAX_THREADS = 3;
 
     @Override
     public void execute() {
+        List<MyAccount> accounts = new ArrayList<MyAccount>();
         for (MyAccount acc : MyContextHolder.get().persistentAccounts().collection()) {
             if ( acc.getCredentialsVerified() != CredentialsVerificationStatus.SUCCEEDED) {
                 execContext.getResult().incrementNumAuthExceptions();
             } else {
-                execContext.setMyAccount(acc);
-                CommandExecutorStrategy.executeStep(execContext, this);
+                accounts.add(acc);
+            }
+        }
+        executeForAccounts(accounts);
+    }
+
+    protected void executeForAccounts(List<MyAccount> accounts) {
+        Map<Long, List<MyAccount>> originAccounts = new LinkedHashMap<Long, List<MyAccount>>();
+        for (MyAccount acc : accounts) {
+            List<MyAccount> list = originAccounts.get(acc.getOriginId());
+            if (list == null) {
+                list = new ArrayList<MyAccount>();
+                originAccounts.put(acc.getOriginId(), list);
+            }
+            list.add(acc);
+        }
+        if (originAccounts.size() < 2) {
+            for (List<MyAccount> list : originAccounts.values()) {
+                executeForOrigin(list);
             }
+        } else {
+            executeForOrigins(originAccounts);
+        }
+        switch (execContext.getCommandData().getCommand()) {
+            case AUTOMATIC_UPDATE:
+            case FETCH_TIMELINE:
+                CommandExecutorLoadTimeline.pruneAndBackfill(execContext, this);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Executes accounts of each origin in a separate thread and waits for all of them
+     */
+    private void executeForOrigins(Map<Long, List<MyAccount>> originAccounts) {
+        int nThreads = Math.min(originAccounts.size(), MAX_THREADS);
+        MyLog.v(this, "Executing accounts of " + originAccounts.size() + " origins in " + nThreads + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final List<MyAccount> list : originAccounts.values()) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        executeForOrigin(list);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    MyLog.e(this, "Execution failed", e.getCause());
+                    // Unexpected, so let's retry
+                    execContext.getResult().setSoftErrorIfNotOk(false);
+                }
+            }
+        } catch (InterruptedException e) {
+            MyLog.d(this, "Interrupted", e);
+            executor.shutdownNow();
+            execContext.getResult().setSoftErrorIfNotOk(false);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void executeForOrigin(List<MyAccount> accounts) {
+        for (MyAccount acc : accounts) {
+            long startTime = System.currentTimeMillis();
+            CommandExecutorStrategy.executeStep(execContext.forAccount(acc), this);
+            execContext.getResult().setAccountExecutionTime(acc.getAccountName(),
+                    System.currentTimeMillis() - startTime);
             if (isStopping()) {
                 execContext.getResult().setSoftErrorIfNotOk(false);
                 break;
@@ -5,26 +5,26 @@ import org.andstatus.app.account.MyAccount.CredentialsVerificationStatus;
 import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.origin.Origin;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * Execute command for one account of each origin
+ * Execute command for one account of each origin, origins are executed in parallel
  * @author yvolk@yurivolkov.com
  */
-class CommandExecutorAllOrigins extends CommandExecutorStrategy {
+class CommandExecutorAllOrigins extends CommandExecutorAllAccounts {
 
     @Override
     public void execute() {
+        List<MyAccount> accounts = new ArrayList<MyAccount>();
         for (Origin origin : MyContextHolder.get().persistentOrigins().collection()) {
             MyAccount acc = MyContextHolder.get().persistentAccounts().findFirstMyAccountByOriginId(origin.getId());
             if ( acc==null || acc.getCredentialsVerified() != CredentialsVerificationStatus.SUCCEEDED) {
                 execContext.getResult().incrementNumAuthExceptions();
             } else {
-                execContext.setMyAccount(acc);
-                CommandExecutorStrategy.executeStep(execContext, this);
-            }
-            if (isStopping()) {
-                execContext.getResult().setSoftErrorIfNotOk(false);
-                break;
+                accounts.add(acc);
             }
         }
+        executeForAccounts(accounts);
     }
 }
@@ -30,9 +30,10 @@ import org.andstatus.app.TimelineActivity;
 import org.andstatus.app.appwidget.MyAppWidgetProvider;
 import org.andstatus.app.context.MyPreferences;
 import org.andstatus.app.data.DataPruner;
-import org.andstatus.app.data.MyProvider;
+import org.andstatus.app.data.MsgDisplayFields;
 import org.andstatus.app.data.TimelineTypeEnum;
 import org.andstatus.app.net.ConnectionException;
+import org.andstatus.app.net.Connection.ApiRoutineEnum;
 import org.andstatus.app.util.I18n;
 import org.andstatus.app.util.MyLog;
 
@@ -52,13 +53,20 @@ class CommandExecutorLoadTimeline extends CommandExecutorStrategy {
     @Override
     void execute() {
         loadTimelines();
-        if (!execContext.getResult().hasError() && execContext.getCommandData().getTimelineType() == TimelineTypeEnum.ALL && !isStopping()) {
-            new DataPruner(execContext.getContext()).prune();
+        if (!execContext.isStepOfAllAccounts()) {
+            pruneAndBackfill(execContext, this);
         }
-        if (!execContext.getResult().hasError()) {
-            // Notify all timelines, 
-            // see http://stackoverflow.com/questions/6678046/when-contentresolver-notifychange-is-called-for-a-given-uri-are-contentobserv
-            execContext.getContext().getContentResolver().notifyChange(MyProvider.TIMELINE_URI, null);
+    }
+
+    /**
+     * Done once per command, after timelines of all its accounts were loaded.
+     * Accounts of {@link CommandExecutorAllAccounts} are loaded in parallel,
+     * so it calls this after all of them
+     */
+    static void pruneAndBackfill(CommandExecutionContext execContext, CommandExecutorParent parent) {
+        if (!execContext.getResult().hasError() && execContext.getCommandData().getTimelineType() == TimelineTypeEnum.ALL && !parent.isStopping()) {
+            new DataPruner(execContext.getContext()).prune();
+            MsgDisplayFields.backfill();
         }
     }
 
@@ -99,18 +107,25 @@ class CommandExecutorLoadTimeline extends CommandExecutorStrategy {
     private void loadTimeline() {
         boolean ok = false;
         try {
-            if (execContext.getMyAccount().getConnection().isApiSupported(execContext.getTimelineType().getConnectionApiRoutine())) {
+            ApiRoutineEnum routine = execContext.getTimelineType().getConnectionApiRoutine();
+            RateLimitScheduler scheduler = new RateLimitScheduler(execContext.getMyAccount().getConnection());
+            if (!execContext.getMyAccount().getConnection().isApiSupported(routine)) {
+                MyLog.v(this, execContext.getTimelineType() + " is not supported for "
+                        + execContext.getMyAccount().getAccountName());
+            } else if (!scheduler.isAllowed(routine, isLowPriority(execContext.getTimelineType()))) {
+                MyLog.d(this, "Skipped " + execContext.getTimelineType() + " for "
+                        + execContext.getMyAccount().getAccountName() + ", " + scheduler.getStatus(routine));
+            } else {
                 long userId = execContext.getCommandData().itemId;
                 if (userId == 0) {
                     userId = execContext.getMyAccount().getUserId();
                 }
                 execContext.setTimelineUserId(userId);
                 MyLog.d(this, "Getting " + execContext.getTimelineType() + " timeline for " + execContext.getMyAccount().getAccountName() );
-                TimelineDownloader.getStrategy(execContext).download();
-            } else {
-                MyLog.v(this, execContext.getTimelineType() + " is not supported for "
-                        + execContext.getMyAccount().getAccountName());
+                TimelineDownloader.getStrategy(execContext, this).download();
             }
+            // So the user sees, when the next window opens
+            execContext.getResult().setRateLimitStatus(scheduler.getStatus(routine));
             ok = true;
             logOk(ok);
         } catch (ConnectionException e) {
@@ -120,6 +135,13 @@ class CommandExecutorLoadTimeline extends CommandExecutorStrategy {
         }
     }
     
+    /**
+     * Low priority timelines are not downloaded, when the quota of requests is low, see {@link RateLimitScheduler}
+     */
+    private static boolean isLowPriority(TimelineTypeEnum timelineType) {
+        return timelineType == TimelineTypeEnum.FOLLOWING_USER;
+    }
+
     /**
      * TODO: Different notifications for different Accounts
      * @param msgAdded Number of "Tweets" added
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.data.DbUtils;
+import org.andstatus.app.data.MyDatabase;
+import org.andstatus.app.data.MyDatabase.Command;
+import org.andstatus.app.util.MyLog;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+/**
+ * Queue of commands of the {@link MyService}, persisted in the {@link Command} table:
+ * a row is inserted when a command is queued for the first time,
+ * its queue type is updated when the command moves to another queue or is executed.
+ * So nothing needs to be saved when the service stops, and commands survive a crash of the process,
+ * see {@link #load(CommandQueue, CommandQueue)}.
+ * Duplicated commands are found by a hash lookup instead of a scan of the queue.
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+class CommandQueue {
+    private static final String TAG = CommandQueue.class.getSimpleName();
+
+    enum QueueType {
+        MAIN("main"),
+        RETRY("retry"),
+        /** The command was executed or dropped, its row may be deleted */
+        DONE("done");
+
+        private final String code;
+
+        private QueueType(String code) {
+            this.code = code;
+        }
+
+        String save() {
+            return code;
+        }
+    }
+
+    private final QueueType queueType;
+    private final Queue<CommandData> queue = new PriorityQueue<CommandData>(100);
+    /** The same commands as in the queue, for the duplicates lookup */
+    private final Map<CommandData, CommandData> commands = new HashMap<CommandData, CommandData>();
+
+    CommandQueue(QueueType queueType) {
+        this.queueType = queueType;
+    }
+
+    /**
+     * Adds the command to the queue and persists it
+     * @return false if the command is in the queue already
+     */
+    synchronized boolean offer(CommandData commandData) {
+        if (!addToMemory(commandData)) {
+            return false;
+        }
+        save(commandData, queueType);
+        return true;
+    }
+
+    private boolean addToMemory(CommandData commandData) {
+        if (commands.containsKey(commandData)) {
+            return false;
+        }
+        queue.offer(commandData);
+        commands.put(commandData, commandData);
+        return true;
+    }
+
+    /**
+     * The command stays persisted in this queue until it's moved to another queue
+     * or is marked as done by {@link #onDone(CommandData)}, so it's not lost if the process crashes during execution
+     * @return null if the queue is empty
+     */
+    synchronized CommandData poll() {
+        CommandData commandData = queue.poll();
+        if (commandData != null) {
+            commands.remove(commandData);
+        }
+        return commandData;
+    }
+
+    /**
+     * @return The command from the queue, which equals to the supplied one. null if not found
+     */
+    synchronized CommandData get(CommandData commandData) {
+        return commands.get(commandData);
+    }
+
+    synchronized boolean contains(CommandData commandData) {
+        return commands.containsKey(commandData);
+    }
+
+    synchronized boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Updates the persisted command, e.g. after its result was changed
+     */
+    synchronized void update(CommandData commandData) {
+        if (commands.containsKey(commandData)) {
+            save(commandData, queueType);
+        }
+    }
+
+    /**
+     * Empties the queue in memory only, the commands stay persisted
+     */
+    synchronized void clear() {
+        queue.clear();
+        commands.clear();
+    }
+
+    /**
+     * The command was executed and won't be retried, or it was dropped as a duplicate
+     */
+    static void onDone(CommandData commandData) {
+        if (commandData.getCommandId() != 0) {
+            save(commandData, QueueType.DONE);
+        }
+    }
+
+    /**
+     * Restores commands of both queues (e.g. after a crash) and deletes executed commands
+     * @return Number of commands loaded
+     */
+    static int load(CommandQueue mainQueue, CommandQueue retryQueue) {
+        SQLiteDatabase db = getDatabase();
+        if (db == null) {
+            return 0;
+        }
+        int count = 0;
+        Cursor cursor = null;
+        try {
+            db.delete(Command.TABLE_NAME, Command.QUEUE_TYPE + "=?", new String[] {QueueType.DONE.save()});
+            cursor = db.query(Command.TABLE_NAME, null, null, null, null, null, Command._ID);
+            while (cursor.moveToNext()) {
+                CommandData commandData = CommandData.fromCursor(cursor);
+                String type = cursor.getString(cursor.getColumnIndex(Command.QUEUE_TYPE));
+                CommandQueue queue = QueueType.RETRY.save().equals(type) ? retryQueue : mainQueue;
+                boolean added;
+                synchronized (queue) {
+                    added = queue.addToMemory(commandData);
+                }
+                if (added) {
+                    count++;
+                    MyLog.v(TAG, "Restored " + type + " " + commandData);
+                } else {
+                    onDone(commandData);
+                }
+            }
+        } catch (Exception e) {
+            MyLog.e(TAG, "Loading queues", e);
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        return count;
+    }
+
+    private static void save(CommandData commandData, QueueType queueType) {
+        SQLiteDatabase db = getDatabase();
+        if (db == null) {
+            return;
+        }
+        try {
+            ContentValues values = commandData.toContentValues();
+            values.put(Command.QUEUE_TYPE, queueType.save());
+            if (commandData.getCommandId() == 0) {
+                values.put(Command.CREATED_DATE, System.currentTimeMillis());
+                commandData.setCommandId(db.insert(Command.TABLE_NAME, null, values));
+            } else {
+                db.update(Command.TABLE_NAME, values, Command._ID + "=" + commandData.getCommandId(), null);
+            }
+        } catch (Exception e) {
+            MyLog.e(TAG, "Saving to " + queueType + " " + commandData, e);
+        }
+    }
+
+    /**
+     * @return null if the database is not available yet (e.g. it's being upgraded)
+     */
+    private static SQLiteDatabase getDatabase() {
+        MyDatabase myDatabase = MyContextHolder.get().getDatabase();
+        if (myDatabase == null) {
+            MyLog.v(TAG, "No database");
+            return null;
+        }
+        return myDatabase.getWritableDatabase();
+    }
+}
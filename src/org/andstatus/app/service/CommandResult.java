@@ -16,17 +16,26 @@
 
 package org.andstatus.app.service;
 
+import android.content.ContentValues;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.os.Parcel;
 import android.os.Parcelable;
 
 import org.andstatus.app.IntentExtra;
+import org.andstatus.app.data.MyDatabase.Command;
 import org.andstatus.app.data.TimelineTypeEnum;
+import org.andstatus.app.net.MbRateLimitStatus;
 import org.andstatus.app.util.MyLog;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Result of the command execution
  * See also {@link android.content.SyncStats}
+ * Accounts may be executed in parallel (see {@link CommandExecutorAllAccounts}),
+ * so the counters are updated under the lock of this object
  * @author yvolk@yurivolkov.com
  */
 public final class CommandResult implements Parcelable {
@@ -43,6 +52,8 @@ public final class CommandResult implements Parcelable {
     // 0 means these values were not set
     private int hourlyLimit = 0;
     private int remainingHits = 0;
+    /** When the quota of requests will be restored, milliseconds since the epoch */
+    private long rateLimitResetTime = 0;
     
     // Counters to use for user notifications
     private int messagesAdded = 0;
@@ -50,11 +61,14 @@ public final class CommandResult implements Parcelable {
     private int directedAdded = 0;
     private int downloadedCount = 0;
 
+    /** Account name -> execution time in milliseconds */
+    private final Map<String, Long> accountExecutionTimes = new LinkedHashMap<String, Long>();
+
     public CommandResult() {
     }
     
     @Override
-    public String toString() {
+    public synchronized String toString() {
         StringBuilder message = new StringBuilder();
         if (executionCount > 0) {
             message.append("executed:" + executionCount + ",");
@@ -80,6 +94,13 @@ public final class CommandResult implements Parcelable {
         if (directedAdded > 0) {
             message.append("directedAdded:" + directedAdded + ",");
         }
+        if (!accountExecutionTimes.isEmpty()) {
+            message.append("accounts:{");
+            for (Map.Entry<String, Long> entry : accountExecutionTimes.entrySet()) {
+                message.append(entry.getKey() + ":" + entry.getValue() + "ms,");
+            }
+            message.append("},");
+        }
         
         return MyLog.formatKeyValue("CommandResult", message);
     }
@@ -93,21 +114,27 @@ public final class CommandResult implements Parcelable {
         numParseExceptions = parcel.readLong();
         hourlyLimit = parcel.readInt();
         remainingHits = parcel.readInt();
+        rateLimitResetTime = parcel.readLong();
+        int size = parcel.readInt();
+        for (int ind = 0; ind < size; ind++) {
+            String accountName = parcel.readString();
+            accountExecutionTimes.put(accountName, parcel.readLong());
+        }
     }
 
-    public int getExecutionCount() {
+    public synchronized int getExecutionCount() {
         return executionCount;
     }
 
-    public boolean hasError() {
+    public synchronized boolean hasError() {
         return hasSoftError() || hasHardError();
     }
     
-    public boolean hasHardError() {
+    public synchronized boolean hasHardError() {
         return numAuthExceptions > 0 || numParseExceptions > 0;
     }
 
-    public boolean hasSoftError() {
+    public synchronized boolean hasSoftError() {
         return numIoExceptions > 0;
     }
     
@@ -116,22 +143,24 @@ public final class CommandResult implements Parcelable {
         return 0;
     }
 
-    void saveToSharedPreferences(android.content.SharedPreferences.Editor ed, int index) {
-        String si = Integer.toString(index);
-        if (executionCount > 0) {
-            ed.putInt(IntentExtra.EXTRA_EXECUTION_COUNT.key + si, executionCount);
-        }
-        ed.putInt(IntentExtra.EXTRA_RETRIES_LEFT.key + si, retriesLeft);
-    }
-
-    void loadFromSharedPreferences(SharedPreferences sp, int index) {
+    synchronized void loadFromSharedPreferences(SharedPreferences sp, int index) {
         String si = Integer.toString(index);
         executionCount = sp.getInt(IntentExtra.EXTRA_EXECUTION_COUNT.key + si, executionCount);
         retriesLeft = sp.getInt(IntentExtra.EXTRA_RETRIES_LEFT.key + si, retriesLeft);
     }
+
+    synchronized void toContentValues(ContentValues values) {
+        values.put(Command.EXECUTION_COUNT, executionCount);
+        values.put(Command.RETRIES_LEFT, retriesLeft);
+    }
+
+    synchronized void loadFromCursor(Cursor cursor) {
+        executionCount = cursor.getInt(cursor.getColumnIndex(Command.EXECUTION_COUNT));
+        retriesLeft = cursor.getInt(cursor.getColumnIndex(Command.RETRIES_LEFT));
+    }
     
     @Override
-    public void writeToParcel(Parcel dest, int flags) {
+    public synchronized void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(executionCount);
         dest.writeInt(downloadedCount);
         dest.writeInt(retriesLeft);
@@ -140,6 +169,12 @@ public final class CommandResult implements Parcelable {
         dest.writeLong(numParseExceptions);
         dest.writeInt(hourlyLimit);
         dest.writeInt(remainingHits);
+        dest.writeLong(rateLimitResetTime);
+        dest.writeInt(accountExecutionTimes.size());
+        for (Map.Entry<String, Long> entry : accountExecutionTimes.entrySet()) {
+            dest.writeString(entry.getKey());
+            dest.writeLong(entry.getValue());
+        }
     }
 
     public static final Creator<CommandResult> CREATOR = new Creator<CommandResult>() {
@@ -154,7 +189,7 @@ public final class CommandResult implements Parcelable {
         }
     };
 
-    public void setSoftErrorIfNotOk(boolean ok) {
+    public synchronized void setSoftErrorIfNotOk(boolean ok) {
         if (!ok) {
             incrementNumIoExceptions();
         }
@@ -164,47 +199,62 @@ public final class CommandResult implements Parcelable {
         return commandResult == null ? "(result is null)" : commandResult.toString();
     }
 
-    public long getNumAuthExceptions() {
+    public synchronized long getNumAuthExceptions() {
         return numAuthExceptions;
     }
 
-    protected void incrementNumAuthExceptions() {
+    protected synchronized void incrementNumAuthExceptions() {
         numAuthExceptions++;
     }
 
-    public long getNumIoExceptions() {
+    public synchronized long getNumIoExceptions() {
         return numIoExceptions;
     }
 
-    public void incrementNumIoExceptions() {
+    public synchronized void incrementNumIoExceptions() {
         numIoExceptions++;
     }
 
-    public long getNumParseExceptions() {
+    public synchronized long getNumParseExceptions() {
         return numParseExceptions;
     }
 
-    void incrementParseExceptions() {
+    synchronized void incrementParseExceptions() {
         numParseExceptions++;
     }
 
-    public int getHourlyLimit() {
+    public synchronized int getHourlyLimit() {
         return hourlyLimit;
     }
 
-    protected void setHourlyLimit(int hourlyLimit) {
+    protected synchronized void setHourlyLimit(int hourlyLimit) {
         this.hourlyLimit = hourlyLimit;
     }
 
-    public int getRemainingHits() {
+    public synchronized int getRemainingHits() {
         return remainingHits;
     }
 
-    protected void setRemainingHits(int remainingHits) {
+    protected synchronized void setRemainingHits(int remainingHits) {
         this.remainingHits = remainingHits;
     }
 
-    public void incrementMessagesCount(TimelineTypeEnum timelineType) {
+    /**
+     * @return 0 if unknown
+     */
+    public synchronized long getRateLimitResetTime() {
+        return rateLimitResetTime;
+    }
+
+    synchronized void setRateLimitStatus(MbRateLimitStatus status) {
+        if (!status.isEmpty()) {
+            hourlyLimit = status.limit;
+            remainingHits = status.remaining;
+            rateLimitResetTime = status.resetTime;
+        }
+    }
+
+    public synchronized void incrementMessagesCount(TimelineTypeEnum timelineType) {
         switch (timelineType) {
             case HOME:
                 messagesAdded++;
@@ -217,35 +267,35 @@ public final class CommandResult implements Parcelable {
         }
     }
 
-    public void incrementMentionsCount() {
+    public synchronized void incrementMentionsCount() {
         mentionsAdded++;
     }
 
-    public void incrementDownloadedCount() {
+    public synchronized void incrementDownloadedCount() {
         downloadedCount++;
     }
 
-    public int getDownloadedCount() {
+    public synchronized int getDownloadedCount() {
         return downloadedCount;
     }
     
-    protected int getMessagesAdded() {
+    protected synchronized int getMessagesAdded() {
         return messagesAdded;
     }
 
-    protected int getMentionsAdded() {
+    protected synchronized int getMentionsAdded() {
         return mentionsAdded;
     }
 
-    protected int getDirectedAdded() {
+    protected synchronized int getDirectedAdded() {
         return directedAdded;
     }
     
-    protected int getRetriesLeft() {
+    protected synchronized int getRetriesLeft() {
         return retriesLeft;
     }
     
-    void resetRetries(CommandEnum command) {
+    synchronized void resetRetries(CommandEnum command) {
         retriesLeft = MAX_RETRIES;
         switch (command) {
             case AUTOMATIC_UPDATE:
@@ -262,30 +312,32 @@ public final class CommandResult implements Parcelable {
     /**
      * Before execution started
      */
-    void onLaunched() {
+    synchronized void onLaunched() {
         numAuthExceptions = 0;
         numIoExceptions = 0;
         numParseExceptions = 0;
         
         hourlyLimit = 0;
         remainingHits = 0;
+        rateLimitResetTime = 0;
 
         messagesAdded = 0;
         mentionsAdded = 0;
         directedAdded = 0;
+        accountExecutionTimes.clear();
     }
     
     /**
      * After execution ended
      */
-    void onExecuted() {
+    synchronized void onExecuted() {
         executionCount++;
         if (retriesLeft > 0) {
             retriesLeft -= 1;
         }
     }
     
-    boolean shouldWeRetry() {
+    synchronized boolean shouldWeRetry() {
         boolean retry = false;
         if (hasError() && !hasHardError()) {
             if (retriesLeft > 0) {
@@ -295,11 +347,27 @@ public final class CommandResult implements Parcelable {
         return retry;
     }
 
-    long getItemId() {
+    synchronized void setAccountExecutionTime(String accountName, long millis) {
+        accountExecutionTimes.put(accountName, millis);
+    }
+
+    /**
+     * @return Execution time in milliseconds, 0 if the account was not executed
+     */
+    public synchronized long getAccountExecutionTime(String accountName) {
+        Long millis = accountExecutionTimes.get(accountName);
+        return millis == null ? 0 : millis;
+    }
+
+    public synchronized int getNumberOfAccountsExecuted() {
+        return accountExecutionTimes.size();
+    }
+
+    synchronized long getItemId() {
         return itemId;
     }
 
-    void setItemId(long itemId) {
+    synchronized void setItemId(long itemId) {
         this.itemId = itemId;
     }
 }
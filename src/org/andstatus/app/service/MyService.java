@@ -17,15 +17,17 @@
 
 package org.andstatus.app.service;
 
+import java.util.PriorityQueue;
 import java.util.Queue;
-import java.util.concurrent.PriorityBlockingQueue;
 
 import org.andstatus.app.IntentExtra;
 import org.andstatus.app.R;
 import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.context.MyPreferences;
+import org.andstatus.app.net.HttpClientPool;
 import org.andstatus.app.util.I18n;
 import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.MyMetrics;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -37,6 +39,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.ConnectivityManager;
 import android.os.AsyncTask;
 import android.os.AsyncTask.Status;
@@ -53,6 +57,9 @@ public class MyService extends Service {
     private static final String TAG = MyService.class.getSimpleName();
     private static final String COMMANDS_QUEUE_FILENAME = TAG + "-commands-queue";
     private static final String RETRY_QUEUE_FILENAME = TAG + "-retry-queue";
+    private static final MyMetrics.Gauge QUEUE_SIZE = MyMetrics.gauge("service.queue.size");
+    /** Time, which commands wait in the main queue before their execution starts */
+    private static final MyMetrics.Histogram QUEUE_WAIT_MS = MyMetrics.histogram("service.queue.wait.ms");
     
     /**
      * Intent with this action sent when it is time to update AndStatus
@@ -160,8 +167,9 @@ public class MyService extends Service {
     @GuardedBy("serviceStateLock")
     private int lastProcessedStartId = 0;
     /**
-     * For now let's have only ONE working thread 
+     * For now let's have only ONE working thread for the queue
      * (it seems there is some problem in parallel execution...)
+     * Accounts of different origins are executed in parallel by {@link CommandExecutorAllAccounts}
      */
     @GuardedBy("serviceStateLock")
     private QueueExecutor executor = null;
@@ -174,8 +182,8 @@ public class MyService extends Service {
     @GuardedBy("wakeLockLock")
     private PowerManager.WakeLock wakeLock = null;
 
-    private final Queue<CommandData> mainCommandQueue = new PriorityBlockingQueue<CommandData>(100);
-    private final Queue<CommandData> retryCommandQueue = new PriorityBlockingQueue<CommandData>(100);
+    private final CommandQueue mainCommandQueue = new CommandQueue(CommandQueue.QueueType.MAIN);
+    private final CommandQueue retryCommandQueue = new CommandQueue(CommandQueue.QueueType.RETRY);
 
     /**
      * Time when shared preferences where changed as this knows it.
@@ -223,6 +231,9 @@ public class MyService extends Service {
             case BROADCAST_SERVICE_STATE:
                 broadcastState(commandData);
                 break;
+            case DUMP_METRICS:
+                MyMetrics.dumpToFile(getBuildDescription());
+                break;
             case UNKNOWN:
                 MyLog.v(this, "Command " + commandData.getCommand() + " ignored");
                 break;
@@ -282,21 +293,27 @@ public class MyService extends Service {
         boolean ok = true;
         if ( commandData.getCommand() == CommandEnum.EMPTY) {
             // Nothing to do
+        } else if (commandData.getCommand() == CommandEnum.FETCH_AVATAR) {
+            // Avatars are downloaded in parallel, outside of the queues
+            AvatarFetchPool.getInstance().fetch(commandData.itemId);
+            CommandQueue.onDone(commandData);
         } else if (mainCommandQueue.contains(commandData)) {
             MyLog.d(this, "Duplicated " + commandData);
             // Reset retries counter on receiving duplicated command
-            for (CommandData cd:mainCommandQueue) {
-                if (cd.equals(commandData)) {
-                    cd.getResult().resetRetries(commandData.getCommand());
-                    break;
-                }
+            CommandData cd = mainCommandQueue.get(commandData);
+            if (cd != null) {
+                cd.getResult().resetRetries(commandData.getCommand());
+                mainCommandQueue.update(cd);
             }
+            CommandQueue.onDone(commandData);
         } else {
             MyLog.d(this, "Adding to the queue " + commandData);
+            commandData.setQueuedAt(System.currentTimeMillis());
             if (!mainCommandQueue.offer(commandData)) {
                 MyLog.e(this, "Couldn't add to the main queue, size=" + mainCommandQueue.size());
                 ok = false;
             }
+            QUEUE_SIZE.set(mainCommandQueue.size());
         }
         return ok;
     }
@@ -314,6 +331,22 @@ public class MyService extends Service {
         }
     }
     
+    /**
+     * Moves the queue, saved to the SharedPreferences by an older version, to the database
+     */
+    private int loadQueueFromOlderVersion(CommandQueue commandQueue, String prefsFileName) {
+        Queue<CommandData> queue = new PriorityQueue<CommandData>(100);
+        int count = 0;
+        if (CommandData.loadQueue(this, queue, prefsFileName) > 0) {
+            while (!queue.isEmpty()) {
+                if (commandQueue.offer(queue.poll())) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
     /**
      * Initialize and restore the state if it was not restored yet
      */
@@ -325,9 +358,9 @@ public class MyService extends Service {
 
         synchronized (serviceStateLock) {
             if (!mInitialized) {
-                int count = 0;
-                count += CommandData.loadQueue(this, mainCommandQueue, COMMANDS_QUEUE_FILENAME);
-                count += CommandData.loadQueue(this, retryCommandQueue, RETRY_QUEUE_FILENAME);
+                int count = CommandQueue.load(mainCommandQueue, retryCommandQueue);
+                count += loadQueueFromOlderVersion(mainCommandQueue, COMMANDS_QUEUE_FILENAME);
+                count += loadQueueFromOlderVersion(retryCommandQueue, RETRY_QUEUE_FILENAME);
                 MyLog.d(this, "State restored, " + (count>0 ? Integer.toString(count) : "no") + " msg in the Queues");
 
                 registerReceiver(intentReceiver, new IntentFilter(ACTION_GO));
@@ -494,12 +527,13 @@ public class MyService extends Service {
                 try {
                     unregisterReceiver(intentReceiver);
     
-                    notifyOfQueue();
-                    int count = 0;
-                    count += CommandData.saveQueue(this, mainCommandQueue, COMMANDS_QUEUE_FILENAME);
-                    count += CommandData.saveQueue(this, retryCommandQueue, RETRY_QUEUE_FILENAME);
+                    // The queues are persisted already, see CommandQueue
+                    int count = notifyOfQueue();
+                    mainCommandQueue.clear();
+                    retryCommandQueue.clear();
                     MyLog.d(this, "State saved, " + (count>0 ? Integer.toString(count) : "no ") + " msg in the Queues");
     
+                    HttpClientPool.shutdownAll();
                     relealeWakeLock();
                     stopSelfResult(lastProcessedStartId);
                 } finally {
@@ -583,6 +617,19 @@ public class MyService extends Service {
         return new Intent(MyService.ACTION_GO);
     }
     
+    /**
+     * @return e.g. "org.andstatus.app v.15.0", to tell metrics of different builds apart
+     */
+    private String getBuildDescription() {
+        try {
+            PackageInfo pi = getPackageManager().getPackageInfo(getPackageName(), 0);
+            return pi.packageName + " v." + pi.versionName + " (" + pi.versionCode + ")";
+        } catch (NameNotFoundException e) {
+            MyLog.e(this, "Unable to obtain package information", e);
+        }
+        return getPackageName();
+    }
+
     /**
      * Send broadcast informing of the current state of this service
      */
@@ -616,15 +663,18 @@ public class MyService extends Service {
                 if (commandData == null) {
                     break;
                 }
+                QUEUE_SIZE.set(mainCommandQueue.size());
+                if (commandData.getQueuedAt() != 0) {
+                    QUEUE_WAIT_MS.recordSince(commandData.getQueuedAt());
+                }
+                long startedAt = System.currentTimeMillis();
                 CommandExecutorStrategy.executeCommand(commandData, this);
-                if (commandData.getResult().shouldWeRetry()) {
-                    synchronized(MyService.this) {
-                        // Put the command to the retry queue
-                        if (!retryCommandQueue.contains(commandData) 
-                                && !retryCommandQueue.offer(commandData)) {
-                            MyLog.e(this, "mRetryQueue is full?");
-                        }
-                    }        
+                MyMetrics.histogram("service.command." + commandData.getCommand().save() + ".ms")
+                        .recordSince(startedAt);
+                if (!commandData.getResult().shouldWeRetry()
+                        || !retryCommandQueue.offer(commandData)) {
+                    // Executed, or the same command is in the retry queue already
+                    CommandQueue.onDone(commandData);
                 }
                 broadcastState(commandData);
                 if (commandData.getResult().hasError() && !isOnline()) {
@@ -633,6 +683,10 @@ public class MyService extends Service {
                 }
             } while (true);
             MyLog.d(this, "CommandExecutor ended, " + mainCommandQueue.size() + " commands left");
+            if (mainCommandQueue.isEmpty() && MyContextHolder.get().isReady()) {
+                // Idle time
+                MyContextHolder.get().getDatabase().checkpoint();
+            }
             return true;
         }
         
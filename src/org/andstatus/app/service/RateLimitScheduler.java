@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import org.andstatus.app.net.Connection;
+import org.andstatus.app.net.Connection.ApiRoutineEnum;
+import org.andstatus.app.net.MbRateLimitStatus;
+
+/**
+ * Spends the quota of requests of an account ({@link MbRateLimitStatus}, known from response headers)
+ * so that it lasts till the next window:
+ * <ul>
+ * <li>Nothing is requested when the quota is exhausted.</li>
+ * <li>When the quota is low (less than {@link #LOW_QUOTA_PERCENT} of the limit is left),
+ * low priority timelines are skipped, only one page of other timelines is downloaded,
+ * and requests are spaced out evenly till the reset.</li>
+ * </ul>
+ * The quota is unknown for systems, which don't report it, so nothing is limited for them.
+ * @author yvolk@yurivolkov.com
+ */
+class RateLimitScheduler {
+    static final int LOW_QUOTA_PERCENT = 20;
+    /** We don't wait longer between requests of one command */
+    static final long MAX_DELAY_MILLIS = 15000;
+
+    private final Connection connection;
+
+    RateLimitScheduler(Connection connection) {
+        this.connection = connection;
+    }
+
+    MbRateLimitStatus getStatus(ApiRoutineEnum routine) {
+        return connection.getRateLimitStatus(routine);
+    }
+
+    /**
+     * @return false if the request to the routine shouldn't be sent now
+     */
+    boolean isAllowed(ApiRoutineEnum routine, boolean lowPriority) {
+        MbRateLimitStatus status = getStatus(routine);
+        long now = System.currentTimeMillis();
+        return !isExhausted(status, now) && !(lowPriority && isLow(status, now));
+    }
+
+    /**
+     * @return Maximum number of pages to download now
+     */
+    int getPagesAllowed(ApiRoutineEnum routine) {
+        MbRateLimitStatus status = getStatus(routine);
+        long now = System.currentTimeMillis();
+        if (isExhausted(status, now)) {
+            return 0;
+        }
+        return isLow(status, now) ? 1 : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return How long to wait before the next request to the routine
+     */
+    long getDelayMillis(ApiRoutineEnum routine) {
+        return getDelayMillis(getStatus(routine), System.currentTimeMillis());
+    }
+
+    static boolean isExhausted(MbRateLimitStatus status, long now) {
+        return status.limit > 0 && status.remaining <= 0 && !isReset(status, now);
+    }
+
+    static boolean isLow(MbRateLimitStatus status, long now) {
+        return status.limit > 0 && status.remaining * 100L < status.limit * (long) LOW_QUOTA_PERCENT
+                && !isReset(status, now);
+    }
+
+    /**
+     * @return true if the window of the quota has passed, so the quota is not known any more
+     */
+    static boolean isReset(MbRateLimitStatus status, long now) {
+        return status.resetTime > 0 && status.resetTime <= now;
+    }
+
+    static long getDelayMillis(MbRateLimitStatus status, long now) {
+        if (!isLow(status, now) || status.resetTime == 0) {
+            return 0;
+        }
+        return Math.min(MAX_DELAY_MILLIS, (status.resetTime - now) / (Math.max(status.remaining, 0) + 1));
+    }
+}
@@ -30,8 +30,9 @@ abstract class TimelineDownloader {
     private static final String TAG = TimelineDownloader.class.getSimpleName();
 
     protected CommandExecutionContext execContext;
+    private CommandExecutorParent parent = null;
     
-    protected static TimelineDownloader getStrategy(CommandExecutionContext execContext) {
+    protected static TimelineDownloader getStrategy(CommandExecutionContext execContext, CommandExecutorParent parent) {
         TimelineDownloader td;
         switch (execContext.getTimelineType()) {
             case FOLLOWING_USER:
@@ -44,8 +45,13 @@ abstract class TimelineDownloader {
                 break;
         }
         td.execContext = execContext;
+        td.parent = parent;
         return td;
     }
+
+    protected boolean isStopping() {
+        return parent != null && parent.isStopping();
+    }
     
     public abstract void download() throws ConnectionException;
 }
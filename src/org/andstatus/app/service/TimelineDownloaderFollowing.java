@@ -16,19 +16,21 @@
 
 package org.andstatus.app.service;
 
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.text.TextUtils;
 
 import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.data.DataInserter;
+import org.andstatus.app.data.DbUtils;
 import org.andstatus.app.data.FollowingUserValues;
 import org.andstatus.app.data.LatestTimelineItem;
 import org.andstatus.app.data.LatestUserMessages;
-import org.andstatus.app.data.MyDatabase;
 import org.andstatus.app.data.MyProvider;
 import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.data.MyDatabase.User;
 import org.andstatus.app.data.TimelineTypeEnum;
+import org.andstatus.app.net.Connection;
 import org.andstatus.app.net.ConnectionException;
 import org.andstatus.app.net.MbTimelineItem;
 import org.andstatus.app.net.MbTimelineItem.ItemType;
@@ -39,11 +41,27 @@ import org.andstatus.app.net.TimelinePosition;
 import org.andstatus.app.util.MyLog;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 class TimelineDownloaderFollowing extends TimelineDownloader {
+    /** SQLite limits the number of parameters of a statement to 999 */
+    private static final int OIDS_PER_QUERY = 500;
+
+    private static class Friend {
+        final String oid;
+        long userId = 0;
+        boolean hasMessage = false;
+
+        Friend(String oid) {
+            this.oid = oid;
+        }
+    }
 
     @Override
     public void download() throws ConnectionException {
@@ -89,46 +107,130 @@ class TimelineDownloaderFollowing extends TimelineDownloader {
         }
         // Old list of followed users
         Set<Long> followedIdsOld = MyProvider.getIdsOfUsersFollowedBy(execContext.getTimelineUserId());
-        SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
-        for (String followedUserOid : followedUsersOids) {
-            long friendId = MyProvider.oidToId(MyDatabase.OidEnum.USER_OID, execContext.getMyAccount().getOriginId(), followedUserOid);
-            long msgId = 0;
-            if (friendId != 0) {
-                followedIdsOld.remove(friendId);
-                msgId = MyProvider.userIdToLongColumnValue(User.USER_MSG_ID, friendId);
-            }
+        Collection<Friend> friends = findFriends(followedUsersOids);
+        downloadFriends(friends, di, lum);
+        for (Friend friend : friends) {
             // The Friend doesn't have any messages sent, so let's download the latest
-            if (msgId == 0) {
+            if (friend.userId != 0 && !friend.hasMessage) {
                 try {
-                    // Download the Users's info + optionally his latest message
-                    if (friendId == 0 || execContext.getMyAccount().getConnection().userObjectHasMessage()) {
-                        MbUser mbUser = execContext.getMyAccount().getConnection().getUser(followedUserOid);
-                        friendId = di.insertOrUpdateUser(mbUser, lum);
-                        msgId = MyProvider.userIdToLongColumnValue(User.USER_MSG_ID, friendId);
-                    } 
-                    if (friendId != 0 && msgId == 0) {
-                        downloadOneMessageBy(followedUserOid, lum);
+                    downloadOneMessageBy(friend.oid, lum);
+                } catch (ConnectionException e) {
+                    MyLog.i(this, "Failed to download the latest message of oid=" + friend.oid, e);
+                }
+            }
+        }
+        lum.save();
+        updateFollowing(friends, followedIdsOld);
+        latestTimelineItem.save();
+    }
+
+    /**
+     * Friends, who are in the database already, are found with one query per {@link #OIDS_PER_QUERY} oids
+     */
+    private Collection<Friend> findFriends(List<String> oids) {
+        Map<String, Friend> friends = new LinkedHashMap<String, Friend>();
+        for (String oid : oids) {
+            friends.put(oid, new Friend(oid));
+        }
+        List<String> uniqueOids = new ArrayList<String>(friends.keySet());
+        SQLiteDatabase db = MyContextHolder.get().getDatabase().getReadableDatabase();
+        for (int from = 0; from < uniqueOids.size(); from += OIDS_PER_QUERY) {
+            List<String> chunk = uniqueOids.subList(from, Math.min(uniqueOids.size(), from + OIDS_PER_QUERY));
+            StringBuilder placeholders = new StringBuilder();
+            for (int ind = 0; ind < chunk.size(); ind++) {
+                placeholders.append(ind == 0 ? "?" : ",?");
+            }
+            String sql = "SELECT " + User._ID + ", " + User.USER_OID + ", " + User.USER_MSG_ID
+                    + " FROM " + User.TABLE_NAME
+                    + " WHERE " + User.ORIGIN_ID + "=" + execContext.getMyAccount().getOriginId()
+                    + " AND " + User.USER_OID + " IN (" + placeholders + ")";
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery(sql, chunk.toArray(new String[chunk.size()]));
+                while (cursor.moveToNext()) {
+                    Friend friend = friends.get(cursor.getString(1));
+                    if (friend != null) {
+                        friend.userId = cursor.getLong(0);
+                        friend.hasMessage = cursor.getLong(2) != 0;
+                    }
+                }
+            } finally {
+                DbUtils.closeSilently(cursor);
+            }
+        }
+        return friends.values();
+    }
+
+    /**
+     * Downloads the Users' info (and optionally their latest messages) for unknown Friends
+     * and for Friends without messages. In one request per many users, if the API allows this
+     */
+    private void downloadFriends(Collection<Friend> friends, DataInserter di, LatestUserMessages lum) {
+        Connection connection = execContext.getMyAccount().getConnection();
+        Map<String, Friend> toDownload = new HashMap<String, Friend>();
+        for (Friend friend : friends) {
+            if (!friend.hasMessage && (friend.userId == 0 || connection.userObjectHasMessage())) {
+                toDownload.put(friend.oid, friend);
+            }
+        }
+        if (toDownload.isEmpty()) {
+            return;
+        }
+        MyLog.d(this, "Downloading " + toDownload.size() + " of " + friends.size() + " friends");
+        if (connection.isApiSupported(ApiRoutineEnum.GET_USERS)) {
+            try {
+                for (MbUser mbUser : connection.getUsers(new ArrayList<String>(toDownload.keySet()))) {
+                    Friend friend = toDownload.get(mbUser.oid);
+                    if (friend != null) {
+                        friend.userId = di.insertOrUpdateUser(mbUser, lum);
+                        friend.hasMessage = mbUser.latestMessage != null;
                     }
+                }
+            } catch (ConnectionException e) {
+                MyLog.i(this, "Failed to download " + toDownload.size() + " User objects", e);
+            }
+        } else {
+            for (Friend friend : toDownload.values()) {
+                try {
+                    MbUser mbUser = connection.getUser(friend.oid);
+                    friend.userId = di.insertOrUpdateUser(mbUser, lum);
+                    friend.hasMessage = MyProvider.userIdToLongColumnValue(User.USER_MSG_ID, friend.userId) != 0;
                 } catch (ConnectionException e) {
-                    MyLog.i(this, "Failed to download the User object or his message for oid=" + followedUserOid, e);
+                    MyLog.i(this, "Failed to download the User object for oid=" + friend.oid, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Only changes of the "following" information are written, in one transaction
+     * @param followedIdsOld Friends according to the database
+     */
+    private void updateFollowing(Collection<Friend> friends, Set<Long> followedIdsOld) {
+        int followed = 0;
+        SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Friend friend : friends) {
+                if (friend.userId != 0 && !followedIdsOld.remove(friend.userId)) {
+                    FollowingUserValues fu = new FollowingUserValues(execContext.getTimelineUserId(), friend.userId);
+                    fu.setFollowed(true);
+                    fu.update(db);
+                    followed++;
                 }
             }
-            if (friendId != 0) {
-                FollowingUserValues fu = new FollowingUserValues(execContext.getTimelineUserId(), friendId);
-                fu.setFollowed(true);
+            // Now let's remove "following" information for all users left in the Set:
+            for (long notFollowingId : followedIdsOld) {
+                FollowingUserValues fu = new FollowingUserValues(execContext.getTimelineUserId(), notFollowingId);
+                fu.setFollowed(false);
                 fu.update(db);
             }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        
-        lum.save();
-        
-        // Now let's remove "following" information for all users left in the Set:
-        for (long notFollowingId : followedIdsOld) {
-            FollowingUserValues fu = new FollowingUserValues(execContext.getTimelineUserId(), notFollowingId);
-            fu.setFollowed(false);
-            fu.update(db);
-        }
-        latestTimelineItem.save();
+        MyLog.d(this, friends.size() + " friends; followed " + followed + ", stopped following "
+                + followedIdsOld.size());
     }
 
     private void downloadOneMessageBy(String userOid, LatestUserMessages lum) throws ConnectionException {
@@ -24,6 +24,7 @@ import org.andstatus.app.data.LatestUserMessages;
 import org.andstatus.app.data.MyProvider;
 import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.net.ConnectionException;
+import org.andstatus.app.net.Connection.ApiRoutineEnum;
 import org.andstatus.app.net.MbTimelineItem;
 import org.andstatus.app.net.TimelinePosition;
 import org.andstatus.app.net.ConnectionException.StatusCode;
@@ -31,9 +32,21 @@ import org.andstatus.app.util.MyLog;
 
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Downloads pages of a timeline in a separate thread ({@link PageProducer}),
+ * while previous pages are being inserted into the database in the current thread,
+ * so network and disk operations overlap.
+ * The producer stays not more than {@link #PAGES_AHEAD} pages ahead of the consumer.
+ */
 class TimelineDownloaderOther extends TimelineDownloader {
     private static final int MAXIMUM_NUMBER_OF_MESSAGES_TO_DOWNLOAD = 200;
+    /** Number of downloaded pages, waiting to be inserted. The producer waits when there are more */
+    static final int PAGES_AHEAD = 2;
+    private static final long WAIT_MILLIS = 1000;
 
     @Override
     public void download() throws ConnectionException {
@@ -53,37 +66,120 @@ class TimelineDownloaderOther extends TimelineDownloader {
         if (TextUtils.isEmpty(userOid)) {
             throw new ConnectionException("User oId is not found for id=" + execContext.getTimelineUserId());
         }
-        int toDownload = MAXIMUM_NUMBER_OF_MESSAGES_TO_DOWNLOAD;
-        TimelinePosition lastPosition = latestTimelineItem.getPosition();
         LatestUserMessages latestUserMessages = new LatestUserMessages();
+        PageProducer producer = new PageProducer(userOid, latestTimelineItem.getPosition(),
+                latestTimelineItem.getTimelineItemDate());
         latestTimelineItem.onTimelineDownloaded();
         DataInserter di = new DataInserter(execContext);
-        for (boolean done = false; !done; ) {
-            try {
-                int limit = execContext.getMyAccount().getConnection().fixedDownloadLimitForApiRoutine(toDownload, 
-                        execContext.getTimelineType().getConnectionApiRoutine()); 
-                List<MbTimelineItem> messages = execContext.getMyAccount().getConnection().getTimeline(
-                        execContext.getTimelineType().getConnectionApiRoutine(), lastPosition, limit, userOid);
+        Thread thread = new Thread(producer, PageProducer.class.getSimpleName());
+        thread.start();
+        try {
+            for (List<MbTimelineItem> messages = producer.take(); messages != null; messages = producer.take()) {
+                if (di.insertOrUpdateTimelineItems(messages, latestUserMessages) == 0) {
+                    MyLog.d(this, "The page was not stored, the position is not advanced");
+                    break;
+                }
                 for (MbTimelineItem item : messages) {
-                    toDownload--;
                     latestTimelineItem.onNewMsg(item.timelineItemPosition, item.timelineItemDate);
-                    switch (item.getType()) {
-                        case MESSAGE:
-                            di.insertOrUpdateMsg(item.mbMessage, latestUserMessages);
-                            break;
-                        case USER:
-                            di.insertOrUpdateUser(item.mbUser);
-                            break;
-                        default:
-                            break;
-                    }
                 }
-                if (toDownload <= 0
-                        || lastPosition == latestTimelineItem.getPosition()) {
-                    done = true;
-                } else {
-                    lastPosition = latestTimelineItem.getPosition();
+            }
+        } finally {
+            producer.stop();
+        }
+        // Only stored pages are reflected here, even if we were stopped
+        latestUserMessages.save();
+        latestTimelineItem.save();
+    }
+
+    /**
+     * The result of one request: a page of the timeline or an error
+     */
+    private static class Page {
+        static final Page END = new Page(null, null);
+
+        final List<MbTimelineItem> messages;
+        final ConnectionException exception;
+
+        Page(List<MbTimelineItem> messages, ConnectionException exception) {
+            this.messages = messages;
+            this.exception = exception;
+        }
+    }
+
+    /**
+     * Requests pages one after another. A position of the next page is known as soon as the previous page
+     * is downloaded, so the producer doesn't wait for the previous page to be inserted
+     */
+    private class PageProducer implements Runnable {
+        private final BlockingQueue<Page> pages = new ArrayBlockingQueue<Page>(PAGES_AHEAD);
+        private final String userOid;
+        private volatile boolean stopped = false;
+        private TimelinePosition lastPosition;
+        private long lastDate;
+        private int toDownload = MAXIMUM_NUMBER_OF_MESSAGES_TO_DOWNLOAD;
+
+        PageProducer(String userOid, TimelinePosition lastPosition, long lastDate) {
+            this.userOid = userOid;
+            this.lastPosition = lastPosition;
+            this.lastDate = lastDate;
+        }
+
+        @Override
+        public void run() {
+            try {
+                RateLimitScheduler scheduler = new RateLimitScheduler(execContext.getMyAccount().getConnection());
+                ApiRoutineEnum routine = execContext.getTimelineType().getConnectionApiRoutine();
+                int pagesRequested = 0;
+                for (boolean done = false; !done && !isStoppedOrStopping(); ) {
+                    if (pagesRequested >= scheduler.getPagesAllowed(routine)) {
+                        MyLog.d(this, "Quota is low, " + pagesRequested + " pages requested, "
+                                + scheduler.getStatus(routine));
+                        break;
+                    }
+                    if (pagesRequested > 0) {
+                        sleep(scheduler.getDelayMillis(routine));
+                    }
+                    pagesRequested++;
+                    List<MbTimelineItem> messages = downloadPage();
+                    if (messages == null) {
+                        continue;
+                    }
+                    TimelinePosition newestPosition = lastPosition;
+                    for (MbTimelineItem item : messages) {
+                        toDownload--;
+                        // The same logic as in LatestTimelineItem#onNewMsg
+                        if (item.timelineItemPosition != null && !item.timelineItemPosition.isEmpty()
+                                && item.timelineItemDate > lastDate) {
+                            lastDate = item.timelineItemDate;
+                            newestPosition = item.timelineItemPosition;
+                        }
+                    }
+                    put(new Page(messages, null));
+                    if (toDownload <= 0 || lastPosition == newestPosition) {
+                        done = true;
+                    } else {
+                        lastPosition = newestPosition;
+                    }
                 }
+            } catch (ConnectionException e) {
+                put(new Page(null, e));
+            } catch (RuntimeException e) {
+                MyLog.e(this, "Downloading " + execContext.getTimelineType(), e);
+                put(new Page(null, new ConnectionException("Downloading " + execContext.getTimelineType(), e)));
+            } finally {
+                put(Page.END);
+            }
+        }
+
+        /**
+         * @return null if the page should be requested again from the beginning of the timeline
+         */
+        private List<MbTimelineItem> downloadPage() throws ConnectionException {
+            try {
+                int limit = execContext.getMyAccount().getConnection().fixedDownloadLimitForApiRoutine(toDownload, 
+                        execContext.getTimelineType().getConnectionApiRoutine()); 
+                return execContext.getMyAccount().getConnection().getTimeline(
+                        execContext.getTimelineType().getConnectionApiRoutine(), lastPosition, limit, userOid);
             } catch (ConnectionException e) {
                 if (e.getStatusCode() != StatusCode.NOT_FOUND) {
                     throw e;
@@ -94,10 +190,69 @@ class TimelineDownloaderOther extends TimelineDownloader {
                 }
                 MyLog.d(this, "The timeline was not found, last position='" + lastPosition +"'", e);
                 lastPosition = TimelinePosition.getEmpty();
+                return null;
             }
         }
-        latestUserMessages.save();
-        latestTimelineItem.save();
-    }
 
+        /**
+         * Spaces out requests, while staying responsive to stopping
+         */
+        private void sleep(long millis) {
+            long until = System.currentTimeMillis() + millis;
+            try {
+                for (long left = millis; left > 0 && !isStoppedOrStopping(); left = until - System.currentTimeMillis()) {
+                    Thread.sleep(Math.min(left, WAIT_MILLIS));
+                }
+            } catch (InterruptedException e) {
+                MyLog.v(this, "Interrupted", e);
+                stopped = true;
+            }
+        }
+
+        /**
+         * Waits while the consumer is {@link TimelineDownloaderOther#PAGES_AHEAD} pages behind
+         */
+        private void put(Page page) {
+            try {
+                while (!stopped && !pages.offer(page, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    // Waiting for the consumer
+                }
+            } catch (InterruptedException e) {
+                MyLog.v(this, "Interrupted", e);
+                stopped = true;
+            }
+        }
+
+        /**
+         * @return The next page, null if there are no more pages or we are stopping
+         * @throws ConnectionException of the producer
+         */
+        List<MbTimelineItem> take() throws ConnectionException {
+            Page page = null;
+            try {
+                while (page == null) {
+                    if (isStoppedOrStopping()) {
+                        MyLog.v(this, "Stopping, " + pages.size() + " pages are not inserted");
+                        return null;
+                    }
+                    page = pages.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                MyLog.v(this, "Interrupted", e);
+                return null;
+            }
+            if (page.exception != null) {
+                throw page.exception;
+            }
+            return page.messages;
+        }
+
+        private boolean isStoppedOrStopping() {
+            return stopped || isStopping();
+        }
+
+        void stop() {
+            stopped = true;
+        }
+    }
 }
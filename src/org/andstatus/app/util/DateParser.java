@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.util;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Date;
+
+/**
+ * Parses timestamps of Microblogging systems into Unix time (milliseconds since the epoch):
+ * <ul>
+ * <li>{@link #parseRfc822(String)}: Twitter and StatusNet dates, e.g. "Fri Mar 14 11:04:18 +0100 2014",
+ * and RFC 822 dates, e.g. "Fri, 14 Mar 2014 11:04:18 GMT"</li>
+ * <li>{@link #parseIso8601(String)}: pump.io dates, e.g. "2013-10-29T01:01:30Z"</li>
+ * </ul>
+ * The parser has no state, so it may be used by several threads at once
+ * (unlike {@link java.text.SimpleDateFormat}), and it allocates nothing for a date in a known format:
+ * the string is scanned once, and the time is calculated without {@link java.util.Calendar}.
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class DateParser {
+    private static final String[] MONTHS = {"jan", "feb", "mar", "apr", "may", "jun",
+            "jul", "aug", "sep", "oct", "nov", "dec"};
+    private static final String[] WEEKDAYS = {"mon", "tue", "wed", "thu", "fri", "sat", "sun"};
+    /** Time zones of RFC 822 and their offsets in minutes */
+    private static final String[] ZONES = {"gmt", "ut", "utc", "z", "est", "edt", "cst", "cdt",
+            "mst", "mdt", "pst", "pdt"};
+    private static final int[] ZONE_OFFSETS = {0, 0, 0, 0, -300, -240, -360, -300,
+            -420, -360, -480, -420};
+    private static final int NONE = Integer.MIN_VALUE;
+    private static final long MILLIS_IN_MINUTE = 60 * 1000L;
+    private static final long MILLIS_IN_DAY = 24 * 60 * MILLIS_IN_MINUTE;
+
+    private DateParser() {
+    }
+
+    /**
+     * Dates, which are not in a known format, are parsed by the (slow) {@link Date#parse(String)}
+     * @return Unix time, 0 if the date couldn't be parsed
+     */
+    @SuppressWarnings("deprecation")
+    public static long parseRfc822(String date) {
+        if (date == null) {
+            return 0;
+        }
+        long unixDate = scanRfc822(date);
+        if (unixDate == NONE) {
+            try {
+                unixDate = Date.parse(date);
+            } catch (IllegalArgumentException e) {
+                unixDate = 0;
+            }
+        }
+        return unixDate;
+    }
+
+    /**
+     * @return Unix time or {@link #NONE} if the format is unknown
+     */
+    private static long scanRfc822(String date) {
+        int year = NONE;
+        int month = NONE;
+        int day = NONE;
+        int hour = NONE;
+        int minute = 0;
+        int second = 0;
+        int zoneMinutes = NONE;
+        int length = date.length();
+        int pos = 0;
+        while (pos < length) {
+            char c = date.charAt(pos);
+            if (c == ' ' || c == ',' || c == '\t') {
+                pos++;
+            } else if (isLetter(c)) {
+                int end = pos;
+                while (end < length && isLetter(date.charAt(end))) {
+                    end++;
+                }
+                int ind;
+                if ((ind = indexOfName(MONTHS, date, pos, end)) >= 0) {
+                    if (month != NONE) {
+                        return NONE;
+                    }
+                    month = ind + 1;
+                } else if ((ind = indexOfName(ZONES, date, pos, end)) >= 0) {
+                    zoneMinutes = ZONE_OFFSETS[ind];
+                } else if (indexOfName(WEEKDAYS, date, pos, end) < 0) {
+                    return NONE;
+                }
+                pos = end;
+            } else if (c == '+' || c == '-') {
+                // Offset from GMT, possibly after the "GMT": "+0100", "-03:00", "GMT+04:00"
+                int offset = parseOffset(date, pos + 1);
+                if (offset == NONE) {
+                    return NONE;
+                }
+                zoneMinutes = (zoneMinutes == NONE ? 0 : zoneMinutes) + (c == '-' ? -offset : offset);
+                pos = skipDigitsAndColons(date, pos + 1);
+            } else if (isDigit(c)) {
+                int end = skipDigits(date, pos);
+                int number = parseNumber(date, pos, end);
+                if (end < length && date.charAt(end) == ':') {
+                    if (hour != NONE || end - pos > 2) {
+                        return NONE;
+                    }
+                    hour = number;
+                    pos = end + 1;
+                    end = skipDigits(date, pos);
+                    if (end - pos != 2) {
+                        return NONE;
+                    }
+                    minute = parseNumber(date, pos, end);
+                    if (end < length && date.charAt(end) == ':') {
+                        pos = end + 1;
+                        end = skipDigits(date, pos);
+                        if (end - pos != 2) {
+                            return NONE;
+                        }
+                        second = parseNumber(date, pos, end);
+                    }
+                } else if (end - pos == 4 && year == NONE) {
+                    year = number;
+                } else if (end - pos <= 2 && day == NONE) {
+                    day = number;
+                } else {
+                    return NONE;
+                }
+                pos = end;
+            } else {
+                return NONE;
+            }
+        }
+        if (year == NONE || month == NONE || day == NONE || hour == NONE || zoneMinutes == NONE) {
+            return NONE;
+        }
+        return toUnixTime(year, month, day, hour, minute, second, 0, zoneMinutes);
+    }
+
+    /**
+     * "yyyy-MM-ddTHH:mm:ss", optionally followed by a fraction of a second, and a time zone:
+     * "Z", "+hh:mm", "+hhmm" or "+hh"
+     * @return Unix time, 0 if the date couldn't be parsed
+     */
+    public static long parseIso8601(String date) {
+        if (date == null || date.length() < 19) {
+            return 0;
+        }
+        int year = parseFixed(date, 0, 4);
+        int month = parseFixed(date, 5, 2);
+        int day = parseFixed(date, 8, 2);
+        char separator = date.charAt(10);
+        int hour = parseFixed(date, 11, 2);
+        int minute = parseFixed(date, 14, 2);
+        int second = parseFixed(date, 17, 2);
+        if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0
+                || date.charAt(4) != '-' || date.charAt(7) != '-'
+                || (separator != 'T' && separator != 't' && separator != ' ')
+                || date.charAt(13) != ':' || date.charAt(16) != ':') {
+            return 0;
+        }
+        int pos = 19;
+        int millis = 0;
+        if (pos < date.length() && date.charAt(pos) == '.') {
+            int end = skipDigits(date, pos + 1);
+            if (end == pos + 1) {
+                return 0;
+            }
+            // Only milliseconds are significant
+            for (int ind = pos + 1; ind < pos + 4; ind++) {
+                millis = millis * 10 + (ind < end ? date.charAt(ind) - '0' : 0);
+            }
+            pos = end;
+        }
+        if (pos >= date.length()) {
+            return 0;
+        }
+        int zoneMinutes;
+        char c = date.charAt(pos);
+        if ((c == 'Z' || c == 'z') && pos == date.length() - 1) {
+            zoneMinutes = 0;
+        } else if (c == '+' || c == '-') {
+            int offset = parseOffset(date, pos + 1);
+            if (offset == NONE || skipDigitsAndColons(date, pos + 1) != date.length()) {
+                return 0;
+            }
+            zoneMinutes = c == '-' ? -offset : offset;
+        } else {
+            return 0;
+        }
+        long unixDate = toUnixTime(year, month, day, hour, minute, second, millis, zoneMinutes);
+        return unixDate == NONE ? 0 : unixDate;
+    }
+
+    /**
+     * @return Offset in minutes: "hh:mm", "hhmm", "hh" or "h". {@link #NONE} if not an offset
+     */
+    private static int parseOffset(String date, int pos) {
+        int end = skipDigits(date, pos);
+        int digits = end - pos;
+        int hours;
+        int minutes = 0;
+        if (digits == 4) {
+            hours = parseNumber(date, pos, pos + 2);
+            minutes = parseNumber(date, pos + 2, end);
+        } else if (digits == 1 || digits == 2) {
+            hours = parseNumber(date, pos, end);
+            if (end < date.length() && date.charAt(end) == ':') {
+                int end2 = skipDigits(date, end + 1);
+                if (end2 - end - 1 != 2) {
+                    return NONE;
+                }
+                minutes = parseNumber(date, end + 1, end2);
+            }
+        } else {
+            return NONE;
+        }
+        if (hours > 23 || minutes > 59) {
+            return NONE;
+        }
+        return hours * 60 + minutes;
+    }
+
+    /**
+     * @return {@link #NONE} if a field is out of its range
+     */
+    private static long toUnixTime(int year, int month, int day, int hour, int minute, int second, int millis,
+            int zoneMinutes) {
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour > 23 || minute > 59 || second > 60) {
+            return NONE;
+        }
+        return daysFromCivil(year, month, day) * MILLIS_IN_DAY
+                + ((hour * 60L + minute) * 60L + second) * 1000L + millis
+                - zoneMinutes * MILLIS_IN_MINUTE;
+    }
+
+    /**
+     * Days since 1970-01-01 in the proleptic Gregorian calendar,
+     * see http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * @return Index of the name, which starts with the word (of at least 1 letter), -1 if not found
+     */
+    private static int indexOfName(String[] names, String date, int start, int end) {
+        int length = end - start;
+        for (int ind = 0; ind < names.length; ind++) {
+            String name = names[ind];
+            if (length == name.length() || (length > name.length() && name.length() == 3 && names != ZONES)) {
+                // Full names of months and weekdays start with their abbreviations
+                if (date.regionMatches(true, start, name, 0, name.length())) {
+                    return ind;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return -1 if there are less than "length" digits at the position
+     */
+    private static int parseFixed(String date, int pos, int length) {
+        if (skipDigits(date, pos) < pos + length) {
+            return -1;
+        }
+        return parseNumber(date, pos, pos + length);
+    }
+
+    private static int parseNumber(String date, int start, int end) {
+        int number = 0;
+        for (int ind = start; ind < end; ind++) {
+            number = number * 10 + (date.charAt(ind) - '0');
+        }
+        return number;
+    }
+
+    private static int skipDigits(String date, int pos) {
+        int end = pos;
+        while (end < date.length() && isDigit(date.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    private static int skipDigitsAndColons(String date, int pos) {
+        int end = pos;
+        while (end < date.length() && (isDigit(date.charAt(end)) || date.charAt(end) == ':')) {
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
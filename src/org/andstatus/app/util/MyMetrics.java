@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.util;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Performance metrics of the application: counters, gauges and histograms (e.g. of latencies in milliseconds),
+ * registered by name, e.g. "http.home_timeline.ms". Values are updated without locks, so a metric may be
+ * updated from any thread, including the UI thread. A metric is created on its first use,
+ * and the callers may keep the returned object to skip the lookup.
+ * <p>
+ * The values are accumulated since the application started. A snapshot of all of them is written
+ * to a JSON file in the "logs" directory by the {@link org.andstatus.app.service.CommandEnum#DUMP_METRICS} command,
+ * so the same scenario may be compared on different builds and devices.
+ * @author yvolk@yurivolkov.com
+ */
+@ThreadSafe
+public final class MyMetrics {
+    private static final String TAG = MyMetrics.class.getSimpleName();
+
+    private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentMap<String, Gauge> GAUGES = new ConcurrentHashMap<String, Gauge>();
+    private static final ConcurrentMap<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<String, Histogram>();
+
+    private MyMetrics() {
+    }
+
+    /**
+     * Monotonically increasing count, e.g. of requests or of bytes
+     */
+    public static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        Counter() {
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * The latest value of something, e.g. of a queue size, and the maximum of its values
+     */
+    public static final class Gauge {
+        private final AtomicLong value = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Gauge() {
+        }
+
+        public void set(long newValue) {
+            value.set(newValue);
+            updateMax(max, newValue);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+    }
+
+    /**
+     * Distribution of values (e.g. of latencies in milliseconds) in buckets with fixed bounds,
+     * so percentiles are approximated by the upper bounds of the buckets
+     */
+    public static final class Histogram {
+        /** Upper bounds (inclusive) of the buckets. The last bucket has no upper bound */
+        static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram() {
+        }
+
+        public void record(long value) {
+            int ind = 0;
+            while (ind < BOUNDS.length && value > BOUNDS[ind]) {
+                ind++;
+            }
+            buckets.incrementAndGet(ind);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            updateMax(max, value);
+        }
+
+        /**
+         * Records time, passed since the start
+         * @param startedAt e.g. {@link System#currentTimeMillis()} at the start of a request
+         */
+        public void recordSince(long startedAt) {
+            record(System.currentTimeMillis() - startedAt);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param percent e.g. 90 for the 90th percentile
+         * @return Upper bound of the bucket with the percentile, the maximum for the last bucket, 0 if empty
+         */
+        public long getPercentile(int percent) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (total * percent + 99) / 100;
+            long seen = 0;
+            for (int ind = 0; ind < BOUNDS.length; ind++) {
+                seen += buckets.get(ind);
+                if (seen >= rank) {
+                    return Math.min(BOUNDS[ind], max.get());
+                }
+            }
+            return max.get();
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject jso = new JSONObject();
+            long total = count.get();
+            jso.put("count", total);
+            jso.put("sum", sum.get());
+            jso.put("mean", total == 0 ? 0 : sum.get() / total);
+            jso.put("max", max.get());
+            jso.put("p50", getPercentile(50));
+            jso.put("p90", getPercentile(90));
+            jso.put("p99", getPercentile(99));
+            JSONObject jsoBuckets = new JSONObject();
+            for (int ind = 0; ind <= BOUNDS.length; ind++) {
+                long bucketCount = buckets.get(ind);
+                if (bucketCount > 0) {
+                    jsoBuckets.put(ind < BOUNDS.length ? "<=" + BOUNDS[ind] : ">" + BOUNDS[BOUNDS.length - 1],
+                            bucketCount);
+                }
+            }
+            jso.put("buckets", jsoBuckets);
+            return jso;
+        }
+    }
+
+    public static Counter counter(String name) {
+        Counter metric = COUNTERS.get(name);
+        if (metric == null) {
+            COUNTERS.putIfAbsent(name, new Counter());
+            metric = COUNTERS.get(name);
+        }
+        return metric;
+    }
+
+    public static Gauge gauge(String name) {
+        Gauge metric = GAUGES.get(name);
+        if (metric == null) {
+            GAUGES.putIfAbsent(name, new Gauge());
+            metric = GAUGES.get(name);
+        }
+        return metric;
+    }
+
+    public static Histogram histogram(String name) {
+        Histogram metric = HISTOGRAMS.get(name);
+        if (metric == null) {
+            HISTOGRAMS.putIfAbsent(name, new Histogram());
+            metric = HISTOGRAMS.get(name);
+        }
+        return metric;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @param build Description of the build, e.g. its version name, to tell snapshots of different builds apart
+     * @return Snapshot of all metrics, sorted by name
+     */
+    public static JSONObject toJson(String build) throws JSONException {
+        JSONObject jso = new JSONObject();
+        jso.put("build", build);
+        jso.put("device", android.os.Build.MANUFACTURER + " " + android.os.Build.MODEL
+                + ", API " + android.os.Build.VERSION.SDK_INT);
+        jso.put("time", System.currentTimeMillis());
+
+        JSONObject jsoCounters = new JSONObject();
+        for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(COUNTERS).entrySet()) {
+            jsoCounters.put(entry.getKey(), entry.getValue().get());
+        }
+        jso.put("counters", jsoCounters);
+
+        JSONObject jsoGauges = new JSONObject();
+        for (Map.Entry<String, Gauge> entry : new TreeMap<String, Gauge>(GAUGES).entrySet()) {
+            JSONObject jsoGauge = new JSONObject();
+            jsoGauge.put("value", entry.getValue().get());
+            jsoGauge.put("max", entry.getValue().getMax());
+            jsoGauges.put(entry.getKey(), jsoGauge);
+        }
+        jso.put("gauges", jsoGauges);
+
+        JSONObject jsoHistograms = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(HISTOGRAMS).entrySet()) {
+            jsoHistograms.put(entry.getKey(), entry.getValue().toJson());
+        }
+        jso.put("histograms", jsoHistograms);
+        return jso;
+    }
+
+    /**
+     * Writes the snapshot to a new file in the "logs" directory, see {@link MyLog#writeStringToFile(String, String)}
+     * @return Name of the file, or empty string if the snapshot couldn't be written
+     */
+    public static String dumpToFile(String build) {
+        String fileName = "metrics_" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".json";
+        try {
+            if (MyLog.writeStringToFile(toJson(build).toString(2), fileName)) {
+                MyLog.i(TAG, "Metrics written to " + fileName);
+                return fileName;
+            }
+        } catch (JSONException e) {
+            MyLog.e(TAG, "Metrics snapshot", e);
+        }
+        return "";
+    }
+}
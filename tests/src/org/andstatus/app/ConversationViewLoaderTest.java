@@ -10,7 +10,9 @@ import org.andstatus.app.data.MyDatabase.OidEnum;
 import org.andstatus.app.data.MyProvider;
 import org.andstatus.app.util.MyLog;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class ConversationViewLoaderTest extends InstrumentationTestCase {
     private MyAccount ma;
@@ -34,5 +36,32 @@ public class ConversationViewLoaderTest extends InstrumentationTestCase {
         loader.load();
         List<ConversationOneMessage> list = loader.getMsgs();
         assertTrue(!list.isEmpty());
+        boolean selectedFound = false;
+        Set<Long> ids = new HashSet<Long>();
+        for (ConversationOneMessage oMsg : list) {
+            if (oMsg.id == selectedMessageId) {
+                selectedFound = true;
+            }
+            if (oMsg.id != 0) {
+                assertTrue("Message " + oMsg.id + " is listed once", ids.add(oMsg.id));
+            }
+            assertTrue("Message " + oMsg.id + " is enumerated", oMsg.historyOrder > 0);
+        }
+        assertTrue("Selected message is in the conversation", selectedFound);
+        for (ConversationOneMessage oMsg : list) {
+            if (oMsg.inReplyToMsgId != 0 && ids.contains(oMsg.inReplyToMsgId)) {
+                assertTrue("Reply " + oMsg.id + " is listed before its parent (newest first) " + oMsg.inReplyToMsgId,
+                        list.indexOf(oMsg) < indexOf(list, oMsg.inReplyToMsgId));
+            }
+        }
+    }
+
+    private static int indexOf(List<ConversationOneMessage> list, long msgId) {
+        for (int ind = 0; ind < list.size(); ind++) {
+            if (list.get(ind).id == msgId) {
+                return ind;
+            }
+        }
+        return -1;
     }
 }
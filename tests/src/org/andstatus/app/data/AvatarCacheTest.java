@@ -0,0 +1,41 @@
+package org.andstatus.app.data;
+
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+
+public class AvatarCacheTest extends InstrumentationTestCase {
+    public void testLruEvictionBySize() {
+        // Each bitmap takes 10 * 10 * 4 = 400 bytes
+        AvatarCache cache = new AvatarCache(1000);
+        cache.put("1/a", newBitmap());
+        cache.put("2/b", newBitmap());
+        assertEquals(800, cache.getSizeBytes());
+        assertTrue(cache.get("1/a") != null);
+        assertEquals(0, cache.getMisses());
+
+        cache.put("3/c", newBitmap());
+        // "1/a" was used recently, so "2/b" is the eldest one
+        assertEquals(2, cache.size());
+        assertEquals(800, cache.getSizeBytes());
+        assertTrue(cache.get("2/b") == null);
+        assertTrue(cache.get("1/a") != null);
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    public void testInSampleSize() {
+        assertEquals(1, AvatarCache.calculateInSampleSize(48, 48, 72));
+        assertEquals(1, AvatarCache.calculateInSampleSize(100, 100, 72));
+        assertEquals(2, AvatarCache.calculateInSampleSize(150, 160, 72));
+        assertEquals(4, AvatarCache.calculateInSampleSize(300, 300, 72));
+        assertEquals("Size unknown", 1, AvatarCache.calculateInSampleSize(300, 300, 0));
+    }
+
+    private static Bitmap newBitmap() {
+        return Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+    }
+}
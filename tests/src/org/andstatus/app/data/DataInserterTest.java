@@ -32,6 +32,7 @@ import org.andstatus.app.data.MyDatabase.User;
 import org.andstatus.app.net.ConnectionException;
 import org.andstatus.app.net.ConnectionPumpio;
 import org.andstatus.app.net.MbMessage;
+import org.andstatus.app.net.MbTimelineItem;
 import org.andstatus.app.net.MbUser;
 import org.andstatus.app.origin.Origin;
 import org.andstatus.app.origin.OriginType;
@@ -40,6 +41,8 @@ import org.andstatus.app.service.CommandExecutionContext;
 import org.andstatus.app.util.SelectionAndArgs;
 import org.andstatus.app.util.TriState;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 public class DataInserterTest extends InstrumentationTestCase {
@@ -411,6 +414,75 @@ public class DataInserterTest extends InstrumentationTestCase {
         setHtmlContentAllowed(isHtmlContentAllowedStored);
     }
 
+    public void testInsertTimelineItemsInOneTransaction() {
+        MbUser author = userFromPumpioOid("acct:batch@example.com");
+        List<MbTimelineItem> items = new ArrayList<MbTimelineItem>();
+        for (int ind = 0; ind < 5; ind++) {
+            MbTimelineItem item = new MbTimelineItem();
+            item.mbMessage = buildPumpIoMessage(author, "Batch message " + ind, null, null);
+            items.add(item);
+        }
+        MbTimelineItem userItem = new MbTimelineItem();
+        userItem.mbUser = userFromPumpioOid("acct:batchuser@example.com");
+        items.add(userItem);
+        items.add(new MbTimelineItem());
+
+        LatestUserMessages lum = new LatestUserMessages();
+        long seq = MsgChangeFeed.getInstance().getLastSeq();
+        CommandExecutionContext execContext = new CommandExecutionContext(CommandData.getEmpty(), ma).setTimelineType(TimelineTypeEnum.HOME);
+        DataInserter di = new DataInserter(execContext);
+        assertEquals("Items stored", 6, di.insertOrUpdateTimelineItems(items, lum));
+        assertFalse("Page committed", execContext.getResult().hasError());
+        assertFalse("Messages of the committed page are in lum", lum.getUserMessages().isEmpty());
+        lum.save();
+        assertFalse("Transaction is closed", MyContextHolder.get().getDatabase().getWritableDatabase().inTransaction());
+        
+        for (int ind = 0; ind < 5; ind++) {
+            long msgId = MyProvider.oidToId(OidEnum.MSG_OID, origin.getId(), items.get(ind).mbMessage.oid);
+            assertTrue("Message " + ind + " added", msgId != 0);
+        }
+        long userId = MyProvider.oidToId(OidEnum.USER_OID, origin.getId(), userItem.mbUser.oid);
+        assertTrue("User added", userId != 0);
+
+        List<MsgChangeFeed.Change> changes = MsgChangeFeed.getInstance().getChangesSince(seq);
+        assertEquals("One change per page " + changes, 1, changes.size());
+        MsgChangeFeed.Change change = changes.get(0);
+        assertEquals(ma.getUserId(), change.getAccountUserId());
+        assertEquals(TimelineTypeEnum.HOME, change.getTimelineType());
+        assertEquals("Changed messages", 5, change.getMsgIds().size());
+        for (int ind = 0; ind < 5; ind++) {
+            long msgId = MyProvider.oidToId(OidEnum.MSG_OID, origin.getId(), items.get(ind).mbMessage.oid);
+            assertTrue("Message " + ind + " changed", change.getMsgIds().contains(msgId));
+        }
+    }
+
+    public void testFailedItemRollsBackThePage() {
+        MbUser author = userFromPumpioOid("acct:rollback@example.com");
+        List<MbTimelineItem> items = new ArrayList<MbTimelineItem>();
+        for (int ind = 0; ind < 3; ind++) {
+            MbTimelineItem item = new MbTimelineItem();
+            item.mbMessage = buildPumpIoMessage(author, "Rolled back message " + ind, null, null);
+            items.add(item);
+        }
+        // Storing of this message fails after the previous messages were inserted
+        items.get(1).mbMessage.favoritedByActor = null;
+
+        LatestUserMessages lum = new LatestUserMessages();
+        long seq = MsgChangeFeed.getInstance().getLastSeq();
+        CommandExecutionContext execContext = new CommandExecutionContext(CommandData.getEmpty(), ma).setTimelineType(TimelineTypeEnum.HOME);
+        DataInserter di = new DataInserter(execContext);
+        assertEquals("Nothing stored", 0, di.insertOrUpdateTimelineItems(items, lum));
+        assertTrue("Soft error", execContext.getResult().hasSoftError());
+        assertTrue("Nothing of the page is in lum", lum.getUserMessages().isEmpty());
+        assertEquals("Rolled back message is not cached", 0,
+                MyProvider.oidToId(OidEnum.MSG_OID, origin.getId(), items.get(0).mbMessage.oid));
+        assertEquals("Rolled back user is not cached", 0,
+                MyProvider.oidToId(OidEnum.USER_OID, origin.getId(), author.oid));
+        assertFalse("Transaction is closed", MyContextHolder.get().getDatabase().getWritableDatabase().inTransaction());
+        assertTrue("Rolled back messages are not published",
+                MsgChangeFeed.getInstance().getChangesSince(seq).isEmpty());
+    }
+
     private void setHtmlContentAllowed(boolean allowed) {
         new Origin.Builder(origin).setHtmlContentAllowed(allowed).save();
         MyContextHolder.get().persistentOrigins().initialize();
@@ -1,12 +1,43 @@
 package org.andstatus.app.data;
 
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
 import android.test.InstrumentationTestCase;
 
 import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.MyDatabase.Avatar;
+import org.andstatus.app.data.MyDatabase.MsgOfUser;
 
 public class DataPrunerTest extends InstrumentationTestCase  {
     public void testPruneSqlSyntax() {
         DataPruner dp = new DataPruner(MyContextHolder.get().context());
         dp.prune();
     }
+
+    public void testOrphanedRowsDeleted() throws Exception {
+        TestSuite.initializeWithData(this);
+        SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
+        final long nonexistentId = Long.MAX_VALUE - 1;
+
+        ContentValues values = new ContentValues();
+        values.put(MsgOfUser.USER_ID, nonexistentId);
+        values.put(MsgOfUser.MSG_ID, nonexistentId);
+        assertTrue("Orphaned msgofuser row added", db.insert(MsgOfUser.TABLE_NAME, null, values) != -1);
+
+        values = new ContentValues();
+        values.put(Avatar.USER_ID, nonexistentId);
+        values.put(Avatar.VALID_FROM, System.currentTimeMillis());
+        values.put(Avatar.URL, "http://example.com/orphaned.png");
+        assertTrue("Orphaned avatar added", db.insert(Avatar.TABLE_NAME, null, values) != -1);
+
+        DataPruner dp = new DataPruner(MyContextHolder.get().context());
+        assertTrue("Pruned", dp.prune());
+        assertFalse("Not interrupted", dp.isInterrupted());
+        assertTrue("Orphaned msgofuser rows deleted: " + dp.getDeletedMsgOfUser(), dp.getDeletedMsgOfUser() > 0);
+        assertTrue("Orphaned avatars deleted: " + dp.getDeletedAvatars(), dp.getDeletedAvatars() > 0);
+        assertTrue("Chunks: " + dp.getChunks(), dp.getChunks() > 0);
+        assertEquals("No msgofuser row", 0, MyProvider.conditionToLongColumnValue(MsgOfUser.TABLE_NAME,
+                MsgOfUser.USER_ID, MsgOfUser.MSG_ID + "=" + nonexistentId));
+    }
 }
@@ -0,0 +1,51 @@
+package org.andstatus.app.data;
+
+import android.test.InstrumentationTestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class MsgChangeFeedTest extends InstrumentationTestCase {
+
+    public void testChangesSince() {
+        MsgChangeFeed feed = new MsgChangeFeed();
+        long seq0 = feed.getLastSeq();
+        assertEquals("No changes", 0, feed.getChangesSince(seq0).size());
+        assertEquals("Empty change is not logged", seq0,
+                feed.onMessagesChanged(1, TimelineTypeEnum.HOME, Arrays.<Long>asList()));
+
+        long seq1 = feed.onMessagesChanged(1, TimelineTypeEnum.HOME, Arrays.asList(11L, 12L));
+        long seq2 = feed.onMessagesChanged(2, TimelineTypeEnum.MENTIONS, Arrays.asList(21L));
+        assertTrue(seq1 > seq0 && seq2 > seq1);
+        assertEquals(seq2, feed.getLastSeq());
+
+        List<MsgChangeFeed.Change> changes = feed.getChangesSince(seq0);
+        assertEquals(2, changes.size());
+        assertEquals(seq1, changes.get(0).getSeq());
+        assertEquals(TimelineTypeEnum.HOME, changes.get(0).getTimelineType());
+        assertTrue(changes.get(0).getMsgIds().contains(12L));
+        assertTrue(changes.get(0).isVisibleTo(1, false));
+        assertFalse(changes.get(0).isVisibleTo(2, false));
+        assertTrue("Combined timeline", changes.get(0).isVisibleTo(2, true));
+
+        changes = feed.getChangesSince(seq1);
+        assertEquals(1, changes.size());
+        assertEquals(seq2, changes.get(0).getSeq());
+        assertEquals(0, feed.getChangesSince(seq2).size());
+    }
+
+    public void testReloadNeeded() {
+        MsgChangeFeed feed = new MsgChangeFeed();
+        long seq1 = feed.onMessagesChanged(1, TimelineTypeEnum.HOME, Arrays.asList(11L));
+        long seq2 = feed.onReloadNeeded("test");
+        assertNull("Reload after messages were deleted", feed.getChangesSince(seq1));
+        assertEquals(0, feed.getChangesSince(seq2).size());
+
+        long seq3 = feed.onMessagesChanged(1, TimelineTypeEnum.HOME, Arrays.asList(12L));
+        for (int ind = 0; ind < MsgChangeFeed.MAX_CHANGES; ind++) {
+            feed.onMessagesChanged(1, TimelineTypeEnum.HOME, Arrays.asList(100L + ind));
+        }
+        assertNull("Reload, if the changes were dropped from the log", feed.getChangesSince(seq2));
+        assertEquals(MsgChangeFeed.MAX_CHANGES, feed.getChangesSince(seq3).size());
+    }
+}
@@ -0,0 +1,54 @@
+package org.andstatus.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.MyDatabase.Msg;
+
+public class MsgDisplayFieldsTest extends InstrumentationTestCase {
+    public void testBodyToDisplay() {
+        assertEquals("", MsgDisplayFields.bodyToDisplay(null));
+        assertEquals("Plain text", MsgDisplayFields.bodyToDisplay(" Plain text "));
+        assertEquals("Tom & Jerry", MsgDisplayFields.bodyToDisplay("Tom &amp; Jerry"));
+        assertEquals("Hello, world", MsgDisplayFields.bodyToDisplay("<p>Hello, <a href=\"http://example.com/\">world</a></p>"));
+        assertEquals("via", MsgDisplayFields.viaToDisplay("<a href=\"http://example.com/\" rel=\"nofollow\">via</a>"));
+        assertEquals("", MsgDisplayFields.viaToDisplay(""));
+    }
+
+    public void testBackfill() throws Exception {
+        TestSuite.initializeWithData(this);
+        SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
+        assertEquals("Messages without display fields", 0, countNotBackfilled(db));
+
+        ContentValues values = new ContentValues();
+        values.putNull(Msg.BODY_DISPLAY);
+        values.putNull(Msg.VIA_DISPLAY);
+        int cleared = db.update(Msg.TABLE_NAME, values, null, null);
+        assertTrue("Messages cleared: " + cleared, cleared > 0);
+        assertEquals(cleared, countNotBackfilled(db));
+
+        assertEquals("Messages backfilled", cleared, MsgDisplayFields.backfill(db));
+        assertEquals("Messages without display fields", 0, countNotBackfilled(db));
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT " + Msg.BODY + ", " + Msg.BODY_DISPLAY + ", " + Msg.VIA + ", "
+                    + Msg.VIA_DISPLAY + " FROM " + Msg.TABLE_NAME, null);
+            while (cursor.moveToNext()) {
+                assertEquals(MsgDisplayFields.bodyToDisplay(cursor.getString(0)), cursor.getString(1));
+                assertEquals(MsgDisplayFields.viaToDisplay(cursor.getString(2)), cursor.getString(3));
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+    }
+
+    private long countNotBackfilled(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + Msg.TABLE_NAME
+                + " WHERE " + Msg.BODY_DISPLAY + " IS NULL", null);
+    }
+}
@@ -0,0 +1,105 @@
+package org.andstatus.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.data.MyDatabase.OidEnum;
+import org.andstatus.app.data.MyDatabase.User;
+
+public class MsgSearchIndexTest extends InstrumentationTestCase {
+
+    public void testToMatchQuery() {
+        assertEquals("", MsgSearchIndex.toMatchQuery(null));
+        assertEquals("", MsgSearchIndex.toMatchQuery(" \"-*: "));
+        assertEquals("andstatus*", MsgSearchIndex.toMatchQuery("AndStatus"));
+        assertEquals("and* st*", MsgSearchIndex.toMatchQuery("and st"));
+        assertEquals("or* not* near*", MsgSearchIndex.toMatchQuery("OR NOT NEAR"));
+        assertEquals("t131t* identi* ca*", MsgSearchIndex.toMatchQuery("\"t131t@identi.ca\""));
+        assertEquals("привет*", MsgSearchIndex.toMatchQuery("привет!"));
+    }
+
+    public void testSearch() throws Exception {
+        TestSuite.initializeWithData(this);
+        MyAccount ma = MyContextHolder.get().persistentAccounts().fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(ma != null);
+        long msgId = MyProvider.oidToId(OidEnum.MSG_OID, ma.getOriginId(), TestSuite.CONVERSATION_ENTRY_MESSAGE_OID);
+        assertTrue("Message exists", msgId != 0);
+        SQLiteDatabase db = MyContextHolder.get().getDatabase().getReadableDatabase();
+        assertEquals("Every message is indexed", 
+                DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + Msg.TABLE_NAME, null),
+                DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + MsgSearchIndex.TABLE_NAME, null));
+
+        String body = MyProvider.msgIdToStringColumnValue(Msg.BODY_DISPLAY, msgId);
+        String word = longestWord(body);
+        assertTrue("Word in '" + body + "'", word.length() > 2);
+        assertFound(ma, msgId, word);
+        assertFound(ma, msgId, word.substring(0, word.length() - 1).toUpperCase());
+
+        long authorId = MyProvider.msgIdToLongColumnValue(Msg.AUTHOR_ID, msgId);
+        String authorName = MyProvider.userIdToName(authorId);
+        assertFound(ma, msgId, authorName);
+        assertFound(ma, msgId, authorName + " " + word);
+        assertFalse("Author's name and a missing word", isFound(ma, msgId, authorName + " nosuchword" + System.nanoTime()));
+    }
+
+    public void testAuthorRenamed() throws Exception {
+        TestSuite.initializeWithData(this);
+        MyAccount ma = MyContextHolder.get().persistentAccounts().fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(ma != null);
+        long msgId = MyProvider.oidToId(OidEnum.MSG_OID, ma.getOriginId(), TestSuite.CONVERSATION_ENTRY_MESSAGE_OID);
+        long authorId = MyProvider.msgIdToLongColumnValue(Msg.AUTHOR_ID, msgId);
+        assertTrue("Author exists", authorId != 0);
+        String realNameOld = MyProvider.userIdToStringColumnValue(User.REAL_NAME, authorId);
+        String realName = "renamed" + System.nanoTime();
+        assertFalse(isFound(ma, msgId, realName));
+
+        Uri userUri = MyProvider.getUserUri(ma.getUserId(), authorId);
+        ContentValues values = new ContentValues();
+        values.put(User.REAL_NAME, realName);
+        MyContextHolder.get().context().getContentResolver().update(userUri, values, null, null);
+        assertFound(ma, msgId, realName);
+
+        values.put(User.REAL_NAME, realNameOld);
+        MyContextHolder.get().context().getContentResolver().update(userUri, values, null, null);
+        assertFalse("Old real name is restored", isFound(ma, msgId, realName));
+    }
+
+    private static String longestWord(String text) {
+        String longest = "";
+        for (String word : MsgSearchIndex.toMatchQuery(text).split(" ")) {
+            if (word.length() > longest.length()) {
+                longest = word;
+            }
+        }
+        return longest.replace("*", "");
+    }
+
+    private void assertFound(MyAccount ma, long msgId, String query) {
+        assertTrue("Message " + msgId + " found by '" + query + "'", isFound(ma, msgId, query));
+    }
+
+    private boolean isFound(MyAccount ma, long msgId, String query) {
+        Uri uri = MyProvider.getTimelineSearchUri(ma.getUserId(), TimelineTypeEnum.HOME, true, query);
+        Cursor cursor = null;
+        try {
+            cursor = MyContextHolder.get().context().getContentResolver().query(uri, 
+                    new String[] {Msg._ID}, null, null, null);
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(0) == msgId) {
+                    return true;
+                }
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,178 @@
+package org.andstatus.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.data.MyDatabase.OidEnum;
+import org.andstatus.app.net.MbMessage;
+import org.andstatus.app.net.MbTimelineItem;
+import org.andstatus.app.net.MbUser;
+import org.andstatus.app.service.CommandData;
+import org.andstatus.app.service.CommandExecutionContext;
+import org.andstatus.app.util.MyLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * UI queries, while the service stores messages, see the concurrency policy of {@link MyDatabase}
+ */
+public class MyDatabaseContentionTest extends InstrumentationTestCase {
+    private static final int PAGES = 10;
+    private static final int PAGE_SIZE = 20;
+
+    private MyAccount ma;
+    private volatile Exception writerException = null;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initializeWithData(this);
+        ma = MyContextHolder.get().persistentAccounts().fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(TestSuite.CONVERSATION_ACCOUNT_NAME + " exists", ma != null);
+    }
+
+    public void testQueriesDuringBulkIngest() throws Exception {
+        final String method = "testQueriesDuringBulkIngest";
+        if (android.os.Build.VERSION.SDK_INT >= 11) {
+            assertTrue("Write-ahead logging", MyContextHolder.get().getDatabase().isWriteAheadLogging());
+        }
+        final List<List<MbTimelineItem>> pages = buildPages();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DataInserter di = new DataInserter(new CommandExecutionContext(CommandData.getEmpty(), ma)
+                            .setTimelineType(TimelineTypeEnum.HOME));
+                    for (List<MbTimelineItem> page : pages) {
+                        LatestUserMessages lum = new LatestUserMessages();
+                        di.insertOrUpdateTimelineItems(page, lum);
+                        lum.save();
+                    }
+                } catch (Exception e) {
+                    writerException = e;
+                }
+            }
+        });
+
+        Uri uri = MyProvider.getTimelineUri(ma.getUserId(), TimelineTypeEnum.HOME, false);
+        String[] projection = new String[] {Msg._ID, Msg.BODY_DISPLAY, Msg.SENT_DATE};
+        int queries = 0;
+        long maxMillis = 0;
+        writer.start();
+        while (writer.isAlive() || queries == 0) {
+            long startTime = System.currentTimeMillis();
+            Cursor cursor = null;
+            try {
+                cursor = MyContextHolder.get().context().getContentResolver()
+                        .query(uri, projection, null, null, Msg.DEFAULT_SORT_ORDER);
+                assertTrue("Query " + queries, cursor != null);
+                while (cursor.moveToNext()) {
+                    cursor.getString(1);
+                }
+            } finally {
+                DbUtils.closeSilently(cursor);
+            }
+            maxMillis = Math.max(maxMillis, System.currentTimeMillis() - startTime);
+            queries++;
+        }
+        writer.join();
+        MyLog.v(this, method + "; " + queries + " queries during ingest of " + PAGES * PAGE_SIZE
+                + " messages, the longest query " + maxMillis + " ms");
+        if (writerException != null) {
+            throw writerException;
+        }
+
+        for (List<MbTimelineItem> page : pages) {
+            for (MbTimelineItem item : page) {
+                assertTrue("Message stored " + item.mbMessage.oid,
+                        MyProvider.oidToId(OidEnum.MSG_OID, ma.getOriginId(), item.mbMessage.oid) != 0);
+            }
+        }
+        MyContextHolder.get().getDatabase().checkpoint();
+    }
+
+    /**
+     * In the WAL mode a reader doesn't wait for the end of the write transaction
+     */
+    public void testQueryWhileWriteTransactionIsOpen() throws Exception {
+        if (android.os.Build.VERSION.SDK_INT < 11) {
+            return;
+        }
+        final List<MbTimelineItem> page = buildPages().get(0);
+        final CountDownLatch transactionOpen = new CountDownLatch(1);
+        final CountDownLatch queryDone = new CountDownLatch(1);
+        final AtomicBoolean queryDoneInTransaction = new AtomicBoolean(false);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = MyContextHolder.get().getDatabase().getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    DataInserter di = new DataInserter(new CommandExecutionContext(CommandData.getEmpty(), ma)
+                            .setTimelineType(TimelineTypeEnum.HOME));
+                    di.insertOrUpdateTimelineItems(page, new LatestUserMessages());
+                    transactionOpen.countDown();
+                    queryDoneInTransaction.set(queryDone.await(10, TimeUnit.SECONDS));
+                    db.setTransactionSuccessful();
+                } catch (Exception e) {
+                    writerException = e;
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+        writer.start();
+        assertTrue("Write transaction is open", transactionOpen.await(30, TimeUnit.SECONDS));
+
+        Uri uri = MyProvider.getTimelineUri(ma.getUserId(), TimelineTypeEnum.HOME, false);
+        Cursor cursor = null;
+        try {
+            cursor = MyContextHolder.get().context().getContentResolver()
+                    .query(uri, new String[] {Msg._ID, Msg.BODY_DISPLAY}, null, null, Msg.DEFAULT_SORT_ORDER);
+            assertTrue("Query", cursor != null);
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        queryDone.countDown();
+        writer.join();
+        if (writerException != null) {
+            throw writerException;
+        }
+        assertTrue("The query didn't wait for the write transaction", queryDoneInTransaction.get());
+    }
+
+    private List<List<MbTimelineItem>> buildPages() {
+        MbUser author = MbUser.fromOriginAndUserOid(ma.getOriginId(), "acct:contention@example.com");
+        author.userName = "contention@example.com";
+        List<List<MbTimelineItem>> pages = new ArrayList<List<MbTimelineItem>>();
+        long sentDate = System.currentTimeMillis();
+        for (int pageInd = 0; pageInd < PAGES; pageInd++) {
+            List<MbTimelineItem> page = new ArrayList<MbTimelineItem>();
+            for (int ind = 0; ind < PAGE_SIZE; ind++) {
+                MbMessage message = MbMessage.fromOriginAndOid(ma.getOriginId(),
+                        "http://example.com/contention/note" + System.nanoTime() + "-" + pageInd + "-" + ind);
+                message.setBody("Contention message " + ind + " of page " + pageInd);
+                message.sentDate = sentDate++;
+                message.sender = author;
+                MbTimelineItem item = new MbTimelineItem();
+                item.mbMessage = message;
+                page.add(item);
+            }
+            pages.add(page);
+        }
+        return pages;
+    }
+}
@@ -1,7 +1,21 @@
 package org.andstatus.app.data;
 
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
 import android.test.InstrumentationTestCase;
 
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.data.MyDatabase.OidEnum;
+import org.andstatus.app.data.MyDatabase.User;
+
+import java.util.HashSet;
+import java.util.Set;
+
 public class MyProviderTest extends InstrumentationTestCase {
     public void testQuoteIfNotQuoted() {
         assertEquals("Empty string", String.valueOf('\'') + String.valueOf('\''), MyProvider.quoteIfNotQuoted(""));
@@ -12,4 +26,125 @@ public class MyProviderTest extends InstrumentationTestCase {
         assertEquals("quoted", "'''toQuote'", MyProvider.quoteIfNotQuoted("'toQuote"));
         assertEquals("quoted", "'''toQuo''te'", MyProvider.quoteIfNotQuoted("'toQuo'te"));
     }
+
+    public void testUnquote() {
+        assertEquals("Empty string", "", MyProvider.unquote(""));
+        assertEquals("Null", "", MyProvider.unquote(null));
+        assertEquals("string", "toQuote", MyProvider.unquote("toQuote"));
+        assertEquals("quoted", "toQuote", MyProvider.unquote("'toQuote'"));
+        assertEquals("quoted", "to'Quote", MyProvider.unquote("'to'Quote'"));
+        assertEquals("quoted", "'toQuote", MyProvider.unquote("'toQuote"));
+    }
+
+    public void testPooledStatementsAreReused() throws Exception {
+        TestSuite.initializeWithData(this);
+        MyAccount ma = MyContextHolder.get().persistentAccounts().fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(TestSuite.CONVERSATION_ACCOUNT_NAME + " exists", ma != null);
+        SqlStatementPool pool = MyContextHolder.get().getDatabase().getStatementPool();
+
+        assertEquals("Username", ma.getUsername(), MyProvider.userIdToStringColumnValue(User.USERNAME, ma.getUserId()));
+        assertEquals("Origin", ma.getOriginId(), MyProvider.userIdToLongColumnValue(User.ORIGIN_ID, ma.getUserId()));
+        assertEquals("Oid", TestSuite.CONVERSATION_ACCOUNT_USER_OID, MyProvider.idToOid(OidEnum.USER_OID, ma.getUserId(), 0));
+        assertEquals("User id", ma.getUserId(), MyProvider.userNameToId(ma.getOriginId(), ma.getUsername()));
+        int size = pool.size();
+        assertTrue("Statements pooled", size > 0);
+
+        assertEquals("Username", ma.getUsername(), MyProvider.userIdToStringColumnValue(User.USERNAME, ma.getUserId()));
+        assertEquals("Origin", ma.getOriginId(), MyProvider.userIdToLongColumnValue(User.ORIGIN_ID, ma.getUserId()));
+        assertEquals("Oid", TestSuite.CONVERSATION_ACCOUNT_USER_OID, MyProvider.idToOid(OidEnum.USER_OID, ma.getUserId(), 0));
+        assertEquals("User id", ma.getUserId(), MyProvider.userNameToId(ma.getOriginId(), ma.getUsername()));
+        assertEquals("No new statements compiled", size, pool.size());
+        assertEquals("Not found", 0, MyProvider.userNameToId(ma.getOriginId(), "'; DROP TABLE user; --"));
+    }
+    public void testTimelinePages() throws Exception {
+        TestSuite.initializeWithData(this);
+        MyAccount ma = MyContextHolder.get().persistentAccounts().fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(TestSuite.CONVERSATION_ACCOUNT_NAME + " exists", ma != null);
+        Uri timelineUri = MyProvider.getTimelineUri(ma.getUserId(), TimelineTypeEnum.HOME, true);
+        String[] projection = new String[] { Msg._ID, Msg.SENT_DATE };
+        final int pageSize = 3;
+
+        Set<Long> ids = new HashSet<Long>();
+        long olderThanSentDate = 0;
+        long olderThanMsgId = 0;
+        for (int pageNumber = 0; pageNumber < 3; pageNumber++) {
+            Uri uri = MyProvider.getTimelinePageUri(timelineUri, olderThanSentDate, olderThanMsgId, pageSize);
+            assertEquals("Page size", pageSize, MyProvider.uriToPageSize(uri));
+            Cursor cursor = MyContextHolder.get().context().getContentResolver()
+                    .query(uri, projection, null, null, null);
+            try {
+                assertTrue("Page " + pageNumber + " loaded", cursor != null);
+                assertTrue("Page " + pageNumber + " size " + cursor.getCount(), cursor.getCount() <= pageSize);
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    long sentDate = cursor.getLong(1);
+                    assertTrue("Message " + id + " is not in previous pages", ids.add(id));
+                    if (olderThanMsgId != 0) {
+                        assertTrue("Message " + id + " is older", sentDate < olderThanSentDate 
+                                || (sentDate == olderThanSentDate && id < olderThanMsgId));
+                    }
+                    olderThanSentDate = sentDate;
+                    olderThanMsgId = id;
+                }
+            } finally {
+                DbUtils.closeSilently(cursor);
+            }
+        }
+        assertTrue("Messages loaded: " + ids.size(), ids.size() > pageSize);
+        assertEquals("Not a page", 0, MyProvider.uriToPageSize(timelineUri));
+    }
+
+    public void testMessageWithoutSentDateIsPaged() throws Exception {
+        TestSuite.initializeWithData(this);
+        MyAccount ma = MyContextHolder.get().persistentAccounts().fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(TestSuite.CONVERSATION_ACCOUNT_NAME + " exists", ma != null);
+        Uri timelineUri = MyProvider.getTimelineUri(ma.getUserId(), TimelineTypeEnum.HOME, true);
+        long msgId = 0;
+        Cursor cursor = MyContextHolder.get().context().getContentResolver()
+                .query(MyProvider.getTimelinePageUri(timelineUri, 0, 0, 1), new String[] { Msg._ID }, null, null, null);
+        try {
+            assertTrue("Timeline is not empty", cursor.moveToFirst());
+            msgId = cursor.getLong(0);
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        long sentDate = MyProvider.msgIdToLongColumnValue(Msg.SENT_DATE, msgId);
+
+        ContentValues values = new ContentValues();
+        values.putNull(Msg.SENT_DATE);
+        MyContextHolder.get().context().getContentResolver().update(MyProvider.MSG_CONTENT_URI, values,
+                Msg._ID + "=" + msgId, null);
+        try {
+            assertEquals("Messages without the sent date", 0, DatabaseUtils.longForQuery(
+                    MyContextHolder.get().getDatabase().getReadableDatabase(), "SELECT count(*) FROM "
+                    + Msg.TABLE_NAME + " WHERE " + Msg.SENT_DATE + " IS NULL", null));
+            String[] projection = new String[] { Msg._ID, Msg.SENT_DATE };
+            final int pageSize = 5;
+            boolean found = false;
+            long olderThanSentDate = 0;
+            long olderThanMsgId = 0;
+            for (int pageNumber = 0; pageNumber < 1000 && !found; pageNumber++) {
+                Uri uri = MyProvider.getTimelinePageUri(timelineUri, olderThanSentDate, olderThanMsgId, pageSize);
+                cursor = MyContextHolder.get().context().getContentResolver()
+                        .query(uri, projection, null, null, null);
+                try {
+                    if (!cursor.moveToFirst()) {
+                        break;
+                    }
+                    do {
+                        olderThanMsgId = cursor.getLong(0);
+                        olderThanSentDate = cursor.getLong(1);
+                        found |= olderThanMsgId == msgId;
+                    } while (cursor.moveToNext());
+                } finally {
+                    DbUtils.closeSilently(cursor);
+                }
+            }
+            assertTrue("Message without the sent date is on the last pages", found);
+        } finally {
+            values.put(Msg.SENT_DATE, sentDate);
+            MyContextHolder.get().context().getContentResolver().update(MyProvider.MSG_CONTENT_URI, values,
+                    Msg._ID + "=" + msgId, null);
+        }
+    }
 }
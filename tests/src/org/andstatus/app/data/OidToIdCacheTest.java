@@ -0,0 +1,34 @@
+package org.andstatus.app.data;
+
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.data.MyDatabase.OidEnum;
+
+public class OidToIdCacheTest extends InstrumentationTestCase {
+    public void testPutGetAndEviction() {
+        OidToIdCache cache = new OidToIdCache(3);
+        long originId = 1;
+        cache.put(OidEnum.USER_OID, originId, "u1", 11);
+        cache.put(OidEnum.USER_OID, originId, "u2", 12);
+        cache.put(OidEnum.MSG_OID, originId, "u1", 21);
+        assertEquals(11, cache.get(OidEnum.USER_OID, originId, "u1"));
+        assertEquals(21, cache.get(OidEnum.MSG_OID, originId, "u1"));
+        assertEquals("Other origin", 0, cache.get(OidEnum.USER_OID, 2, "u1"));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.put(OidEnum.USER_OID, originId, "u3", 13);
+        // u1 was used recently, so u2 is the eldest one
+        cache.put(OidEnum.USER_OID, originId, "u4", 14);
+        assertEquals(3, cache.size(OidEnum.USER_OID));
+        assertEquals(0, cache.get(OidEnum.USER_OID, originId, "u2"));
+        assertEquals(11, cache.get(OidEnum.USER_OID, originId, "u1"));
+
+        cache.put(OidEnum.USER_OID, originId, "u5", 0);
+        assertEquals("Not found results are not cached", 0, cache.get(OidEnum.USER_OID, originId, "u5"));
+
+        cache.invalidate(OidEnum.MSG_OID);
+        assertEquals(0, cache.get(OidEnum.MSG_OID, originId, "u1"));
+        assertEquals(11, cache.get(OidEnum.USER_OID, originId, "u1"));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.MyDatabase.Avatar;
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.data.MyDatabase.MsgOfUser;
+import org.andstatus.app.data.MyDatabase.User;
+import org.andstatus.app.util.MyLog;
+import org.andstatus.app.util.SelectionAndArgs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Checks with "EXPLAIN QUERY PLAN" that the queries, built by {@link MyProvider},
+ * use indexes instead of full scans of the {@link Msg} table.
+ * The only scan of the table, which is allowed, is the scan of the sent date index in the order of the page,
+ * which stops after the LIMIT rows
+ */
+public class TimelineQueryPlanTest extends InstrumentationTestCase {
+    private static final Pattern SCAN_OF_MSG = Pattern.compile("^SCAN (TABLE )?" + Msg.TABLE_NAME + "1?( |$)");
+    private static final Pattern ORDERED_SCAN_OF_MSG = Pattern.compile(
+            " USING (COVERING )?INDEX idx_msg_sent_date( |$)");
+
+    private MyAccount ma;
+    private SQLiteDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initializeWithData(this);
+        ma = MyContextHolder.get().persistentAccounts().fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(TestSuite.CONVERSATION_ACCOUNT_NAME + " exists", ma != null);
+        db = MyContextHolder.get().getDatabase().getReadableDatabase();
+    }
+
+    public void testTimelineQueries() {
+        for (TimelineTypeEnum timelineType : TimelineTypeEnum.values()) {
+            if (timelineType == TimelineTypeEnum.UNKNOWN) {
+                continue;
+            }
+            for (boolean isCombined : new boolean[] {false, true}) {
+                Uri uri = MyProvider.getTimelineMembersUri(
+                        MyProvider.getTimelineUri(ma.getUserId(), timelineType, isCombined));
+                assertNoFullScanOfMsg(timelineType, isCombined, uri, Msg.DEFAULT_SORT_ORDER + " LIMIT 0,200");
+                assertNoFullScanOfMsg(timelineType, isCombined, 
+                        MyProvider.getTimelinePageUri(uri, 0, 0, 200), null);
+                assertNoFullScanOfMsg(timelineType, isCombined, 
+                        MyProvider.getTimelinePageUri(uri, System.currentTimeMillis(), 100, 200), null);
+            }
+        }
+    }
+
+    private void assertNoFullScanOfMsg(TimelineTypeEnum timelineType, boolean isCombined, Uri uri, String sortOrder) {
+        SelectionAndArgs sa = timelineSelection(timelineType, isCombined);
+        String sql = MyProvider.buildSql(uri, timelineProjection(), sa, sortOrder);
+        List<String> plan = explain(sql, sa.selectionArgs);
+        boolean isOrderedPage = sql.contains(" LIMIT ") && !plan.toString().contains("TEMP B-TREE FOR ORDER BY");
+        for (String detail : plan) {
+            if (SCAN_OF_MSG.matcher(detail).find()) {
+                assertTrue(timelineType + (isCombined ? " combined" : "") + ": full scan of msg; "
+                        + plan + "; SQL=" + sql,
+                        isOrderedPage && ORDERED_SCAN_OF_MSG.matcher(detail).find());
+            }
+        }
+    }
+
+    public void testMaterialisedTimelines() {
+        TimelineTypeEnum[] timelineTypes = {TimelineTypeEnum.HOME, TimelineTypeEnum.MENTIONS,
+                TimelineTypeEnum.FAVORITES, TimelineTypeEnum.DIRECT};
+        for (TimelineTypeEnum timelineType : timelineTypes) {
+            Uri uri = MyProvider.getTimelineMembersUri(MyProvider.getTimelineUri(ma.getUserId(), timelineType, false));
+            for (Uri pageUri : new Uri[] {MyProvider.getTimelinePageUri(uri, 0, 0, 200),
+                    MyProvider.getTimelinePageUri(uri, System.currentTimeMillis(), 100, 200)}) {
+                SelectionAndArgs sa = timelineSelection(timelineType, false);
+                String sql = MyProvider.buildSql(pageUri, timelineProjection(), sa, null);
+                List<String> plan = explain(sql, sa.selectionArgs);
+                assertTrue(timelineType + ": the timeline table is not used; " + plan + "; SQL=" + sql,
+                        plan.toString().contains("sqlite_autoindex_" + TimelineTable.TABLE_NAME));
+                assertFalse(timelineType + ": sorting; " + plan + "; SQL=" + sql,
+                        plan.toString().contains("TEMP B-TREE"));
+                assertFalse(timelineType + ": flags are joined; " + plan + "; SQL=" + sql,
+                        plan.toString().contains(" " + MsgOfUser.TABLE_NAME));
+            }
+        }
+    }
+
+    public void testSearchQuery() {
+        SelectionAndArgs sa = new SelectionAndArgs();
+        Uri uri = MyProvider.getTimelineSearchUri(ma.getUserId(), TimelineTypeEnum.HOME, false, "reply");
+        String sql = MyProvider.buildSql(uri, timelineProjection(), sa, null);
+        assertEquals("Search argument added", 1, sa.nArgs);
+        List<String> plan = explain(sql, sa.selectionArgs);
+        assertTrue("Full-text index is used: " + plan, plan.toString().contains(MsgSearchIndex.TABLE_NAME));
+    }
+
+    public void testRepliesUseIndex() {
+        String sql = "SELECT " + Msg._ID + " FROM " + Msg.TABLE_NAME
+                + " WHERE " + Msg.IN_REPLY_TO_MSG_ID + "=1"
+                + " ORDER BY " + Msg.CREATED_DATE + " DESC";
+        assertUsesIndex("idx_msg_in_reply_to", sql, null);
+    }
+
+    public void testPruningUsesIndex() {
+        String sql = "SELECT count(*) FROM " + Msg.TABLE_NAME
+                + " WHERE " + Msg.INS_DATE + " < ?";
+        assertUsesIndex("idx_msg_ins_date", sql, new String[] {"1"});
+    }
+
+    public void testFollowersUseIndex() {
+        String sql = "SELECT " + MyDatabase.FollowingUser.USER_ID
+                + " FROM " + MyDatabase.FollowingUser.TABLE_NAME
+                + " WHERE " + MyDatabase.FollowingUser.FOLLOWING_USER_ID + "=1";
+        assertUsesIndex("idx_followinguser_following", sql, null);
+    }
+
+    private void assertUsesIndex(String indexName, String sql, String[] selectionArgs) {
+        List<String> plan = explain(sql, selectionArgs);
+        boolean found = false;
+        for (String detail : plan) {
+            if (detail.contains(indexName)) {
+                found = true;
+                break;
+            }
+        }
+        assertTrue("Index " + indexName + " is not used; " + plan + "; SQL=" + sql, found);
+    }
+
+    /**
+     * The same projection as in {@link org.andstatus.app.TimelineActivity}, with avatars shown
+     */
+    private static String[] timelineProjection() {
+        return new String[] {
+                Msg._ID, User.AUTHOR_NAME, Msg.BODY, Msg.IN_REPLY_TO_MSG_ID, User.IN_REPLY_TO_NAME,
+                User.RECIPIENT_NAME, MsgOfUser.FAVORITED, Msg.CREATED_DATE, Msg.SENT_DATE, User.LINKED_USER_ID,
+                Msg.AUTHOR_ID, Avatar.FILE_NAME
+        };
+    }
+
+    /**
+     * The same selections as in {@link org.andstatus.app.TimelineActivity}.
+     * Members of the Home, Mentions, Favorites and Direct timelines are selected by the {@link MyProvider}
+     */
+    private SelectionAndArgs timelineSelection(TimelineTypeEnum timelineType, boolean isCombined) {
+        SelectionAndArgs sa = new SelectionAndArgs();
+        switch (timelineType) {
+            case USER:
+                AccountUserIds userIds = new AccountUserIds(isCombined, ma.getUserId());
+                sa.addSelection(Msg.AUTHOR_ID + " " + userIds.getSqlUserIds()
+                        + " OR "
+                        + Msg.SENDER_ID + " " + userIds.getSqlUserIds()
+                        + " OR "
+                        + "("
+                        + User.LINKED_USER_ID + " " + userIds.getSqlUserIds()
+                        + " AND "
+                        + MsgOfUser.REBLOGGED + " = 1"
+                        + ")",
+                        null);
+                break;
+            default:
+                break;
+        }
+        return sa;
+    }
+
+    private List<String> explain(String sql, String[] selectionArgs) {
+        List<String> plan = new ArrayList<String>();
+        Cursor c = null;
+        try {
+            c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+            int detailIndex = c.getColumnIndex("detail");
+            while (c.moveToNext()) {
+                plan.add(c.getString(detailIndex));
+            }
+        } finally {
+            DbUtils.closeSilently(c);
+        }
+        MyLog.v(this, "Plan " + plan + " for SQL=" + sql);
+        return plan;
+    }
+}
@@ -0,0 +1,97 @@
+package org.andstatus.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.MyDatabase.Msg;
+import org.andstatus.app.data.MyDatabase.User;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimelineTableTest extends InstrumentationTestCase {
+    private MyAccount ma;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSuite.initializeWithData(this);
+        ma = MyContextHolder.get().persistentAccounts().fromAccountName(TestSuite.CONVERSATION_ACCOUNT_NAME);
+        assertTrue(TestSuite.CONVERSATION_ACCOUNT_NAME + " exists", ma != null);
+    }
+
+    /**
+     * The table has the same messages as the joins of the {@link Msg} and {@link MyDatabase.MsgOfUser} tables
+     */
+    public void testTheSameAsJoins() {
+        TimelineTypeEnum[] timelineTypes = {TimelineTypeEnum.HOME, TimelineTypeEnum.MENTIONS,
+                TimelineTypeEnum.FAVORITES, TimelineTypeEnum.DIRECT};
+        String[] projection = new String[] {Msg._ID, User.AUTHOR_NAME, Msg.SENT_DATE};
+        // The sender is not in the table, so the query is done with joins
+        String[] joinsProjection = new String[] {Msg._ID, User.AUTHOR_NAME, Msg.SENT_DATE, Msg.SENDER_ID};
+        assertTrue(TimelineTable.hasTimeline(TimelineTypeEnum.HOME, false, projection));
+        assertFalse(TimelineTable.hasTimeline(TimelineTypeEnum.HOME, false, joinsProjection));
+        assertFalse("Combined Home has all messages", TimelineTable.hasTimeline(TimelineTypeEnum.HOME, true, projection));
+
+        int count = 0;
+        for (TimelineTypeEnum timelineType : timelineTypes) {
+            Uri uri = MyProvider.getTimelineMembersUri(MyProvider.getTimelineUri(ma.getUserId(), timelineType, false));
+            List<String> rows = queryRows(uri, projection);
+            assertEquals(timelineType.toString(), queryRows(uri, joinsProjection), rows);
+            count += rows.size();
+        }
+        assertTrue("Timelines are not empty", count > 0);
+    }
+
+    public void testMsgUpdated() {
+        String[] projection = new String[] {Msg._ID, User.AUTHOR_NAME, Msg.SENT_DATE};
+        String[] joinsProjection = new String[] {Msg._ID, User.AUTHOR_NAME, Msg.SENT_DATE, Msg.SENDER_ID};
+        Uri uri = MyProvider.getTimelineMembersUri(MyProvider.getTimelineUri(ma.getUserId(), TimelineTypeEnum.HOME, false));
+        List<String> rows = queryRows(uri, projection);
+        assertTrue("Home timeline is not empty", rows.size() > 0);
+        long msgId = Long.parseLong(rows.get(0).substring(0, rows.get(0).indexOf(':')));
+        long sentDate = MyProvider.msgIdToLongColumnValue(Msg.SENT_DATE, msgId);
+
+        updateSentDate(msgId, sentDate - 1000);
+        try {
+            rows = queryRows(uri, projection);
+            String sentDateStored = "";
+            for (String row : rows) {
+                if (row.startsWith(msgId + ":")) {
+                    sentDateStored = row.substring(row.lastIndexOf(':') + 1);
+                }
+            }
+            assertEquals("Sent date in the table", Long.toString(sentDate - 1000), sentDateStored);
+            assertEquals(queryRows(uri, joinsProjection), rows);
+        } finally {
+            updateSentDate(msgId, sentDate);
+        }
+    }
+
+    private void updateSentDate(long msgId, long sentDate) {
+        ContentValues values = new ContentValues();
+        values.put(Msg.SENT_DATE, sentDate);
+        assertEquals(1, MyContextHolder.get().context().getContentResolver().update(MyProvider.MSG_CONTENT_URI,
+                values, Msg._ID + "=" + msgId, null));
+    }
+
+    private List<String> queryRows(Uri uri, String[] projection) {
+        List<String> rows = new ArrayList<String>();
+        Cursor cursor = null;
+        try {
+            cursor = MyContextHolder.get().context().getContentResolver().query(uri, projection, null, null,
+                    MyProvider.TIMELINE_PAGE_SORT_ORDER);
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getLong(0) + ":" + cursor.getString(1) + ":" + cursor.getLong(2));
+            }
+        } finally {
+            DbUtils.closeSilently(cursor);
+        }
+        return rows;
+    }
+}
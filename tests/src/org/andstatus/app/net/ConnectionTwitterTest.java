@@ -25,8 +25,11 @@ import org.andstatus.app.net.Connection.ApiRoutineEnum;
 import org.andstatus.app.origin.Origin;
 import org.andstatus.app.origin.OriginConnectionData;
 import org.andstatus.app.util.TriState;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -120,9 +123,34 @@ public class ConnectionTwitterTest extends InstrumentationTestCase {
         assertEquals("Body of this message starts with", startsWith, mbMessage.getBody().substring(0, startsWith.length()));
     }
     
+    public void testGetUsers() throws ConnectionException, JSONException {
+        assertTrue("users/lookup is supported", connection.isApiSupported(ApiRoutineEnum.GET_USERS));
+        JSONArray jArr = new JSONArray();
+        jArr.put(new JSONObject("{\"id_str\":\"221452291\",\"screen_name\":\"user1\",\"name\":\"User One\"}"));
+        jArr.put(new JSONObject("{\"id_str\":\"144771645\",\"screen_name\":\"user2\",\"name\":\"User Two\"}"));
+        JSONObject jso = new JSONObject();
+        jso.put("items", jArr);
+        httpConnection.setResponse(jso);
+
+        List<String> oids = new ArrayList<String>();
+        oids.add("221452291");
+        oids.add("144771645");
+        List<MbUser> users = connection.getUsers(oids);
+        assertTrue("Lookup request: " + httpConnection.getPathString(),
+                httpConnection.getPathString().contains("users/lookup"));
+        assertTrue("Both ids in one request: " + httpConnection.getPathString(),
+                httpConnection.getPathString().contains("221452291%2C144771645"));
+        assertEquals("Number of users", 2, users.size());
+        assertEquals("221452291", users.get(0).oid);
+        assertEquals("user2", users.get(1).userName);
+    }
+
     public void testParseDate() {
-        String stringDate = "Wed Nov 27 09:27:01 -0300 2013";
+        String stringDate = "Wed Nov 09:27:01 -0300";
         assertEquals("Bad date shouldn't throw (" + stringDate + ")", 0, connection.parseDate(stringDate) );
+        stringDate = "Wed Nov 27 09:27:01 -0300 2013";
+        assertEquals("Negative offset (" + stringDate + ")",
+                TestSuite.utcTime(2013, Calendar.NOVEMBER, 27, 12, 27, 1).getTime(), connection.parseDate(stringDate));
         Date date = TestSuite.utcTime(2013, Calendar.SEPTEMBER, 26, 18, 23, 05);
         stringDate = "Thu Sep 26 22:23:05 GMT+04:00 2013";   // date.toString gives wrong value!!!
         long parsed = connection.parseDate(stringDate);
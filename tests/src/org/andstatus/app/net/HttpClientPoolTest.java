@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net;
+
+import android.test.InstrumentationTestCase;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+public class HttpClientPoolTest extends InstrumentationTestCase {
+
+    public void testOneClientPerOrigin() {
+        HttpClientPool pool = new HttpClientPool(3, 5);
+        try {
+            DefaultHttpClient client1 = pool.getHttpClient(1);
+            assertSame("The same client for the same origin", client1, pool.getHttpClient(1));
+            DefaultHttpClient client2 = pool.getHttpClient(2);
+            assertNotSame("Different clients for different origins", client1, client2);
+            assertEquals(2, pool.size());
+
+            assertEquals(3, ConnManagerParams.getMaxConnectionsPerRoute(client1.getParams())
+                    .getMaxForRoute(new HttpRoute(new HttpHost("example.com"))));
+            assertEquals(5, ConnManagerParams.getMaxTotalConnections(client1.getParams()));
+            assertEquals("Accounts of the origin don't share cookies", CookiePolicy.IGNORE_COOKIES,
+                    HttpClientParams.getCookiePolicy(client1.getParams()));
+
+            pool.shutdown();
+            assertEquals(0, pool.size());
+            assertNotSame("New client after shutdown", client1, pool.getHttpClient(1));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net;
+
+import android.test.InstrumentationTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class HttpCompressionTest extends InstrumentationTestCase {
+    private static final String CONTENT;
+    static {
+        StringBuilder builder = new StringBuilder("[");
+        for (int ind = 0; ind < 200; ind++) {
+            builder.append(ind == 0 ? "" : ",").append("{\"id_str\":\"" + ind + "\",\"text\":\"Message number " + ind + "\"}");
+        }
+        CONTENT = builder.append("]").toString();
+    }
+
+    public void testGzip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(CONTENT.getBytes("UTF-8"));
+        out.close();
+        assertDecompressed(bytes.toByteArray(), "gzip");
+    }
+
+    public void testDeflate() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+        out.write(CONTENT.getBytes("UTF-8"));
+        out.close();
+        assertDecompressed(bytes.toByteArray(), "deflate");
+    }
+
+    public void testRawDeflate() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        out.write(CONTENT.getBytes("UTF-8"));
+        out.close();
+        assertDecompressed(bytes.toByteArray(), "deflate");
+    }
+
+    public void testTruncatedRawDeflate() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        out.write(CONTENT.getBytes("UTF-8"));
+        out.close();
+        byte[] truncated = new byte[bytes.size() / 2];
+        System.arraycopy(bytes.toByteArray(), 0, truncated, 0, truncated.length);
+        InputStream in = HttpCompression.decompress(new ByteArrayInputStream(truncated), "deflate", "truncated");
+        try {
+            HttpJavaNetUtils.readAll(in);
+            fail("Truncated response was read");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testIdentity() throws IOException {
+        byte[] content = CONTENT.getBytes("UTF-8");
+        long transferredBefore = HttpCompression.getTransferredBytes();
+        long uncompressedBefore = HttpCompression.getUncompressedBytes();
+        InputStream in = HttpCompression.decompress(new ByteArrayInputStream(content), null, "testIdentity");
+        assertEquals(CONTENT, HttpJavaNetUtils.readAll(in));
+        in.close();
+        assertEquals(content.length, HttpCompression.getTransferredBytes() - transferredBefore);
+        assertEquals(content.length, HttpCompression.getUncompressedBytes() - uncompressedBefore);
+    }
+
+    private void assertDecompressed(byte[] compressed, String contentEncoding) throws IOException {
+        long transferredBefore = HttpCompression.getTransferredBytes();
+        long uncompressedBefore = HttpCompression.getUncompressedBytes();
+        InputStream in = HttpCompression.decompress(new ByteArrayInputStream(compressed), contentEncoding,
+                "test " + contentEncoding);
+        assertEquals(CONTENT, HttpJavaNetUtils.readAll(in));
+        in.close();
+        long transferred = HttpCompression.getTransferredBytes() - transferredBefore;
+        long uncompressed = HttpCompression.getUncompressedBytes() - uncompressedBefore;
+        assertEquals(compressed.length, transferred);
+        assertEquals(CONTENT.getBytes("UTF-8").length, uncompressed);
+        assertTrue(contentEncoding + " " + transferred + " < " + uncompressed, transferred * 3 < uncompressed);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net;
+
+import android.test.InstrumentationTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+
+public class HttpResponseCacheTest extends InstrumentationTestCase {
+    private static final String URL1 = "https://example.com/api/account/verify_credentials.json";
+    private static final String URL2 = "https://example.com/api/statusnet/config.json";
+    private static final String BODY1 = "{\"id_str\":\"1\",\"screen_name\":\"first\"}";
+
+    private File dir;
+    private HttpConnectionData data;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = new File(getInstrumentation().getTargetContext().getCacheDir(), "HttpResponseCacheTest");
+        new HttpResponseCache(dir, 2).clear();
+        data = new HttpConnectionData();
+        data.originId = 1;
+        data.accountUsername = "first@example.com";
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new HttpResponseCache(dir, 2).clear();
+        super.tearDown();
+    }
+
+    public void testValidatorsAreStored() throws JSONException {
+        HttpResponseCache cache = new HttpResponseCache(dir, 2);
+        cache.put(data, URL1, "\"abc\"", null, BODY1);
+        cache.put(data, URL2, null, null, "{}");
+        assertEquals(1, cache.getStored());
+        assertNull("Response without validators is not cached", cache.get(data, URL2));
+
+        HttpResponseCache cache2 = new HttpResponseCache(dir, 2);
+        HttpResponseCache.Entry entry = cache2.get(data, URL1);
+        assertNotNull("Response is read from the file", entry);
+        assertEquals("\"abc\"", entry.getETag());
+        assertEquals("", entry.getLastModified());
+        assertEquals(BODY1, entry.getBody());
+        assertEquals("first", ((JSONObject) entry.newTokener().nextValue()).getString("screen_name"));
+
+        HttpConnectionData data2 = data.clone();
+        data2.accountUsername = "second@example.com";
+        assertNull("Responses are cached per account", cache2.get(data2, URL1));
+
+        cache2.put(data, URL1, null, null, "{}");
+        assertNull("Response without validators replaces the cached one", new HttpResponseCache(dir, 2).get(data, URL1));
+    }
+
+    public void testNotModified() throws JSONException {
+        HttpResponseCache cache = new HttpResponseCache(dir, 2);
+        HttpResponseCache.Entry entry = cache.put(data, URL1, null, "Wed, 15 Oct 2014 07:28:00 GMT", BODY1);
+        assertSame("Not modified response is not read again", entry, cache.get(data, URL1));
+        JSONObject parsed = (JSONObject) entry.newTokener().nextValue();
+        parsed.put("screen_name", "changed");
+        JSONObject parsed2 = (JSONObject) cache.get(data, URL1).newTokener().nextValue();
+        assertEquals("Each request parses its own copy", "first", parsed2.getString("screen_name"));
+        assertEquals(parsed.length(), parsed2.length());
+        cache.onNotModified(entry);
+        assertEquals(1, cache.getNotModified());
+    }
+
+    public void testNumberOfFilesIsLimited() {
+        HttpResponseCache cache = new HttpResponseCache(dir, 2);
+        for (int ind = 0; ind < 5; ind++) {
+            cache.put(data, URL1 + "?page=" + ind, "\"" + ind + "\"", null, BODY1);
+        }
+        File[] files = dir.listFiles();
+        assertNotNull(files);
+        assertTrue("Files: " + files.length, files.length <= 2);
+        assertNotNull("The last response is kept", new HttpResponseCache(dir, 2).get(data, URL1 + "?page=4"));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.net;
+
+import android.test.InstrumentationTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class JsonArrayReaderTest extends InstrumentationTestCase {
+
+    public void testRootArray() throws Exception {
+        List<JSONObject> items = read("[ {\"text\":\"Text1\"}, {\"text\":\"x]}\\\"{\", \"to\":[1,{}]} ]", null);
+        assertEquals(2, items.size());
+        assertEquals("Text1", items.get(0).getString("text"));
+        assertEquals("x]}\"{", items.get(1).getString("text"));
+        assertEquals(2, items.get(1).getJSONArray("to").length());
+        assertEquals(0, read("[]", null).size());
+    }
+
+    public void testArrayInObject() throws Exception {
+        final String in = "{\"since_id\":\"Wed, 05 Mar 2014 16:37:17 +0100\", \"count\": 2, \"ok\":true,"
+                + " \"links\":{\"next\":{\"href\":\"http://example.com/?a=[1]\"}},"
+                + "\"results\":[{\"text\":\"Text1\",\"from_user\":\"author1\"},"
+                + "{\"text\":\"Text2\",\"from_user\":\"otherauthor\"}]}";
+        List<JSONObject> items = read(in, null);
+        assertEquals(2, items.size());
+        assertEquals("otherauthor", items.get(1).getString("from_user"));
+
+        final String in2 = "{\"objectTypes\":[\"note\"], \"totalItems\": 1, \"items\" : [ {\"id\":\"a\"} ] }";
+        items = read(in2, "items");
+        assertEquals(1, items.size());
+        assertEquals("a", items.get(0).getString("id"));
+    }
+
+    public void testNoArray() throws Exception {
+        try {
+            read("{\"totalItems\": 0}", "items");
+            fail("No array");
+        } catch (ConnectionException e) {
+            assertFalse(e.isHardError());
+        }
+        try {
+            read("[1, 2]", null);
+            fail("Items are not objects");
+        } catch (ConnectionException e) {
+            assertTrue(e.isHardError());
+        }
+        try {
+            read("[{\"id\":\"a\"}", null);
+            fail("Truncated response");
+        } catch (JSONException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("end of input"));
+        }
+    }
+
+    private static List<JSONObject> read(String in, String arrayKey) throws IOException, JSONException,
+            ConnectionException {
+        final List<JSONObject> items = new ArrayList<JSONObject>();
+        int count = new JsonArrayReader(new StringReader(in), arrayKey).read(new JsonArrayReader.ItemHandler() {
+            @Override
+            public void onItem(JSONObject item) {
+                items.add(item);
+            }
+        });
+        assertEquals(items.size(), count);
+        return items;
+    }
+}
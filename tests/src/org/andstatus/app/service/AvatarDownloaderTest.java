@@ -9,6 +9,7 @@ import org.andstatus.app.context.MyPreferences;
 import org.andstatus.app.context.TestSuite;
 import org.andstatus.app.data.AvatarDrawable;
 import org.andstatus.app.data.AvatarStatus;
+import org.andstatus.app.data.MyDatabase.Avatar;
 import org.andstatus.app.data.MyDatabase.User;
 import org.andstatus.app.data.MyProvider;
 import org.andstatus.app.service.AvatarDownloader;
@@ -18,6 +19,7 @@ import org.andstatus.app.util.MyLog;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AvatarDownloaderTest extends InstrumentationTestCase {
     private MyAccount ma;
@@ -82,6 +84,65 @@ public class AvatarDownloaderTest extends InstrumentationTestCase {
         assertTrue(avatarDrawable.exists());
     }
     
+    public void testRevalidation() throws IOException {
+        changeMaAvatarUrl(TestSuite.CONVERSATION_ACCOUNT_AVATAR_URL);
+        loadAndAssertStatusForUrl(TestSuite.CONVERSATION_ACCOUNT_AVATAR_URL, AvatarStatus.LOADED, false);
+        AvatarDownloader loader = new AvatarDownloader(ma.getUserId());
+        assertFalse("Loaded recently", loader.isDownloadNeeded());
+        long rowId = loader.getRowId();
+
+        ContentValues values = new ContentValues();
+        values.put(Avatar.LOADED_DATE, System.currentTimeMillis() - AvatarDownloader.REVALIDATE_PERIOD_MILLIS - 1000);
+        MyContextHolder.get().getDatabase().getWritableDatabase()
+                .update(Avatar.TABLE_NAME, values, Avatar._ID + "=" + rowId, null);
+        loader = new AvatarDownloader(ma.getUserId());
+        assertTrue("Loaded long ago", loader.isDownloadNeeded());
+        long rowIdRevalidated = loadAndAssertStatusForUrl(TestSuite.CONVERSATION_ACCOUNT_AVATAR_URL, AvatarStatus.LOADED, false);
+        assertEquals("The same row", rowId, rowIdRevalidated);
+        assertFalse("Revalidated", new AvatarDownloader(ma.getUserId()).isDownloadNeeded());
+    }
+
+    public void testFetchPool() throws InterruptedException {
+        changeMaAvatarUrl(TestSuite.CONVERSATION_ACCOUNT_AVATAR_URL);
+        AvatarDownloader loader = new AvatarDownloader(ma.getUserId());
+        AvatarDrawable avatarDrawable = new AvatarDrawable(ma.getUserId(), loader.getFileName());
+        if (avatarDrawable.exists()) {
+            avatarDrawable.getFile().delete();
+        }
+        AvatarFetchPool pool = AvatarFetchPool.getInstance();
+        assertTrue(pool.fetch(ma.getUserId()));
+        pool.fetch(ma.getUserId());
+        for (int attempt = 0; attempt < 60 && !pool.isIdle(); attempt++) {
+            Thread.sleep(500);
+        }
+        assertTrue("Pool is idle", pool.isIdle());
+        loader = new AvatarDownloader(ma.getUserId());
+        assertEquals(AvatarStatus.LOADED, loader.getStatus());
+        assertTrue("Avatar file exists", new AvatarDrawable(ma.getUserId(), loader.getFileName()).exists());
+    }
+
+    public void testFetchWhileLastWorkerExits() throws InterruptedException {
+        final AvatarFetchPool pool = new AvatarFetchPool();
+        final long userIdWithoutAvatar1 = Long.MAX_VALUE - 1;
+        final long userIdWithoutAvatar2 = Long.MAX_VALUE - 2;
+        final AtomicBoolean fetched = new AtomicBoolean(false);
+        pool.onWorkerExit = new Runnable() {
+            @Override
+            public void run() {
+                if (fetched.compareAndSet(false, true)) {
+                    pool.fetch(userIdWithoutAvatar2);
+                }
+            }
+        };
+        assertTrue(pool.fetch(userIdWithoutAvatar1));
+        for (int attempt = 0; attempt < 20 && !(fetched.get() && pool.isIdle()); attempt++) {
+            Thread.sleep(500);
+        }
+        assertTrue("Fetched while the worker was exiting", fetched.get());
+        assertTrue("The task, queued while the last worker was exiting, is done", pool.isIdle());
+        assertTrue("The user may be fetched again", pool.fetch(userIdWithoutAvatar2));
+    }
+
     private void changeMaAvatarUrl(String urlString) {
         ContentValues values = new ContentValues();
         values.put(User.AVATAR_URL, urlString);
@@ -2,7 +2,9 @@ package org.andstatus.app.service;
 
 import android.test.InstrumentationTestCase;
 
+import org.andstatus.app.IntentExtra;
 import org.andstatus.app.context.MyContextHolder;
+import org.andstatus.app.context.MyPreferences;
 import org.andstatus.app.context.TestSuite;
 import org.andstatus.app.util.SharedPreferencesUtil;
 
@@ -31,11 +33,19 @@ public class CommandDataTest extends InstrumentationTestCase {
         assertEquals(CommandResult.MAX_RETRIES - 1, commandData.getResult().getRetriesLeft());
         assertFalse(commandData.getResult().hasSoftError());
         assertFalse(commandData.getResult().hasHardError());
-        
-        queue.add(commandData);
-        assertEquals(1, CommandData.saveQueue(MyContextHolder.get().context(), queue, TEST_QUEUE_FILE_NAME));
-        queue.clear();
+
+        // The queue, as older versions stored it
+        SharedPreferencesUtil.delete(MyContextHolder.get().context(), TEST_QUEUE_FILE_NAME);
+        MyPreferences.getSharedPreferences(TEST_QUEUE_FILE_NAME).edit()
+                .putString(IntentExtra.EXTRA_MSGTYPE.key + "0", CommandEnum.UPDATE_STATUS.save())
+                .putString(IntentExtra.EXTRA_ACCOUNT_NAME.key + "0", TestSuite.CONVERSATION_ACCOUNT_NAME)
+                .putString(IntentExtra.EXTRA_STATUS.key + "0", body)
+                .putInt(IntentExtra.EXTRA_EXECUTION_COUNT.key + "0", 1)
+                .putInt(IntentExtra.EXTRA_RETRIES_LEFT.key + "0", CommandResult.MAX_RETRIES - 1)
+                .commit();
         assertEquals(1, CommandData.loadQueue(MyContextHolder.get().context(), queue, TEST_QUEUE_FILE_NAME));
+        assertFalse("Loaded queue is deleted",
+                SharedPreferencesUtil.exists(MyContextHolder.get().context(), TEST_QUEUE_FILE_NAME));
 
         CommandData commandData2 = queue.poll();
         assertEquals(commandData, commandData2);
@@ -43,6 +53,38 @@ public class CommandDataTest extends InstrumentationTestCase {
         assertEquals(commandData.getResult().getRetriesLeft(), commandData2.getResult().getRetriesLeft());
     }
 
+    public void testPersistedQueue() {
+        String body = "Persisted command " + System.currentTimeMillis() + "ms";
+        CommandData commandData = CommandData.updateStatus(TestSuite.CONVERSATION_ACCOUNT_NAME,
+                body, 0, 0);
+        commandData.getResult().onLaunched();
+        commandData.getResult().onExecuted();
+
+        CommandQueue mainQueue = new CommandQueue(CommandQueue.QueueType.MAIN);
+        assertTrue(mainQueue.offer(commandData));
+        assertTrue("Command was inserted", commandData.getCommandId() != 0);
+        assertFalse("Duplicate is not added", mainQueue.offer(CommandData.updateStatus(
+                TestSuite.CONVERSATION_ACCOUNT_NAME, body, 0, 0)));
+        assertEquals(commandData, mainQueue.poll());
+        assertTrue(mainQueue.isEmpty());
+
+        CommandQueue retryQueue = new CommandQueue(CommandQueue.QueueType.RETRY);
+        assertTrue(CommandQueue.load(mainQueue, retryQueue) > 0);
+        CommandData commandData2 = mainQueue.get(commandData);
+        assertTrue("Command restored after polling", commandData2 != null);
+        assertEquals(commandData.getCommandId(), commandData2.getCommandId());
+        assertEquals(body, commandData2.bundle.getString(IntentExtra.EXTRA_STATUS.key));
+        assertEquals(commandData.getResult().getExecutionCount(), commandData2.getResult().getExecutionCount());
+        assertEquals(commandData.getResult().getRetriesLeft(), commandData2.getResult().getRetriesLeft());
+
+        CommandQueue.onDone(commandData2);
+        mainQueue.clear();
+        retryQueue.clear();
+        CommandQueue.load(mainQueue, retryQueue);
+        assertFalse("Executed command is not restored", mainQueue.contains(commandData));
+        assertFalse("Executed command is not restored", retryQueue.contains(commandData));
+    }
+
     @Override
     protected void tearDown() throws Exception {
         SharedPreferencesUtil.delete(MyContextHolder.get().context(), TEST_QUEUE_FILE_NAME);
@@ -3,8 +3,10 @@ package org.andstatus.app.service;
 import android.test.InstrumentationTestCase;
 
 import org.andstatus.app.account.MyAccount;
+import org.andstatus.app.account.MyAccount.CredentialsVerificationStatus;
 import org.andstatus.app.context.MyContextHolder;
 import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.data.TimelineTypeEnum;
 import org.andstatus.app.net.ConnectionException;
 import org.andstatus.app.net.RawResourceReader;
 import org.andstatus.app.net.ConnectionException.StatusCode;
@@ -34,6 +36,26 @@ public class CommandExecutorStrategyTest extends InstrumentationTestCase {
         CommandData commandData = new CommandData(CommandEnum.FETCH_TIMELINE, "");
         CommandExecutorStrategy strategy = CommandExecutorStrategy.getStrategy(commandData, null);
         assertEquals(CommandExecutorAllAccounts.class, strategy.getClass());
+
+        CommandExecutionContext execContext = new CommandExecutionContext(commandData, null);
+        assertFalse(execContext.isStepOfAllAccounts());
+        CommandExecutionContext accountContext = execContext.forAccount(ma);
+        assertTrue("Pruning is done by CommandExecutorAllAccounts", accountContext.isStepOfAllAccounts());
+        assertEquals(CommandExecutorLoadTimeline.class, CommandExecutorStrategy.getStrategy(accountContext).getClass());
+    }
+
+    public void testAllAccountsExecuted() {
+        CommandData commandData = new CommandData(CommandEnum.FETCH_TIMELINE, "", TimelineTypeEnum.MENTIONS, 0);
+        CommandExecutorStrategy.executeCommand(commandData, null);
+        int nAccounts = 0;
+        for (MyAccount acc : MyContextHolder.get().persistentAccounts().collection()) {
+            if (acc.getCredentialsVerified() == CredentialsVerificationStatus.SUCCEEDED) {
+                nAccounts++;
+            }
+        }
+        CommandResult result = commandData.getResult();
+        assertEquals(result.toString(), nAccounts, result.getNumberOfAccountsExecuted());
+        assertTrue(result.toString(), result.toString().contains(ma.getAccountName() + ":"));
     }
 
     public void testSearch() {
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.service;
+
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.net.MbRateLimitStatus;
+
+public class RateLimitSchedulerTest extends InstrumentationTestCase {
+    private static final long NOW = 1400000000000L;
+    private static final long MINUTE = 60 * 1000L;
+
+    public void testUnknownQuota() {
+        MbRateLimitStatus status = new MbRateLimitStatus();
+        assertFalse(RateLimitScheduler.isExhausted(status, NOW));
+        assertFalse(RateLimitScheduler.isLow(status, NOW));
+        assertEquals(0, RateLimitScheduler.getDelayMillis(status, NOW));
+    }
+
+    public void testPlentyOfQuota() {
+        MbRateLimitStatus status = newStatus(15, 10, NOW + 10 * MINUTE);
+        assertFalse(RateLimitScheduler.isExhausted(status, NOW));
+        assertFalse(RateLimitScheduler.isLow(status, NOW));
+        assertEquals(0, RateLimitScheduler.getDelayMillis(status, NOW));
+    }
+
+    public void testLowQuota() {
+        MbRateLimitStatus status = newStatus(15, 2, NOW + 3 * MINUTE);
+        assertFalse(RateLimitScheduler.isExhausted(status, NOW));
+        assertTrue(RateLimitScheduler.isLow(status, NOW));
+        assertEquals("Capped delay", RateLimitScheduler.MAX_DELAY_MILLIS, RateLimitScheduler.getDelayMillis(status, NOW));
+
+        status.resetTime = NOW + 15000;
+        assertEquals("Requests are spread till the reset", 5000, RateLimitScheduler.getDelayMillis(status, NOW));
+    }
+
+    public void testExhaustedQuota() {
+        MbRateLimitStatus status = newStatus(15, 0, NOW + 5 * MINUTE);
+        assertTrue(RateLimitScheduler.isExhausted(status, NOW));
+        assertTrue(RateLimitScheduler.isLow(status, NOW));
+
+        long afterReset = NOW + 6 * MINUTE;
+        assertTrue(RateLimitScheduler.isReset(status, afterReset));
+        assertFalse("The quota is restored after the reset", RateLimitScheduler.isExhausted(status, afterReset));
+        assertFalse(RateLimitScheduler.isLow(status, afterReset));
+        assertEquals(0, RateLimitScheduler.getDelayMillis(status, afterReset));
+    }
+
+    private static MbRateLimitStatus newStatus(int limit, int remaining, long resetTime) {
+        MbRateLimitStatus status = new MbRateLimitStatus();
+        status.limit = limit;
+        status.remaining = remaining;
+        status.resetTime = resetTime;
+        return status;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.util;
+
+import android.test.InstrumentationTestCase;
+
+import org.andstatus.app.context.TestSuite;
+import org.andstatus.app.net.RawResourceReader;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class DateParserTest extends InstrumentationTestCase {
+    private static final Pattern DATE_FIELD = Pattern.compile(
+            "\"(?:published|updated|created_at)\"\\s*:\\s*\"([^\"]+)\"");
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final int ITERATIONS = 200;
+
+    public void testRfc822() {
+        long expected = TestSuite.utcTime(2013, Calendar.SEPTEMBER, 26, 18, 23, 5).getTime();
+        assertEquals(expected, DateParser.parseRfc822("Thu Sep 26 18:23:05 +0000 2013"));
+        assertEquals(expected, DateParser.parseRfc822("Thu Sep 26 20:23:05 +0200 2013"));
+        assertEquals(expected, DateParser.parseRfc822("Thu Sep 26 15:23:05 -0300 2013"));
+        assertEquals(expected, DateParser.parseRfc822("Thu Sep 26 22:23:05 GMT+04:00 2013"));
+        assertEquals(expected, DateParser.parseRfc822("Thu, 26 Sep 2013 18:23:05 GMT"));
+        assertEquals(expected, DateParser.parseRfc822("Thu, 26 Sep 2013 11:23:05 PDT"));
+        assertEquals(expected, DateParser.parseRfc822("Thursday, 26 September 2013 18:23:05 UTC"));
+        assertEquals(TestSuite.utcTime(2012, Calendar.FEBRUARY, 29, 0, 0, 0).getTime(),
+                DateParser.parseRfc822("Wed Feb 29 00:00:00 +0000 2012"));
+        assertEquals(0, DateParser.parseRfc822(null));
+        assertEquals(0, DateParser.parseRfc822(""));
+        assertEquals(0, DateParser.parseRfc822("Not a date"));
+    }
+
+    public void testIso8601() {
+        long expected = TestSuite.utcTime(2013, Calendar.OCTOBER, 29, 1, 1, 30).getTime();
+        assertEquals(expected, DateParser.parseIso8601("2013-10-29T01:01:30Z"));
+        assertEquals(expected, DateParser.parseIso8601("2013-10-29T02:01:30+01:00"));
+        assertEquals(expected, DateParser.parseIso8601("2013-10-29T02:01:30+0100"));
+        assertEquals(expected, DateParser.parseIso8601("2013-10-28T22:01:30-03:00"));
+        assertEquals(expected + 250, DateParser.parseIso8601("2013-10-29T01:01:30.25Z"));
+        assertEquals(expected + 123, DateParser.parseIso8601("2013-10-29T01:01:30.123456Z"));
+        assertEquals(0, DateParser.parseIso8601(null));
+        assertEquals(0, DateParser.parseIso8601("2013-10-29T01:01:30"));
+        assertEquals(0, DateParser.parseIso8601("2013-02-30T01:01:30Z"));
+        assertEquals(0, DateParser.parseIso8601("2013-10-29T01:01:30Zulu"));
+        assertEquals(0, DateParser.parseIso8601("Wed Nov 27 09:27:01 -0300 2013"));
+    }
+
+    public void testDaysFromCivil() {
+        assertEquals(0, DateParser.daysFromCivil(1970, 1, 1));
+        assertEquals(-1, DateParser.daysFromCivil(1969, 12, 31));
+        assertEquals(11016, DateParser.daysFromCivil(2000, 2, 29));
+    }
+
+    /**
+     * Compares the parser with the code, which it replaced, on dates of real responses.
+     * Results should be the same, time per date is logged
+     */
+    public void testBenchmark() throws IOException, ParseException {
+        List<String> pumpioDates = extractDates(org.andstatus.app.tests.R.raw.user_t131t_inbox);
+        List<String> twitterDates = extractDates(org.andstatus.app.tests.R.raw.home_timeline);
+        assertTrue("Pump.io dates: " + pumpioDates.size(), pumpioDates.size() > 10);
+        assertTrue("Twitter dates: " + twitterDates.size(), twitterDates.size() > 5);
+
+        for (String date : pumpioDates) {
+            assertEquals(date, legacyParseIso8601(date), DateParser.parseIso8601(date));
+        }
+        for (String date : twitterDates) {
+            assertEquals(date, legacyParseRfc822(date), DateParser.parseRfc822(date));
+        }
+
+        MyLog.i(this, "pump.io dates: legacy " + measure(pumpioDates, true, true) + " ns/date, DateParser "
+                + measure(pumpioDates, true, false) + " ns/date");
+        MyLog.i(this, "Twitter dates: legacy " + measure(twitterDates, false, true) + " ns/date, DateParser "
+                + measure(twitterDates, false, false) + " ns/date");
+    }
+
+    private List<String> extractDates(int resourceId) throws IOException {
+        String json = RawResourceReader.getStringResource(getInstrumentation().getContext(), resourceId);
+        List<String> dates = new ArrayList<String>();
+        Matcher matcher = DATE_FIELD.matcher(json);
+        while (matcher.find()) {
+            dates.add(matcher.group(1));
+        }
+        return dates;
+    }
+
+    /**
+     * Warm-up rounds are not measured, the best of the measured rounds is taken
+     * @return Nanoseconds per date
+     */
+    private long measure(List<String> dates, boolean iso8601, boolean legacy) throws ParseException {
+        long best = Long.MAX_VALUE;
+        long sum = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long startedAt = System.nanoTime();
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                for (String date : dates) {
+                    if (iso8601) {
+                        sum += legacy ? legacyParseIso8601(date) : DateParser.parseIso8601(date);
+                    } else {
+                        sum += legacy ? legacyParseRfc822(date) : DateParser.parseRfc822(date);
+                    }
+                }
+            }
+            long nanos = System.nanoTime() - startedAt;
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, nanos);
+            }
+        }
+        // So the results are used
+        assertTrue(sum != 0);
+        return best / (ITERATIONS * (long) dates.size());
+    }
+
+    /** ConnectionTwitter's parser before the DateParser */
+    @SuppressWarnings("deprecation")
+    private static long legacyParseRfc822(String date) {
+        return Date.parse(date);
+    }
+
+    /** ConnectionPumpio's parser before the DateParser */
+    private static long legacyParseIso8601(String date) throws ParseException {
+        DateFormat dateFormat = LEGACY_ISO8601_FORMAT.get();
+        String datePrepared;
+        if (date.lastIndexOf('Z') == date.length() - 1) {
+            datePrepared = date.substring(0, date.length() - 1) + "+0000";
+        } else {
+            datePrepared = date.replaceAll("\\+0([0-9]){1}\\:00", "+0$100");
+        }
+        return dateFormat.parse(datePrepared).getTime();
+    }
+
+    private static final ThreadLocal<DateFormat> LEGACY_ISO8601_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.GERMANY);
+        }
+    };
+}
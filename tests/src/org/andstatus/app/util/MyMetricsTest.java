@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2014 yvolk (Yuri Volkov), http://yurivolkov.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.andstatus.app.util;
+
+import android.test.InstrumentationTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class MyMetricsTest extends InstrumentationTestCase {
+
+    public void testCounterAndGauge() {
+        String name = "test.counter." + System.nanoTime();
+        MyMetrics.Counter counter = MyMetrics.counter(name);
+        assertSame(counter, MyMetrics.counter(name));
+        counter.increment();
+        counter.add(41);
+        assertEquals(42, counter.get());
+
+        MyMetrics.Gauge gauge = MyMetrics.gauge("test.gauge." + System.nanoTime());
+        gauge.set(5);
+        gauge.set(12);
+        gauge.set(3);
+        assertEquals(3, gauge.get());
+        assertEquals(12, gauge.getMax());
+    }
+
+    public void testHistogram() throws JSONException {
+        MyMetrics.Histogram histogram = MyMetrics.histogram("test.histogram." + System.nanoTime());
+        assertEquals(0, histogram.getPercentile(50));
+        for (int ind = 1; ind <= 100; ind++) {
+            histogram.record(ind);
+        }
+        histogram.record(45000);
+        assertEquals(101, histogram.getCount());
+        assertEquals(5050 + 45000, histogram.getSum());
+        assertEquals(45000, histogram.getMax());
+        assertEquals(100, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(99));
+        assertEquals(45000, histogram.getPercentile(100));
+
+        JSONObject jsoBuckets = histogram.toJson().getJSONObject("buckets");
+        assertEquals(1, jsoBuckets.getLong("<=1"));
+        assertEquals(50, jsoBuckets.getLong("<=100"));
+        assertEquals(1, jsoBuckets.getLong(">30000"));
+        assertFalse(jsoBuckets.has("<=200"));
+    }
+
+    public void testSnapshot() throws JSONException {
+        String name = "test.snapshot." + System.nanoTime();
+        MyMetrics.counter(name).add(7);
+        MyMetrics.histogram(name + ".ms").record(3);
+        JSONObject jso = MyMetrics.toJson("test");
+        assertEquals("test", jso.getString("build"));
+        assertEquals(7, jso.getJSONObject("counters").getLong(name));
+        assertEquals(1, jso.getJSONObject("histograms").getJSONObject(name + ".ms").getLong("count"));
+    }
+}